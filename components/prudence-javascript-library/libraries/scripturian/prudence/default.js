@@ -1157,6 +1157,29 @@ var Prudence = {}
  * @type <a href="http://restlet.com/technical-resources/restlet-framework/javadocs/2.3/jse/api/index.html?org/restlet/data/Form.html">org.restlet.data.Form</a>
  */
 
+/**
+ * Streaming API for accessing {@link conversation#entity} when the payload is a web form. Parts are read while the request
+ * is received, so uploaded files are never stored in memory or in the "/uploads/" subdirectory, and can instead be piped straight
+ * to their destination with bounded memory.
+ * <p>
+ * Each part has these attributes and methods:
+ * <ul>
+ * <li>name: the form field name</li>
+ * <li>filename: the filename set by the client for uploaded files</li>
+ * <li>file: true for uploaded files, false for plain fields</li>
+ * <li>mediaTypeName: the MIME type set by the client, such as "image/jpeg"</li>
+ * <li>stream, channel: the content as a JVM InputStream or ReadableByteChannel</li>
+ * <li>string: the content as text</li>
+ * <li>copyTo(outputStream): copies the content, returning the number of bytes</li>
+ * </ul>
+ * <p>
+ * The content of a part can be read only once, and only before moving to the next part. Because the request entity can
+ * be read only once, this API cannot be used together with {@link conversation#form} or {@link conversation#formAll}.
+ * 
+ * @name conversation.formParts
+ * @type <a href="http://threecrickets.com/api/java/prudence/index.html?com/threecrickets/prudence/util/FormPartIterator.html">com.threecrickets.prudence.util.FormPartIterator</a>
+ */
+
 /**
  * Convenient API to set the response payload to a textual representation.
  * 
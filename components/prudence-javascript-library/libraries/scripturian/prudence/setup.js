@@ -105,6 +105,11 @@ Prudence.Setup = Prudence.Setup || function() {
 	 * @property {Boolean} [settings.code.sourceViewable=false] When true enabled the source code viewing facility
 	 *                     (can work in conjunction with the debug page when settings.errors.debug is true)
 	 * @property {String} [settings.code.sourceViewer='/source-code/'] Only used when settings.code.sourceViewable=true
+	 * @property {Number|String} [settings.code.enterablePoolSize=0] When greater than zero, manual resources, handlers and tasks
+	 *                            are entered via a pool of this many execution contexts per document instead of a single shared one;
+	 *                            a string such as '2x' is multiplied by the number of CPU cores
+	 * @property {Number} [settings.code.enterablePoolTimeout=5000] Milliseconds to wait for a pooled execution context before
+	 *                    falling back to the shared one
 	 * 
 	 * @property {Object} [settings.templates] Templates settings
 	 * @property {Boolean} [settings.templates.debug=false] When true, outputs the generated template code under "/cache/scripturian/"
@@ -119,6 +124,8 @@ Prudence.Setup = Prudence.Setup || function() {
 	 * @property {Object} [settings.compression] Compression settings
 	 * @property {Number|String} [settings.compression.sizeThreshold=1024] The size in bytes beyond which responses may be compressed
 	 * @property {String[]} [settings.compression.exclude] Additional media types excluded from compression
+	 * @property {Number} [settings.compression.level=6] The gzip compression level, from 1 (fastest) to 9 (smallest)
+	 * @property {Boolean} [settings.compression.adaptive=true] When true, the compression level is lowered while the machine is busy
 	 * @property {Object} [settings.uploads] File upload settings
 	 * @property {String} [settings.uploads.root='uploads'] Path in which to store uploaded files; the path is relative to the
 	 *                    application directory
@@ -251,6 +258,8 @@ Prudence.Setup = Prudence.Setup || function() {
 			this.settings.templates.plugins['.'] = Sincerity.Objects.ensure(this.settings.templates.plugins['.'], prudenceScriptletPlugin)
 
 			this.settings.compression.sizeThreshold = Sincerity.Objects.ensure(this.settings.compression.sizeThreshold, 1024)
+			this.settings.compression.level = Sincerity.Objects.ensure(this.settings.compression.level, 6)
+			this.settings.compression.adaptive = Sincerity.Objects.ensure(this.settings.compression.adaptive, true)
 
 			this.settings.uploads.sizeThreshold = Sincerity.Objects.ensure(this.settings.uploads.sizeThreshold, 0)
 			this.settings.uploads.root = Sincerity.Objects.ensure(this.settings.uploads.root, 'uploads')
@@ -428,6 +437,8 @@ Prudence.Setup = Prudence.Setup || function() {
 								languageManager: executable.languageManager,
 								parserManager: executable.parserManager,
 								sourceViewable: this.settings.code.sourceViewable,
+								enterablePoolSize: this.settings.code.enterablePoolSize,
+								enterablePoolTimeout: this.settings.code.enterablePoolTimeout,
 								fileUploadDirectory: this.settings.uploads.root,
 								fileUploadSizeThreshold: this.settings.uploads.sizeThreshold
 							}
@@ -447,6 +458,8 @@ Prudence.Setup = Prudence.Setup || function() {
 								languageManager: executable.languageManager,
 								parserManager: executable.parserManager,
 								sourceViewable: this.settings.code.sourceViewable,
+								enterablePoolSize: this.settings.code.enterablePoolSize,
+								enterablePoolTimeout: this.settings.code.enterablePoolTimeout,
 								fileUploadDirectory: this.settings.uploads.root,
 								fileUploadSizeThreshold: this.settings.uploads.sizeThreshold
 							}
@@ -822,13 +835,26 @@ Prudence.Setup = Prudence.Setup || function() {
 			return dispatcher
 		}
 		
-		Public.createEncoder = function(next) {
+		Public.createEncoder = function(next, precompress) {
 			importClass(
 					com.threecrickets.prudence.util.CustomEncoder,
+					com.threecrickets.prudence.util.PrecompressingEncoder,
 					org.restlet.data.MediaType)
 
-			var encoder = new CustomEncoder(this.instance)
+			var encoder
+			if (precompress) {
+				encoder = new PrecompressingEncoder(this.instance)
+				var executor = component.context.attributes.get('com.threecrickets.prudence.executor')
+				if (Sincerity.Objects.exists(executor)) {
+					encoder.executor = executor
+				}
+			}
+			else {
+				encoder = new CustomEncoder(this.instance)
+			}
 			encoder.encoderService.minimumSize = this.settings.compression.sizeThreshold
+			encoder.compressor.level = this.settings.compression.level
+			encoder.compressor.adaptive = this.settings.compression.adaptive
 			var ignoredMediaTypes = encoder.encoderService.ignoredMediaTypes
 			ignoredMediaTypes.add(MediaType.APPLICATION_JAVA)
 			var exclude = this.settings.compression.exclude
@@ -899,7 +925,12 @@ Prudence.Setup = Prudence.Setup || function() {
 	 * <p>
 	 * Implementation note: Internally handled by a <a href="http://restlet.com/technical-resources/restlet-framework/javadocs/2.3/jse/api/index.html?org/restlet/resource/Directory.html">Directory</a> instance.
 	 * When "compress" is set to true, inserts a <a href="http://threecrickets.com/api/java/prudence/index.html?com/threecrickets/prudence/util/CustomEncoder.html">CustomEncoder</a>
-	 * filter before the Directory.
+	 * filter before the Directory, or a <a href="http://threecrickets.com/api/java/prudence/index.html?com/threecrickets/prudence/util/PrecompressingEncoder.html">PrecompressingEncoder</a>
+	 * when "precompress" is also true. When "memoryCache" is true, also inserts a
+	 * <a href="http://threecrickets.com/api/java/prudence/index.html?com/threecrickets/prudence/util/FileCacheFilter.html">FileCacheFilter</a>
+	 * before the Directory. When "zeroCopy" is true, also inserts a
+	 * <a href="http://threecrickets.com/api/java/prudence/index.html?com/threecrickets/prudence/util/FileRangeFilter.html">FileRangeFilter</a>
+	 * directly before the Directory.
 	 * 
 	 * @class
 	 * @name Prudence.Setup.Static
@@ -911,6 +942,9 @@ Prudence.Setup = Prudence.Setup || function() {
 	 * @param {Boolean} [config.listingAllowed=false] If true will automatically generate HTML pages with directory contents for all mapped subdirectories
 	 * @param {Boolean} [config.negotiate=true] If true will automatically handle content negotiation; the preferred media (MIME) type will be determined by the filename extension
 	 * @param {Boolean} [config.compress=true] If true will automatically compress files in gzip, zip, deflate or compress encoding if requested by the client (requires "negotiate" to be true)
+	 * @param {Boolean} [config.precompress=false] If true will keep compressed variants of small files in memory, compressed in the background, instead of compressing them for every request (requires "compress" to be true); opt-in, because it trades memory for CPU
+	 * @param {Boolean} [config.memoryCache=false] If true will keep small files in memory, checking them for changes according to settings.code.minimumTimeBetweenValidityChecks; opt-in, because it trades memory for file system access
+	 * @param {Boolean} [config.zeroCopy=false] If true will write files and byte ranges of files directly from the filesystem to the connection where possible, instead of copying them through memory; opt-in, because it depends on support by the server connector
 	 * @param {Number} [config.cacheDuration=settings.code.minimumTimeBetweenValidityChecks]
 	 */
 	Public.Static = Sincerity.Classes.define(function(Module) {
@@ -921,13 +955,16 @@ Prudence.Setup = Prudence.Setup || function() {
 		Public._inherit = Module.Restlet
 
 		/** @ignore */
-		Public._configure = ['root', 'roots', 'listingAllowed', 'negotiate', 'compress', 'cacheDuration']
+		Public._configure = ['root', 'roots', 'listingAllowed', 'negotiate', 'compress', 'precompress', 'memoryCache', 'zeroCopy', 'cacheDuration']
 
 		Public.create = function(app, uri) {
 			importClass(
 				com.threecrickets.prudence.util.Fallback)
 				
 			this.compress = Sincerity.Objects.ensure(this.compress, true)
+			this.precompress = Sincerity.Objects.ensure(this.precompress, false)
+			this.memoryCache = Sincerity.Objects.ensure(this.memoryCache, false)
+			this.zeroCopy = Sincerity.Objects.ensure(this.zeroCopy, false)
 			
 			if (Sincerity.Objects.exists(this.root)) {
 				this.roots = [this.root]
@@ -946,6 +983,9 @@ Prudence.Setup = Prudence.Setup || function() {
 				
 				var fallback = new Fallback(app.context, this.cacheDuration)
 				
+				// Directories have no entities for missing files, so it's safe to remember them
+				fallback.cacheUnhandled = true
+				
 				for (var i in this.roots) {
 					var restlet = createDirectory.call(this, app, this.roots[i])
 					fallback.addTarget(restlet)					
@@ -962,6 +1002,8 @@ Prudence.Setup = Prudence.Setup || function() {
 		function createDirectory(app, root) {
 			importClass(
 					org.restlet.resource.Directory,
+					com.threecrickets.prudence.util.FileCacheFilter,
+					com.threecrickets.prudence.util.FileRangeFilter,
 					java.io.File)
 
 			if (!(root instanceof File)) {
@@ -972,9 +1014,23 @@ Prudence.Setup = Prudence.Setup || function() {
 			restlet.listingAllowed = Sincerity.Objects.ensure(this.listingAllowed, false)
 			restlet.negotiatingContent = Sincerity.Objects.ensure(this.negotiate, true)
 			
+			if (this.zeroCopy) {
+				// Put a file range filter before the directory
+				restlet = new FileRangeFilter(app.context, restlet)
+			}
+			
+			if (this.memoryCache) {
+				// Put a file cache before the directory
+				restlet = new FileCacheFilter(app.context, restlet, app.settings.code.minimumTimeBetweenValidityChecks)
+				var fileWatcher = component.context.attributes.get('com.threecrickets.prudence.fileWatcher')
+				if (Sincerity.Objects.exists(fileWatcher)) {
+					restlet.watch(fileWatcher, root)
+				}
+			}
+			
 			if (this.compress) {
 				// Put a custom encoder before the directory
-				restlet = app.createEncoder(restlet)
+				restlet = app.createEncoder(restlet, this.precompress)
 			}
 			
 			return restlet
@@ -1099,6 +1155,8 @@ Prudence.Setup = Prudence.Setup || function() {
 					languageManager: executable.languageManager,
 					parserManager: executable.parserManager,
 					sourceViewable: app.settings.code.sourceViewable,
+					enterablePoolSize: app.settings.code.enterablePoolSize,
+					enterablePoolTimeout: app.settings.code.enterablePoolTimeout,
 					negotiateEncoding: this.compress,
 					encodeSizeThreshold: app.settings.compression.sizeThreshold,
 					fileUploadDirectory: app.settings.uploads.root,
@@ -1204,6 +1262,14 @@ Prudence.Setup = Prudence.Setup || function() {
 	 * @param {String} [config.clientCachingMode='conditional'] Supports three modes: 'conditional', 'offline', 'disabled'
 	 * @param {Number|String} [config.maxClientCachingDuration=-1] In milliseconds, where -1 means no maximum
 	 * @param {Boolean} [config.compress=true] If true will automatically compress files in gzip, zip, deflate or compress encoding if requested by the client (requires "negotiate" to be true)
+	 * @param {Boolean} [config.streaming=false] If true will stream the output of documents to the client while they are executing, rather than buffering it entirely first
+	 * @param {Number|String} [config.streamingCaptureSizeLimit=1048576] In characters; streamed output larger than this will not be cached (requires "streaming" to be true)
+	 * @param {Number} [config.deferredThreads=twice the number of CPU cores plus one] The maximum number of threads generating deferred responses (see conversation.defer)
+	 * @param {Number} [config.deferredQueueSize=1000] The maximum number of deferred responses waiting for a thread; responses beyond this are answered with 503 (service unavailable)
+	 * @param {Number|String} [config.deferredTimeout=60000] In milliseconds, including time spent waiting for a thread; deferred responses that take longer are answered with 503 (service unavailable), where 0 means no timeout
+	 * @param {Boolean} [config.deferredVirtualThreads=the component's virtualThreads setting] If true, and supported by the JVM, will generate each deferred response on its own virtual thread, with at most deferredThreads plus deferredQueueSize responses generated at once
+	 * @param {Number} [config.includeThreads=twice the number of CPU cores plus one] The maximum number of threads generating asynchronous includes (see document.includeAsync)
+	 * @param {Number} [config.includeQueueSize=100] The maximum number of asynchronous includes waiting for a thread; includes beyond this are included synchronously instead
 	 * @param {Object} [config.plugins] Template plugins
 	 */
 	Public.Templates = Sincerity.Classes.define(function(Module) {
@@ -1214,7 +1280,7 @@ Prudence.Setup = Prudence.Setup || function() {
 		Public._inherit = Module.Restlet
 
 		/** @ignore */
-		Public._configure = ['root', 'includeRoot', 'passThroughs', 'preExtension', 'trailingSlashRequired', 'internalUri',  'defaultDocumentName', 'defaultExtension', 'clientCachingMode', 'maxClientCachingDuration', 'compress', 'plugins']
+		Public._configure = ['root', 'includeRoot', 'passThroughs', 'preExtension', 'trailingSlashRequired', 'internalUri',  'defaultDocumentName', 'defaultExtension', 'clientCachingMode', 'maxClientCachingDuration', 'compress', 'streaming', 'streamingCaptureSizeLimit', 'deferredThreads', 'deferredQueueSize', 'deferredTimeout', 'deferredVirtualThreads', 'includeThreads', 'includeQueueSize', 'plugins']
 
 		Public.create = function(app, uri) {
 			if (!Sincerity.Objects.exists(app.generatedTextResource)) {
@@ -1265,6 +1331,13 @@ Prudence.Setup = Prudence.Setup || function() {
 				this.maxClientCachingDuration = Sincerity.Localization.toMilliseconds(this.maxClientCachingDuration)
 
 				this.compress = Sincerity.Objects.ensure(this.compress, true)
+				this.streaming = Sincerity.Objects.ensure(this.streaming, false)
+				this.streamingCaptureSizeLimit = Sincerity.Objects.ensure(this.streamingCaptureSizeLimit, 1048576)
+				this.deferredThreads = Sincerity.Objects.ensure(this.deferredThreads, java.lang.Runtime.getRuntime().availableProcessors() * 2 + 1)
+				this.deferredQueueSize = Sincerity.Objects.ensure(this.deferredQueueSize, 1000)
+				this.deferredTimeout = Sincerity.Localization.toMilliseconds(Sincerity.Objects.ensure(this.deferredTimeout, 60000))
+				this.includeThreads = Sincerity.Objects.ensure(this.includeThreads, java.lang.Runtime.getRuntime().availableProcessors() * 2 + 1)
+				this.includeQueueSize = Sincerity.Objects.ensure(this.includeQueueSize, 100)
 
 				app.generatedTextResourceInternalUri = Sincerity.Objects.ensure(this.internalUri, '/_templates/')
 				
@@ -1291,6 +1364,14 @@ Prudence.Setup = Prudence.Setup || function() {
 					fileUploadDirectory: app.settings.uploads.root,
 					fileUploadSizeThreshold: app.settings.uploads.sizeThreshold,
 					scriptletPlugins: new ConcurrentHashMap(),
+					streaming: this.streaming,
+					streamingCaptureSizeLimit: this.streamingCaptureSizeLimit,
+					deferredThreads: this.deferredThreads,
+					deferredQueueSize: this.deferredQueueSize,
+					deferredTimeout: this.deferredTimeout,
+					deferredVirtualThreads: this.deferredVirtualThreads,
+					includeThreads: this.includeThreads,
+					includeQueueSize: this.includeQueueSize,
 					debug: app.settings.templates.debug ? true : false,
 					debugCaching: app.settings.caching.debug ? true : false,
 					defaultCachingKeyTemplate: app.settings.caching.defaultKeyTemplate,
@@ -1741,6 +1822,9 @@ Prudence.Setup = Prudence.Setup || function() {
 	 * @param [config]
 	 * @param {Array} [config.restlets] The route configurations to chain
 	 * @param {Number} [config.cacheDuration=settings.code.minimumTimeBetweenValidityChecks] Time in milliseconds for cached fallback results
+	 * @param {Boolean} [config.cacheUnhandled=false] If true will also remember URIs that no restlet handled, answering them
+	 *                  with the same status (but without an entity) without trying the restlets again; only enable this if
+	 *                  all chained restlets are static
 	 */
 	Public.Chain = Sincerity.Classes.define(function(Module) {
 		/** @exports Public as Prudence.Setup.Chain */
@@ -1750,7 +1834,7 @@ Prudence.Setup = Prudence.Setup || function() {
 		Public._inherit = Module.Restlet
 
 		/** @ignore */
-		Public._configure = ['restlets', 'cacheDuration']
+		Public._configure = ['restlets', 'cacheDuration', 'cacheUnhandled']
 
 		Public.create = function(app, uri) {
 			importClass(com.threecrickets.prudence.util.Fallback)
@@ -1758,6 +1842,7 @@ Prudence.Setup = Prudence.Setup || function() {
 			this.cacheDuration = Sincerity.Objects.ensure(this.cacheDuration, app.settings.code.minimumTimeBetweenValidityChecks)
 			
 			var fallback = new Fallback(app.context, this.cacheDuration)
+			fallback.cacheUnhandled = Sincerity.Objects.ensure(this.cacheUnhandled, false)
 			
 			if (Sincerity.Objects.exists(this.restlets)) {
 				for (var i in this.restlets) {
@@ -2073,6 +2158,7 @@ Prudence.Setup = Prudence.Setup || function() {
 	 * 
 	 * @param config
 	 * @param {String[]} config.roots The root directories
+	 * @param {Boolean} [config.fingerprint=true] If true will register results in the application's asset manifest (see application.assetManifest), creating fingerprinted copies that are cached by clients as immutable
 	 * @param {Object} config.next The next route configuration
 	 */
 	Public.JavaScriptUnifyMinify = Sincerity.Classes.define(function(Module) {
@@ -2083,11 +2169,12 @@ Prudence.Setup = Prudence.Setup || function() {
 		Public._inherit = Module.Restlet
 
 		/** @ignore */
-		Public._configure = ['roots', 'next']
+		Public._configure = ['roots', 'next', 'fingerprint']
 
 		Public.create = function(app, uri) {
 			importClass(
 				com.threecrickets.prudence.util.JavaScriptUnifyMinifyFilter,
+				com.threecrickets.prudence.service.ApplicationService,
 				java.io.File)
    
 			this.roots = Sincerity.Objects.array(this.roots)
@@ -2115,6 +2202,14 @@ Prudence.Setup = Prudence.Setup || function() {
 					println('      Directory: "{0}"'.cast(sincerity.container.getRelativePath(root)))
 				}
 			}
+			var fileWatcher = component.context.attributes.get('com.threecrickets.prudence.fileWatcher')
+			if (Sincerity.Objects.exists(fileWatcher)) {
+				filter.watch(fileWatcher)
+			}
+			
+			if (Sincerity.Objects.ensure(this.fingerprint, true)) {
+				filter.assetManifest = ApplicationService.create(app.instance).assetManifest
+			}
 
 			return filter
 		}
@@ -2155,6 +2250,7 @@ Prudence.Setup = Prudence.Setup || function() {
 	 * 
 	 * @param config
 	 * @param {String[]} config.roots The root directories
+	 * @param {Boolean} [config.fingerprint=true] If true will register results in the application's asset manifest (see application.assetManifest), creating fingerprinted copies that are cached by clients as immutable
 	 * @param {Object} config.next The next route configuration
 	 * @see Prudence.Setup.Zuss
 	 */
@@ -2166,11 +2262,12 @@ Prudence.Setup = Prudence.Setup || function() {
 		Public._inherit = Module.Restlet
 
 		/** @ignore */
-		Public._configure = ['roots', 'next']
+		Public._configure = ['roots', 'next', 'fingerprint']
 
 		Public.create = function(app, uri) {
 			importClass(
 				com.threecrickets.prudence.util.CssUnifyMinifyFilter,
+				com.threecrickets.prudence.service.ApplicationService,
 				java.io.File)
    
 			this.roots = Sincerity.Objects.array(this.roots)
@@ -2198,6 +2295,14 @@ Prudence.Setup = Prudence.Setup || function() {
 					println('      Directory: "{0}"'.cast(sincerity.container.getRelativePath(root)))
 				}
 			}
+			var fileWatcher = component.context.attributes.get('com.threecrickets.prudence.fileWatcher')
+			if (Sincerity.Objects.exists(fileWatcher)) {
+				filter.watch(fileWatcher)
+			}
+			
+			if (Sincerity.Objects.ensure(this.fingerprint, true)) {
+				filter.assetManifest = ApplicationService.create(app.instance).assetManifest
+			}
 
 			return filter
 		}
@@ -2228,7 +2333,8 @@ Prudence.Setup = Prudence.Setup || function() {
 	 * {@link Prudence.Setup.Static} nested in "next". 
 	 * <p>
 	 * Once a ".css" or ".css.min" is created by this filter, it will not be recreated unless the source file
-	 * has changed. Change is tracked according to the timestamp of files.
+	 * or any of the files it imports has changed. Change is tracked according to the timestamp of files.
+	 * Recreation happens in the background, while the previous version keeps being served.
 	 * <p>
 	 * Implementation note: Internally handled by a <a href="http://threecrickets.com/api/java/prudence/index.html?com/threecrickets/prudence/util/LessFilter.html">LessFilter</a> instance.
 	 * Compression is done via <a href="http://barryvan.github.com/CSSMin/">CSSMin</a>.
@@ -2240,6 +2346,7 @@ Prudence.Setup = Prudence.Setup || function() {
 	 * @param config
 	 * @param {String[]} config.roots The root directories
 	 * @param {com.github.sommeri.less4j.LessCompiler} [compiler=new com.github.sommeri.less4j.core.DefaultLessCompiler()] The compiler
+	 * @param {Boolean} [config.fingerprint=true] If true will register results in the application's asset manifest (see application.assetManifest), creating fingerprinted copies that are cached by clients as immutable
 	 * @param {Object} config.next The next route configuration
 	 * @see Prudence.Setup.CssUnifyMinify
 	 */
@@ -2251,11 +2358,12 @@ Prudence.Setup = Prudence.Setup || function() {
 		Public._inherit = Module.Restlet
 
 		/** @ignore */
-		Public._configure = ['roots', 'next' ,'compiler']
+		Public._configure = ['roots', 'next' ,'compiler', 'fingerprint']
 
 		Public.create = function(app, uri) {
 			importClass(
 				com.threecrickets.prudence.util.LessFilter,
+				com.threecrickets.prudence.service.ApplicationService,
 				java.io.File)
    
 			this.roots = Sincerity.Objects.array(this.roots)
@@ -2276,6 +2384,12 @@ Prudence.Setup = Prudence.Setup || function() {
 				filter = new LessFilter(app.context, this.next, target, app.settings.code.minimumTimeBetweenValidityChecks)
 			}
 			
+			// Compile in the background
+			var executor = component.context.attributes.get('com.threecrickets.prudence.executor')
+			if (Sincerity.Objects.exists(executor)) {
+				filter.compilationService.executor = executor
+			}
+			
 			if (sincerity.verbosity >= 2) {
 				println('    LESS: "{0}"'.cast(sincerity.container.getRelativePath(target)))
 			}
@@ -2289,6 +2403,14 @@ Prudence.Setup = Prudence.Setup || function() {
 					println('      Directory: "{0}"'.cast(sincerity.container.getRelativePath(root)))
 				}
 			}
+			var fileWatcher = component.context.attributes.get('com.threecrickets.prudence.fileWatcher')
+			if (Sincerity.Objects.exists(fileWatcher)) {
+				filter.watch(fileWatcher)
+			}
+			
+			if (Sincerity.Objects.ensure(this.fingerprint, true)) {
+				filter.assetManifest = ApplicationService.create(app.instance).assetManifest
+			}
 			
 			return filter
 		}
@@ -2319,7 +2441,8 @@ Prudence.Setup = Prudence.Setup || function() {
 	 * {@link Prudence.Setup.Static} nested in "next". 
 	 * <p>
 	 * Once a ".css" or ".css.min" is created by this filter, it will not be recreated unless the source file
-	 * has changed. Change is tracked according to the timestamp of files.
+	 * or any of the files it imports has changed. Change is tracked according to the timestamp of files.
+	 * Recreation happens in the background, while the previous version keeps being served.
 	 * <p>
 	 * Implementation note: Internally handled by a <a href="http://threecrickets.com/api/java/prudence/index.html?com/threecrickets/prudence/util/ZussFilter.html">ZussFilter</a> instance.
 	 * Compression is done via <a href="http://barryvan.github.com/CSSMin/">CSSMin</a>.
@@ -2331,6 +2454,7 @@ Prudence.Setup = Prudence.Setup || function() {
 	 * @param config
 	 * @param {String[]} config.roots The root directories
 	 * @param {<a href="http://www.zkoss.org/javadoc/latest/zuss/index.html?org/zkoss/zuss/Resolver.html">org.zkoss.zuss.Resolver</a>} [resolver=new <a href="http://www.zkoss.org/javadoc/latest/zuss/index.html?org/zkoss/zuss/impl/out/BuiltinResolver.html">BuiltinResolver</a>] The resolver
+	 * @param {Boolean} [config.fingerprint=true] If true will register results in the application's asset manifest (see application.assetManifest), creating fingerprinted copies that are cached by clients as immutable
 	 * @param {Object} config.next The next route configuration
 	 * @see Prudence.Setup.CssUnifyMinify
 	 */
@@ -2342,11 +2466,12 @@ Prudence.Setup = Prudence.Setup || function() {
 		Public._inherit = Module.Restlet
 
 		/** @ignore */
-		Public._configure = ['roots', 'next' ,'resolver']
+		Public._configure = ['roots', 'next' ,'resolver', 'fingerprint']
 
 		Public.create = function(app, uri) {
 			importClass(
 				com.threecrickets.prudence.util.ZussFilter,
+				com.threecrickets.prudence.service.ApplicationService,
 				java.io.File)
    
 			this.roots = Sincerity.Objects.array(this.roots)
@@ -2367,6 +2492,12 @@ Prudence.Setup = Prudence.Setup || function() {
 				filter = new ZussFilter(app.context, this.next, target, app.settings.code.minimumTimeBetweenValidityChecks)
 			}
 			
+			// Compile in the background
+			var executor = component.context.attributes.get('com.threecrickets.prudence.executor')
+			if (Sincerity.Objects.exists(executor)) {
+				filter.compilationService.executor = executor
+			}
+			
 			if (sincerity.verbosity >= 2) {
 				println('    ZUSS: "{0}"'.cast(sincerity.container.getRelativePath(target)))
 			}
@@ -2380,6 +2511,14 @@ Prudence.Setup = Prudence.Setup || function() {
 					println('      Directory: "{0}"'.cast(sincerity.container.getRelativePath(root)))
 				}
 			}
+			var fileWatcher = component.context.attributes.get('com.threecrickets.prudence.fileWatcher')
+			if (Sincerity.Objects.exists(fileWatcher)) {
+				filter.watch(fileWatcher)
+			}
+			
+			if (Sincerity.Objects.ensure(this.fingerprint, true)) {
+				filter.assetManifest = ApplicationService.create(app.instance).assetManifest
+			}
 			
 			return filter
 		}
@@ -2421,6 +2560,10 @@ Prudence.Setup = Prudence.Setup || function() {
 	 * You can also set the "default" param to one of these values. If the response MIME type
 	 * does not match anything in the "mediaTypes" param, then "default" will be used.
 	 * <p>
+	 * Fingerprinted assets (see {@link Prudence.Setup.JavaScriptUnifyMinify}, {@link Prudence.Setup.CssUnifyMinify},
+	 * {@link Prudence.Setup.Less} and {@link Prudence.Setup.Zuss}) are always marked as immutable
+	 * for one year, because their content never changes.
+	 * <p>
 	 * Implementation note: Internally handled by a <a href="http://threecrickets.com/api/java/prudence/index.html?com/threecrickets/prudence/util/CacheControlFilter.html">CacheControlFilter</a> instance.
 	 * 
 	 * @class
@@ -2445,6 +2588,7 @@ Prudence.Setup = Prudence.Setup || function() {
 		Public.create = function(app, uri) {
 			importClass(
 				com.threecrickets.prudence.util.CacheControlFilter,
+				com.threecrickets.prudence.service.ApplicationService,
 				org.restlet.data.MediaType,
 				java.io.File)
    
@@ -2461,6 +2605,9 @@ Prudence.Setup = Prudence.Setup || function() {
 			this.next = app.createRoute(this.next, uri).restlet
 			var filter = new CacheControlFilter(app.context, this.next, this['default'])
 			
+			// Fingerprinted copies registered by the unify-minify, LESS and ZUSS filters are immutable
+			filter.assetManifest = ApplicationService.create(app.instance).assetManifest
+			
 			if (sincerity.verbosity >= 2) {
 				println('    CacheControl:')
 			}
@@ -14,13 +14,14 @@ package com.threecrickets.prudence;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 
 import org.restlet.Application;
 import org.restlet.Context;
 import org.restlet.resource.ResourceException;
 
+import com.threecrickets.prudence.internal.EnterablePool;
+import com.threecrickets.prudence.internal.MissingEntryPointCache;
 import com.threecrickets.prudence.internal.attributes.ApplicationTaskAttributes;
 import com.threecrickets.prudence.service.ApplicationService;
 import com.threecrickets.prudence.service.ApplicationTaskDocumentService;
@@ -237,12 +238,14 @@ public class ApplicationTask<T> implements Callable<T>, Runnable
 	{
 		Application oldApplication = Application.getCurrent();
 		Context oldContext = Context.getCurrent();
+		EnterablePool enterablePool = null;
+		Object enteringKey = null;
 		try
 		{
 			Application.setCurrent( application );
 			Context.setCurrent( application.getContext() );
 
-			ConcurrentMap<String, Boolean> entryPointValidityCache = null;
+			MissingEntryPointCache missingEntryPointCache = null;
 
 			try
 			{
@@ -271,7 +274,9 @@ public class ApplicationTask<T> implements Callable<T>, Runnable
 				{
 					// Enter
 
-					Object enteringKey = application.hashCode();
+					// Check out our own execution context if pooled
+					enterablePool = attributes.getEnterablePool( executable, application.hashCode() );
+					enteringKey = enterablePool != null ? enterablePool.checkout() : application.hashCode();
 
 					if( executable.getEnterableExecutionContext( enteringKey ) == null )
 					{
@@ -307,24 +312,22 @@ public class ApplicationTask<T> implements Callable<T>, Runnable
 						}
 					}
 
-					// Check for validity, if cached
-					entryPointValidityCache = attributes.getEntryPointValidityCache( executable );
-					Boolean isValid = entryPointValidityCache.get( entryPointName );
-					if( ( isValid != null ) && !isValid.booleanValue() )
+					// Is the entry point known to be missing?
+					missingEntryPointCache = attributes.getMissingEntryPointCache( executable );
+					if( missingEntryPointCache.isMissing( entryPointName ) )
 						throw new NoSuchMethodException( entryPointName );
 
 					// Enter!
 					@SuppressWarnings("unchecked")
 					T r = (T) executable.enter( enteringKey, entryPointName, context );
-
 					return r;
 				}
 			}
 			catch( NoSuchMethodException x )
 			{
 				// We are invalid
-				if( entryPointValidityCache != null )
-					entryPointValidityCache.put( entryPointName, false );
+				if( missingEntryPointCache != null )
+					missingEntryPointCache.setMissing( entryPointName );
 			}
 			catch( DocumentNotFoundException x )
 			{
@@ -359,6 +362,9 @@ public class ApplicationTask<T> implements Callable<T>, Runnable
 		}
 		finally
 		{
+			if( enterablePool != null )
+				enterablePool.checkin( enteringKey );
+
 			Application.setCurrent( oldApplication );
 			Context.setCurrent( oldContext );
 		}
@@ -15,8 +15,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 
 import org.restlet.Application;
@@ -24,6 +22,8 @@ import org.restlet.Context;
 import org.restlet.Request;
 import org.restlet.resource.ResourceException;
 
+import com.threecrickets.prudence.internal.EnterablePool;
+import com.threecrickets.prudence.internal.MissingEntryPointCache;
 import com.threecrickets.prudence.internal.attributes.DelegatedHandlerAttributes;
 import com.threecrickets.prudence.service.ApplicationService;
 import com.threecrickets.prudence.service.ConversationService;
@@ -85,8 +85,8 @@ import com.threecrickets.scripturian.parser.ProgramParser;
  * <li><code>com.threecrickets.prudence.DelegatedHandler.errorWriter:</code>
  * {@link Writer}, defaults to standard error.</li>
  * <li>
- * <code>com.threecrickets.prudence.DelegatedHandler.entryPointValidityCache:</code>
- * {@link ConcurrentMap}, defaults to a new {@link ConcurrentHashMap}.</li>
+ * <code>com.threecrickets.prudence.DelegatedHandler.missingEntryPointCache:</code>
+ * {@link MissingEntryPointCache}, stored in each executable's attributes.</li>
  * <li>
  * <code>com.threecrickets.prudence.DelegatedHandler.fileUploadDirectory:</code>
  * {@link File}, defaults to "uploads" under the application root.</li>
@@ -171,14 +171,19 @@ public class DelegatedHandler
 	 */
 	public Object handle( String entryPointName, Object... arguments )
 	{
-		ConcurrentMap<String, Boolean> entryPointValidityCache = null;
+		MissingEntryPointCache missingEntryPointCache = null;
 		Application application = Application.getCurrent();
+		EnterablePool enterablePool = null;
+		Object enteringKey = null;
 
 		try
 		{
 			DocumentDescriptor<Executable> documentDescriptor = attributes.createDocumentOnce( documentName, ProgramParser.NAME, true, true, false );
 			Executable executable = documentDescriptor.getDocument();
-			Object enteringKey = application.hashCode();
+
+			// Check out our own execution context if pooled
+			enterablePool = attributes.getEnterablePool( executable, application.hashCode() );
+			enteringKey = enterablePool != null ? enterablePool.checkout() : application.hashCode();
 
 			if( executable.getEnterableExecutionContext( enteringKey ) == null )
 			{
@@ -210,10 +215,9 @@ public class DelegatedHandler
 				}
 			}
 
-			// Check for validity, if cached
-			entryPointValidityCache = attributes.getEntryPointValidityCache( executable );
-			Boolean isValid = entryPointValidityCache.get( entryPointName );
-			if( ( isValid != null ) && !isValid.booleanValue() )
+			// Is the entry point known to be missing?
+			missingEntryPointCache = attributes.getMissingEntryPointCache( executable );
+			if( missingEntryPointCache.isMissing( entryPointName ) )
 				throw new NoSuchMethodException( entryPointName );
 
 			// Enter!
@@ -252,13 +256,16 @@ public class DelegatedHandler
 		catch( NoSuchMethodException x )
 		{
 			// We are invalid
-			if( entryPointValidityCache != null )
-				entryPointValidityCache.put( entryPointName, false );
+			if( missingEntryPointCache != null )
+				missingEntryPointCache.setMissing( entryPointName );
 
 			return null;
 		}
 		finally
 		{
+			if( enterablePool != null )
+				enterablePool.checkin( enteringKey );
+
 			try
 			{
 				attributes.getWriter().flush();
@@ -15,7 +15,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.Date;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import org.restlet.Application;
@@ -40,6 +39,8 @@ import org.restlet.resource.ServerResource;
 import com.threecrickets.prudence.cache.Cache;
 import com.threecrickets.prudence.cache.CacheEntry;
 import com.threecrickets.prudence.internal.CachingUtil;
+import com.threecrickets.prudence.internal.EnterablePool;
+import com.threecrickets.prudence.internal.MissingEntryPointCache;
 import com.threecrickets.prudence.internal.JygmentsDocumentFormatter;
 import com.threecrickets.prudence.internal.attributes.DelegatedResourceAttributes;
 import com.threecrickets.prudence.service.ApplicationService;
@@ -532,11 +533,6 @@ public class DelegatedResource extends ServerResource
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
-	/**
-	 * Entry point validity cache attribute for an {@link Executable}.
-	 */
-	private static final String ENTRY_POINT_VALIDITY_CACHE_ATTRIBUTE = DelegatedResource.class.getCanonicalName() + ".entryPointValidityCache";
-
 	/**
 	 * Constant.
 	 */
@@ -765,30 +761,6 @@ public class DelegatedResource extends ServerResource
 			throw new ResourceException( Status.SERVER_ERROR_INTERNAL, "cannot convert " + object.getClass().toString() + " to a RepresentationInfo" );
 	}
 
-	/**
-	 * A cache for entry point validity.
-	 * 
-	 * @param executable
-	 *        The executable
-	 * @return The entry point validity cache
-	 */
-	private ConcurrentMap<String, Boolean> getEntryPointValidityCache( Executable executable )
-	{
-		ConcurrentMap<String, Object> attributes = executable.getAttributes();
-		@SuppressWarnings("unchecked")
-		ConcurrentMap<String, Boolean> entryPointValidityCache = (ConcurrentMap<String, Boolean>) attributes.get( ENTRY_POINT_VALIDITY_CACHE_ATTRIBUTE );
-		if( entryPointValidityCache == null )
-		{
-			entryPointValidityCache = new ConcurrentHashMap<String, Boolean>();
-			@SuppressWarnings("unchecked")
-			ConcurrentMap<String, Boolean> existing = (ConcurrentMap<String, Boolean>) attributes.putIfAbsent( ENTRY_POINT_VALIDITY_CACHE_ATTRIBUTE, entryPointValidityCache );
-			if( existing != null )
-				entryPointValidityCache = existing;
-		}
-
-		return entryPointValidityCache;
-	}
-
 	/**
 	 * Attempts to fetch the cached representation.
 	 * 
@@ -827,18 +799,23 @@ public class DelegatedResource extends ServerResource
 		boolean isPassThrough = attributes.getPassThroughDocuments().contains( "/" + documentName );
 		boolean isCaptured = CapturingRedirector.getCapturedReference( request ) != null;
 
-		ConcurrentMap<String, Boolean> entryPointValidityCache = null;
+		MissingEntryPointCache missingEntryPointCache = null;
+		EnterablePool enterablePool = null;
+		Object enteringKey = null;
 
 		try
 		{
 			documentDescriptor = attributes.createDocumentOnce( documentName, ProgramParser.NAME, true, true, isPassThrough || isCaptured );
 			executable = documentDescriptor.getDocument();
-			Object enteringKey = getApplication().hashCode();
 
-			DelegatedResourceDocumentService documentService = new DelegatedResourceDocumentService( this, documentDescriptor, conversationService, cachingUtil );
+			// Check out our own execution context if pooled
+			enterablePool = attributes.getEnterablePool( executable, getApplication().hashCode() );
+			enteringKey = enterablePool != null ? enterablePool.checkout() : getApplication().hashCode();
 
 			if( executable.getEnterableExecutionContext( enteringKey ) == null )
 			{
+				DelegatedResourceDocumentService documentService = new DelegatedResourceDocumentService( this, documentDescriptor, conversationService, cachingUtil );
+
 				ExecutionContext executionContext = new ExecutionContext( attributes.getWriter(), attributes.getErrorWriter() );
 				attributes.addLibraryLocations( executionContext );
 
@@ -868,10 +845,9 @@ public class DelegatedResource extends ServerResource
 				}
 			}
 
-			// Check for validity, if cached
-			entryPointValidityCache = getEntryPointValidityCache( executable );
-			Boolean isValid = entryPointValidityCache.get( entryPointName );
-			if( ( isValid != null ) && !isValid.booleanValue() )
+			// Is the entry point known to be missing?
+			missingEntryPointCache = attributes.getMissingEntryPointCache( executable );
+			if( missingEntryPointCache.isMissing( entryPointName ) )
 				throw new NoSuchMethodException( entryPointName );
 
 			if( isInit )
@@ -885,9 +861,7 @@ public class DelegatedResource extends ServerResource
 			}
 
 			// Enter!
-			Object r = executable.enter( enteringKey, entryPointName, conversationService );
-
-			return r;
+			return executable.enter( enteringKey, entryPointName, conversationService );
 		}
 		catch( DocumentNotFoundException x )
 		{
@@ -914,13 +888,16 @@ public class DelegatedResource extends ServerResource
 		catch( NoSuchMethodException x )
 		{
 			// We are invalid
-			if( entryPointValidityCache != null )
-				entryPointValidityCache.put( entryPointName, false );
+			if( missingEntryPointCache != null )
+				missingEntryPointCache.setMissing( entryPointName );
 
 			throw new ResourceException( x );
 		}
 		finally
 		{
+			if( enterablePool != null )
+				enterablePool.checkin( enteringKey );
+
 			try
 			{
 				attributes.getWriter().flush();
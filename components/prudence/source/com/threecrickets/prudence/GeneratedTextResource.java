@@ -14,6 +14,7 @@ package com.threecrickets.prudence;
 import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 
 import org.restlet.Application;
 import org.restlet.Context;
@@ -33,7 +34,9 @@ import org.restlet.resource.ServerResource;
 import com.threecrickets.prudence.cache.Cache;
 import com.threecrickets.prudence.cache.CacheEntry;
 import com.threecrickets.prudence.internal.CachingUtil;
+import com.threecrickets.prudence.internal.GeneratedTextDeferredExecutor;
 import com.threecrickets.prudence.internal.GeneratedTextDeferredRepresentation;
+import com.threecrickets.prudence.internal.GeneratedTextStreamingRepresentation;
 import com.threecrickets.prudence.internal.JygmentsDocumentFormatter;
 import com.threecrickets.prudence.internal.attributes.GeneratedTextResourceAttributes;
 import com.threecrickets.prudence.service.ApplicationService;
@@ -42,7 +45,6 @@ import com.threecrickets.prudence.service.GeneratedTextResourceCachingService;
 import com.threecrickets.prudence.service.GeneratedTextResourceConversationService;
 import com.threecrickets.prudence.service.GeneratedTextResourceDocumentService;
 import com.threecrickets.prudence.util.CapturingRedirector;
-import com.threecrickets.prudence.util.InstanceUtil;
 import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.ExecutionContext;
 import com.threecrickets.scripturian.ExecutionController;
@@ -80,14 +82,31 @@ import com.threecrickets.scripturian.parser.ScriptletsParser;
  * can control the duration of their individual cache by changing the value of
  * <code>caching.duration</code>.
  * <p>
+ * Cached entries carry a strong ETag computed from their content, so that
+ * conditional requests (<code>If-None-Match</code>) can be answered with a 304
+ * directly from the cache, without executing the document.
+ * <p>
  * Because output is not sent to the client until after the executable finishes
  * its execution, it is possible for scriptlets to set output characteristics at
  * any time by changing the values of <code>conversation.mediaType</code>,
  * <code>conversation.characterSet</code>, and
  * <code>conversation.language</code>.
  * <p>
- * There is experimental support for deferred response (asynchronous mode) via
- * <code>conversation.defer</code>.
+ * Alternatively, output can be streamed to the client while it is being
+ * generated, by enabling the <code>streaming</code> setting. In this mode, the
+ * output characteristics are determined before execution and cannot be
+ * changed by scriptlets. Output is still captured for caching, unless it
+ * exceeds <code>streamingCaptureSizeLimit</code>.
+ * <p>
+ * Long-running documents can call <code>conversation.defer()</code> to detach
+ * the response from the server connector's thread. The document is then
+ * executed again (with <code>conversation.deferred</code> set to true) on a
+ * dedicated, bounded executor, and the response is committed when it
+ * finishes. Once a document has asked to defer, later conversations go
+ * straight to deferred mode, so it is executed only once per conversation.
+ * If there are too many deferred responses waiting, or if a deferred
+ * response takes longer than <code>deferredTimeout</code>, the client gets a
+ * 503 status.
  * <p>
  * Summary of settings configured via the application's {@link Context}:
  * <ul>
@@ -126,6 +145,19 @@ import com.threecrickets.scripturian.parser.ScriptletsParser;
  * <code>com.threecrickets.prudence.GeneratedTextResource.defaultName:</code>
  * {@link String}, defaults to "default".</li>
  * <li>
+ * <code>com.threecrickets.prudence.GeneratedTextResource.deferredExecutor:</code>
+ * {@link GeneratedTextDeferredExecutor}, defaults to one created according to
+ * <code>deferredThreads</code> and <code>deferredQueueSize</code>.</li>
+ * <li>
+ * <code>com.threecrickets.prudence.GeneratedTextResource.deferredQueueSize:</code>
+ * {@link Integer}, defaults to 1000.</li>
+ * <li>
+ * <code>com.threecrickets.prudence.GeneratedTextResource.deferredThreads:</code>
+ * {@link Integer}, defaults to twice the number of CPU cores plus one.</li>
+ * <li>
+ * <code>com.threecrickets.prudence.GeneratedTextResource.deferredTimeout:</code>
+ * {@link Long} or {@link String}, defaults to 60000 (one minute).</li>
+ * <li>
  * <code>com.threecrickets.prudence.GeneratedTextResource.documentFormatter:</code>
  * {@link DocumentFormatter}. Defaults to a {@link JygmentsDocumentFormatter}.
  * </li>
@@ -151,6 +183,16 @@ import com.threecrickets.scripturian.parser.ScriptletsParser;
  * <code>com.threecrickets.prudence.GeneratedTextResource.extraDocumentSources:</code>
  * {@link Iterable} of {@link DocumentSource} of {@link Executable}.</li>
  * <li>
+ * <code>com.threecrickets.prudence.GeneratedTextResource.includeExecutor:</code>
+ * {@link ExecutorService}, defaults to one created according to
+ * <code>includeThreads</code> and <code>includeQueueSize</code>.</li>
+ * <li>
+ * <code>com.threecrickets.prudence.GeneratedTextResource.includeQueueSize:</code>
+ * {@link Integer}, defaults to 100.</li>
+ * <li>
+ * <code>com.threecrickets.prudence.GeneratedTextResource.includeThreads:</code>
+ * {@link Integer}, defaults to twice the number of CPU cores plus one.</li>
+ * <li>
  * <code>com.threecrickets.prudence.GeneratedTextResource.languageManager:</code>
  * {@link LanguageManager}, defaults to a new instance.</li>
  * <li>
@@ -171,6 +213,12 @@ import com.threecrickets.scripturian.parser.ScriptletsParser;
  * <code>com.threecrickets.prudence.GeneratedTextResource.sourceViewable:</code>
  * {@link Boolean}, defaults to false.</li>
  * <li>
+ * <code>com.threecrickets.prudence.GeneratedTextResource.streaming:</code>
+ * {@link Boolean}, defaults to false.</li>
+ * <li>
+ * <code>com.threecrickets.prudence.GeneratedTextResource.streamingCaptureSizeLimit:</code>
+ * {@link Integer}, defaults to 1048576.</li>
+ * <li>
  * <code>com.threecrickets.prudence.GeneratedTextResource.trailingSlashRequired:</code>
  * {@link Boolean}, defaults to true.</li>
  * </ul>
@@ -330,8 +378,10 @@ public class GeneratedTextResource extends ServerResource
 		{
 			GeneratedTextResourceConversationService conversationService = new GeneratedTextResourceConversationService( this, null, null, attributes.getDefaultCharacterSet() );
 			CacheEntry cacheEntry = cachingUtil.fetchCacheEntry( null, ScriptletsParser.NAME, false, conversationService );
-			if( cacheEntry != null )
-				return cacheEntry.getInfo();
+			// Entries with holes are not complete, so we cannot use their info.
+			// The tag must be the one for the encoding we would send.
+			if( ( cacheEntry != null ) && !cacheEntry.hasHoles() )
+				return cacheEntry.getInfo( conversationService.getEncoding() );
 		}
 
 		return get( variant );
@@ -372,11 +422,6 @@ public class GeneratedTextResource extends ServerResource
 	 */
 	private final CachingUtil<GeneratedTextResource, GeneratedTextResourceAttributes> cachingUtil = new CachingUtil<GeneratedTextResource, GeneratedTextResourceAttributes>( this, attributes );
 
-	/**
-	 * Flag for asynchronous support (experimental).
-	 */
-	private final boolean asynchronousSupport = false;
-
 	/**
 	 * Generates and possibly caches a textual representation. The returned
 	 * representation is either a {@link StringRepresentation} or a
@@ -432,23 +477,33 @@ public class GeneratedTextResource extends ServerResource
 
 			GeneratedTextResourceDocumentService documentService = new GeneratedTextResourceDocumentService( this, executionContext, entity, variant, cachingUtil );
 			Representation representation = null;
+			boolean isStreaming = false;
 			try
 			{
 				// Execute and represent output
 				representation = documentService.include( documentName, isPassThrough || isCaptured );
 
+				// The streaming representation will release the execution
+				// context when done
+				isStreaming = representation instanceof GeneratedTextStreamingRepresentation;
+
 				cachingUtil.setClientCachingHeaders( representation, getResponse() );
 
-				if( asynchronousSupport )
+				if( representation instanceof GeneratedTextDeferredRepresentation )
 				{
-					// Experimental
-
-					if( representation instanceof GeneratedTextDeferredRepresentation )
-					{
-						setAutoCommitting( false );
-						InstanceUtil.getComponent().getTaskService().submit( (GeneratedTextDeferredRepresentation) representation );
+					// Detach from the connector thread: the deferred
+					// representation will commit the response
+					GeneratedTextDeferredRepresentation deferredRepresentation = (GeneratedTextDeferredRepresentation) representation;
+					setAutoCommitting( false );
+					if( attributes.getDeferredExecutor().submit( deferredRepresentation, attributes.getDeferredTimeout() ) )
 						return null;
-					}
+
+					// Too many deferred responses are waiting
+					setAutoCommitting( true );
+					deferredRepresentation.release();
+					getLogger().warning( "Deferred response rejected" );
+					getResponse().setStatus( Status.SERVER_ERROR_SERVICE_UNAVAILABLE );
+					return null;
 				}
 
 				return representation;
@@ -475,7 +530,8 @@ public class GeneratedTextResource extends ServerResource
 			}
 			finally
 			{
-				executionContext.release();
+				if( !isStreaming )
+					executionContext.release();
 			}
 		}
 		catch( DocumentNotFoundException x )
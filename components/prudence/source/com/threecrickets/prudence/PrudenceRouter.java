@@ -28,12 +28,18 @@ import org.restlet.routing.TemplateRoute;
 import com.threecrickets.prudence.util.CapturingRouter;
 import com.threecrickets.prudence.util.Fallback;
 import com.threecrickets.prudence.util.FallbackRouter;
+import com.threecrickets.prudence.util.IndexedRouteList;
 import com.threecrickets.prudence.util.NormalizingRedirector;
 import com.threecrickets.prudence.util.ResolvingRouter;
+import com.threecrickets.prudence.util.TemplateIndex;
 
 /**
  * A {@link Router} with shortcut methods. Inherits all functionality from
  * {@link FallbackRouter}, {@link CapturingRouter} and {@link ResolvingRouter}.
+ * <p>
+ * Routes and hidden URI templates are indexed by their literal prefixes (see
+ * {@link TemplateIndex}), so that only templates that could possibly match a
+ * request are matched.
  * 
  * @author Tal Liron
  */
@@ -54,6 +60,7 @@ public class PrudenceRouter extends FallbackRouter
 	{
 		super( context, 5000 );
 		describe();
+		setRoutes( new IndexedRouteList() );
 	}
 
 	/**
@@ -69,6 +76,7 @@ public class PrudenceRouter extends FallbackRouter
 	{
 		super( context, cacheDuration );
 		describe();
+		setRoutes( new IndexedRouteList() );
 	}
 
 	//
@@ -417,6 +425,7 @@ public class PrudenceRouter extends FallbackRouter
 	public void hide( String uriTemplate )
 	{
 		hiddenUriTemplates.add( new Template( uriTemplate ) );
+		indexHiddenUriTemplates();
 	}
 
 	/**
@@ -436,6 +445,7 @@ public class PrudenceRouter extends FallbackRouter
 	public void hide( String uriTemplate, int mode )
 	{
 		hiddenUriTemplates.add( new Template( uriTemplate, mode ) );
+		indexHiddenUriTemplates();
 	}
 
 	//
@@ -449,7 +459,7 @@ public class PrudenceRouter extends FallbackRouter
 		if( request.getProtocol() != Protocol.RIAP )
 		{
 			String remainingPart = request.getResourceRef().getRemainingPart();
-			for( Template hiddenUriTemplate : hiddenUriTemplates )
+			for( Template hiddenUriTemplate : hiddenUriTemplatesIndex.getCandidates( remainingPart ) )
 			{
 				if( hiddenUriTemplate.match( remainingPart ) != -1 )
 				{
@@ -472,6 +482,22 @@ public class PrudenceRouter extends FallbackRouter
 	 */
 	private CopyOnWriteArraySet<Template> hiddenUriTemplates = new CopyOnWriteArraySet<Template>();
 
+	/**
+	 * Hidden URI templates indexed by literal prefix.
+	 */
+	private volatile TemplateIndex<Template> hiddenUriTemplatesIndex = new TemplateIndex<Template>();
+
+	/**
+	 * Rebuilds the index of hidden URI templates.
+	 */
+	private synchronized void indexHiddenUriTemplates()
+	{
+		TemplateIndex<Template> hiddenUriTemplatesIndex = new TemplateIndex<Template>();
+		for( Template hiddenUriTemplate : hiddenUriTemplates )
+			hiddenUriTemplatesIndex.add( hiddenUriTemplate.getPattern(), hiddenUriTemplate );
+		this.hiddenUriTemplatesIndex = hiddenUriTemplatesIndex;
+	}
+
 	/**
 	 * Add description.
 	 */
@@ -15,10 +15,14 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Externalizable;
 import java.io.IOException;
+import java.io.InvalidClassException;
 import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 
 import org.restlet.data.CharacterSet;
@@ -41,7 +45,10 @@ import com.threecrickets.prudence.util.IoUtil;
  * {@link StringRepresentation} or {@link ByteArrayRepresentation} instances can
  * be created.
  * <p>
- * Instances are not thread safe.
+ * The setters must only be called before an instance is shared, for example
+ * before it is stored in a {@link Cache}. After that, instances may be used by
+ * many threads at once: the only state that changes is the lazily encoded
+ * string, which is safely published.
  * 
  * @author Tal Liron
  * @see Cache
@@ -72,13 +79,14 @@ public class CacheEntry implements Externalizable
 	 */
 	public CacheEntry( CacheEntry cacheEntry, Encoding encoding ) throws IOException
 	{
-		this( cacheEntry.string, cacheEntry.mediaType, cacheEntry.language, cacheEntry.characterSet, encoding, cacheEntry.headers, cacheEntry.modificationDate, cacheEntry.tag, cacheEntry.expirationDate,
-			cacheEntry.modificationDate );
+		this( cacheEntry.getString(), cacheEntry.mediaType, cacheEntry.language, cacheEntry.characterSet, encoding, cacheEntry.headers, cacheEntry.modificationDate, toEncodedTag( cacheEntry.tag, encoding ),
+			cacheEntry.expirationDate, cacheEntry.modificationDate );
 		setTags( cacheEntry.getTags() );
 	}
 
 	/**
-	 * Construction with different string.
+	 * Construction with different string. A new strong tag will be computed
+	 * for the string.
 	 * 
 	 * @param cacheEntry
 	 *        The cache entry to clone
@@ -89,13 +97,16 @@ public class CacheEntry implements Externalizable
 	 */
 	public CacheEntry( CacheEntry cacheEntry, String string ) throws IOException
 	{
-		this( string, cacheEntry.mediaType, cacheEntry.language, cacheEntry.characterSet, cacheEntry.encoding, cacheEntry.headers, cacheEntry.modificationDate, cacheEntry.tag, cacheEntry.expirationDate,
+		this( string, cacheEntry.mediaType, cacheEntry.language, cacheEntry.characterSet, cacheEntry.encoding, cacheEntry.headers, cacheEntry.modificationDate, null, cacheEntry.expirationDate,
 			cacheEntry.modificationDate );
 		setTags( cacheEntry.getTags() );
 	}
 
 	/**
 	 * Constructor. Compresses string if encoding is provided.
+	 * <p>
+	 * If no tag is provided, a strong tag is computed from a digest of the
+	 * string.
 	 * 
 	 * @param string
 	 *        The string
@@ -112,7 +123,7 @@ public class CacheEntry implements Externalizable
 	 * @param modificationDate
 	 *        The modification date or null
 	 * @param tag
-	 *        The tag
+	 *        The tag or null
 	 * @param expirationDate
 	 *        The expiration date
 	 * @param documentModificationDate
@@ -129,18 +140,27 @@ public class CacheEntry implements Externalizable
 		this.encoding = Encoding.IDENTITY.equals( encoding ) ? null : encoding;
 		this.headers = headers;
 		this.modificationDate = modificationDate != null ? modificationDate : new Date();
-		this.tag = tag;
 		this.expirationDate = expirationDate;
 		this.documentModificationDate = documentModificationDate;
 
 		if( IoUtil.SUPPORTED_COMPRESSION_ENCODINGS.contains( encoding ) )
-			bytes = IoUtil.compress( string, encoding, "text" );
+		{
+			byte[] encodedString = encode( string, characterSet );
+			this.tag = tag != null ? tag : toEncodedTag( createTag( encodedString ), this.encoding );
+			bytes = IoUtil.compress( new ByteArrayInputStream( encodedString ), encoding, "text" );
+		}
 		else
+		{
 			this.string = string;
+			this.tag = tag != null ? tag : createTag( getEncodedString() );
+		}
 	}
 
 	/**
 	 * Constructor.
+	 * <p>
+	 * If no tag is provided, a strong tag is computed from a digest of the
+	 * bytes (decompressed if there is an encoding).
 	 * 
 	 * @param bytes
 	 *        The bytes
@@ -157,7 +177,7 @@ public class CacheEntry implements Externalizable
 	 * @param modificationDate
 	 *        The modification date or null
 	 * @param tag
-	 *        The tag
+	 *        The tag or null
 	 * @param expirationDate
 	 *        The expiration date
 	 * @param documentModificationDate
@@ -173,7 +193,7 @@ public class CacheEntry implements Externalizable
 		this.encoding = Encoding.IDENTITY.equals( encoding ) ? null : encoding;
 		this.headers = headers;
 		this.modificationDate = modificationDate != null ? modificationDate : new Date();
-		this.tag = tag;
+		this.tag = tag != null ? tag : createTag( bytes, this.encoding );
 		this.expirationDate = expirationDate;
 		this.documentModificationDate = documentModificationDate;
 	}
@@ -313,10 +333,78 @@ public class CacheEntry implements Externalizable
 	}
 
 	/**
-	 * @return The string
+	 * The positions in the string at which the output of dynamic documents
+	 * should be inserted, in ascending order, or null if there are no holes.
+	 * 
+	 * @return The hole positions or null
+	 * @see #getHoleDocumentNames()
+	 */
+	public int[] getHolePositions()
+	{
+		return holePositions;
+	}
+
+	/**
+	 * The names of the dynamic documents that should be executed to fill the
+	 * holes.
+	 * 
+	 * @return The hole document names or null
+	 * @see #getHolePositions()
+	 */
+	public String[] getHoleDocumentNames()
+	{
+		return holeDocumentNames;
+	}
+
+	/**
+	 * Marks this entry as a shell with holes. Entries with holes are not
+	 * complete representations, and cannot be encoded: the holes must be
+	 * filled in for every request.
+	 * 
+	 * @param holePositions
+	 *        The hole positions, in ascending order
+	 * @param holeDocumentNames
+	 *        The hole document names
+	 */
+	public void setHoles( int[] holePositions, String[] holeDocumentNames )
+	{
+		this.holePositions = holePositions;
+		this.holeDocumentNames = holeDocumentNames;
+	}
+
+	/**
+	 * @return True if the entry is a shell with holes
+	 * @see #setHoles(int[], String[])
+	 */
+	public boolean hasHoles()
+	{
+		return holePositions != null;
+	}
+
+	/**
+	 * The string. Once the entry has been encoded in its character set (see
+	 * {@link #getSize()}), it is decoded again for every call, except for
+	 * shells with holes, which keep their string because it is needed for
+	 * every hit.
+	 * 
+	 * @return The string or null
 	 */
 	public String getString()
 	{
+		String string = this.string;
+		if( string == null )
+		{
+			byte[] encodedString = this.encodedString;
+			if( encodedString != null )
+			{
+				string = new String( encodedString, toCharset( characterSet ) );
+
+				// Shells need their string for every hit, so we keep it
+				// (decoding it twice in a race is harmless)
+				if( hasHoles() )
+					this.string = string;
+			}
+		}
 		return string;
 	}
 
@@ -329,14 +417,20 @@ public class CacheEntry implements Externalizable
 	}
 
 	/**
-	 * @return The length in bytes of either the string or the bytes
+	 * The length in bytes of either the string encoded in the character set or
+	 * the bytes.
+	 * <p>
+	 * To make sure that this is also the memory used by the entry, the string
+	 * is replaced by its encoded bytes (shells with holes keep both).
+	 * 
+	 * @return The length in bytes
 	 */
 	public int getSize()
 	{
 		if( bytes != null )
 			return bytes.length;
 		else
-			return string.getBytes().length;
+			return getEncodedString().length;
 	}
 
 	/**
@@ -380,13 +474,36 @@ public class CacheEntry implements Externalizable
 	}
 
 	/**
+	 * The tag. If none was provided, a strong tag was computed on creation
+	 * from an MD5 digest of the unencoded content, suffixed with the encoding,
+	 * so that the same content always has the same tag whether it was stored
+	 * as a string or as bytes.
+	 * 
 	 * @return The tag
+	 * @see #getTag(Encoding)
 	 */
 	public Tag getTag()
 	{
 		return tag;
 	}
 
+	/**
+	 * The tag of the representation that would be sent for a negotiated
+	 * encoding. Un-encoded entries are re-encoded before they are sent (see
+	 * {@link #CacheEntry(CacheEntry, Encoding)}), so their tag is suffixed
+	 * with the encoding, exactly as the re-encoded entry's would be.
+	 * 
+	 * @param encoding
+	 *        The negotiated encoding or null
+	 * @return The tag
+	 */
+	public Tag getTag( Encoding encoding )
+	{
+		if( this.encoding != null )
+			return tag;
+		return toEncodedTag( tag, encoding );
+	}
+
 	/**
 	 * @return The document modification date
 	 */
@@ -452,6 +569,9 @@ public class CacheEntry implements Externalizable
 	/**
 	 * Creates a {@link StringRepresentation} or a
 	 * {@link ByteArrayRepresentation}.
+	 * <p>
+	 * If the character set is known, strings are encoded only once per entry,
+	 * and the resulting bytes are shared by all representations.
 	 * 
 	 * @return A {@link Representation}
 	 */
@@ -468,22 +588,48 @@ public class CacheEntry implements Externalizable
 			if( encoding != null )
 				representation.getEncodings().add( encoding );
 		}
+		else if( characterSet != null )
+		{
+			representation = new ByteArrayRepresentation( getEncodedString(), mediaType );
+			if( language != null )
+				representation.getLanguages().add( language );
+			representation.setCharacterSet( characterSet );
+		}
 		else
-			representation = new StringRepresentation( string, mediaType, language, characterSet );
+			representation = new StringRepresentation( getString(), mediaType, language, characterSet );
 
 		representation.setModificationDate( modificationDate );
 		representation.setExpirationDate( expirationDate );
+		representation.setTag( getTag() );
 		return representation;
 	}
 
 	/**
-	 * Create a {@link RepresentationInfo}.
+	 * Create a {@link RepresentationInfo}, including the tag. This is enough
+	 * information to answer conditional requests without touching the string
+	 * or bytes.
 	 * 
 	 * @return A {@link RepresentationInfo}
+	 * @see #getInfo(Encoding)
 	 */
 	public RepresentationInfo getInfo()
 	{
-		return new RepresentationInfo( mediaType, modificationDate );
+		return getInfo( null );
+	}
+
+	/**
+	 * Create a {@link RepresentationInfo}, including the tag for a negotiated
+	 * encoding (see {@link #getTag(Encoding)}).
+	 * 
+	 * @param encoding
+	 *        The negotiated encoding or null
+	 * @return A {@link RepresentationInfo}
+	 */
+	public RepresentationInfo getInfo( Encoding encoding )
+	{
+		RepresentationInfo representationInfo = new RepresentationInfo( mediaType, modificationDate );
+		representationInfo.setTag( getTag( encoding ) );
+		return representationInfo;
 	}
 
 	//
@@ -492,6 +638,9 @@ public class CacheEntry implements Externalizable
 
 	public void readExternal( ObjectInput in ) throws IOException, ClassNotFoundException
 	{
+		if( in.readLong() != serialVersionUID )
+			throw new InvalidClassException( CacheEntry.class.getName(), "Incompatible serialized format" );
+
 		int tagsLength = in.readInt();
 		tags = new String[tagsLength];
 		for( int i = 0; i < tagsLength; i++ )
@@ -525,15 +674,32 @@ public class CacheEntry implements Externalizable
 			}
 		}
 
-		String tagValue = in.readUTF();
-		tag = tagValue != null ? Tag.parse( tagValue ) : null;
+		String tagValue = IoUtil.readUtf8( in );
+		if( tagValue.length() > 0 )
+			tag = Tag.parse( tagValue );
+		else
+			tag = bytes != null ? createTag( bytes, encoding ) : createTag( getEncodedString() );
 		modificationDate = new Date( in.readLong() );
 		expirationDate = new Date( in.readLong() );
 		documentModificationDate = new Date( in.readLong() );
+
+		int holesLength = in.readInt();
+		if( holesLength > 0 )
+		{
+			holePositions = new int[holesLength];
+			holeDocumentNames = new String[holesLength];
+			for( int i = 0; i < holesLength; i++ )
+			{
+				holePositions[i] = in.readInt();
+				holeDocumentNames[i] = IoUtil.readUtf8( in );
+			}
+		}
 	}
 
 	public void writeExternal( ObjectOutput out ) throws IOException
 	{
+		out.writeLong( serialVersionUID );
+
 		if( tags == null )
 			out.writeInt( 0 );
 		else
@@ -552,7 +718,7 @@ public class CacheEntry implements Externalizable
 		else
 		{
 			out.writeBoolean( false );
-			IoUtil.writeUtf8( out, string );
+			IoUtil.writeUtf8( out, getString() );
 		}
 
 		out.writeUTF( nonNull( mediaType ) );
@@ -576,12 +742,24 @@ public class CacheEntry implements Externalizable
 		out.writeLong( modificationDate.getTime() );
 		out.writeLong( expirationDate.getTime() );
 		out.writeLong( documentModificationDate.getTime() );
+
+		if( holePositions == null )
+			out.writeInt( 0 );
+		else
+		{
+			out.writeInt( holePositions.length );
+			for( int i = 0; i < holePositions.length; i++ )
+			{
+				out.writeInt( holePositions[i] );
+				IoUtil.writeUtf8( out, holeDocumentNames[i] );
+			}
+		}
 	}
 
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
-	private static final long serialVersionUID = 1L;
+	private static final long serialVersionUID = 2L;
 
 	/**
 	 * The cache tags.
@@ -594,9 +772,26 @@ public class CacheEntry implements Externalizable
 	private byte[] bytes;
 
 	/**
-	 * The stored string.
+	 * The stored string, or null once it has been encoded (shells with holes
+	 * decode it again once).
+	 */
+	private volatile String string;
+
+	/**
+	 * The hole positions or null.
+	 */
+	private int[] holePositions;
+
+	/**
+	 * The hole document names or null.
 	 */
-	private String string;
+	private String[] holeDocumentNames;
+
+	/**
+	 * The stored string encoded in the character set (lazily created,
+	 * replacing the string).
+	 */
+	private transient volatile byte[] encodedString;
 
 	/**
 	 * The media type.
@@ -643,6 +838,134 @@ public class CacheEntry implements Externalizable
 	 */
 	private Date expirationDate;
 
+	/**
+	 * The stored string encoded in the character set. The string itself is
+	 * then dropped, so that the text is not held twice.
+	 * 
+	 * @return The encoded string
+	 */
+	private byte[] getEncodedString()
+	{
+		byte[] encodedString = this.encodedString;
+		if( encodedString == null )
+		{
+			synchronized( this )
+			{
+				encodedString = this.encodedString;
+				if( encodedString == null )
+				{
+					encodedString = encode( string, characterSet );
+					this.encodedString = encodedString;
+					string = null;
+				}
+			}
+		}
+		return encodedString;
+	}
+
+	/**
+	 * Encodes a string in a character set.
+	 * 
+	 * @param string
+	 *        The string
+	 * @param characterSet
+	 *        The character set or null for UTF-8
+	 * @return The bytes
+	 */
+	private static byte[] encode( String string, CharacterSet characterSet )
+	{
+		return string.getBytes( toCharset( characterSet ) );
+	}
+
+	/**
+	 * The Java charset for a character set.
+	 * 
+	 * @param characterSet
+	 *        The character set or null for UTF-8
+	 * @return The charset
+	 */
+	private static Charset toCharset( CharacterSet characterSet )
+	{
+		return Charset.forName( characterSet != null ? characterSet.getName() : "UTF-8" );
+	}
+
+	/**
+	 * Hexadecimal digits.
+	 */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Creates a strong tag from an MD5 digest of the bytes.
+	 * 
+	 * @param bytes
+	 *        The bytes
+	 * @return The tag
+	 */
+	private static Tag createTag( byte[] bytes )
+	{
+		byte[] digest;
+		try
+		{
+			digest = MessageDigest.getInstance( "MD5" ).digest( bytes );
+		}
+		catch( NoSuchAlgorithmException x )
+		{
+			// MD5 is required of all JVMs
+			throw new RuntimeException( x );
+		}
+
+		char[] chars = new char[digest.length * 2];
+		for( int i = 0; i < digest.length; i++ )
+		{
+			chars[i * 2] = HEX[( digest[i] >> 4 ) & 0xF];
+			chars[i * 2 + 1] = HEX[digest[i] & 0xF];
+		}
+		return new Tag( new String( chars ), false );
+	}
+
+	/**
+	 * Creates a strong tag from an MD5 digest of the bytes, decompressing them
+	 * first if they are encoded.
+	 * 
+	 * @param bytes
+	 *        The bytes
+	 * @param encoding
+	 *        The encoding or null
+	 * @return The tag
+	 */
+	private static Tag createTag( byte[] bytes, Encoding encoding )
+	{
+		if( encoding == null )
+			return createTag( bytes );
+
+		try
+		{
+			return toEncodedTag( createTag( IoUtil.decompress( bytes, encoding ) ), encoding );
+		}
+		catch( IOException x )
+		{
+			// Fall back to a digest of the encoded bytes, which is still strong
+			return createTag( bytes );
+		}
+	}
+
+	/**
+	 * Makes sure that tags differ between encodings of the same content, as is
+	 * required of strong tags.
+	 * 
+	 * @param tag
+	 *        The tag or null
+	 * @param encoding
+	 *        The encoding or null
+	 * @return The tag for the encoding or null
+	 */
+	private static Tag toEncodedTag( Tag tag, Encoding encoding )
+	{
+		if( ( tag == null ) || ( encoding == null ) || Encoding.IDENTITY.equals( encoding ) )
+			return tag;
+		return new Tag( tag.getName() + "-" + encoding.getName(), tag.isWeak() );
+	}
+
 	/**
 	 * Makes sure to return a non-null string.
 	 * 
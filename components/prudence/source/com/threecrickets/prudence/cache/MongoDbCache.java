@@ -152,6 +152,10 @@ public class MongoDbCache implements Cache
 
 	public void store( String key, CacheEntry entry )
 	{
+		// Only the binary dump has room for holes
+		if( !isBinary && entry.hasHoles() )
+			return;
+
 		logger.fine( "Store: " + key );
 
 		Document query = new Document();
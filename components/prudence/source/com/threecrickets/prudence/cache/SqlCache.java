@@ -215,6 +215,10 @@ public class SqlCache implements Cache
 
 	public void store( String key, CacheEntry entry )
 	{
+		// Our table has no room for holes
+		if( entry.hasHoles() )
+			return;
+
 		logger.fine( "Store: " + key );
 
 		Lock lock = lockSource.getWriteLock( key );
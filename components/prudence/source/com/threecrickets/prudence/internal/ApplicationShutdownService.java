@@ -0,0 +1,103 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.internal;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+
+import org.restlet.Application;
+import org.restlet.service.Service;
+
+/**
+ * Runs tasks, such as shutting down executors, when an application is stopped,
+ * so that the threads they own do not outlive it across restarts and
+ * redeployments.
+ * 
+ * @author Tal Liron
+ */
+public class ApplicationShutdownService extends Service
+{
+	//
+	// Static operations
+	//
+
+	/**
+	 * Adds a task to run when an application is stopped, installing the
+	 * service in the application if necessary.
+	 * 
+	 * @param application
+	 *        The application
+	 * @param task
+	 *        The task
+	 */
+	public static void addTask( Application application, Runnable task )
+	{
+		ApplicationShutdownService shutdownService;
+		synchronized( application )
+		{
+			shutdownService = application.getServices().get( ApplicationShutdownService.class );
+			if( shutdownService == null )
+			{
+				shutdownService = new ApplicationShutdownService( application );
+				application.getServices().add( shutdownService );
+			}
+		}
+		shutdownService.tasks.add( task );
+	}
+
+	//
+	// Service
+	//
+
+	@Override
+	public synchronized void stop() throws Exception
+	{
+		super.stop();
+
+		for( Runnable task : tasks )
+		{
+			try
+			{
+				task.run();
+			}
+			catch( RuntimeException x )
+			{
+				application.getLogger().log( Level.WARNING, "Exception in shutdown task", x );
+			}
+		}
+		tasks.clear();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The application.
+	 */
+	private final Application application;
+
+	/**
+	 * The tasks.
+	 */
+	private final CopyOnWriteArrayList<Runnable> tasks = new CopyOnWriteArrayList<Runnable>();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param application
+	 *        The application
+	 */
+	private ApplicationShutdownService( Application application )
+	{
+		this.application = application;
+	}
+}
@@ -420,6 +420,26 @@ public class CachingUtil<R extends ServerResource, A extends ResourceContextualA
 			return (CacheEntry) attributes.get( VALID_CACHE_ENTRY_ATTRIBUTE );
 	}
 
+	/**
+	 * The existing cache entry with holes, which was fetched but must be
+	 * completed by executing the hole documents.
+	 * 
+	 * @param request
+	 *        The request
+	 * @param clear
+	 *        Whether to clear it
+	 * @return The existing cache entry with holes
+	 * @see CacheEntry#hasHoles()
+	 */
+	public static CacheEntry getExistingHoledEntry( Request request, boolean clear )
+	{
+		ConcurrentMap<String, Object> attributes = request.getAttributes();
+		if( clear )
+			return (CacheEntry) attributes.remove( HOLED_CACHE_ENTRY_ATTRIBUTE );
+		else
+			return (CacheEntry) attributes.get( HOLED_CACHE_ENTRY_ATTRIBUTE );
+	}
+
 	/**
 	 * Whether we may fetch from the cache.
 	 * 
@@ -473,12 +493,65 @@ public class CachingUtil<R extends ServerResource, A extends ResourceContextualA
 		this.resource = resource;
 		this.attributes = attributes;
 		prefix = resource.getClass().getCanonicalName();
+		includeAttributes = null;
+	}
+
+	/**
+	 * Construction by cloning, for an asynchronous include. The cache entry
+	 * with holes and the caching debug headers are kept in our own attributes
+	 * instead of in the shared request and response attributes, so that
+	 * concurrent includes do not race on them.
+	 * 
+	 * @param cachingUtil
+	 *        The caching utilities to clone
+	 * @see #getHoledEntry(Request)
+	 * @see #getDebugHeaders()
+	 */
+	public CachingUtil( CachingUtil<R, A> cachingUtil )
+	{
+		resource = cachingUtil.resource;
+		attributes = cachingUtil.attributes;
+		prefix = cachingUtil.prefix;
+		includeAttributes = new ConcurrentHashMap<String, Object>();
 	}
 
 	//
 	// Attributes
 	//
 
+	/**
+	 * The cache entry with holes, which was fetched but must be completed by
+	 * executing the hole documents. It is cleared.
+	 * <p>
+	 * Unlike {@link #getExistingHoledEntry(Request, boolean)}, this works for
+	 * asynchronous includes, too.
+	 * 
+	 * @param request
+	 *        The request
+	 * @return The cache entry with holes or null
+	 */
+	public CacheEntry getHoledEntry( Request request )
+	{
+		return (CacheEntry) getRequestAttributes( request ).remove( HOLED_CACHE_ENTRY_ATTRIBUTE );
+	}
+
+	/**
+	 * The caching debug headers added for an asynchronous include, which have
+	 * not yet been applied to the response.
+	 * 
+	 * @return The caching debug headers or null
+	 * @see #applyDebugHeaders(Series)
+	 */
+	public Series<Header> getDebugHeaders()
+	{
+		if( includeAttributes == null )
+			return null;
+
+		@SuppressWarnings("unchecked")
+		Series<Header> headers = (Series<Header>) includeAttributes.get( HeaderConstants.ATTRIBUTE_HEADERS );
+		return headers;
+	}
+
 	/**
 	 * The valid document name, based on the remaining part (wildcard) of the
 	 * reference.
@@ -598,6 +671,10 @@ public class CachingUtil<R extends ServerResource, A extends ResourceContextualA
 
 	/**
 	 * Fetches a cached representation, re-encoding it if necessary.
+	 * <p>
+	 * Cache entries with holes are not returned as representations. Instead,
+	 * null is returned and the entry can be retrieved via
+	 * {@link #getHoledEntry(Request)}.
 	 * 
 	 * @param documentDescriptor
 	 *        The document descriptor
@@ -625,10 +702,17 @@ public class CachingUtil<R extends ServerResource, A extends ResourceContextualA
 
 		Executable executable = documentDescriptor.getDocument();
 
-		// Saved values (from fetchCacheEntry)
-		String cacheKey = getExistingKey( request, true );
-		String cacheKeyForEncoding = getExistingKeyForEncoding( request, true );
-		CacheEntry cacheEntry = getExistingValidEntry( request, true );
+		// Saved values (from fetchCacheEntry, which is not used for
+		// asynchronous includes)
+		String cacheKey = null;
+		String cacheKeyForEncoding = null;
+		CacheEntry cacheEntry = null;
+		if( includeAttributes == null )
+		{
+			cacheKey = getExistingKey( request, true );
+			cacheKeyForEncoding = getExistingKeyForEncoding( request, true );
+			cacheEntry = getExistingValidEntry( request, true );
+		}
 
 		if( ( cacheEntry == null ) && ( encoding != null ) )
 		{
@@ -655,6 +739,14 @@ public class CachingUtil<R extends ServerResource, A extends ResourceContextualA
 		// Make sure the document is not newer than the cache entry
 		if( ( cacheEntry != null ) && ( executable.getDocumentTimestamp() <= cacheEntry.getDocumentModificationDate().getTime() ) )
 		{
+			// The caller will have to fill in the holes
+			if( cacheEntry.hasHoles() )
+			{
+				getRequestAttributes( request ).put( HOLED_CACHE_ENTRY_ATTRIBUTE, cacheEntry );
+				addDebugHeaders( "hit;holes", cacheEntry, cacheKey, executable, suffix );
+				return null;
+			}
+
 			try
 			{
 				if( ( writer != null ) && ( cacheEntry.getString() != null ) )
@@ -723,9 +815,14 @@ public class CachingUtil<R extends ServerResource, A extends ResourceContextualA
 			return;
 
 		Executable executable = documentDescriptor.getDocument();
-		Request request = resource.getRequest();
-		String cacheKey = getExistingKey( request, true );
-		String cacheKeyForEncoding = getExistingKeyForEncoding( request, true );
+		String cacheKey = null;
+		String cacheKeyForEncoding = null;
+		if( includeAttributes == null )
+		{
+			Request request = resource.getRequest();
+			cacheKey = getExistingKey( request, true );
+			cacheKeyForEncoding = getExistingKeyForEncoding( request, true );
+		}
 
 		if( cacheKey == null )
 			cacheKey = castKey( documentDescriptor, suffix, parserName, conversationService, null );
@@ -987,6 +1084,22 @@ public class CachingUtil<R extends ServerResource, A extends ResourceContextualA
 		}
 
 		// Apply headers
+		if( includeAttributes != null )
+			includeAttributes.put( HeaderConstants.ATTRIBUTE_HEADERS, headers );
+		else
+			applyDebugHeaders( headers );
+	}
+
+	/**
+	 * Applies caching debug headers to the response, overriding those that
+	 * were applied before.
+	 * 
+	 * @param headers
+	 *        The caching debug headers
+	 * @see #getDebugHeaders()
+	 */
+	public void applyDebugHeaders( Series<Header> headers )
+	{
 		resource.getResponse().getAttributes().put( HeaderConstants.ATTRIBUTE_HEADERS, headers );
 	}
 
@@ -1000,6 +1113,12 @@ public class CachingUtil<R extends ServerResource, A extends ResourceContextualA
 	 */
 	private final A attributes;
 
+	/**
+	 * Our own attributes, used instead of the request and response attributes
+	 * for asynchronous includes, or null.
+	 */
+	private final ConcurrentMap<String, Object> includeAttributes;
+
 	/**
 	 * Prefix for executable attributes.
 	 */
@@ -1060,6 +1179,11 @@ public class CachingUtil<R extends ServerResource, A extends ResourceContextualA
 	 */
 	private static final String VALID_CACHE_ENTRY_ATTRIBUTE = CachingUtil.class.getCanonicalName() + ".validCacheEntry";
 
+	/**
+	 * Cache entry with holes attribute for a {@link Request}.
+	 */
+	private static final String HOLED_CACHE_ENTRY_ATTRIBUTE = CachingUtil.class.getCanonicalName() + ".holedCacheEntry";
+
 	/**
 	 * Cache header.
 	 */
@@ -1084,4 +1208,17 @@ public class CachingUtil<R extends ServerResource, A extends ResourceContextualA
 	 * Cache expiration header date-time format.
 	 */
 	private static final String CACHE_EXPIRATION_HEADER_FORMAT = "EEE, dd MMM yyyy HH:mm:ss z";
+
+	/**
+	 * The attributes in which to keep per-request state.
+	 * 
+	 * @param request
+	 *        The request
+	 * @return Our own attributes for asynchronous includes, otherwise the
+	 *         request attributes
+	 */
+	private ConcurrentMap<String, Object> getRequestAttributes( Request request )
+	{
+		return includeAttributes != null ? includeAttributes : request.getAttributes();
+	}
 }
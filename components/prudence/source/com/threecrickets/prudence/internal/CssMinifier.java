@@ -0,0 +1,1070 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.internal;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A streaming CSS minifier that produces the same output as {@link CSSMin}.
+ * <p>
+ * The input is read once: comments are removed and braces are matched as
+ * characters arrive, and every top-level rule is minified and written as soon
+ * as it is closed, so that memory use depends on the largest rule rather than
+ * on the whole stylesheet. Rules are minified by hand-written scanners and
+ * lookup tables rather than by regular expressions compiled per declaration.
+ * <p>
+ * Malformed input is handled differently: where {@link CSSMin} writes nothing
+ * for an unterminated comment or unbalanced braces, this class throws an
+ * {@link IOException}, and a rule with an incomplete declaration is always
+ * dropped, where {@link CSSMin} would sometimes abort the output.
+ * 
+ * @author Tal Liron
+ */
+public class CssMinifier
+{
+	//
+	// Static operations
+	//
+
+	/**
+	 * Minifies CSS, writing it in the default character set.
+	 * 
+	 * @param reader
+	 *        The CSS source
+	 * @param out
+	 *        The output stream (will not be closed)
+	 * @throws IOException
+	 *         In case of a reading or writing error, or malformed CSS
+	 */
+	public static void minify( Reader reader, OutputStream out ) throws IOException
+	{
+		Writer writer = new OutputStreamWriter( out );
+		minify( reader, writer );
+		writer.flush();
+	}
+
+	/**
+	 * Minifies CSS.
+	 * 
+	 * @param reader
+	 *        The CSS source
+	 * @param writer
+	 *        The writer (will not be closed)
+	 * @throws IOException
+	 *         In case of a reading or writing error, or malformed CSS
+	 */
+	public static void minify( Reader reader, Writer writer ) throws IOException
+	{
+		BufferedReader lines = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader( reader );
+		CssMinifier minifier = new CssMinifier( writer );
+
+		// Like CSSMin, blank lines are skipped and the others are joined
+		// without line breaks
+		String line;
+		while( ( line = lines.readLine() ) != null )
+			if( !isBlank( line ) )
+				for( int i = 0, length = line.length(); i < length; i++ )
+					minifier.scan( line.charAt( i ) );
+
+		minifier.finish();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * Scanner state: text.
+	 */
+	private static final int TEXT = 0;
+
+	/**
+	 * Scanner state: after a "/" in text.
+	 */
+	private static final int SLASH = 1;
+
+	/**
+	 * Scanner state: after "/*" in text.
+	 */
+	private static final int COMMENT_START = 2;
+
+	/**
+	 * Scanner state: inside a comment.
+	 */
+	private static final int COMMENT = 3;
+
+	/**
+	 * Scanner state: after a "*" inside a comment.
+	 */
+	private static final int COMMENT_STAR = 4;
+
+	/**
+	 * HTML colour names (the same as CSSMin's).
+	 */
+	private static final String[] HTML_COLOUR_NAMES =
+	{
+		"aliceblue", "antiquewhite", "aqua", "aquamarine", "azure", "beige", "bisque", "black", "blanchedalmond", "blue", "blueviolet", "brown", "burlywood", "cadetblue", "chartreuse", "chocolate", "coral",
+		"cornflowerblue", "cornsilk", "crimson", "cyan", "darkblue", "darkcyan", "darkgoldenrod", "darkgray", "darkgreen", "darkkhaki", "darkmagenta", "darkolivegreen", "darkorange", "darkorchid", "darkred",
+		"darksalmon", "darkseagreen", "darkslateblue", "darkslategray", "darkturquoise", "darkviolet", "deeppink", "deepskyblue", "dimgray", "dodgerblue", "firebrick", "floralwhite", "forestgreen", "fuchsia",
+		"gainsboro", "ghostwhite", "gold", "goldenrod", "gray", "green", "greenyellow", "honeydew", "hotpink", "indianred ", "indigo ", "ivory", "khaki", "lavender", "lavenderblush", "lawngreen", "lemonchiffon",
+		"lightblue", "lightcoral", "lightcyan", "lightgoldenrodyellow", "lightgrey", "lightgreen", "lightpink", "lightsalmon", "lightseagreen", "lightskyblue", "lightslategray", "lightsteelblue", "lightyellow", "lime",
+		"limegreen", "linen", "magenta", "maroon", "mediumaquamarine", "mediumblue", "mediumorchid", "mediumpurple", "mediumseagreen", "mediumslateblue", "mediumspringgreen", "mediumturquoise", "mediumvioletred",
+		"midnightblue", "mintcream", "mistyrose", "moccasin", "navajowhite", "navy", "oldlace", "olive", "olivedrab", "orange", "orangered", "orchid", "palegoldenrod", "palegreen", "paleturquoise", "palevioletred",
+		"papayawhip", "peachpuff", "peru", "pink", "plum", "powderblue", "purple", "red", "rosybrown", "royalblue", "saddlebrown", "salmon", "sandybrown", "seagreen", "seashell", "sienna", "silver", "skyblue",
+		"slateblue", "slategray", "snow", "springgreen", "steelblue", "tan", "teal", "thistle", "tomato", "turquoise", "violet", "wheat", "white", "whitesmoke", "yellow", "yellowgreen"
+	};
+
+	/**
+	 * The hexadecimal values of {@link #HTML_COLOUR_NAMES}.
+	 */
+	private static final String[] HTML_COLOUR_VALUES =
+	{
+		"#f0f8ff", "#faebd7", "#00ffff", "#7fffd4", "#f0ffff", "#f5f5dc", "#ffe4c4", "#000", "#ffebcd", "#00f", "#8a2be2", "#a52a2a", "#deb887", "#5f9ea0", "#7fff00", "#d2691e", "#ff7f50", "#6495ed", "#fff8dc",
+		"#dc143c", "#0ff", "#00008b", "#008b8b", "#b8860b", "#a9a9a9", "#006400", "#bdb76b", "#8b008b", "#556b2f", "#ff8c00", "#9932cc", "#8b0000", "#e9967a", "#8fbc8f", "#483d8b", "#2f4f4f", "#00ced1", "#9400d3",
+		"#ff1493", "#00bfff", "#696969", "#1e90ff", "#b22222", "#fffaf0", "#228b22", "#f0f", "#dcdcdc", "#f8f8ff", "#ffd700", "#daa520", "#808080", "#008000", "#adff2f", "#f0fff0", "#ff69b4", "#cd5c5c", "#4b0082",
+		"#fffff0", "#f0e68c", "#e6e6fa", "#fff0f5", "#7cfc00", "#fffacd", "#add8e6", "#f08080", "#e0ffff", "#fafad2", "#d3d3d3", "#90ee90", "#ffb6c1", "#ffa07a", "#20b2aa", "#87cefa", "#789", "#b0c4de", "#ffffe0",
+		"#0f0", "#32cd32", "#faf0e6", "#f0f", "#800000", "#66cdaa", "#0000cd", "#ba55d3", "#9370d8", "#3cb371", "#7b68ee", "#00fa9a", "#48d1cc", "#c71585", "#191970", "#f5fffa", "#ffe4e1", "#ffe4b5", "#ffdead",
+		"#000080", "#fdf5e6", "#808000", "#6b8e23", "#ffa500", "#ff4500", "#da70d6", "#eee8aa", "#98fb98", "#afeeee", "#d87093", "#ffefd5", "#ffdab9", "#cd853f", "#ffc0cb", "#dda0dd", "#b0e0e6", "#800080", "#f00",
+		"#bc8f8f", "#4169e1", "#8b4513", "#fa8072", "#f4a460", "#2e8b57", "#fff5ee", "#a0522d", "#c0c0c0", "#87ceeb", "#6a5acd", "#708090", "#fffafa", "#00ff7f", "#4682b4", "#d2b48c", "#008080", "#d8bfd8", "#ff6347",
+		"#40e0d0", "#ee82ee", "#f5deb3", "#fff", "#f5f5f5", "#ff0", "#9acd32"
+	};
+
+	/**
+	 * Font weight names (the same as CSSMin's).
+	 */
+	private static final String[] FONT_WEIGHT_NAMES =
+	{
+		"normal", "bold", "bolder", "lighter"
+	};
+
+	/**
+	 * The numeric values of {@link #FONT_WEIGHT_NAMES}.
+	 */
+	private static final String[] FONT_WEIGHT_VALUES =
+	{
+		"400", "700", "900", "100"
+	};
+
+	/**
+	 * Lowercase colours mapped to their shorter equivalents.
+	 */
+	private static final Map<String, String> COLOURS = new HashMap<String, String>();
+
+	/**
+	 * Lowercase font weights mapped to their numeric equivalents.
+	 */
+	private static final Map<String, String> FONT_WEIGHTS = new HashMap<String, String>();
+
+	/**
+	 * CSSMin's expression for stripping quotes from single words. It ends with
+	 * a "\1" octal escape rather than a back reference, so it can only match
+	 * text with a U+0001 character, and is used only in that case.
+	 */
+	private static final Pattern CONTROL_A = Pattern.compile( "('|\")?(.*?)\1" );
+
+	static
+	{
+		// Emulate CSSMin's search, in which the last match wins
+		String[] names = HTML_COLOUR_NAMES;
+		String[] values = HTML_COLOUR_VALUES;
+		ArrayList<String> colours = new ArrayList<String>();
+		Collections.addAll( colours, names );
+		Collections.addAll( colours, values );
+		for( String colour : colours )
+		{
+			String shorter = null;
+			for( int i = 0; i < names.length; i++ )
+			{
+				if( colour.equals( names[i] ) )
+				{
+					if( values[i].length() < names[i].length() )
+						shorter = values[i];
+					break;
+				}
+				else if( colour.equals( values[i] ) && ( names[i].length() < values[i].length() ) )
+					shorter = names[i];
+			}
+			if( shorter != null )
+				COLOURS.put( colour, shorter );
+		}
+
+		for( int i = FONT_WEIGHT_NAMES.length - 1; i >= 0; i-- )
+			FONT_WEIGHTS.put( FONT_WEIGHT_NAMES[i], FONT_WEIGHT_VALUES[i] );
+	}
+
+	/**
+	 * The writer.
+	 */
+	private final Writer writer;
+
+	/**
+	 * The current top-level rule.
+	 */
+	private final StringBuilder rule = new StringBuilder();
+
+	/**
+	 * The scanner state.
+	 */
+	private int state = TEXT;
+
+	/**
+	 * The number of open braces.
+	 */
+	private int depth;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param writer
+	 *        The writer
+	 */
+	private CssMinifier( Writer writer )
+	{
+		this.writer = writer;
+	}
+
+	/**
+	 * Removes comments, except for those starting with "/**", which are
+	 * retained.
+	 * 
+	 * @param c
+	 *        The next character
+	 * @throws IOException
+	 *         In case of a writing error or unbalanced braces
+	 */
+	private void scan( char c ) throws IOException
+	{
+		switch( state )
+		{
+			case SLASH:
+				state = TEXT;
+				if( c == '*' )
+				{
+					state = COMMENT_START;
+					return;
+				}
+				append( '/' );
+				break;
+
+			case COMMENT_START:
+				if( c != '*' )
+				{
+					state = COMMENT;
+					return;
+				}
+				state = TEXT;
+				append( '/' );
+				append( '*' );
+				break;
+
+			case COMMENT:
+				if( c == '*' )
+					state = COMMENT_STAR;
+				return;
+
+			case COMMENT_STAR:
+				if( c == '/' )
+					state = TEXT;
+				else if( c != '*' )
+					state = COMMENT;
+				return;
+		}
+
+		if( c == '/' )
+			state = SLASH;
+		else
+			append( c );
+	}
+
+	/**
+	 * Adds a character to the current rule, writing the rule if it is closed.
+	 * 
+	 * @param c
+	 *        The character
+	 * @throws IOException
+	 *         In case of a writing error or unbalanced braces
+	 */
+	private void append( char c ) throws IOException
+	{
+		if( depth < 0 )
+			throw new IOException( "Unbalanced braces in CSS" );
+
+		rule.append( c );
+		if( c == '{' )
+			depth++;
+		else if( ( c == '}' ) && ( --depth == 0 ) )
+		{
+			String minified = minifyRule( rule.toString() );
+			if( minified != null )
+				writer.write( minified );
+			rule.setLength( 0 );
+		}
+	}
+
+	/**
+	 * Finishes writing. Text after the last rule is discarded.
+	 * 
+	 * @throws IOException
+	 *         In case of a writing error, unbalanced braces or an unterminated
+	 *         comment
+	 */
+	private void finish() throws IOException
+	{
+		if( state == SLASH )
+			append( '/' );
+		else if( state != TEXT )
+			throw new IOException( "Unterminated comment in CSS" );
+
+		writer.write( "\r\n" );
+	}
+
+	/**
+	 * Minifies a rule.
+	 * 
+	 * @param rule
+	 *        The rule, ending with its closing brace
+	 * @return The minified rule, or null if it should be dropped
+	 */
+	private static String minifyRule( String rule )
+	{
+		int open = rule.indexOf( '{' );
+		StringBuilder minified = new StringBuilder( rule.length() );
+		appendSelector( minified, rule.substring( 0, open ).trim() );
+		minified.append( '{' );
+
+		if( rule.indexOf( '{', open + 1 ) != -1 )
+		{
+			// Nested rules, such as in "@media"
+			List<String> parts = split( rule, '{', '}' );
+			for( int i = 1, size = parts.size(); i < size; i += 2 )
+			{
+				if( i + 1 == size )
+					return null;
+				String selector = parts.get( i ).trim();
+				String declarations = parts.get( i + 1 ).trim();
+				if( ( selector.length() > 0 ) && ( declarations.length() > 0 ) )
+				{
+					String nested = minifyRule( selector + '{' + declarations + '}' );
+					if( nested == null )
+						return null;
+					minified.append( nested );
+				}
+			}
+		}
+		else
+		{
+			String body = rule.substring( open + 1 ).trim();
+			if( body.length() == 1 )
+				return null;
+
+			// Like CSSMin, this drops the character before the closing brace,
+			// which is expected to be a semicolon
+			body = body.substring( 0, body.length() - 2 );
+
+			ArrayList<Declaration> declarations = new ArrayList<Declaration>();
+			for( String declaration : splitUnquoted( body, ';' ) )
+			{
+				Declaration parsed = Declaration.parse( declaration );
+				if( parsed == null )
+					return null;
+				declarations.add( parsed );
+			}
+			Collections.sort( declarations );
+			for( Declaration declaration : declarations )
+				declaration.appendTo( minified );
+		}
+
+		int last = minified.length() - 1;
+		if( minified.charAt( last ) == ';' )
+			minified.setLength( last );
+		minified.append( '}' );
+		return minified.toString();
+	}
+
+	/**
+	 * Appends a selector, removing a whitespace character on each side of
+	 * combinators and attribute operators.
+	 * 
+	 * @param builder
+	 *        The builder
+	 * @param selector
+	 *        The selector
+	 */
+	private static void appendSelector( StringBuilder builder, String selector )
+	{
+		for( int i = 0, length = selector.length(); i < length; )
+		{
+			int start = i;
+			if( isWhitespace( selector.charAt( i ) ) )
+				start++;
+			int operator = operatorLength( selector, start );
+			if( operator == 0 )
+			{
+				start = i;
+				operator = operatorLength( selector, start );
+			}
+
+			if( operator == 0 )
+				builder.append( selector.charAt( i++ ) );
+			else
+			{
+				i = start + operator;
+				builder.append( selector, start, i );
+				if( ( i < length ) && isWhitespace( selector.charAt( i ) ) )
+					i++;
+			}
+		}
+	}
+
+	/**
+	 * The length of a combinator or attribute operator.
+	 * 
+	 * @param selector
+	 *        The selector
+	 * @param index
+	 *        The index
+	 * @return The length, or 0 if there is none at the index
+	 */
+	private static int operatorLength( String selector, int index )
+	{
+		if( index >= selector.length() )
+			return 0;
+		switch( selector.charAt( index ) )
+		{
+			case '+':
+			case '~':
+			case ',':
+			case '=':
+			case '>':
+				return 1;
+			case '^':
+			case '$':
+			case '*':
+			case '|':
+				return ( index + 1 < selector.length() ) && ( selector.charAt( index + 1 ) == '=' ) ? 2 : 0;
+		}
+		return 0;
+	}
+
+	/**
+	 * Minifies a value (one of the comma-separated parts of a declaration's
+	 * value).
+	 * 
+	 * @param value
+	 *        The value
+	 * @param property
+	 *        The lowercase property name
+	 * @return The minified value
+	 */
+	private static String minifyValue( String value, String property )
+	{
+		value = replace( value, " !important", "!important" );
+		value = removeZeroUnits( value ).trim();
+
+		if( value.equals( "0 0 0 0" ) || value.equals( "0 0 0" ) || value.equals( "0 0" ) )
+			value = "0";
+
+		value = removeRepeatedParameters( value );
+
+		if( property.equals( "font-weight" ) )
+		{
+			String weight = FONT_WEIGHTS.get( value.toLowerCase() );
+			if( weight != null )
+				value = weight;
+		}
+
+		if( ( value.length() > 4 ) && value.regionMatches( true, 0, "url(", 0, 4 ) )
+			value = unquoteUrls( value );
+		else if( isWord( value ) )
+		{
+			value = value.toLowerCase();
+			if( value.indexOf( '\1' ) != -1 )
+				value = CONTROL_A.matcher( value ).replaceAll( "$2" );
+		}
+
+		String colour = COLOURS.get( value.toLowerCase() );
+		if( colour != null )
+			value = colour;
+
+		return shortenHexColours( value );
+	}
+
+	/**
+	 * Removes units after zeros that follow whitespace, for example turns
+	 * " 0px" into " 0".
+	 * 
+	 * @param value
+	 *        The value
+	 * @return The value without the units
+	 */
+	private static String removeZeroUnits( String value )
+	{
+		StringBuilder builder = null;
+		int last = 0;
+		for( int i = 0, length = value.length(); i + 2 < length; i++ )
+		{
+			if( isWhitespace( value.charAt( i ) ) && ( value.charAt( i + 1 ) == '0' ) )
+			{
+				int unit = unitLength( value, i + 2 );
+				if( unit > 0 )
+				{
+					if( builder == null )
+						builder = new StringBuilder( length );
+					builder.append( value, last, i + 2 );
+					last = i + 2 + unit;
+					i = last - 1;
+				}
+			}
+		}
+
+		if( builder == null )
+			return value;
+		builder.append( value, last, value.length() );
+		return builder.toString();
+	}
+
+	/**
+	 * The length of a unit that can be removed after a zero.
+	 * 
+	 * @param value
+	 *        The value
+	 * @param index
+	 *        The index
+	 * @return The length, or 0 if there is none at the index
+	 */
+	private static int unitLength( String value, int index )
+	{
+		char c = value.charAt( index );
+		if( c == '%' )
+			return 1;
+		if( index + 1 >= value.length() )
+			return 0;
+		char c2 = value.charAt( index + 1 );
+		switch( c )
+		{
+			case 'p':
+				return ( c2 == 'x' ) || ( c2 == 'c' ) || ( c2 == 't' ) ? 2 : 0;
+			case 'e':
+				return ( c2 == 'm' ) || ( c2 == 'x' ) ? 2 : 0;
+			case 'i':
+				return c2 == 'n' ? 2 : 0;
+			case 'c':
+			case 'm':
+				return c2 == 'm' ? 2 : 0;
+		}
+		return 0;
+	}
+
+	/**
+	 * Shortens space-separated parameters that repeat, for example turns
+	 * "3px 0 3px 0" into "3px 0".
+	 * 
+	 * @param value
+	 *        The value
+	 * @return The shortened value
+	 */
+	private static String removeRepeatedParameters( String value )
+	{
+		List<String> parameters = split( value, ' ', ' ' );
+		int size = parameters.size();
+		int count = size;
+		if( ( count == 4 ) && parameters.get( 1 ).equalsIgnoreCase( parameters.get( 3 ) ) )
+			count = 3;
+		if( ( count == 3 ) && parameters.get( 0 ).equalsIgnoreCase( parameters.get( 2 ) ) )
+			count = 2;
+		if( ( count == 2 ) && parameters.get( 0 ).equalsIgnoreCase( parameters.get( 1 ) ) )
+			count = 1;
+		if( count == size )
+			return value;
+
+		StringBuilder builder = new StringBuilder( value.length() );
+		for( int i = 0; i < count; i++ )
+		{
+			if( i > 0 )
+				builder.append( ' ' );
+			builder.append( parameters.get( i ) );
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Removes quotes from "url()" values.
+	 * 
+	 * @param value
+	 *        The value
+	 * @return The value without quotes
+	 */
+	private static String unquoteUrls( String value )
+	{
+		StringBuilder builder = null;
+		int last = 0;
+		int length = value.length();
+		for( int i = 0; i + 4 < length; i++ )
+		{
+			char quote = value.charAt( i + 4 );
+			if( ( ( quote != '\'' ) && ( quote != '"' ) ) || !isUrl( value, i ) )
+				continue;
+
+			for( int j = i + 5; j + 1 < length; j++ )
+			{
+				char c = value.charAt( j );
+				if( ( c == quote ) && ( value.charAt( j + 1 ) == ')' ) )
+				{
+					if( builder == null )
+						builder = new StringBuilder( length );
+					builder.append( value, last, i ).append( "url(" ).append( value, i + 5, j ).append( ')' );
+					last = j + 2;
+					i = last - 1;
+					break;
+				}
+				if( isLineTerminator( c ) )
+					break;
+			}
+		}
+
+		if( builder == null )
+			return value;
+		builder.append( value, last, length );
+		return builder.toString();
+	}
+
+	/**
+	 * Whether there is an "url(" at an index, ignoring ASCII case.
+	 * 
+	 * @param value
+	 *        The value
+	 * @param index
+	 *        The index
+	 * @return True if there is an "url("
+	 */
+	private static boolean isUrl( String value, int index )
+	{
+		char u = value.charAt( index ), r = value.charAt( index + 1 ), l = value.charAt( index + 2 );
+		return ( ( u == 'u' ) || ( u == 'U' ) ) && ( ( r == 'r' ) || ( r == 'R' ) ) && ( ( l == 'l' ) || ( l == 'L' ) ) && ( value.charAt( index + 3 ) == '(' );
+	}
+
+	/**
+	 * Converts "rgb()" colours to hexadecimal colours.
+	 * 
+	 * @param value
+	 *        The value
+	 * @return The converted value
+	 * @throws NumberFormatException
+	 *         In case of an invalid colour
+	 */
+	private static String convertRgbColours( String value )
+	{
+		StringBuilder builder = null;
+		int last = 0;
+		int length = value.length();
+		int i = value.indexOf( "rgb" );
+		while( i != -1 )
+		{
+			int open = skipWhitespace( value, i + 3 );
+			if( ( open < length ) && ( value.charAt( open ) == '(' ) )
+			{
+				int start = skipWhitespace( value, open + 1 );
+				int end = start;
+				while( ( end < length ) && isRgbCharacter( value.charAt( end ) ) )
+					end++;
+
+				// An empty list can still match a single whitespace character
+				if( ( end == start ) && ( start > open + 1 ) )
+					start--;
+
+				if( ( end > start ) && ( end < length ) && ( value.charAt( end ) == ')' ) )
+				{
+					if( builder == null )
+						builder = new StringBuilder( length );
+					builder.append( value, last, i ).append( '#' );
+					for( String component : split( value.substring( start, end ), ',', ',' ) )
+					{
+						int colour = Integer.parseInt( component );
+						if( colour < 16 )
+							builder.append( '0' );
+						builder.append( Integer.toHexString( colour ) );
+					}
+					last = end + 1;
+					i = value.indexOf( "rgb", last );
+					continue;
+				}
+			}
+			i = value.indexOf( "rgb", i + 1 );
+		}
+
+		if( builder == null )
+			return value;
+		builder.append( value, last, length );
+		return builder.toString();
+	}
+
+	/**
+	 * Shortens hexadecimal colours and makes them lowercase, for example turns
+	 * "#AABBCC" into "#abc".
+	 * 
+	 * @param value
+	 *        The value
+	 * @return The shortened value
+	 */
+	private static String shortenHexColours( String value )
+	{
+		int i = value.indexOf( '#' );
+		if( i == -1 )
+			return value;
+
+		StringBuilder builder = new StringBuilder( value.length() );
+		int last = 0;
+		while( i != -1 )
+		{
+			if( isHexColour( value, i + 1 ) )
+			{
+				char[] digits = new char[6];
+				for( int d = 0; d < 6; d++ )
+					digits[d] = Character.toLowerCase( value.charAt( i + 1 + d ) );
+				builder.append( value, last, i ).append( '#' );
+				if( ( digits[0] == digits[1] ) && ( digits[2] == digits[3] ) && ( digits[4] == digits[5] ) )
+					builder.append( digits[0] ).append( digits[2] ).append( digits[4] );
+				else
+					builder.append( digits );
+				last = i + 7;
+				i = value.indexOf( '#', last );
+			}
+			else
+				i = value.indexOf( '#', i + 1 );
+		}
+
+		builder.append( value, last, value.length() );
+		return builder.toString();
+	}
+
+	/**
+	 * Whether there are six hexadecimal digits at an index.
+	 * 
+	 * @param value
+	 *        The value
+	 * @param index
+	 *        The index
+	 * @return True if there are six hexadecimal digits
+	 */
+	private static boolean isHexColour( String value, int index )
+	{
+		if( index + 6 > value.length() )
+			return false;
+		for( int i = index; i < index + 6; i++ )
+		{
+			char c = value.charAt( i );
+			if( ( ( c < '0' ) || ( c > '9' ) ) && ( ( c < 'a' ) || ( c > 'f' ) ) && ( ( c < 'A' ) || ( c > 'F' ) ) )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces all occurrences of a string.
+	 * 
+	 * @param string
+	 *        The string
+	 * @param target
+	 *        The string to replace
+	 * @param replacement
+	 *        The replacement
+	 * @return The string with replacements
+	 */
+	private static String replace( String string, String target, String replacement )
+	{
+		int i = string.indexOf( target );
+		if( i == -1 )
+			return string;
+
+		StringBuilder builder = new StringBuilder( string.length() );
+		int last = 0;
+		while( i != -1 )
+		{
+			builder.append( string, last, i ).append( replacement );
+			last = i + target.length();
+			i = string.indexOf( target, last );
+		}
+		builder.append( string, last, string.length() );
+		return builder.toString();
+	}
+
+	/**
+	 * Splits a string like {@link String#split(String)}, including the
+	 * removal of trailing empty strings.
+	 * 
+	 * @param string
+	 *        The string
+	 * @param separator1
+	 *        A separator
+	 * @param separator2
+	 *        Another separator (can be the same)
+	 * @return The parts
+	 */
+	private static List<String> split( String string, char separator1, char separator2 )
+	{
+		ArrayList<String> parts = new ArrayList<String>();
+		int start = 0;
+		for( int i = 0, length = string.length(); i < length; i++ )
+		{
+			char c = string.charAt( i );
+			if( ( c == separator1 ) || ( c == separator2 ) )
+			{
+				parts.add( string.substring( start, i ) );
+				start = i + 1;
+			}
+		}
+
+		if( start == 0 )
+		{
+			parts.add( string );
+			return parts;
+		}
+
+		parts.add( string.substring( start ) );
+		for( int last = parts.size() - 1; ( last >= 0 ) && ( parts.get( last ).length() == 0 ); last-- )
+			parts.remove( last );
+		return parts;
+	}
+
+	/**
+	 * Splits a string at separators that are not within double quotes,
+	 * skipping blank parts.
+	 * 
+	 * @param string
+	 *        The string
+	 * @param separator
+	 *        The separator
+	 * @return The parts
+	 */
+	private static List<String> splitUnquoted( String string, char separator )
+	{
+		ArrayList<String> parts = new ArrayList<String>();
+		boolean quoted = false;
+		int start = 0;
+		for( int i = 0, length = string.length(); i < length; i++ )
+		{
+			char c = string.charAt( i );
+			if( c == '"' )
+				quoted = !quoted;
+			else if( !quoted && ( c == separator ) )
+			{
+				addIfNotBlank( parts, string.substring( start, i ) );
+				start = i + 1;
+			}
+		}
+		addIfNotBlank( parts, string.substring( start ) );
+		return parts;
+	}
+
+	/**
+	 * Adds a string to a list if it is not blank.
+	 * 
+	 * @param list
+	 *        The list
+	 * @param string
+	 *        The string
+	 */
+	private static void addIfNotBlank( List<String> list, String string )
+	{
+		if( !isBlank( string ) )
+			list.add( string );
+	}
+
+	/**
+	 * Whether a string is blank, as defined by {@link String#trim()}.
+	 * 
+	 * @param string
+	 *        The string
+	 * @return True if blank
+	 */
+	private static boolean isBlank( String string )
+	{
+		for( int i = 0, length = string.length(); i < length; i++ )
+			if( string.charAt( i ) > ' ' )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Skips whitespace.
+	 * 
+	 * @param string
+	 *        The string
+	 * @param index
+	 *        The start index
+	 * @return The index of the first character that is not whitespace
+	 */
+	private static int skipWhitespace( String string, int index )
+	{
+		int length = string.length();
+		while( ( index < length ) && isWhitespace( string.charAt( index ) ) )
+			index++;
+		return index;
+	}
+
+	/**
+	 * Whether a string is a single word, which can be followed by whitespace
+	 * (removing repeated parameters can leave a trailing space).
+	 * 
+	 * @param string
+	 *        The string
+	 * @return True if a single word
+	 */
+	private static boolean isWord( String string )
+	{
+		int length = string.length();
+		int i = 0;
+		while( ( i < length ) && !isWhitespace( string.charAt( i ) ) )
+			i++;
+		return ( i == length ) || ( ( i > 0 ) && ( skipWhitespace( string, i ) == length ) );
+	}
+
+	/**
+	 * Whether a character is whitespace, as defined by "\s" in
+	 * {@link Pattern}.
+	 * 
+	 * @param c
+	 *        The character
+	 * @return True if whitespace
+	 */
+	private static boolean isWhitespace( char c )
+	{
+		return ( c == ' ' ) || ( c == '\t' ) || ( c == '\n' ) || ( c == '\u000B' ) || ( c == '\f' ) || ( c == '\r' );
+	}
+
+	/**
+	 * Whether a character is a line terminator, as defined by "." in
+	 * {@link Pattern}.
+	 * 
+	 * @param c
+	 *        The character
+	 * @return True if a line terminator
+	 */
+	private static boolean isLineTerminator( char c )
+	{
+		return ( c == '\n' ) || ( c == '\r' ) || ( c == '\u0085' ) || ( c == '\u2028' ) || ( c == '\u2029' );
+	}
+
+	/**
+	 * Whether a character can be in the list of an "rgb()" colour.
+	 * 
+	 * @param c
+	 *        The character
+	 * @return True if it can be in the list
+	 */
+	private static boolean isRgbCharacter( char c )
+	{
+		return ( ( c >= '0' ) && ( c <= '9' ) ) || ( c == ',' ) || isWhitespace( c );
+	}
+
+	/**
+	 * A declaration.
+	 */
+	private static class Declaration implements Comparable<Declaration>
+	{
+		/**
+		 * Parses a declaration.
+		 * 
+		 * @param declaration
+		 *        The declaration
+		 * @return The declaration, or null if it is incomplete or invalid
+		 */
+		private static Declaration parse( String declaration )
+		{
+			// Like CSSMin, only the text up to a second colon is used
+			List<String> parts = splitUnquoted( declaration, ':' );
+			if( parts.size() < 2 )
+				return null;
+
+			String property = parts.get( 0 ).trim().toLowerCase();
+			String value;
+			try
+			{
+				value = convertRgbColours( replace( parts.get( 1 ).trim(), ", ", "," ) );
+			}
+			catch( NumberFormatException x )
+			{
+				return null;
+			}
+
+			List<String> values = split( value, ',', ',' );
+			for( int i = values.size() - 1; i >= 0; i-- )
+				values.set( i, minifyValue( ' ' + values.get( i ), property ) );
+			return new Declaration( property, values );
+		}
+
+		private Declaration( String property, List<String> values )
+		{
+			this.property = property;
+			this.values = values;
+
+			// Sort vendor-prefixed and hacked properties after the standard
+			// ones, as CSSMin does
+			String key = property;
+			if( key.charAt( 0 ) == '-' )
+			{
+				key = key.substring( 1 );
+				key = key.substring( key.indexOf( '-' ) + 1 );
+			}
+			else if( key.charAt( 0 ) < 'A' )
+				key = key.substring( 1 );
+			this.key = key;
+		}
+
+		public int compareTo( Declaration other )
+		{
+			return key.compareTo( other.key );
+		}
+
+		/**
+		 * Appends the declaration, including a trailing semicolon.
+		 * 
+		 * @param builder
+		 *        The builder
+		 */
+		private void appendTo( StringBuilder builder )
+		{
+			builder.append( property ).append( ':' );
+			for( String value : values )
+				builder.append( value ).append( ',' );
+
+			// Like CSSMin, this removes the colon if there are no values
+			builder.setLength( builder.length() - 1 );
+			builder.append( ';' );
+		}
+
+		/**
+		 * The lowercase property name.
+		 */
+		private final String property;
+
+		/**
+		 * The sort key.
+		 */
+		private final String key;
+
+		/**
+		 * The minified values.
+		 */
+		private final List<String> values;
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.internal;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, so that idle executors never keep the JVM
+ * alive.
+ * 
+ * @author Tal Liron
+ */
+public class DaemonThreadFactory implements ThreadFactory
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param name
+	 *        The prefix for thread names
+	 */
+	public DaemonThreadFactory( String name )
+	{
+		this.name = name;
+	}
+
+	//
+	// ThreadFactory
+	//
+
+	public Thread newThread( Runnable runnable )
+	{
+		Thread thread = new Thread( runnable, name + " " + counter.incrementAndGet() );
+		thread.setDaemon( true );
+		return thread;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The prefix for thread names.
+	 */
+	private final String name;
+
+	/**
+	 * Thread counter.
+	 */
+	private final AtomicInteger counter = new AtomicInteger();
+}
@@ -0,0 +1,378 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.internal;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.threecrickets.prudence.internal.attributes.ContextualAttributes;
+import com.threecrickets.scripturian.Executable;
+import com.threecrickets.scripturian.document.DocumentSource;
+import com.threecrickets.scripturian.exception.DocumentNotFoundException;
+
+/**
+ * Remembers which {@link DocumentSource} owns a document name, and which
+ * document names could not be found in any source, so that
+ * {@link ContextualAttributes#createDocumentOnce(String, String, boolean, boolean, boolean)}
+ * does not have to walk through all the sources for every request.
+ * <p>
+ * Entries expire after a duration, normally the minimum time between validity
+ * checks of the document sources, so that added and removed files are
+ * eventually noticed. If something else invalidates the cache when files are
+ * added or removed (see {@link #clear()}), entries can instead be kept until
+ * then. The number of entries is bounded, so that floods of
+ * requests for random missing documents cannot grow the cache without
+ * limits: when it is full, the least recently used entries are evicted.
+ * 
+ * @author Tal Liron
+ */
+public class DocumentResolutionCache
+{
+	//
+	// Constants
+	//
+
+	/**
+	 * The default maximum number of entries.
+	 */
+	public static final int DEFAULT_MAX_SIZE = 10000;
+
+	//
+	// Static operations
+	//
+
+	/**
+	 * Creates a cache key.
+	 * 
+	 * @param documentName
+	 *        The document name
+	 * @param parserName
+	 *        The parser name
+	 * @param includeMainSource
+	 *        Whether the main source is searched
+	 * @param includeExtraSources
+	 *        Whether the extra sources are searched
+	 * @param includeLibrarySources
+	 *        Whether the library sources are searched
+	 * @return The key
+	 */
+	public static String key( String documentName, String parserName, boolean includeMainSource, boolean includeExtraSources, boolean includeLibrarySources )
+	{
+		StringBuilder key = new StringBuilder( documentName.length() + parserName.length() + 5 );
+		key.append( includeMainSource ? 'm' : '-' );
+		key.append( includeExtraSources ? 'e' : '-' );
+		key.append( includeLibrarySources ? 'l' : '-' );
+		key.append( parserName );
+		key.append( '|' );
+		key.append( documentName );
+		return key.toString();
+	}
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param duration
+	 *        The time in milliseconds after which entries expire, -1 to keep
+	 *        them until they are removed or cleared, or 0 to disable caching
+	 * @param maxSize
+	 *        The maximum number of entries
+	 */
+	public DocumentResolutionCache( long duration, int maxSize )
+	{
+		this.duration = duration;
+		this.maxSize = maxSize;
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The number of lookups answered from the cache.
+	 * 
+	 * @return The hit count
+	 */
+	public long getHitCount()
+	{
+		return hitCount.get();
+	}
+
+	/**
+	 * The number of lookups not answered from the cache.
+	 * 
+	 * @return The miss count
+	 */
+	public long getMissCount()
+	{
+		return missCount.get();
+	}
+
+	/**
+	 * The number of entries, including expired ones.
+	 * 
+	 * @return The size
+	 */
+	public int getSize()
+	{
+		return entries.size();
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * The document source known to own a document.
+	 * 
+	 * @param key
+	 *        The key
+	 * @param documentName
+	 *        The document name
+	 * @return The document source, or null if unknown
+	 * @throws DocumentNotFoundException
+	 *         If the document is known to be missing (the exception has no
+	 *         stack trace)
+	 * @see #key(String, String, boolean, boolean, boolean)
+	 */
+	public DocumentSource<Executable> getDocumentSource( String key, String documentName ) throws DocumentNotFoundException
+	{
+		Entry entry = entries.get( key );
+		if( entry != null )
+		{
+			long now = System.currentTimeMillis();
+			if( entry.expiration > now )
+			{
+				entry.lastAccess = now;
+				hitCount.incrementAndGet();
+				if( entry.documentSource == null )
+					throw new MissingDocumentException( documentName );
+				return entry.documentSource;
+			}
+			else
+				entries.remove( key, entry );
+		}
+
+		missCount.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Remembers the document source that owns a document.
+	 * 
+	 * @param key
+	 *        The key
+	 * @param documentSource
+	 *        The document source
+	 */
+	public void setDocumentSource( String key, DocumentSource<Executable> documentSource )
+	{
+		long now = System.currentTimeMillis();
+		put( key, new Entry( documentSource, now, getExpiration( now ) ) );
+	}
+
+	/**
+	 * Remembers that a document could not be found in any source.
+	 * 
+	 * @param key
+	 *        The key
+	 */
+	public void setMissing( String key )
+	{
+		long now = System.currentTimeMillis();
+		put( key, new Entry( null, now, getExpiration( now ) ) );
+	}
+
+	/**
+	 * Forgets a document.
+	 * 
+	 * @param key
+	 *        The key
+	 */
+	public void remove( String key )
+	{
+		entries.remove( key );
+	}
+
+	/**
+	 * Forgets all documents.
+	 */
+	public void clear()
+	{
+		entries.clear();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The time in milliseconds after which entries expire, or -1 if they do
+	 * not.
+	 */
+	private final long duration;
+
+	/**
+	 * The maximum number of entries.
+	 */
+	private final int maxSize;
+
+	/**
+	 * The entries.
+	 */
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * The number of hits.
+	 */
+	private final AtomicLong hitCount = new AtomicLong();
+
+	/**
+	 * The number of misses.
+	 */
+	private final AtomicLong missCount = new AtomicLong();
+
+	/**
+	 * Whether the cache is being pruned.
+	 */
+	private final AtomicBoolean pruning = new AtomicBoolean();
+
+	/**
+	 * Adds an entry, pruning the cache if it is full: first expired entries
+	 * are removed, and if that is not enough then the least recently used
+	 * tenth of the entries are. Only one thread prunes at a time; the others
+	 * add their entries meanwhile.
+	 * 
+	 * @param key
+	 *        The key
+	 * @param entry
+	 *        The entry
+	 */
+	private void put( String key, Entry entry )
+	{
+		if( duration == 0 )
+			return;
+
+		if( ( entries.size() >= maxSize ) && pruning.compareAndSet( false, true ) )
+		{
+			try
+			{
+				long now = System.currentTimeMillis();
+				for( Iterator<Entry> i = entries.values().iterator(); i.hasNext(); )
+					if( i.next().expiration <= now )
+						i.remove();
+
+				if( entries.size() >= maxSize )
+					evictLeastRecentlyUsed( Math.max( maxSize / 10, 1 ) );
+			}
+			finally
+			{
+				pruning.set( false );
+			}
+		}
+
+		entries.put( key, entry );
+	}
+
+	/**
+	 * The expiration timestamp for entries added now.
+	 * 
+	 * @param now
+	 *        The current timestamp
+	 * @return The expiration timestamp
+	 */
+	private long getExpiration( long now )
+	{
+		return duration < 0 ? Long.MAX_VALUE : now + duration;
+	}
+
+	/**
+	 * Removes at least the given number of entries, least recently used
+	 * first.
+	 * 
+	 * @param count
+	 *        The number of entries to remove
+	 */
+	private void evictLeastRecentlyUsed( int count )
+	{
+		long[] lastAccesses = new long[entries.size()];
+		int size = 0;
+		for( Entry entry : entries.values() )
+		{
+			if( size == lastAccesses.length )
+				break;
+			lastAccesses[size++] = entry.lastAccess;
+		}
+
+		if( size == 0 )
+			return;
+
+		Arrays.sort( lastAccesses, 0, size );
+		long threshold = lastAccesses[Math.min( count, size ) - 1];
+
+		for( Iterator<Entry> i = entries.values().iterator(); i.hasNext(); )
+			if( i.next().lastAccess <= threshold )
+				i.remove();
+	}
+
+	/**
+	 * A cache entry.
+	 */
+	private static class Entry
+	{
+		private Entry( DocumentSource<Executable> documentSource, long lastAccess, long expiration )
+		{
+			this.documentSource = documentSource;
+			this.lastAccess = lastAccess;
+			this.expiration = expiration;
+		}
+
+		/**
+		 * The document source, or null if missing.
+		 */
+		private final DocumentSource<Executable> documentSource;
+
+		/**
+		 * The expiration timestamp.
+		 */
+		private final long expiration;
+
+		/**
+		 * The last access timestamp.
+		 */
+		private volatile long lastAccess;
+	}
+
+	/**
+	 * A cheap {@link DocumentNotFoundException} without a stack trace.
+	 */
+	private static class MissingDocumentException extends DocumentNotFoundException
+	{
+		private MissingDocumentException( String documentName )
+		{
+			super( documentName );
+		}
+
+		@Override
+		public Throwable fillInStackTrace()
+		{
+			return this;
+		}
+
+		private static final long serialVersionUID = 1L;
+	}
+}
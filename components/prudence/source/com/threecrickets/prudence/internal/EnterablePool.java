@@ -0,0 +1,377 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.internal;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.threecrickets.prudence.ApplicationTask;
+import com.threecrickets.prudence.DelegatedHandler;
+import com.threecrickets.prudence.DelegatedResource;
+import com.threecrickets.scripturian.Executable;
+
+/**
+ * A fixed-size pool of entering keys for an {@link Executable}, each of which
+ * is used for its own enterable execution context (see
+ * {@link Executable#makeEnterable(Object, com.threecrickets.scripturian.ExecutionContext, Object, com.threecrickets.scripturian.ExecutionController)}
+ * ). A key is checked out for exclusive use around
+ * {@link Executable#enter(Object, String, Object...)}, so that language
+ * engines whose execution contexts are not thread safe can still be entered
+ * by as many threads in parallel as there are keys.
+ * <p>
+ * A thread that already holds a key, because it is entering the executable
+ * again from within an entry point, gets the same key back rather than
+ * waiting for another one. A thread that cannot get a key within the timeout
+ * falls back to the base entering key, which is the execution context shared
+ * by all threads when there is no pool.
+ * <p>
+ * There is one pool per executable and base entering key, shared by
+ * {@link DelegatedResource}, {@link DelegatedHandler} and
+ * {@link ApplicationTask}. Its size and timeout are determined by whoever
+ * creates it first.
+ * 
+ * @author Tal Liron
+ */
+public class EnterablePool
+{
+	//
+	// Static operations
+	//
+
+	/**
+	 * The pool for an executable, creating it if it doesn't exist.
+	 * 
+	 * @param executable
+	 *        The executable
+	 * @param baseKey
+	 *        The base entering key
+	 * @param size
+	 *        The size of the pool if it is created
+	 * @param timeout
+	 *        The checkout timeout in milliseconds if the pool is created
+	 * @return The pool
+	 */
+	public static EnterablePool getPool( Executable executable, Object baseKey, int size, long timeout )
+	{
+		ConcurrentMap<String, Object> attributes = executable.getAttributes();
+		String key = POOL_ATTRIBUTE + "." + baseKey;
+		EnterablePool pool = (EnterablePool) attributes.get( key );
+		if( pool == null )
+		{
+			pool = new EnterablePool( baseKey, size, timeout );
+			EnterablePool existing = (EnterablePool) attributes.putIfAbsent( key, pool );
+			if( existing != null )
+				pool = existing;
+		}
+
+		return pool;
+	}
+
+	/**
+	 * Converts a pool size setting. Numbers are used as is. Strings ending
+	 * with "x" are multiplied by the number of CPU cores, for example "1.5x".
+	 * Values that are not positive disable pooling.
+	 * 
+	 * @param value
+	 *        The setting or null
+	 * @return The pool size, or 0 to disable pooling
+	 */
+	public static int toSize( Object value )
+	{
+		if( value == null )
+			return 0;
+
+		if( value instanceof Number )
+			return Math.max( ( (Number) value ).intValue(), 0 );
+
+		String s = value.toString().trim();
+		if( s.endsWith( "x" ) )
+			return Math.max( Math.round( Float.parseFloat( s.substring( 0, s.length() - 1 ) ) * Runtime.getRuntime().availableProcessors() ), 1 );
+		else
+			return Math.max( Integer.parseInt( s ), 0 );
+	}
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param baseKey
+	 *        The base entering key
+	 * @param size
+	 *        The number of keys
+	 * @param timeout
+	 *        The checkout timeout in milliseconds
+	 */
+	public EnterablePool( Object baseKey, int size, long timeout )
+	{
+		this.baseKey = baseKey;
+		this.size = size;
+		this.timeout = timeout;
+		keys = new ArrayBlockingQueue<Object>( size );
+		for( int i = 0; i < size; i++ )
+			keys.add( baseKey + "#" + i );
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The number of keys.
+	 * 
+	 * @return The size
+	 */
+	public int getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * The checkout timeout.
+	 * 
+	 * @return The timeout in milliseconds
+	 */
+	public long getTimeout()
+	{
+		return timeout;
+	}
+
+	/**
+	 * The number of keys currently checked out.
+	 * 
+	 * @return The number of keys in use
+	 */
+	public int getInUseCount()
+	{
+		return size - keys.size();
+	}
+
+	/**
+	 * The total number of checkouts.
+	 * 
+	 * @return The checkout count
+	 */
+	public long getCheckoutCount()
+	{
+		return checkoutCount.get();
+	}
+
+	/**
+	 * The number of checkouts that had to wait for a key to be returned.
+	 * 
+	 * @return The wait count
+	 */
+	public long getWaitCount()
+	{
+		return waitCount.get();
+	}
+
+	/**
+	 * The number of checkouts that timed out and fell back to the base
+	 * entering key.
+	 * 
+	 * @return The timeout count
+	 */
+	public long getTimeoutCount()
+	{
+		return timeoutCount.get();
+	}
+
+	/**
+	 * The total time spent waiting for keys to be returned.
+	 * 
+	 * @return The wait time in milliseconds
+	 */
+	public long getWaitTime()
+	{
+		return waitNanos.get() / 1000000L;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Checks out a key, waiting up to the timeout for one to be returned if
+	 * necessary. A thread that already holds a key gets it again. If the
+	 * timeout expires, the base entering key is returned instead. Waiting is
+	 * not interruptible, but the interrupt status is preserved.
+	 * <p>
+	 * Every checkout must be matched by a {@link #checkin(Object)}.
+	 * 
+	 * @return The entering key
+	 * @see #checkin(Object)
+	 */
+	public Object checkout()
+	{
+		checkoutCount.incrementAndGet();
+
+		// Re-entry on the same thread
+		Checkout checkout = checkouts.get();
+		if( checkout != null )
+		{
+			checkout.depth++;
+			return checkout.key;
+		}
+
+		Object key = keys.poll();
+		if( key == null )
+		{
+			waitCount.incrementAndGet();
+			long start = System.nanoTime();
+			long remaining = TimeUnit.MILLISECONDS.toNanos( timeout );
+			boolean interrupted = false;
+			try
+			{
+				while( true )
+				{
+					try
+					{
+						key = keys.poll( remaining, TimeUnit.NANOSECONDS );
+						break;
+					}
+					catch( InterruptedException x )
+					{
+						interrupted = true;
+						remaining = TimeUnit.MILLISECONDS.toNanos( timeout ) - ( System.nanoTime() - start );
+					}
+				}
+			}
+			finally
+			{
+				waitNanos.addAndGet( System.nanoTime() - start );
+				if( interrupted )
+					Thread.currentThread().interrupt();
+			}
+
+			if( key == null )
+			{
+				timeoutCount.incrementAndGet();
+				key = baseKey;
+			}
+		}
+
+		checkouts.set( new Checkout( key ) );
+		return key;
+	}
+
+	/**
+	 * Returns a key. The key is only returned to the pool when the outermost
+	 * checkout on the thread is checked in.
+	 * 
+	 * @param key
+	 *        The entering key
+	 * @see #checkout()
+	 */
+	public void checkin( Object key )
+	{
+		Checkout checkout = checkouts.get();
+		if( checkout != null )
+		{
+			if( checkout.depth > 0 )
+			{
+				checkout.depth--;
+				return;
+			}
+
+			checkouts.remove();
+		}
+
+		if( key != baseKey )
+			keys.offer( key );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * Pool attribute for an {@link Executable}.
+	 */
+	private static final String POOL_ATTRIBUTE = EnterablePool.class.getCanonicalName();
+
+	/**
+	 * The base entering key.
+	 */
+	private final Object baseKey;
+
+	/**
+	 * The number of keys.
+	 */
+	private final int size;
+
+	/**
+	 * The checkout timeout in milliseconds.
+	 */
+	private final long timeout;
+
+	/**
+	 * The available keys.
+	 */
+	private final ArrayBlockingQueue<Object> keys;
+
+	/**
+	 * The total number of checkouts.
+	 */
+	private final AtomicLong checkoutCount = new AtomicLong();
+
+	/**
+	 * The number of checkouts that waited.
+	 */
+	private final AtomicLong waitCount = new AtomicLong();
+
+	/**
+	 * The number of checkouts that timed out.
+	 */
+	private final AtomicLong timeoutCount = new AtomicLong();
+
+	/**
+	 * The total wait time in nanoseconds.
+	 */
+	private final AtomicLong waitNanos = new AtomicLong();
+
+	/**
+	 * The key held by the current thread.
+	 */
+	private final ThreadLocal<Checkout> checkouts = new ThreadLocal<Checkout>();
+
+	/**
+	 * A key held by a thread.
+	 */
+	private static class Checkout
+	{
+		/**
+		 * Constructor.
+		 * 
+		 * @param key
+		 *        The entering key
+		 */
+		public Checkout( Object key )
+		{
+			this.key = key;
+		}
+
+		/**
+		 * The entering key.
+		 */
+		public final Object key;
+
+		/**
+		 * The number of nested checkouts.
+		 */
+		public int depth;
+	}
+}
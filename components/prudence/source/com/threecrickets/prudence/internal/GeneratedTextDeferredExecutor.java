@@ -0,0 +1,270 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.internal;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.threecrickets.prudence.GeneratedTextResource;
+import com.threecrickets.prudence.util.VirtualThreadExecutor;
+
+/**
+ * A bounded executor for deferred responses of {@link GeneratedTextResource},
+ * detached from the server connector's worker threads.
+ * <p>
+ * Both the number of threads and the number of queued responses are limited:
+ * responses submitted beyond that are rejected, so that slow pages cannot
+ * accumulate without bounds. Responses that take longer than their timeout
+ * are aborted.
+ * <p>
+ * With virtual threads, every response runs on its own virtual thread, and
+ * there is no queue: a blocked response does not hold on to a platform thread,
+ * so there is no reason to make responses wait for one. Instead, the number of
+ * responses being generated is limited to the number of threads plus the queue
+ * size.
+ * 
+ * @author Tal Liron
+ * @see GeneratedTextDeferredRepresentation
+ */
+public class GeneratedTextDeferredExecutor
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param threads
+	 *        The maximum number of threads
+	 * @param queueSize
+	 *        The maximum number of queued responses
+	 * @param virtualThreads
+	 *        Whether to generate responses on virtual threads, if supported by
+	 *        the JVM
+	 * @see VirtualThreadExecutor#isAvailable()
+	 */
+	public GeneratedTextDeferredExecutor( int threads, int queueSize, boolean virtualThreads )
+	{
+		if( virtualThreads && VirtualThreadExecutor.isAvailable() )
+		{
+			// We use it only for immediate execution, so it needs no
+			// scheduler threads
+			virtualExecutor = new VirtualThreadExecutor( 0 );
+			admission = new Semaphore( threads + queueSize );
+			executor = null;
+		}
+		else
+		{
+			executor = new ThreadPoolExecutor( threads, threads, KEEP_ALIVE, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>( queueSize ), new DaemonThreadFactory( "Prudence deferred" ) );
+			executor.allowCoreThreadTimeOut( true );
+			virtualExecutor = null;
+			admission = null;
+		}
+		timer = new ScheduledThreadPoolExecutor( 1, new DaemonThreadFactory( "Prudence deferred timer" ) );
+		timer.setRemoveOnCancelPolicy( true );
+		timer.setExecuteExistingDelayedTasksAfterShutdownPolicy( false );
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The number of responses currently being generated.
+	 * 
+	 * @return The active count
+	 */
+	public int getActiveCount()
+	{
+		if( virtualExecutor != null )
+			return virtualExecutor.getVirtualThreadCount();
+		return executor.getActiveCount();
+	}
+
+	/**
+	 * The number of responses waiting for a thread (always zero with virtual
+	 * threads).
+	 * 
+	 * @return The queued count
+	 */
+	public int getQueuedCount()
+	{
+		if( virtualExecutor != null )
+			return 0;
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * The number of responses that were rejected because the queue (or, with
+	 * virtual threads, the limit on concurrent responses) was full.
+	 * 
+	 * @return The rejected count
+	 */
+	public long getRejectedCount()
+	{
+		return rejectedCount.get();
+	}
+
+	/**
+	 * The number of responses that were aborted because they timed out.
+	 * 
+	 * @return The timed out count
+	 */
+	public long getTimedOutCount()
+	{
+		return timedOutCount.get();
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Submits a deferred response.
+	 * 
+	 * @param representation
+	 *        The deferred representation
+	 * @param timeout
+	 *        The timeout in milliseconds, or 0 for no timeout
+	 * @return False if rejected
+	 */
+	public boolean submit( final GeneratedTextDeferredRepresentation representation, long timeout )
+	{
+		if( virtualExecutor != null )
+		{
+			if( !admission.tryAcquire() )
+			{
+				rejectedCount.incrementAndGet();
+				return false;
+			}
+
+			try
+			{
+				virtualExecutor.execute( new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							representation.run();
+						}
+						finally
+						{
+							admission.release();
+						}
+					}
+				} );
+			}
+			catch( RejectedExecutionException x )
+			{
+				admission.release();
+				rejectedCount.incrementAndGet();
+				return false;
+			}
+		}
+		else
+		{
+			try
+			{
+				executor.execute( representation );
+			}
+			catch( RejectedExecutionException x )
+			{
+				rejectedCount.incrementAndGet();
+				return false;
+			}
+		}
+
+		if( timeout > 0 )
+		{
+			try
+			{
+				ScheduledFuture<?> timeoutFuture = timer.schedule( new Runnable()
+				{
+					public void run()
+					{
+						if( representation.timeout() )
+							timedOutCount.incrementAndGet();
+					}
+				}, timeout, TimeUnit.MILLISECONDS );
+				representation.setTimeoutFuture( timeoutFuture );
+			}
+			catch( RejectedExecutionException x )
+			{
+				// We have been shut down in the meantime, so the response
+				// will be generated without a timeout
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Stops accepting responses. Responses already submitted will still be
+	 * generated, but will no longer time out.
+	 */
+	public void shutdown()
+	{
+		if( virtualExecutor != null )
+			virtualExecutor.shutdown();
+		else
+			executor.shutdown();
+		timer.shutdown();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * Idle threads are stopped after this many milliseconds.
+	 */
+	private static final long KEEP_ALIVE = 60000;
+
+	/**
+	 * The executor, or null if using virtual threads.
+	 */
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * The executor running a virtual thread per response, or null if using
+	 * platform threads.
+	 */
+	private final VirtualThreadExecutor virtualExecutor;
+
+	/**
+	 * Limits the number of responses being generated on virtual threads, or
+	 * null if using platform threads.
+	 */
+	private final Semaphore admission;
+
+	/**
+	 * The timer for timeouts.
+	 */
+	private final ScheduledThreadPoolExecutor timer;
+
+	/**
+	 * The number of rejected responses.
+	 */
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * The number of timed out responses.
+	 */
+	private final AtomicLong timedOutCount = new AtomicLong();
+}
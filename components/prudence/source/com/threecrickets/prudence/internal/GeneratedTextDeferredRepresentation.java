@@ -14,14 +14,23 @@ package com.threecrickets.prudence.internal;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 
+import org.restlet.Application;
+import org.restlet.Context;
 import org.restlet.Response;
 import org.restlet.data.Status;
+import org.restlet.representation.Representation;
 import org.restlet.representation.WriterRepresentation;
 
 import com.threecrickets.prudence.GeneratedTextResource;
+import com.threecrickets.prudence.service.ConversationStoppedException;
 import com.threecrickets.prudence.service.GeneratedTextResourceConversationService;
 import com.threecrickets.prudence.service.GeneratedTextResourceDocumentService;
+import com.threecrickets.prudence.util.ChunkedRepresentation;
+import com.threecrickets.prudence.util.ChunkedWriter;
 import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.ExecutionContext;
 import com.threecrickets.scripturian.exception.ExecutionException;
@@ -29,6 +38,12 @@ import com.threecrickets.scripturian.exception.ParsingException;
 
 /**
  * Representation used in deferred mode of {@link GeneratedTextResource}.
+ * <p>
+ * When run via a {@link GeneratedTextDeferredExecutor}, the executable is
+ * executed into a buffer in the executor's thread, and only then is the
+ * response committed. The response is committed exactly once: either with the
+ * output, with an error status if execution failed, or with
+ * {@link Status#SERVER_ERROR_SERVICE_UNAVAILABLE} if it timed out.
  * 
  * @author Tal Liron
  * @see GeneratedTextResource
@@ -87,7 +102,15 @@ public class GeneratedTextDeferredRepresentation extends WriterRepresentation im
 		this.executable = executable;
 		this.executionContext = executionContext;
 		this.documentService = documentService;
+		this.conversationService = conversationService;
 		this.delay = delay;
+		application = Application.getCurrent();
+		context = Context.getCurrent();
+
+		// Reset the status here, in the request thread, rather than when we
+		// run, so that we never touch the response once it might have timed
+		// out (the executable will set the status again if it needs to)
+		resource.getResponse().setStatus( Status.SUCCESS_OK );
 
 		setCharacterSet( conversationService.getCharacterSet() );
 		if( conversationService.getLanguage() != null )
@@ -96,6 +119,56 @@ public class GeneratedTextDeferredRepresentation extends WriterRepresentation im
 		// setEncodings( Arrays.asList( conversationService.getEncoding() ) );
 	}
 
+	//
+	// Attributes
+	//
+
+	/**
+	 * Sets the timeout task, so that it can be cancelled when we are done.
+	 * 
+	 * @param timeoutFuture
+	 *        The timeout task
+	 */
+	public void setTimeoutFuture( ScheduledFuture<?> timeoutFuture )
+	{
+		this.timeoutFuture = timeoutFuture;
+		if( completed.get() )
+			timeoutFuture.cancel( false );
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Commits the response with {@link Status#SERVER_ERROR_SERVICE_UNAVAILABLE}
+	 * if it has not been committed yet, and interrupts the execution if it is
+	 * running.
+	 * 
+	 * @return True if timed out, false if the response was already committed
+	 */
+	public boolean timeout()
+	{
+		if( !completed.compareAndSet( false, true ) )
+			return false;
+
+		resource.getLogger().warning( "Deferred response timed out" );
+
+		// The lock makes sure that the runner is still running our executable
+		// (a pooled thread might otherwise already be running another task)
+		synchronized( runnerLock )
+		{
+			if( runner != null )
+				runner.interrupt();
+		}
+
+		Response response = resource.getResponse();
+		response.setEntity( null );
+		response.setStatus( Status.SERVER_ERROR_SERVICE_UNAVAILABLE );
+		response.commit();
+		return true;
+	}
+
 	//
 	// WriterRepresentation
 	//
@@ -132,8 +205,6 @@ public class GeneratedTextDeferredRepresentation extends WriterRepresentation im
 	{
 		executionContext.release();
 		super.release();
-		if( !resource.isCommitted() )
-			resource.abort();
 	}
 
 	//
@@ -142,24 +213,103 @@ public class GeneratedTextDeferredRepresentation extends WriterRepresentation im
 
 	public void run()
 	{
-		if( delay > 0 )
+		boolean timedOut;
+		synchronized( runnerLock )
 		{
-			try
-			{
+			timedOut = completed.get();
+			if( !timedOut )
+				runner = Thread.currentThread();
+		}
+
+		// Did we time out while queued?
+		if( timedOut )
+		{
+			release();
+			return;
+		}
+
+		Application oldApplication = Application.getCurrent();
+		Context oldContext = Context.getCurrent();
+		Response response = resource.getResponse();
+		ChunkedWriter buffer = new ChunkedWriter();
+		Representation entity = null;
+
+		// We may have timed out by the time we are done, so the outcome is
+		// applied to the response only if we get to commit it
+		Throwable failure = null;
+		try
+		{
+			Application.setCurrent( application );
+			Context.setCurrent( context );
+
+			if( delay > 0 )
 				Thread.sleep( delay );
+
+			executionContext.setWriter( buffer );
+			executable.execute( executionContext, documentService, resource.getAttributes().getExecutionController() );
+
+			// Unlike write(), the executable may change the representation
+			// characteristics
+			entity = new ChunkedRepresentation( buffer, conversationService.getMediaType(), conversationService.getLanguage(), conversationService.getCharacterSet() );
+			entity.setDisposition( conversationService.getDisposition() );
+		}
+		catch( InterruptedException x )
+		{
+			// We timed out
+		}
+		catch( ParsingException x )
+		{
+			resource.getLogger().log( Level.SEVERE, "Exception or error caught in deferred response", x );
+			failure = x;
+		}
+		catch( ExecutionException x )
+		{
+			if( ConversationStoppedException.isConversationStopped( resource.getRequest() ) )
+				resource.getLogger().fine( "conversation.stop() was called" );
+			else if( response.getStatus().isSuccess() )
+			{
+				// An unintended exception
+				resource.getLogger().log( Level.SEVERE, "Exception or error caught in deferred response", x );
+				failure = x;
 			}
-			catch( InterruptedException e )
+		}
+		catch( Throwable x )
+		{
+			resource.getLogger().log( Level.SEVERE, "Exception or error caught in deferred response", x );
+			failure = x;
+		}
+		finally
+		{
+			// After this, a timeout can no longer interrupt us
+			synchronized( runnerLock )
 			{
-				// Restore interrupt status
-				Thread.currentThread().interrupt();
-				return;
+				runner = null;
 			}
+
+			// Clear the interrupt status possibly left by a timeout
+			Thread.interrupted();
+
+			executionContext.getErrorWriterOrDefault().flush();
+			release();
+			ExecutionContext.disconnect();
+			Application.setCurrent( oldApplication );
+			Context.setCurrent( oldContext );
 		}
 
-		Response response = resource.getResponse();
-		response.setEntity( this );
-		response.setStatus( Status.SUCCESS_OK );
-		response.commit();
+		ScheduledFuture<?> timeoutFuture = this.timeoutFuture;
+		if( timeoutFuture != null )
+			timeoutFuture.cancel( false );
+
+		if( completed.compareAndSet( false, true ) )
+		{
+			if( failure != null )
+				response.setStatus( Status.SERVER_ERROR_INTERNAL, failure );
+			response.setEntity( entity );
+			response.commit();
+		}
+		else
+			// Too late
+			buffer.recycle();
 	}
 
 	// //////////////////////////////////////////////////////////////////////////
@@ -185,6 +335,43 @@ public class GeneratedTextDeferredRepresentation extends WriterRepresentation im
 	 */
 	private final GeneratedTextResourceDocumentService documentService;
 
+	/**
+	 * The conversation service.
+	 */
+	private final GeneratedTextResourceConversationService conversationService;
+
+	/**
+	 * The application in which we were created.
+	 */
+	private final Application application;
+
+	/**
+	 * The context in which we were created.
+	 */
+	private final Context context;
+
+	/**
+	 * Whether the response was committed (or is about to be).
+	 */
+	private final AtomicBoolean completed = new AtomicBoolean();
+
+	/**
+	 * The thread running the executable, if running (guarded by
+	 * {@link #runnerLock}).
+	 */
+	private Thread runner;
+
+	/**
+	 * Guards {@link #runner}, so that a timeout never interrupts a thread
+	 * after it has finished running us.
+	 */
+	private final Object runnerLock = new Object();
+
+	/**
+	 * The timeout task or null.
+	 */
+	private volatile ScheduledFuture<?> timeoutFuture;
+
 	/**
 	 * Delay in millseconds before committing response. (For concurrency testing
 	 * purposes.)
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.internal;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+import org.restlet.representation.WriterRepresentation;
+
+import com.threecrickets.prudence.GeneratedTextResource;
+import com.threecrickets.prudence.service.ConversationStoppedException;
+import com.threecrickets.prudence.service.GeneratedTextResourceConversationService;
+import com.threecrickets.prudence.service.GeneratedTextResourceDocumentService;
+import com.threecrickets.scripturian.ExecutionContext;
+import com.threecrickets.scripturian.exception.DocumentException;
+import com.threecrickets.scripturian.exception.ExecutionException;
+import com.threecrickets.scripturian.exception.ParsingException;
+
+/**
+ * Executes a document while it is being written, so that its output is sent
+ * to the client as it is generated.
+ * <p>
+ * Note that representation characteristics are set before the document is
+ * executed, so that changes to them made by the document are ignored.
+ * 
+ * @author Tal Liron
+ * @see GeneratedTextResourceDocumentService
+ */
+public class GeneratedTextStreamingRepresentation extends WriterRepresentation
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param resource
+	 *        The resource
+	 * @param documentName
+	 *        The document name
+	 * @param includeExtraSources
+	 *        Whether to include the extra document sources
+	 * @param executionContext
+	 *        The execution context
+	 * @param documentService
+	 *        The document service
+	 * @param conversationService
+	 *        The conversation service
+	 */
+	public GeneratedTextStreamingRepresentation( GeneratedTextResource resource, String documentName, boolean includeExtraSources, ExecutionContext executionContext,
+		GeneratedTextResourceDocumentService documentService, GeneratedTextResourceConversationService conversationService )
+	{
+		super( conversationService.getMediaType() );
+
+		this.resource = resource;
+		this.documentName = documentName;
+		this.includeExtraSources = includeExtraSources;
+		this.executionContext = executionContext;
+		this.documentService = documentService;
+
+		setCharacterSet( conversationService.getCharacterSet() );
+		if( conversationService.getLanguage() != null )
+			setLanguages( Arrays.asList( conversationService.getLanguage() ) );
+		setDisposition( conversationService.getDisposition() );
+	}
+
+	//
+	// WriterRepresentation
+	//
+
+	@Override
+	public void write( Writer writer ) throws IOException
+	{
+		// The document service will stream into this writer
+		executionContext.setWriter( writer );
+		try
+		{
+			documentService.include( documentName, includeExtraSources );
+		}
+		catch( ParsingException x )
+		{
+			IOException iox = new IOException( "ParsingException" );
+			iox.initCause( x );
+			throw iox;
+		}
+		catch( ExecutionException x )
+		{
+			if( ConversationStoppedException.isConversationStopped( resource.getRequest() ) )
+			{
+				resource.getLogger().fine( "conversation.stop() was called" );
+				return;
+			}
+
+			IOException iox = new IOException( "ExecutionException" );
+			iox.initCause( x );
+			throw iox;
+		}
+		catch( DocumentException x )
+		{
+			IOException iox = new IOException( "DocumentException" );
+			iox.initCause( x );
+			throw iox;
+		}
+		finally
+		{
+			executionContext.getErrorWriterOrDefault().flush();
+		}
+	}
+
+	@Override
+	public void release()
+	{
+		executionContext.release();
+		super.release();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The resource.
+	 */
+	private final GeneratedTextResource resource;
+
+	/**
+	 * The document name.
+	 */
+	private final String documentName;
+
+	/**
+	 * Whether to include the extra document sources.
+	 */
+	private final boolean includeExtraSources;
+
+	/**
+	 * The execution context.
+	 */
+	private final ExecutionContext executionContext;
+
+	/**
+	 * The document service.
+	 */
+	private final GeneratedTextResourceDocumentService documentService;
+}
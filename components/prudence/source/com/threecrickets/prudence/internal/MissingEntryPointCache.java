@@ -0,0 +1,128 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.internal;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.threecrickets.scripturian.Executable;
+
+/**
+ * Remembers which entry points are missing in a specific version of an
+ * {@link Executable}, so that we do not have to try entering them again. Because
+ * it is stored in the executable's attributes, it is discarded together with
+ * the executable when the document changes.
+ * 
+ * @author Tal Liron
+ * @see Executable#enter(Object, String, Object...)
+ */
+public class MissingEntryPointCache
+{
+	//
+	// Static operations
+	//
+
+	/**
+	 * The cache for an executable, creating it if it doesn't exist.
+	 * 
+	 * @param executable
+	 *        The executable
+	 * @param attributeName
+	 *        The name of the attribute in the executable
+	 * @return The cache
+	 */
+	public static MissingEntryPointCache getCache( Executable executable, String attributeName )
+	{
+		ConcurrentMap<String, Object> attributes = executable.getAttributes();
+		MissingEntryPointCache cache = (MissingEntryPointCache) attributes.get( attributeName );
+		if( cache == null )
+		{
+			cache = new MissingEntryPointCache( executable );
+			MissingEntryPointCache existing = (MissingEntryPointCache) attributes.putIfAbsent( attributeName, cache );
+			if( existing != null )
+				cache = existing;
+		}
+
+		return cache;
+	}
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param executable
+	 *        The executable
+	 */
+	public MissingEntryPointCache( Executable executable )
+	{
+		this.executable = executable;
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The executable.
+	 * 
+	 * @return The executable
+	 */
+	public Executable getExecutable()
+	{
+		return executable;
+	}
+
+	/**
+	 * Whether the entry point is known to be missing.
+	 * 
+	 * @param entryPointName
+	 *        The entry point name
+	 * @return True if missing
+	 */
+	public boolean isMissing( String entryPointName )
+	{
+		return missing.contains( entryPointName );
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Remembers that the entry point is missing.
+	 * 
+	 * @param entryPointName
+	 *        The entry point name
+	 */
+	public void setMissing( String entryPointName )
+	{
+		missing.add( entryPointName );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The executable.
+	 */
+	private final Executable executable;
+
+	/**
+	 * The names of the missing entry points.
+	 */
+	private final Set<String> missing = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+}
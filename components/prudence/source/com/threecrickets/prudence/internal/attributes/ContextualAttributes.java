@@ -12,15 +12,23 @@
 package com.threecrickets.prudence.internal.attributes;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.Writer;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
 
 import org.restlet.Context;
 import org.restlet.data.CharacterSet;
 import org.restlet.data.Status;
 import org.restlet.resource.ResourceException;
 
+import com.threecrickets.prudence.internal.DocumentResolutionCache;
+import com.threecrickets.prudence.internal.EnterablePool;
+import com.threecrickets.prudence.internal.MissingEntryPointCache;
+import com.threecrickets.prudence.util.FileWatcher;
+import com.threecrickets.prudence.util.InstanceUtil;
 import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.ExecutionContext;
 import com.threecrickets.scripturian.ParsingContext;
@@ -51,6 +59,7 @@ public abstract class ContextualAttributes implements DocumentExecutionAttribute
 	public ContextualAttributes( String prefix )
 	{
 		this.prefix = prefix;
+		missingEntryPointCacheAttribute = prefix + ".missingEntryPointCache";
 	}
 
 	//
@@ -64,6 +73,103 @@ public abstract class ContextualAttributes implements DocumentExecutionAttribute
 	 */
 	public abstract ConcurrentMap<String, Object> getAttributes();
 
+	/**
+	 * The pool of entering keys for an executable, or null if pooling is
+	 * disabled, in which case all threads enter the same execution context.
+	 * The pool size can be an integer, or a string such as "2x" to be
+	 * multiplied by the number of CPU cores. Defaults to 0 (disabled).
+	 * <p>
+	 * Threads that cannot check out a key within the timeout fall back to the
+	 * shared execution context. The timeout defaults to 5000 milliseconds.
+	 * <p>
+	 * This setting can be configured by setting attributes named
+	 * <code>enterablePoolSize</code> and <code>enterablePoolTimeout</code> in
+	 * the application's {@link Context}.
+	 * 
+	 * @param executable
+	 *        The executable
+	 * @param baseKey
+	 *        The base entering key
+	 * @return The pool or null
+	 * @see EnterablePool#toSize(Object)
+	 */
+	public EnterablePool getEnterablePool( Executable executable, Object baseKey )
+	{
+		int size = EnterablePool.toSize( getAttributes().get( prefix + ".enterablePoolSize" ) );
+		if( size == 0 )
+			return null;
+
+		Number timeout = (Number) getAttributes().get( prefix + ".enterablePoolTimeout" );
+		return EnterablePool.getPool( executable, baseKey, size, timeout != null ? timeout.longValue() : 5000L );
+	}
+
+	/**
+	 * The cache of missing entry points for an executable. The most recently
+	 * used cache is remembered, so that repeated entries into the same version
+	 * of a document do not have to look it up in the executable's attributes.
+	 * 
+	 * @param executable
+	 *        The executable
+	 * @return The missing entry point cache
+	 */
+	public MissingEntryPointCache getMissingEntryPointCache( Executable executable )
+	{
+		MissingEntryPointCache missingEntryPointCache = lastMissingEntryPointCache;
+		if( ( missingEntryPointCache == null ) || ( missingEntryPointCache.getExecutable() != executable ) )
+		{
+			missingEntryPointCache = MissingEntryPointCache.getCache( executable, missingEntryPointCacheAttribute );
+			lastMissingEntryPointCache = missingEntryPointCache;
+		}
+
+		return missingEntryPointCache;
+	}
+
+	/**
+	 * The cache of document sources per document name, shared by all
+	 * attributes with the same prefix in the context.
+	 * <p>
+	 * If a {@link FileWatcher} is configured and all document sources are
+	 * {@link DocumentFileSource} instances, the cache is cleared whenever a
+	 * file changes in any of them, and entries are kept until then. Otherwise,
+	 * entries expire after the main document source's minimum time between
+	 * validity checks, and if the main source is not a
+	 * {@link DocumentFileSource}, the cache is disabled.
+	 * 
+	 * @return The document resolution cache
+	 * @see #createDocumentOnce(String, String, boolean, boolean, boolean)
+	 */
+	public DocumentResolutionCache getDocumentResolutionCache()
+	{
+		if( documentResolutionCache == null )
+		{
+			ConcurrentMap<String, Object> attributes = getAttributes();
+			String key = prefix + ".documentResolutionCache";
+			documentResolutionCache = (DocumentResolutionCache) attributes.get( key );
+
+			if( documentResolutionCache == null )
+			{
+				long duration;
+				if( ( InstanceUtil.getFileWatcher() != null ) && areAllDocumentSourcesFileBased() )
+					// The file watcher will clear the cache
+					duration = -1;
+				else
+				{
+					DocumentSource<Executable> documentSource = getDocumentSource();
+					duration = documentSource instanceof DocumentFileSource<?> ? ( (DocumentFileSource<?>) documentSource ).getMinimumTimeBetweenValidityChecks() : 0;
+				}
+				documentResolutionCache = new DocumentResolutionCache( duration, DocumentResolutionCache.DEFAULT_MAX_SIZE );
+
+				DocumentResolutionCache existing = (DocumentResolutionCache) attributes.putIfAbsent( key, documentResolutionCache );
+				if( existing != null )
+					documentResolutionCache = existing;
+				else
+					watchDocumentSources( documentResolutionCache );
+			}
+		}
+
+		return documentResolutionCache;
+	}
+
 	/**
 	 * The {@link Writer} used by the {@link Executable}. Defaults to standard
 	 * output.
@@ -207,41 +313,8 @@ public abstract class ContextualAttributes implements DocumentExecutionAttribute
 		parsingContext.setDefaultLanguageTag( getDefaultLanguageTag() );
 		parsingContext.setPrepare( isPrepare() );
 		parsingContext.setDebug( isDebug() );
-		if( includeMainSource )
-			parsingContext.setDocumentSource( getDocumentSource() );
-
-		Iterator<DocumentSource<Executable>> iterator = null;
-		while( true )
-		{
-			try
-			{
-				if( parsingContext.getDocumentSource() == null )
-					throw new DocumentNotFoundException( documentName );
 
-				return Executable.createOnce( documentName, parserName, parsingContext );
-			}
-			catch( DocumentNotFoundException x )
-			{
-				if( ( ( iterator == null ) || !iterator.hasNext() ) && includeExtraSources )
-				{
-					Iterable<DocumentSource<Executable>> sources = getExtraDocumentSources();
-					iterator = sources != null ? sources.iterator() : null;
-					includeExtraSources = false;
-				}
-
-				if( ( ( iterator == null ) || !iterator.hasNext() ) && includeLibrarySources )
-				{
-					Iterable<DocumentSource<Executable>> sources = getLibraryDocumentSources();
-					iterator = sources != null ? sources.iterator() : null;
-					includeLibrarySources = false;
-				}
-
-				if( ( iterator == null ) || !iterator.hasNext() )
-					throw new DocumentNotFoundException( documentName );
-
-				parsingContext.setDocumentSource( iterator.next() );
-			}
-		}
+		return createDocumentOnce( documentName, parserName, parsingContext, includeMainSource, includeExtraSources, includeLibrarySources );
 	}
 
 	public DocumentDescriptor<Executable> createScriptletDocumentOnce( String documentName, String code ) throws ParsingException, DocumentException
@@ -317,4 +390,188 @@ public abstract class ContextualAttributes implements DocumentExecutionAttribute
 	 * The prefix for attribute keys.
 	 */
 	protected final String prefix;
+
+	/**
+	 * Creates a document from the first source that has it: the main source,
+	 * then the extra sources, then the library sources. The source that owns
+	 * the document, or the fact that no source has it, is remembered in the
+	 * {@link #getDocumentResolutionCache()}.
+	 * 
+	 * @param documentName
+	 *        The document name
+	 * @param parserName
+	 *        The parser name
+	 * @param parsingContext
+	 *        The parsing context (its document source will be changed)
+	 * @param includeMainSource
+	 *        Whether to search the main source
+	 * @param includeExtraSources
+	 *        Whether to search the extra sources
+	 * @param includeLibrarySources
+	 *        Whether to search the library sources
+	 * @return The document descriptor
+	 * @throws ParsingException
+	 *         In case of a parsing error
+	 * @throws DocumentException
+	 *         In case of a document retrieval error
+	 */
+	protected DocumentDescriptor<Executable> createDocumentOnce( String documentName, String parserName, ParsingContext parsingContext, boolean includeMainSource, boolean includeExtraSources,
+		boolean includeLibrarySources ) throws ParsingException, DocumentException
+	{
+		DocumentResolutionCache documentResolutionCache = getDocumentResolutionCache();
+		String key = DocumentResolutionCache.key( documentName, parserName, includeMainSource, includeExtraSources, includeLibrarySources );
+
+		// Try the source we know has the document (throws if we know none
+		// has it)
+		DocumentSource<Executable> documentSource = documentResolutionCache.getDocumentSource( key, documentName );
+		if( documentSource != null )
+		{
+			parsingContext.setDocumentSource( documentSource );
+			try
+			{
+				return Executable.createOnce( documentName, parserName, parsingContext );
+			}
+			catch( DocumentNotFoundException x )
+			{
+				documentResolutionCache.remove( key );
+			}
+		}
+
+		// Try all sources in order
+		ArrayList<DocumentSource<Executable>> documentSources = new ArrayList<DocumentSource<Executable>>();
+		if( includeMainSource )
+		{
+			documentSource = getDocumentSource();
+			if( documentSource != null )
+				documentSources.add( documentSource );
+		}
+		if( includeExtraSources )
+		{
+			Iterable<DocumentSource<Executable>> sources = getExtraDocumentSources();
+			if( sources != null )
+				for( DocumentSource<Executable> source : sources )
+					documentSources.add( source );
+		}
+		if( includeLibrarySources )
+		{
+			Iterable<DocumentSource<Executable>> sources = getLibraryDocumentSources();
+			if( sources != null )
+				for( DocumentSource<Executable> source : sources )
+					documentSources.add( source );
+		}
+
+		for( DocumentSource<Executable> source : documentSources )
+		{
+			parsingContext.setDocumentSource( source );
+			try
+			{
+				DocumentDescriptor<Executable> documentDescriptor = Executable.createOnce( documentName, parserName, parsingContext );
+				documentResolutionCache.setDocumentSource( key, source );
+				return documentDescriptor;
+			}
+			catch( DocumentNotFoundException x )
+			{
+			}
+		}
+
+		documentResolutionCache.setMissing( key );
+		throw new DocumentNotFoundException( documentName );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The missing entry point cache attribute in executables.
+	 */
+	private final String missingEntryPointCacheAttribute;
+
+	/**
+	 * The most recently used missing entry point cache.
+	 */
+	private volatile MissingEntryPointCache lastMissingEntryPointCache;
+
+	/**
+	 * The document resolution cache.
+	 */
+	private DocumentResolutionCache documentResolutionCache;
+
+	/**
+	 * The main, extra and library document sources.
+	 * 
+	 * @return The document sources
+	 */
+	private List<DocumentSource<Executable>> getAllDocumentSources()
+	{
+		ArrayList<DocumentSource<Executable>> documentSources = new ArrayList<DocumentSource<Executable>>();
+		DocumentSource<Executable> documentSource = getDocumentSource();
+		if( documentSource != null )
+			documentSources.add( documentSource );
+		Iterable<DocumentSource<Executable>> sources = getExtraDocumentSources();
+		if( sources != null )
+			for( DocumentSource<Executable> source : sources )
+				documentSources.add( source );
+		sources = getLibraryDocumentSources();
+		if( sources != null )
+			for( DocumentSource<Executable> source : sources )
+				documentSources.add( source );
+		return documentSources;
+	}
+
+	/**
+	 * Whether all our document sources are {@link DocumentFileSource}
+	 * instances, and can thus be watched by a {@link FileWatcher}.
+	 * 
+	 * @return True if all are file-based
+	 */
+	private boolean areAllDocumentSourcesFileBased()
+	{
+		for( DocumentSource<Executable> documentSource : getAllDocumentSources() )
+			if( !( documentSource instanceof DocumentFileSource<?> ) )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Clears the document resolution cache whenever a file changes in any of
+	 * our file-based document sources, if a file watcher is configured. The
+	 * documents of the source in which the file changed are also invalidated,
+	 * so that they are checked again on their next use rather than only after
+	 * the source's minimum time between validity checks.
+	 * 
+	 * @param documentResolutionCache
+	 *        The document resolution cache
+	 */
+	private void watchDocumentSources( final DocumentResolutionCache documentResolutionCache )
+	{
+		FileWatcher fileWatcher = InstanceUtil.getFileWatcher();
+		if( fileWatcher == null )
+			return;
+
+		for( final DocumentSource<Executable> documentSource : getAllDocumentSources() )
+		{
+			if( documentSource instanceof DocumentFileSource<?> )
+			{
+				FileWatcher.Listener listener = new FileWatcher.Listener()
+				{
+					public void fileChanged( File file )
+					{
+						documentResolutionCache.clear();
+						for( DocumentDescriptor<Executable> documentDescriptor : documentSource.getDocuments() )
+							documentDescriptor.invalidate();
+					}
+				};
+
+				File basePath = ( (DocumentFileSource<?>) documentSource ).getBasePath();
+				try
+				{
+					fileWatcher.watch( basePath, listener );
+				}
+				catch( IOException x )
+				{
+					Context.getCurrentLogger().log( Level.WARNING, "Could not watch directory: " + basePath, x );
+				}
+			}
+		}
+	}
 }
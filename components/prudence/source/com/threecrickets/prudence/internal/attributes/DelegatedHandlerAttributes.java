@@ -11,13 +11,11 @@
 
 package com.threecrickets.prudence.internal.attributes;
 
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import org.restlet.Context;
 
 import com.threecrickets.prudence.DelegatedHandler;
-import com.threecrickets.scripturian.Executable;
 
 /**
  * @author Tal Liron
@@ -54,31 +52,6 @@ public class DelegatedHandlerAttributes extends VolatileContextualAttributes
 		return context;
 	}
 
-	/**
-	 * A cache for entry point validity.
-	 * 
-	 * @param executable
-	 *        The executable
-	 * @return The entry point validity cache
-	 */
-	@SuppressWarnings("unchecked")
-	public ConcurrentMap<String, Boolean> getEntryPointValidityCache( Executable executable )
-	{
-		ConcurrentMap<String, Object> attributes = executable.getAttributes();
-		String key = prefix + ".entryPointValidityCache";
-
-		ConcurrentMap<String, Boolean> entryPointValidityCache = (ConcurrentMap<String, Boolean>) attributes.get( key );
-		if( entryPointValidityCache == null )
-		{
-			entryPointValidityCache = new ConcurrentHashMap<String, Boolean>();
-			ConcurrentMap<String, Boolean> existing = (ConcurrentMap<String, Boolean>) attributes.putIfAbsent( key, entryPointValidityCache );
-			if( existing != null )
-				entryPointValidityCache = existing;
-		}
-
-		return entryPointValidityCache;
-	}
-
 	//
 	// ContextualAttributes
 	//
@@ -14,14 +14,24 @@ package com.threecrickets.prudence.internal.attributes;
 import java.io.File;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.restlet.Component;
 import org.restlet.Context;
+import org.restlet.data.Status;
 import org.restlet.resource.ResourceException;
 
 import com.threecrickets.prudence.DelegatedScriptletPlugin;
 import com.threecrickets.prudence.GeneratedTextResource;
+import com.threecrickets.prudence.internal.ApplicationShutdownService;
+import com.threecrickets.prudence.internal.CachingUtil;
+import com.threecrickets.prudence.internal.DaemonThreadFactory;
+import com.threecrickets.prudence.internal.GeneratedTextDeferredExecutor;
 import com.threecrickets.prudence.util.InstanceUtil;
 import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.ParsingContext;
@@ -104,6 +114,322 @@ public class GeneratedTextResourceAttributes extends ResourceContextualAttribute
 		return conversationServiceName;
 	}
 
+	/**
+	 * Whether to stream the output of documents to the client while they are
+	 * executing, rather than buffering it entirely first. Defaults to false.
+	 * <p>
+	 * This setting can be configured by setting an attribute named
+	 * <code>streaming</code> in the application's {@link Context}.
+	 * 
+	 * @return Whether to stream output
+	 */
+	public boolean isStreaming()
+	{
+		if( streaming == null )
+		{
+			streaming = (Boolean) getAttributes().get( prefix + ".streaming" );
+
+			if( streaming == null )
+				streaming = false;
+		}
+
+		return streaming;
+	}
+
+	/**
+	 * The maximum size in characters of streamed output that would be captured
+	 * for caching. Output larger than this will not be cached. Defaults to
+	 * 1048576.
+	 * <p>
+	 * This setting can be configured by setting an attribute named
+	 * <code>streamingCaptureSizeLimit</code> in the application's
+	 * {@link Context}.
+	 * 
+	 * @return The streaming capture size limit
+	 * @see #isStreaming()
+	 */
+	public int getStreamingCaptureSizeLimit()
+	{
+		if( streamingCaptureSizeLimit == null )
+		{
+			Object value = getAttributes().get( prefix + ".streamingCaptureSizeLimit" );
+
+			if( value != null )
+				streamingCaptureSizeLimit = CachingUtil.toBytes( value );
+
+			if( streamingCaptureSizeLimit == null )
+				streamingCaptureSizeLimit = 1048576;
+		}
+
+		return streamingCaptureSizeLimit;
+	}
+
+	/**
+	 * The executor for deferred responses (see
+	 * <code>conversation.defer()</code>), shared by all resources in the
+	 * application. Its size is determined by {@link #getDeferredThreads()} and
+	 * {@link #getDeferredQueueSize()}, and its kind of threads by
+	 * {@link #isDeferredVirtualThreads()}.
+	 * <p>
+	 * This setting can be configured by setting an attribute named
+	 * <code>deferredExecutor</code> in the application's {@link Context}.
+	 * 
+	 * @return The deferred executor
+	 */
+	public GeneratedTextDeferredExecutor getDeferredExecutor()
+	{
+		if( deferredExecutor == null )
+		{
+			final ConcurrentMap<String, Object> attributes = getAttributes();
+			final String key = prefix + ".deferredExecutor";
+			deferredExecutor = (GeneratedTextDeferredExecutor) attributes.get( key );
+
+			if( deferredExecutor == null )
+			{
+				deferredExecutor = new GeneratedTextDeferredExecutor( getDeferredThreads(), getDeferredQueueSize(), isDeferredVirtualThreads() );
+
+				GeneratedTextDeferredExecutor existing = (GeneratedTextDeferredExecutor) attributes.putIfAbsent( key, deferredExecutor );
+				if( existing != null )
+				{
+					deferredExecutor.shutdown();
+					deferredExecutor = existing;
+				}
+				else
+				{
+					final GeneratedTextDeferredExecutor shutdownExecutor = deferredExecutor;
+					ApplicationShutdownService.addTask( resource.getApplication(), new Runnable()
+					{
+						public void run()
+						{
+							attributes.remove( key, shutdownExecutor );
+							shutdownExecutor.shutdown();
+						}
+					} );
+				}
+			}
+		}
+
+		return deferredExecutor;
+	}
+
+	/**
+	 * The maximum number of threads generating deferred responses. Defaults to
+	 * twice the number of CPU cores plus one.
+	 * <p>
+	 * This setting can be configured by setting an attribute named
+	 * <code>deferredThreads</code> in the application's {@link Context}.
+	 * 
+	 * @return The number of deferred threads
+	 * @see #getDeferredExecutor()
+	 */
+	public int getDeferredThreads()
+	{
+		if( deferredThreads == null )
+		{
+			Number number = (Number) getAttributes().get( prefix + ".deferredThreads" );
+
+			if( number != null )
+				deferredThreads = number.intValue();
+
+			if( deferredThreads == null )
+				deferredThreads = Runtime.getRuntime().availableProcessors() * 2 + 1;
+		}
+
+		return deferredThreads;
+	}
+
+	/**
+	 * Whether deferred responses are generated on virtual threads, if
+	 * supported by the JVM, each on its own thread. The number of responses
+	 * being generated is then limited to {@link #getDeferredThreads()} plus
+	 * {@link #getDeferredQueueSize()}. Defaults to the component-wide
+	 * <code>com.threecrickets.prudence.virtualThreads</code> setting, which
+	 * defaults to false.
+	 * <p>
+	 * This setting can be configured by setting an attribute named
+	 * <code>deferredVirtualThreads</code> in the application's {@link Context}.
+	 * 
+	 * @return Whether to use virtual threads
+	 * @see #getDeferredExecutor()
+	 */
+	public boolean isDeferredVirtualThreads()
+	{
+		if( deferredVirtualThreads == null )
+		{
+			deferredVirtualThreads = (Boolean) getAttributes().get( prefix + ".deferredVirtualThreads" );
+
+			if( deferredVirtualThreads == null )
+			{
+				Component component = InstanceUtil.getComponent();
+				if( component != null )
+					deferredVirtualThreads = Boolean.TRUE.equals( component.getContext().getAttributes().get( InstanceUtil.VIRTUAL_THREADS_ATTRIBUTE ) );
+				else
+					deferredVirtualThreads = false;
+			}
+		}
+
+		return deferredVirtualThreads;
+	}
+
+	/**
+	 * The maximum number of deferred responses waiting for a thread. Deferred
+	 * responses beyond this are answered with
+	 * {@link Status#SERVER_ERROR_SERVICE_UNAVAILABLE}. Defaults to 1000.
+	 * <p>
+	 * This setting can be configured by setting an attribute named
+	 * <code>deferredQueueSize</code> in the application's {@link Context}.
+	 * 
+	 * @return The deferred queue size
+	 * @see #getDeferredExecutor()
+	 */
+	public int getDeferredQueueSize()
+	{
+		if( deferredQueueSize == null )
+		{
+			Number number = (Number) getAttributes().get( prefix + ".deferredQueueSize" );
+
+			if( number != null )
+				deferredQueueSize = number.intValue();
+
+			if( deferredQueueSize == null )
+				deferredQueueSize = 1000;
+		}
+
+		return deferredQueueSize;
+	}
+
+	/**
+	 * The maximum time a deferred response may take, including time spent
+	 * waiting for a thread, after which it is answered with
+	 * {@link Status#SERVER_ERROR_SERVICE_UNAVAILABLE} and its execution is
+	 * interrupted. Zero means no timeout. Defaults to 60000 (one minute).
+	 * <p>
+	 * This setting can be configured by setting an attribute named
+	 * <code>deferredTimeout</code> in the application's {@link Context}.
+	 * 
+	 * @return The deferred timeout in milliseconds
+	 */
+	public long getDeferredTimeout()
+	{
+		if( deferredTimeout == null )
+		{
+			Object value = getAttributes().get( prefix + ".deferredTimeout" );
+
+			if( value != null )
+				deferredTimeout = CachingUtil.toMilliseconds( value );
+
+			if( deferredTimeout == null )
+				deferredTimeout = 60000L;
+		}
+
+		return deferredTimeout;
+	}
+
+	/**
+	 * The executor for asynchronous includes (see
+	 * <code>document.includeAsync()</code>), shared by all resources in the
+	 * application. Its size is determined by {@link #getIncludeThreads()} and
+	 * {@link #getIncludeQueueSize()}. Includes submitted beyond that are
+	 * rejected, and then included synchronously instead. The executor is shut
+	 * down when the application stops.
+	 * <p>
+	 * This setting can be configured by setting an attribute named
+	 * <code>includeExecutor</code> in the application's {@link Context}.
+	 * 
+	 * @return The include executor
+	 */
+	public ExecutorService getIncludeExecutor()
+	{
+		if( includeExecutor == null )
+		{
+			final ConcurrentMap<String, Object> attributes = getAttributes();
+			final String key = prefix + ".includeExecutor";
+			includeExecutor = (ExecutorService) attributes.get( key );
+
+			if( includeExecutor == null )
+			{
+				int threads = getIncludeThreads();
+				ThreadPoolExecutor executor = new ThreadPoolExecutor( threads, threads, 60000L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>( getIncludeQueueSize() ),
+					new DaemonThreadFactory( "Prudence include" ) );
+				executor.allowCoreThreadTimeOut( true );
+				includeExecutor = executor;
+
+				ExecutorService existing = (ExecutorService) attributes.putIfAbsent( key, includeExecutor );
+				if( existing != null )
+				{
+					includeExecutor.shutdown();
+					includeExecutor = existing;
+				}
+				else
+				{
+					final ExecutorService shutdownExecutor = includeExecutor;
+					ApplicationShutdownService.addTask( resource.getApplication(), new Runnable()
+					{
+						public void run()
+						{
+							attributes.remove( key, shutdownExecutor );
+							shutdownExecutor.shutdown();
+						}
+					} );
+				}
+			}
+		}
+
+		return includeExecutor;
+	}
+
+	/**
+	 * The maximum number of threads generating asynchronous includes. Defaults
+	 * to twice the number of CPU cores plus one.
+	 * <p>
+	 * This setting can be configured by setting an attribute named
+	 * <code>includeThreads</code> in the application's {@link Context}.
+	 * 
+	 * @return The number of include threads
+	 * @see #getIncludeExecutor()
+	 */
+	public int getIncludeThreads()
+	{
+		if( includeThreads == null )
+		{
+			Number number = (Number) getAttributes().get( prefix + ".includeThreads" );
+
+			if( number != null )
+				includeThreads = number.intValue();
+
+			if( includeThreads == null )
+				includeThreads = Runtime.getRuntime().availableProcessors() * 2 + 1;
+		}
+
+		return includeThreads;
+	}
+
+	/**
+	 * The maximum number of asynchronous includes waiting for a thread.
+	 * Defaults to 100.
+	 * <p>
+	 * This setting can be configured by setting an attribute named
+	 * <code>includeQueueSize</code> in the application's {@link Context}.
+	 * 
+	 * @return The include queue size
+	 * @see #getIncludeExecutor()
+	 */
+	public int getIncludeQueueSize()
+	{
+		if( includeQueueSize == null )
+		{
+			Number number = (Number) getAttributes().get( prefix + ".includeQueueSize" );
+
+			if( number != null )
+				includeQueueSize = number.intValue();
+
+			if( includeQueueSize == null )
+				includeQueueSize = 100;
+		}
+
+		return includeQueueSize;
+	}
+
 	/**
 	 * The scriptlet plugins to use during parsing.
 	 * 
@@ -225,41 +551,8 @@ public class GeneratedTextResourceAttributes extends ResourceContextualAttribute
 		parsingContext.setPrepare( isPrepare() );
 		parsingContext.setDebug( isDebug() );
 		parsingContext.getAttributes().put( ScriptletsParser.PLUGINS_ATTRIBUTE, getScriptletPlugins() );
-		if( includeMainSource )
-			parsingContext.setDocumentSource( getDocumentSource() );
-
-		Iterator<DocumentSource<Executable>> iterator = null;
-		while( true )
-		{
-			try
-			{
-				if( parsingContext.getDocumentSource() == null )
-					throw new DocumentNotFoundException( documentName );
 
-				return Executable.createOnce( documentName, parserName, parsingContext );
-			}
-			catch( DocumentNotFoundException x )
-			{
-				if( ( ( iterator == null ) || !iterator.hasNext() ) && includeExtraSources )
-				{
-					Iterable<DocumentSource<Executable>> sources = getExtraDocumentSources();
-					iterator = sources != null ? sources.iterator() : null;
-					includeExtraSources = false;
-				}
-
-				if( ( ( iterator == null ) || !iterator.hasNext() ) && includeLibrarySources )
-				{
-					Iterable<DocumentSource<Executable>> sources = getLibraryDocumentSources();
-					iterator = sources != null ? sources.iterator() : null;
-					includeLibrarySources = false;
-				}
-
-				if( ( iterator == null ) || !iterator.hasNext() )
-					throw new DocumentNotFoundException( documentName );
-
-				parsingContext.setDocumentSource( iterator.next() );
-			}
-		}
+		return createDocumentOnce( documentName, parserName, parsingContext, includeMainSource, includeExtraSources, includeLibrarySources );
 	}
 
 	// //////////////////////////////////////////////////////////////////////////
@@ -281,4 +574,54 @@ public class GeneratedTextResourceAttributes extends ResourceContextualAttribute
 	 * The scriptlet plugins used during parsing.
 	 */
 	private ConcurrentMap<String, ScriptletPlugin> scriptletPlugins;
+
+	/**
+	 * Whether to stream output.
+	 */
+	private Boolean streaming;
+
+	/**
+	 * The maximum size in characters of streamed output captured for caching.
+	 */
+	private Integer streamingCaptureSizeLimit;
+
+	/**
+	 * The deferred executor.
+	 */
+	private GeneratedTextDeferredExecutor deferredExecutor;
+
+	/**
+	 * The maximum number of deferred threads.
+	 */
+	private Integer deferredThreads;
+
+	/**
+	 * Whether to use virtual deferred threads.
+	 */
+	private Boolean deferredVirtualThreads;
+
+	/**
+	 * The maximum number of queued deferred responses.
+	 */
+	private Integer deferredQueueSize;
+
+	/**
+	 * The deferred timeout in milliseconds.
+	 */
+	private Long deferredTimeout;
+
+	/**
+	 * The include executor.
+	 */
+	private ExecutorService includeExecutor;
+
+	/**
+	 * The maximum number of include threads.
+	 */
+	private Integer includeThreads;
+
+	/**
+	 * The maximum number of queued includes.
+	 */
+	private Integer includeQueueSize;
 }
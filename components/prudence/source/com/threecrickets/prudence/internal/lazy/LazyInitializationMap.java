@@ -14,6 +14,7 @@ package com.threecrickets.prudence.internal.lazy;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A map wrapper that initializes once and only once upon first access.
@@ -50,7 +51,8 @@ public abstract class LazyInitializationMap<K, V> implements Map<K, V>
 	 */
 	public void validateInitialized()
 	{
-		synchronized( initializedLock )
+		initializedLock.lock();
+		try
 		{
 			if( !initialized )
 			{
@@ -58,6 +60,10 @@ public abstract class LazyInitializationMap<K, V> implements Map<K, V>
 				initialized = true;
 			}
 		}
+		finally
+		{
+			initializedLock.unlock();
+		}
 	}
 
 	//
@@ -160,7 +166,8 @@ public abstract class LazyInitializationMap<K, V> implements Map<K, V>
 	private boolean initialized;
 
 	/**
-	 * For synchronization of {@link #initialized}.
+	 * For synchronization of {@link #initialized}. (Initialization may block
+	 * on I/O, so we avoid pinning virtual threads with a monitor.)
 	 */
-	private Object initializedLock = new Object();
+	private final ReentrantLock initializedLock = new ReentrantLock();
 }
\ No newline at end of file
@@ -35,8 +35,10 @@ import com.threecrickets.prudence.ApplicationTask;
 import com.threecrickets.prudence.ApplicationTaskCollector;
 import com.threecrickets.prudence.DelegatedResource;
 import com.threecrickets.prudence.GeneratedTextResource;
+import com.threecrickets.prudence.util.AssetManifest;
 import com.threecrickets.prudence.util.InstanceUtil;
 import com.threecrickets.prudence.util.LoggingUtil;
+import com.threecrickets.prudence.util.VirtualThreadExecutor;
 
 /**
  * Application service exposed to executables.
@@ -394,7 +396,9 @@ public class ApplicationService
 	 * <p>
 	 * This setting can be configured by setting an attribute named
 	 * <code>com.threecrickets.prudence.executor</code> in the component's
-	 * {@link Context}.
+	 * {@link Context}. If not set, and the
+	 * <code>com.threecrickets.prudence.virtualThreads</code> attribute is true,
+	 * a {@link VirtualThreadExecutor} will be created if supported by the JVM.
 	 * 
 	 * @return The executor service
 	 */
@@ -410,7 +414,16 @@ public class ApplicationService
 
 				if( executor == null )
 				{
-					executor = Executors.newScheduledThreadPool( Runtime.getRuntime().availableProcessors() * 2 + 1 );
+					if( Boolean.TRUE.equals( attributes.get( InstanceUtil.VIRTUAL_THREADS_ATTRIBUTE ) ) )
+					{
+						if( VirtualThreadExecutor.isAvailable() )
+							executor = new VirtualThreadExecutor( Runtime.getRuntime().availableProcessors() + 1 );
+						else
+							getLogger().warning( "Virtual threads are not supported by this JVM, using platform threads for tasks" );
+					}
+
+					if( executor == null )
+						executor = Executors.newScheduledThreadPool( Runtime.getRuntime().availableProcessors() * 2 + 1 );
 
 					ExecutorService existing = (ExecutorService) attributes.putIfAbsent( InstanceUtil.EXECUTOR_ATTRIBUTE, executor );
 					if( existing != null )
@@ -444,6 +457,33 @@ public class ApplicationService
 		return taskCollector;
 	}
 
+	/**
+	 * Gets the asset manifest, creating it if it doesn't exist. Use it to
+	 * refer to fingerprinted copies of unified, minified and rendered assets.
+	 * <p>
+	 * The manifest is stored as an attribute named
+	 * <code>com.threecrickets.prudence.assetManifest</code> in the
+	 * application's {@link Context}.
+	 * 
+	 * @return The asset manifest
+	 */
+	public AssetManifest getAssetManifest()
+	{
+		if( assetManifest == null )
+		{
+			ConcurrentMap<String, Object> attributes = getGlobals();
+			assetManifest = (AssetManifest) attributes.get( ASSET_MANIFEST_ATTRIBUTE );
+			if( assetManifest == null )
+			{
+				assetManifest = new AssetManifest();
+				AssetManifest existing = (AssetManifest) attributes.putIfAbsent( ASSET_MANIFEST_ATTRIBUTE, assetManifest );
+				if( existing != null )
+					assetManifest = existing;
+			}
+		}
+		return assetManifest;
+	}
+
 	/**
 	 * Gets the shared scheduler.
 	 * <p>
@@ -559,6 +599,11 @@ public class ApplicationService
 	 */
 	private static final String LOCKS_ATTRIBUTE = "com.threecrickets.prudence.locks";
 
+	/**
+	 * The asset manifest attribute in the application's context.
+	 */
+	private static final String ASSET_MANIFEST_ATTRIBUTE = "com.threecrickets.prudence.assetManifest";
+
 	/**
 	 * The application.
 	 */
@@ -599,6 +644,11 @@ public class ApplicationService
 	 */
 	private ApplicationTaskCollector taskCollector;
 
+	/**
+	 * The asset manifest.
+	 */
+	private AssetManifest assetManifest;
+
 	/**
 	 * The scheduler.
 	 */
@@ -41,6 +41,7 @@ import com.threecrickets.prudence.DelegatedStatusService;
 import com.threecrickets.prudence.util.CapturingRedirector;
 import com.threecrickets.prudence.util.ConversationCookie;
 import com.threecrickets.prudence.util.FileParameter;
+import com.threecrickets.prudence.util.FormPartIterator;
 import com.threecrickets.prudence.util.FormWithFiles;
 import com.threecrickets.prudence.util.LinkHeader;
 import com.threecrickets.prudence.util.VirtualHostInjector;
@@ -457,6 +458,9 @@ public class ConversationService
 	{
 		if( formAll == null )
 		{
+			if( formParts != null )
+				throw new IllegalStateException( "The form is being streamed" );
+
 			if( getRequest().isEntityAvailable() )
 			{
 				fileUploadDirectory.mkdirs();
@@ -495,6 +499,34 @@ public class ConversationService
 		return form;
 	}
 
+	/**
+	 * The form, sent via POST or PUT, as parts that are read while the request
+	 * is received. Uploaded files are not stored in memory or in files, so they
+	 * can be piped straight to their destination.
+	 * <p>
+	 * Since the request entity can be read only once, this cannot be used
+	 * together with {@link #getFormAll()} or {@link #getForm()}.
+	 * <p>
+	 * This value is cached locally, so later calls continue the same
+	 * iteration.
+	 * 
+	 * @return The form parts
+	 * @throws IllegalStateException
+	 *         If the form has already been read as a whole
+	 */
+	public FormPartIterator getFormParts()
+	{
+		if( formParts == null )
+		{
+			if( formAll != null )
+				throw new IllegalStateException( "The form has already been read" );
+
+			formParts = new FormPartIterator( getRequest().isEntityAvailable() ? getRequest().getEntity() : null );
+		}
+
+		return formParts;
+	}
+
 	/**
 	 * The representation's disposition.
 	 * 
@@ -665,6 +697,11 @@ public class ConversationService
 	 */
 	private Map<String, Object> form;
 
+	/**
+	 * The form, sent via POST or PUT, as streamed parts.
+	 */
+	private FormPartIterator formParts;
+
 	/**
 	 * The request headers.
 	 */
@@ -12,11 +12,19 @@
 package com.threecrickets.prudence.service;
 
 import org.restlet.data.CharacterSet;
+import org.restlet.data.Form;
+import org.restlet.data.Header;
+import org.restlet.data.Status;
+import org.restlet.representation.ByteArrayRepresentation;
 import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
 import org.restlet.representation.Variant;
+import org.restlet.util.Series;
 
 import com.threecrickets.prudence.GeneratedTextResource;
 import com.threecrickets.prudence.internal.CachingUtil;
+import com.threecrickets.prudence.util.ConversationCookie;
+import com.threecrickets.prudence.util.FormPartIterator;
 
 /**
  * Conversation service exposed to executables.
@@ -45,6 +53,35 @@ public class GeneratedTextResourceConversationService extends ResourceConversati
 	public GeneratedTextResourceConversationService( GeneratedTextResource resource, Representation entity, Variant preferences, CharacterSet defaultCharacterSet )
 	{
 		super( resource, entity, preferences, defaultCharacterSet, CachingUtil.SUPPORTED_ENCODINGS, resource.getAttributes().getFileUploadSizeThreshold(), resource.getAttributes().getFileUploadDirectory() );
+		responseHeaders = null;
+		isAsync = false;
+	}
+
+	/**
+	 * Construction for an asynchronous include: a view of the conversation
+	 * that can be used concurrently with the including document's. Must be
+	 * called in the including document's thread.
+	 * <p>
+	 * The view has its own copy of the response characteristics (media type,
+	 * character set, extra response headers, etc.), so changing them affects
+	 * only the included document's cache entry, not the response. Operations
+	 * that would change the shared response or read the request entity throw
+	 * {@link IllegalStateException}.
+	 * 
+	 * @param conversationService
+	 *        The conversation service of the including document
+	 */
+	public GeneratedTextResourceConversationService( GeneratedTextResourceConversationService conversationService )
+	{
+		super( conversationService.getResource(), conversationService.getEntity(), conversationService.getNegotiated(), conversationService.getCharacterSet(), null,
+			conversationService.getResource().getAttributes().getFileUploadSizeThreshold(), conversationService.getResource().getAttributes().getFileUploadDirectory() );
+		setMediaType( conversationService.getMediaType() );
+		setCharacterSet( conversationService.getCharacterSet() );
+		setLanguage( conversationService.getLanguage() );
+		setEncoding( conversationService.getEncoding() );
+		responseHeaders = new Series<Header>( Header.class );
+		responseHeaders.addAll( conversationService.getResponseHeaders() );
+		isAsync = true;
 	}
 
 	//
@@ -74,17 +111,54 @@ public class GeneratedTextResourceConversationService extends ResourceConversati
 		return isDeferred();
 	}
 
+	/**
+	 * This boolean is true when output is being streamed to the client while
+	 * it is being generated. In streaming mode, changes to the response
+	 * characteristics (media type, character set, status, headers, etc.) will
+	 * have no effect, and the conversation cannot be deferred.
+	 * 
+	 * @return True if in streaming mode
+	 */
+	public boolean isStreaming()
+	{
+		return isStreaming;
+	}
+
+	/**
+	 * Identical to {@link #isStreaming()}. Supports scripting engines which
+	 * don't know how to recognize the "is" getter notation, but can recognize
+	 * the "get" notation.
+	 * 
+	 * @return True if in streaming mode
+	 * @see #isStreaming()
+	 */
+	public boolean getIsStreaming()
+	{
+		return isStreaming();
+	}
+
 	//
 	// Operations
 	//
 
 	/**
 	 * Ask to defer this conversation.
+	 * <p>
+	 * Streamed conversations cannot be deferred, because output has already
+	 * been sent to the client.
 	 * 
 	 * @return True if deferred, false if already in deferred mode
+	 * @throws IllegalStateException
+	 *         If in streaming mode
+	 * @see #isStreaming()
 	 */
 	public boolean defer()
 	{
+		checkNotAsync();
+
+		if( isStreaming )
+			throw new IllegalStateException( "Cannot defer a conversation in streaming mode" );
+
 		if( isDeferred )
 			return false;
 
@@ -92,6 +166,95 @@ public class GeneratedTextResourceConversationService extends ResourceConversati
 		return true;
 	}
 
+	//
+	// ConversationService
+	//
+
+	@Override
+	public void setStatus( Status status )
+	{
+		checkNotAsync();
+		super.setStatus( status );
+	}
+
+	@Override
+	public void setStatusCode( int statusCode )
+	{
+		checkNotAsync();
+		super.setStatusCode( statusCode );
+	}
+
+	@Override
+	public void setStatusPassthrough( boolean passthrough )
+	{
+		checkNotAsync();
+		super.setStatusPassthrough( passthrough );
+	}
+
+	@Override
+	public StringRepresentation setResponseText( String text, String mediaTypeName, String languageName, String characterSetName )
+	{
+		checkNotAsync();
+		return super.setResponseText( text, mediaTypeName, languageName, characterSetName );
+	}
+
+	@Override
+	public ByteArrayRepresentation setResponseBinary( byte[] byteArray, String mediaTypeName )
+	{
+		checkNotAsync();
+		return super.setResponseBinary( byteArray, mediaTypeName );
+	}
+
+	@Override
+	public ConversationCookie createCookie( String name )
+	{
+		checkNotAsync();
+		return super.createCookie( name );
+	}
+
+	@Override
+	public Form getFormAll()
+	{
+		checkNotAsync();
+		return super.getFormAll();
+	}
+
+	@Override
+	public FormPartIterator getFormParts()
+	{
+		checkNotAsync();
+		return super.getFormParts();
+	}
+
+	@Override
+	public Series<Header> getResponseHeaders()
+	{
+		if( responseHeaders != null )
+			return responseHeaders;
+		return super.getResponseHeaders();
+	}
+
+	@Override
+	public void redirectPermanent( String uri )
+	{
+		checkNotAsync();
+		super.redirectPermanent( uri );
+	}
+
+	@Override
+	public void redirectSeeOther( String uri )
+	{
+		checkNotAsync();
+		super.redirectSeeOther( uri );
+	}
+
+	@Override
+	public void redirectTemporary( String uri )
+	{
+		checkNotAsync();
+		super.redirectTemporary( uri );
+	}
+
 	// //////////////////////////////////////////////////////////////////////////
 	// Protected
 
@@ -104,4 +267,34 @@ public class GeneratedTextResourceConversationService extends ResourceConversati
 	 * This boolean is true when the writer is in deferred mode.
 	 */
 	protected boolean isDeferred;
+
+	/**
+	 * This boolean is true when output is being streamed.
+	 */
+	protected boolean isStreaming;
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * Whether this is the view of an asynchronous include.
+	 */
+	private final boolean isAsync;
+
+	/**
+	 * The copy of the extra response headers for an asynchronous include.
+	 */
+	private final Series<Header> responseHeaders;
+
+	/**
+	 * Makes sure that we are not the view of an asynchronous include.
+	 * 
+	 * @throws IllegalStateException
+	 *         If we are
+	 */
+	private void checkNotAsync()
+	{
+		if( isAsync )
+			throw new IllegalStateException( "Asynchronous includes cannot change the response or read the request entity" );
+	}
 }
@@ -11,30 +11,47 @@
 
 package com.threecrickets.prudence.service;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.InterruptedIOException;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
+import org.restlet.Application;
+import org.restlet.Context;
 import org.restlet.Request;
+import org.restlet.data.CharacterSet;
 import org.restlet.data.Encoding;
+import org.restlet.data.Header;
+import org.restlet.data.Language;
+import org.restlet.data.MediaType;
 import org.restlet.representation.ByteArrayRepresentation;
+import org.restlet.representation.EmptyRepresentation;
 import org.restlet.representation.Representation;
 import org.restlet.representation.StringRepresentation;
 import org.restlet.representation.Variant;
+import org.restlet.util.Series;
 
 import com.threecrickets.prudence.GeneratedTextResource;
 import com.threecrickets.prudence.cache.CacheEntry;
 import com.threecrickets.prudence.internal.CachingUtil;
 import com.threecrickets.prudence.internal.GeneratedTextDeferredRepresentation;
+import com.threecrickets.prudence.internal.GeneratedTextStreamingRepresentation;
 import com.threecrickets.prudence.internal.attributes.GeneratedTextResourceAttributes;
 import com.threecrickets.prudence.util.CaptureWriter;
+import com.threecrickets.prudence.util.ChunkedRepresentation;
+import com.threecrickets.prudence.util.ChunkedWriter;
 import com.threecrickets.prudence.util.PrudenceScriptletPlugin;
 import com.threecrickets.prudence.util.StackedWriter;
+import com.threecrickets.prudence.util.TeeWriter;
 import com.threecrickets.scripturian.Executable;
 import com.threecrickets.scripturian.ExecutionContext;
 import com.threecrickets.scripturian.document.DocumentDescriptor;
@@ -75,6 +92,7 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 		super( resource, resource.getAttributes(), new GeneratedTextResourceConversationService( resource, entity, preferences, resource.getAttributes().getDefaultCharacterSet() ), cachingUtil );
 		this.executionContext = executionContext;
 		cachingService = new GeneratedTextResourceCachingService( resource, this, conversationService, cachingUtil );
+		stackedWriter = null;
 	}
 
 	/**
@@ -99,6 +117,34 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 		executionContext.getServices().put( attributes.getConversationServiceName(), conversationService );
 
 		conversationService.isDeferred = true;
+		stackedWriter = null;
+	}
+
+	/**
+	 * Construction by cloning, with new execution context and its own output
+	 * buffer (for asynchronous includes).
+	 * 
+	 * @param documentService
+	 *        The document service to clone
+	 * @param conversationService
+	 *        The conversation view of the asynchronous include
+	 * @param documentDescriptors
+	 *        The document descriptor stack at the point of inclusion
+	 */
+	private GeneratedTextResourceDocumentService( GeneratedTextResourceDocumentService documentService, GeneratedTextResourceConversationService conversationService,
+		List<DocumentDescriptor<Executable>> documentDescriptors )
+	{
+		super( documentService.resource, documentService.attributes, conversationService, new CachingUtil<GeneratedTextResource, GeneratedTextResourceAttributes>( documentService.cachingUtil ) );
+		documentDescriptorStack.addAll( documentDescriptors );
+		executionContext = new ExecutionContext();
+		attributes.addLibraryLocations( executionContext );
+		cachingService = new GeneratedTextResourceCachingService( resource, this, conversationService, cachingUtil );
+
+		// Our own output, which does not touch the request's writer stack
+		writerBuffer = new ChunkedWriter();
+		stackedWriter = new StackedWriter();
+		stackedWriter.push( writerBuffer );
+		executionContext.setWriter( stackedWriter );
 	}
 
 	//
@@ -137,7 +183,8 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 	 * @param includeExtraSources
 	 *        Whether to force looking for the document in the extra document
 	 *        sources (otherwise is only allowed for non-initial documents)
-	 * @return A representation of the document's output
+	 * @return A representation of the document's output, or null in deferred
+	 *         mode
 	 * @throws ParsingException
 	 *         In case of a Scripturian parsing error
 	 * @throws ExecutionException
@@ -184,8 +231,12 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 		pushDocumentDescriptor( documentDescriptor );
 		try
 		{
-			Representation representation = generateText( documentDescriptor, allowEncoding );
-			representation.setDisposition( conversationService.getDisposition() );
+			Representation representation = generateText( documentDescriptor, documentName, includeExtraSources, allowEncoding );
+
+			// There is no representation in deferred mode
+			if( representation != null )
+				representation.setDisposition( conversationService.getDisposition() );
+
 			return representation;
 		}
 		finally
@@ -194,6 +245,176 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 		}
 	}
 
+	/**
+	 * Includes a text document into the current location, generating it
+	 * concurrently on the application's bounded include executor with its own
+	 * execution context. The current location is remembered, and the output is spliced
+	 * into it after the including document finishes executing, in the order of
+	 * inclusion. This allows several independent, slow fragments to be
+	 * generated in parallel.
+	 * <p>
+	 * Caching of the included document and cache tag propagation work as with
+	 * {@link #include(String)}. However, the included document runs in another
+	 * thread, and so gets its own read-only view of the conversation: changes
+	 * to the media type, extra response headers, etc., only affect its own
+	 * cache entry, and changing the response status, redirecting, deferring or
+	 * reading the form throw an {@link IllegalStateException}. It should also
+	 * not rely on conversation.locals set by the including document after the
+	 * inclusion. Its caching state, such as whether it can be cached and its
+	 * caching debug headers, is kept separately and merged into the including
+	 * document's once it is spliced in. Holes in its output (see
+	 * {@link #includeHole(String)}) are filled at that point, in the request
+	 * thread, and the including document is then not cached.
+	 * <p>
+	 * The document is included synchronously, as if by
+	 * {@link #include(String)}, if the output is not being buffered (streaming
+	 * or deferred modes), if it is being captured, if we are ourselves an
+	 * asynchronous include or within a hole, or if the executor is saturated.
+	 * 
+	 * @param documentName
+	 *        The document name
+	 * @throws ParsingException
+	 *         In case of a Scripturian parsing error
+	 * @throws ExecutionException
+	 *         In case of a Scripturian execution error
+	 * @throws DocumentException
+	 *         In case of a Scripturian document retrieval error
+	 * @throws IOException
+	 *         In case of a Scripturian writing or cache entry compression error
+	 * @see GeneratedTextResourceAttributes#getIncludeExecutor()
+	 */
+	public void includeAsync( String documentName ) throws ParsingException, ExecutionException, DocumentException, IOException
+	{
+		if( ( stackedWriter != null ) || ( holeDepth > 0 ) || conversationService.isDeferred || conversationService.isStreaming || ( writerBuffer == null )
+			|| ( getStackedWriter().getCurrent() != writerBuffer ) )
+		{
+			include( documentName );
+			return;
+		}
+
+		final GeneratedTextResourceDocumentService documentService = this;
+		final GeneratedTextResourceConversationService asyncConversationService = new GeneratedTextResourceConversationService( conversationService );
+		final String name = documentName;
+		final List<DocumentDescriptor<Executable>> documentDescriptors = new ArrayList<DocumentDescriptor<Executable>>( documentDescriptorStack );
+		final Application application = Application.getCurrent();
+		final Context context = Context.getCurrent();
+
+		FutureTask<AsyncIncludeOutput> task = new FutureTask<AsyncIncludeOutput>( new Callable<AsyncIncludeOutput>()
+		{
+			public AsyncIncludeOutput call() throws Exception
+			{
+				Application oldApplication = Application.getCurrent();
+				Context oldContext = Context.getCurrent();
+				try
+				{
+					Application.setCurrent( application );
+					Context.setCurrent( context );
+
+					GeneratedTextResourceDocumentService asyncDocumentService = new GeneratedTextResourceDocumentService( documentService, asyncConversationService, documentDescriptors );
+					try
+					{
+						asyncDocumentService.include( name );
+
+						// Our holes are filled by the request thread, which does
+						// not track them, so the including document will not be
+						// cached
+						boolean isUncacheable = !asyncDocumentService.holes.isEmpty() || asyncDocumentService.isUncacheable;
+
+						// Our state is merged by the request thread
+						return new AsyncIncludeOutput( asyncDocumentService.writerBuffer.toString(), asyncDocumentService.holes, isUncacheable, asyncDocumentService.cachingUtil.getDebugHeaders() );
+					}
+					finally
+					{
+						asyncDocumentService.writerBuffer.recycle();
+						asyncDocumentService.executionContext.release();
+						ExecutionContext.disconnect();
+					}
+				}
+				finally
+				{
+					Application.setCurrent( oldApplication );
+					Context.setCurrent( oldContext );
+				}
+			}
+		} );
+
+		try
+		{
+			attributes.getIncludeExecutor().execute( task );
+		}
+		catch( RejectedExecutionException x )
+		{
+			include( documentName );
+			return;
+		}
+
+		asyncIncludes.add( new AsyncInclude( writerBuffer.length(), sequence++, task ) );
+	}
+
+	/**
+	 * Includes a text document into the current location as a hole. If the
+	 * including document is cached, the output of the hole is not cached with
+	 * it: the cache entry stores the rest of the output as a shell, and the
+	 * hole document is executed again, for every request, when the entry is
+	 * fetched. This is useful for small personalized regions in otherwise
+	 * cacheable pages. The hole document can be cached on its own as usual.
+	 * <p>
+	 * Holes within holes are included normally. If the output is being
+	 * captured or streamed, the hole cannot be tracked, and the including
+	 * documents will not be cached for this request.
+	 * <p>
+	 * Within an asynchronous include (see {@link #includeAsync(String)}), the
+	 * hole is not executed in the include's thread. It is left empty, and is
+	 * executed in the request thread when the include's output is spliced in.
+	 * 
+	 * @param documentName
+	 *        The document name
+	 * @return A representation of the document's output, or null within an
+	 *         asynchronous include
+	 * @throws ParsingException
+	 *         In case of a Scripturian parsing error
+	 * @throws ExecutionException
+	 *         In case of a Scripturian execution error
+	 * @throws DocumentException
+	 *         In case of a Scripturian document retrieval error
+	 * @throws IOException
+	 *         In case of a Scripturian writing or cache entry compression error
+	 * @see CacheEntry#hasHoles()
+	 */
+	public Representation includeHole( String documentName ) throws ParsingException, ExecutionException, DocumentException, IOException
+	{
+		// Deferred output is never cached
+		if( conversationService.isDeferred || ( writerBuffer == null ) || ( holeDepth > 0 ) )
+			return include( documentName );
+
+		if( ( teeWriter != null ) || ( getStackedWriter().getCurrent() != writerBuffer ) )
+		{
+			// We can't know where this output will end up
+			isUncacheable = true;
+			return include( documentName );
+		}
+
+		Hole hole = new Hole( writerBuffer.length(), sequence++, documentName );
+		holes.add( hole );
+
+		// In an asynchronous include, the hole is left empty and is filled by
+		// the request thread
+		if( stackedWriter != null )
+			return null;
+
+		holeDepth++;
+		try
+		{
+			Representation representation = include( documentName );
+			hole.end = writerBuffer.length();
+			return representation;
+		}
+		finally
+		{
+			holeDepth--;
+		}
+	}
+
 	/**
 	 * Start capturing the generated text output, until {@link #endCapture()} is
 	 * called. The captured text will automatically be stored as a string in a
@@ -255,11 +476,21 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
+	/**
+	 * Pure literal cache entries attribute for an {@link Executable}.
+	 */
+	private static final String PURE_LITERAL_CACHE_ENTRIES_ATTRIBUTE = GeneratedTextResourceDocumentService.class.getCanonicalName() + ".pureLiteralCacheEntries";
+
 	/**
 	 * Writer stack attribute for an {@link Request}.
 	 */
 	private static final String STACKED_WRITER_ATTRIBUTE = GeneratedTextResourceDocumentService.class.getCanonicalName() + ".stackedWriter";
 
+	/**
+	 * Attribute for an {@link Executable} that has asked to defer.
+	 */
+	private static final String DEFERS_ATTRIBUTE = GeneratedTextResourceDocumentService.class.getCanonicalName() + ".defers";
+
 	/**
 	 * The application service.
 	 */
@@ -278,7 +509,109 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 	/**
 	 * Buffer used for caching.
 	 */
-	private StringBuffer writerBuffer;
+	private ChunkedWriter writerBuffer;
+
+	/**
+	 * The writer used in streaming mode, which also fills the buffer used for
+	 * caching.
+	 */
+	private TeeWriter teeWriter;
+
+	/**
+	 * The writer stack for asynchronous includes, or null if we use the one
+	 * stored in the request.
+	 */
+	private final StackedWriter stackedWriter;
+
+	/**
+	 * Pending asynchronous includes, in order of their position in the buffer.
+	 */
+	private final ArrayList<AsyncInclude> asyncIncludes = new ArrayList<AsyncInclude>();
+
+	/**
+	 * The holes, in order of their position in the buffer.
+	 */
+	private final ArrayList<Hole> holes = new ArrayList<Hole>();
+
+	/**
+	 * The depth of nested holes currently being executed.
+	 */
+	private int holeDepth;
+
+	/**
+	 * Whether output could not be tracked, in which case it must not be
+	 * cached. Asynchronous includes have their own, which is merged into ours
+	 * when they are resolved.
+	 */
+	private boolean isUncacheable;
+
+	/**
+	 * Orders holes and asynchronous includes registered at the same position.
+	 */
+	private int sequence;
+
+	/**
+	 * A hole in the buffer.
+	 */
+	private static class Hole
+	{
+		private Hole( int start, int sequence, String documentName )
+		{
+			this.start = start;
+			this.end = start;
+			this.sequence = sequence;
+			this.documentName = documentName;
+		}
+
+		private int start;
+
+		private int end;
+
+		private final int sequence;
+
+		private final String documentName;
+	}
+
+	/**
+	 * A pending asynchronous include.
+	 */
+	private static class AsyncInclude
+	{
+		private AsyncInclude( int position, int sequence, FutureTask<AsyncIncludeOutput> task )
+		{
+			this.position = position;
+			this.sequence = sequence;
+			this.task = task;
+		}
+
+		private final int position;
+
+		private final int sequence;
+
+		private final FutureTask<AsyncIncludeOutput> task;
+	}
+
+	/**
+	 * The output and state of an asynchronous include.
+	 */
+	private static class AsyncIncludeOutput
+	{
+		private AsyncIncludeOutput( String text, List<Hole> holes, boolean isUncacheable, Series<Header> debugHeaders )
+		{
+			this.text = text;
+			this.holes = holes;
+			this.isUncacheable = isUncacheable;
+			this.debugHeaders = debugHeaders;
+		}
+
+		private final String text;
+
+		private final List<Hole> holes;
+
+		private final boolean isUncacheable;
+
+		private final Series<Header> debugHeaders;
+	}
 
 	/**
 	 * The writer stack used for nesting in {@link #startCapture(String)} and
@@ -288,6 +621,9 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 	 */
 	private StackedWriter getStackedWriter()
 	{
+		if( stackedWriter != null )
+			return stackedWriter;
+
 		ConcurrentMap<String, Object> attributes = resource.getRequest().getAttributes();
 		StackedWriter writerStack = (StackedWriter) attributes.get( STACKED_WRITER_ATTRIBUTE );
 		if( writerStack == null )
@@ -298,6 +634,368 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 		return writerStack;
 	}
 
+	/**
+	 * The memoized cache entries for a pure literal executable, mapped by
+	 * encoding and representation characteristics.
+	 * 
+	 * @param executable
+	 *        The executable
+	 * @return The pure literal cache entries
+	 */
+	private static ConcurrentMap<String, CacheEntry> getPureLiteralCacheEntries( Executable executable )
+	{
+		ConcurrentMap<String, Object> attributes = executable.getAttributes();
+		@SuppressWarnings("unchecked")
+		ConcurrentMap<String, CacheEntry> pureLiteralCacheEntries = (ConcurrentMap<String, CacheEntry>) attributes.get( PURE_LITERAL_CACHE_ENTRIES_ATTRIBUTE );
+		if( pureLiteralCacheEntries == null )
+		{
+			pureLiteralCacheEntries = new ConcurrentHashMap<String, CacheEntry>();
+			@SuppressWarnings("unchecked")
+			ConcurrentMap<String, CacheEntry> existing = (ConcurrentMap<String, CacheEntry>) attributes.putIfAbsent( PURE_LITERAL_CACHE_ENTRIES_ATTRIBUTE, pureLiteralCacheEntries );
+			if( existing != null )
+				pureLiteralCacheEntries = existing;
+		}
+
+		return pureLiteralCacheEntries;
+	}
+
+	/**
+	 * A cache entry for a pure literal executable. Entries, including their
+	 * encoded (compressed) versions and strong tags, are created only once per
+	 * document timestamp and are then shared by all requests, bypassing the
+	 * cache backend entirely.
+	 * 
+	 * @param executable
+	 *        The executable
+	 * @param pureLiteral
+	 *        The pure literal
+	 * @param encoding
+	 *        The encoding or null
+	 * @return The cache entry
+	 * @throws IOException
+	 *         In case of a compression error
+	 */
+	private CacheEntry getPureLiteralCacheEntry( Executable executable, String pureLiteral, Encoding encoding ) throws IOException
+	{
+		// Disable encoding for small representations
+		if( ( encoding != null ) && ( pureLiteral.length() < attributes.getEncodeSizeThreshold() ) )
+			encoding = null;
+
+		MediaType mediaType = conversationService.getMediaType();
+		Language language = conversationService.getLanguage();
+		CharacterSet characterSet = conversationService.getCharacterSet();
+		String key = encoding + "|" + mediaType + "|" + language + "|" + characterSet;
+		long documentTimestamp = executable.getDocumentTimestamp();
+
+		ConcurrentMap<String, CacheEntry> pureLiteralCacheEntries = getPureLiteralCacheEntries( executable );
+		CacheEntry cacheEntry = pureLiteralCacheEntries.get( key );
+		if( ( cacheEntry == null ) || ( cacheEntry.getDocumentModificationDate().getTime() != documentTimestamp ) )
+		{
+			if( encoding != null )
+				// Encode the un-encoded entry
+				cacheEntry = new CacheEntry( getPureLiteralCacheEntry( executable, pureLiteral, null ), encoding );
+			else
+				// Pure literals never set a caching duration, so there is no
+				// expiration
+				cacheEntry = new CacheEntry( pureLiteral, mediaType, language, characterSet, null, null, documentTimestamp, null, 0L, documentTimestamp );
+
+			pureLiteralCacheEntries.put( key, cacheEntry );
+		}
+
+		return cacheEntry;
+	}
+
+	/**
+	 * Waits for the asynchronous includes registered since an index, splicing
+	 * their output into the buffer at their positions. Their state is merged
+	 * into ours in order, as if they had been included synchronously, and
+	 * their holes are filled here.
+	 * 
+	 * @param first
+	 *        The index of the first asynchronous include
+	 * @throws ParsingException
+	 *         In case of a Scripturian parsing error
+	 * @throws ExecutionException
+	 *         In case of a Scripturian execution error
+	 * @throws DocumentException
+	 *         In case of a Scripturian document retrieval error
+	 * @throws IOException
+	 *         In case of a Scripturian writing or cache entry compression error
+	 */
+	private void resolveAsyncIncludes( int first ) throws ParsingException, ExecutionException, DocumentException, IOException
+	{
+		int size = asyncIncludes.size();
+		if( size <= first )
+			return;
+
+		// Wait for the output, in order
+		String[] texts = new String[size - first];
+		for( int i = first; i < size; i++ )
+		{
+			AsyncIncludeOutput output = getAsyncIncludeOutput( asyncIncludes.get( i ) );
+
+			if( output.isUncacheable )
+				isUncacheable = true;
+			if( output.debugHeaders != null )
+				cachingUtil.applyDebugHeaders( output.debugHeaders );
+
+			texts[i - first] = fillHoles( output.text, output.holes );
+		}
+
+		// Take the output that followed the first asynchronous include out of
+		// the buffer, and then put it back piece by piece
+		int start = asyncIncludes.get( first ).position;
+		String tail = writerBuffer.substring( start );
+		writerBuffer.truncate( start );
+
+		int tailPosition = 0;
+		for( int i = first; i < size; i++ )
+		{
+			int position = asyncIncludes.get( i ).position - start;
+			writerBuffer.write( tail, tailPosition, position - tailPosition );
+			tailPosition = position;
+			writerBuffer.write( texts[i - first] );
+		}
+		writerBuffer.write( tail, tailPosition, tail.length() - tailPosition );
+
+		// Move the holes that follow the asynchronous includes
+		for( Hole hole : holes )
+		{
+			int shift = 0;
+			for( int i = first; i < size; i++ )
+			{
+				AsyncInclude asyncInclude = asyncIncludes.get( i );
+				if( ( asyncInclude.position < hole.start ) || ( ( asyncInclude.position == hole.start ) && ( asyncInclude.sequence < hole.sequence ) ) )
+					shift += texts[i - first].length();
+			}
+			hole.start += shift;
+			hole.end += shift;
+		}
+
+		asyncIncludes.subList( first, size ).clear();
+	}
+
+	/**
+	 * Waits for the output of an asynchronous include.
+	 * 
+	 * @param asyncInclude
+	 *        The asynchronous include
+	 * @return The output
+	 * @throws ParsingException
+	 *         In case of a Scripturian parsing error
+	 * @throws ExecutionException
+	 *         In case of a Scripturian execution error
+	 * @throws DocumentException
+	 *         In case of a Scripturian document retrieval error
+	 * @throws IOException
+	 *         In case of a Scripturian writing or cache entry compression error
+	 */
+	private static AsyncIncludeOutput getAsyncIncludeOutput( AsyncInclude asyncInclude ) throws ParsingException, ExecutionException, DocumentException, IOException
+	{
+		try
+		{
+			return asyncInclude.task.get();
+		}
+		catch( InterruptedException x )
+		{
+			Thread.currentThread().interrupt();
+			InterruptedIOException iox = new InterruptedIOException();
+			iox.initCause( x );
+			throw iox;
+		}
+		catch( java.util.concurrent.ExecutionException x )
+		{
+			Throwable cause = x.getCause();
+			if( cause instanceof ParsingException )
+				throw (ParsingException) cause;
+			else if( cause instanceof ExecutionException )
+				throw (ExecutionException) cause;
+			else if( cause instanceof DocumentException )
+				throw (DocumentException) cause;
+			else if( cause instanceof IOException )
+				throw (IOException) cause;
+			else if( cause instanceof RuntimeException )
+				throw (RuntimeException) cause;
+			else if( cause instanceof Error )
+				throw (Error) cause;
+
+			IOException iox = new IOException( "Asynchronous include failed" );
+			iox.initCause( cause );
+			throw iox;
+		}
+	}
+
+	/**
+	 * Fills the holes that an asynchronous include left empty, executing the
+	 * hole documents in this thread. The output of each hole is collected
+	 * separately at the end of the buffer, and is then taken out of it.
+	 * 
+	 * @param text
+	 *        The output of the asynchronous include
+	 * @param holes
+	 *        The empty holes, in order of their position in the output
+	 * @return The output with its holes filled
+	 * @throws ParsingException
+	 *         In case of a Scripturian parsing error
+	 * @throws ExecutionException
+	 *         In case of a Scripturian execution error
+	 * @throws DocumentException
+	 *         In case of a Scripturian document retrieval error
+	 * @throws IOException
+	 *         In case of a Scripturian writing or cache entry compression error
+	 */
+	private String fillHoles( String text, List<Hole> holes ) throws ParsingException, ExecutionException, DocumentException, IOException
+	{
+		if( holes.isEmpty() )
+			return text;
+
+		StringBuilder filled = new StringBuilder( text.length() );
+		int position = 0;
+		for( Hole hole : holes )
+		{
+			filled.append( text, position, hole.start );
+			position = hole.start;
+
+			int mark = writerBuffer.length();
+			holeDepth++;
+			try
+			{
+				include( hole.documentName );
+			}
+			finally
+			{
+				holeDepth--;
+			}
+			filled.append( writerBuffer.substring( mark ) );
+			writerBuffer.truncate( mark );
+		}
+		filled.append( text, position, text.length() );
+
+		return filled.toString();
+	}
+
+	/**
+	 * Creates a cache entry for the buffer from a position, without the
+	 * output of the holes registered since an index.
+	 * 
+	 * @param startPosition
+	 *        The start position in the buffer
+	 * @param firstHole
+	 *        The index of the first hole
+	 * @param expirationTimestamp
+	 *        The expiration timestamp
+	 * @param executable
+	 *        The executable
+	 * @return The cache entry with holes
+	 * @throws IOException
+	 *         In case of a cache entry compression error
+	 */
+	private CacheEntry createShellCacheEntry( int startPosition, int firstHole, long expirationTimestamp, Executable executable ) throws IOException
+	{
+		String string = writerBuffer.substring( startPosition );
+		StringBuilder shell = new StringBuilder( string.length() );
+		int count = holes.size() - firstHole;
+		int[] holePositions = new int[count];
+		String[] holeDocumentNames = new String[count];
+		int position = 0;
+		for( int i = 0; i < count; i++ )
+		{
+			Hole hole = holes.get( firstHole + i );
+			shell.append( string, position, hole.start - startPosition );
+			holePositions[i] = shell.length();
+			holeDocumentNames[i] = hole.documentName;
+			position = hole.end - startPosition;
+		}
+		shell.append( string, position, string.length() );
+
+		CacheEntry cacheEntry = new CacheEntry( shell.toString(), conversationService.getMediaType(), conversationService.getLanguage(), conversationService.getCharacterSet(), null,
+			conversationService.getResponseHeaders(), 0L, null, expirationTimestamp, executable.getDocumentTimestamp() );
+		cacheEntry.setHoles( holePositions, holeDocumentNames );
+		return cacheEntry;
+	}
+
+	/**
+	 * Restores the media type, language, character set and headers of a cached
+	 * shell to the conversation, as they were when the shell was executed. The
+	 * hole documents may still change them.
+	 * 
+	 * @param cacheEntry
+	 *        The cache entry with holes
+	 */
+	private void restoreCharacteristics( CacheEntry cacheEntry )
+	{
+		if( cacheEntry.getMediaType() != null )
+			conversationService.setMediaType( cacheEntry.getMediaType() );
+		if( cacheEntry.getLanguage() != null )
+			conversationService.setLanguage( cacheEntry.getLanguage() );
+		if( cacheEntry.getCharacterSet() != null )
+			conversationService.setCharacterSet( cacheEntry.getCharacterSet() );
+
+		Series<Header> headers = cacheEntry.getHeaders();
+		if( headers != null )
+		{
+			// Headers already in the response (such as caching debug
+			// headers) take precedence
+			Series<Header> responseHeaders = conversationService.getResponseHeaders();
+			Set<String> names = responseHeaders.getNames();
+			for( Header header : headers )
+				if( !names.contains( header.getName() ) )
+					responseHeaders.add( header );
+		}
+	}
+
+	/**
+	 * Writes a cached shell, executing the hole documents in place of its
+	 * holes.
+	 * 
+	 * @param cacheEntry
+	 *        The cache entry with holes
+	 * @param writer
+	 *        The writer
+	 * @throws ParsingException
+	 *         In case of a Scripturian parsing error
+	 * @throws ExecutionException
+	 *         In case of a Scripturian execution error
+	 * @throws DocumentException
+	 *         In case of a Scripturian document retrieval error
+	 * @throws IOException
+	 *         In case of a Scripturian writing or cache entry compression error
+	 */
+	private void fillHoles( CacheEntry cacheEntry, Writer writer ) throws ParsingException, ExecutionException, DocumentException, IOException
+	{
+		String string = cacheEntry.getString();
+		int[] holePositions = cacheEntry.getHolePositions();
+		String[] holeDocumentNames = cacheEntry.getHoleDocumentNames();
+		int position = 0;
+		for( int i = 0; i < holePositions.length; i++ )
+		{
+			writer.write( string, position, holePositions[i] - position );
+			position = holePositions[i];
+
+			// The hole is registered again, for including documents
+			includeHole( holeDocumentNames[i] );
+		}
+		writer.write( string, position, string.length() - position );
+	}
+
+	/**
+	 * Cancels the asynchronous includes registered since an index, if they
+	 * were not resolved.
+	 * 
+	 * @param first
+	 *        The index of the first asynchronous include
+	 */
+	private void cancelAsyncIncludes( int first )
+	{
+		int size = asyncIncludes.size();
+		if( size <= first )
+			return;
+
+		for( int i = first; i < size; i++ )
+			asyncIncludes.get( i ).task.cancel( false );
+		asyncIncludes.subList( first, size ).clear();
+	}
+
 	/**
 	 * Copies the cache tags for the current executable, if it has any, to the
 	 * entire executable stack.
@@ -338,12 +1036,26 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 	/**
 	 * Generates and possibly caches a textual representation. The returned
 	 * representation is either a {@link StringRepresentation}, a
-	 * {@link ByteArrayRepresentation} or a
-	 * {@link GeneratedTextDeferredRepresentation}. Text in the former cases
+	 * {@link ByteArrayRepresentation}, a {@link ChunkedRepresentation}, a
+	 * {@link GeneratedTextDeferredRepresentation} or a
+	 * {@link GeneratedTextStreamingRepresentation}. Text in the former cases
 	 * could be the result of either execution or retrieval from the cache.
+	 * <p>
+	 * In streaming mode, the initial document is executed only when the
+	 * {@link GeneratedTextStreamingRepresentation} is written, at which point
+	 * it has been given the client's writer. Output is then captured for
+	 * caching up to {@link GeneratedTextResourceAttributes#getStreamingCaptureSizeLimit()}.
+	 * <p>
+	 * If the output has holes (see {@link #includeHole(String)}), only the
+	 * shell is cached. When a shell is fetched from the cache, only its holes
+	 * are executed, and the result is not cached again.
 	 * 
 	 * @param documentDescriptor
 	 *        The document descriptor
+	 * @param documentName
+	 *        The document name
+	 * @param includeExtraSources
+	 *        Whether to include the extra document sources
 	 * @param allowEncoding
 	 *        Whether to allow encoding
 	 * @return A representation, either generated by the executable or fetched
@@ -352,10 +1064,13 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 	 *         In case of a Scripturian parsing error
 	 * @throws ExecutionException
 	 *         In case of a Scripturian execution error
+	 * @throws DocumentException
+	 *         In case of a Scripturian document retrieval error
 	 * @throws IOException
 	 *         In case of a Scripturian writing or cache entry compression error
 	 */
-	private Representation generateText( DocumentDescriptor<Executable> documentDescriptor, boolean allowEncoding ) throws ParsingException, ExecutionException, IOException
+	private Representation generateText( DocumentDescriptor<Executable> documentDescriptor, String documentName, boolean includeExtraSources, boolean allowEncoding )
+		throws ParsingException, ExecutionException, DocumentException, IOException
 	{
 		Executable executable = documentDescriptor.getDocument();
 		Writer writer = executionContext.getWriter();
@@ -369,23 +1084,64 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 			if( writer != null )
 				writer.write( pureLiteral );
 
-			return new CacheEntry( pureLiteral, conversationService.getMediaType(), conversationService.getLanguage(), conversationService.getCharacterSet(), encoding, conversationService.getResponseHeaders(), 0L, null,
-				CachingUtil.getExpirationTimestamp( executable, null ), executable.getDocumentTimestamp() ).represent();
+			return getPureLiteralCacheEntry( executable, pureLiteral, encoding ).represent();
 		}
 
 		int startPosition = 0;
+		boolean ownsBuffer = false;
+		boolean isOutermost = false;
+		CacheEntry holedCacheEntry = null;
 		Request request = resource.getRequest();
 
 		// Make sure we have a valid writer if not deferred
 		if( !conversationService.isDeferred )
 		{
-			if( writer == null )
+			boolean mayFetch = CachingUtil.mayFetch( request, executable, null );
+
+			if( ( writer == null ) && allowEncoding && attributes.isStreaming() )
 			{
-				StringWriter stringWriter = new StringWriter();
-				Writer bufferedWriter = new BufferedWriter( stringWriter );
-				writerBuffer = stringWriter.getBuffer();
+				// Try fetching from cache
+				if( mayFetch )
+				{
+					Representation representation = cachingUtil.fetchRepresentation( documentDescriptor, null, ScriptletsParser.NAME, request, encoding, null, conversationService );
+					if( representation != null )
+						return representation;
+
+					// Holes would have to be filled before we start streaming,
+					// so we will just execute
+					cachingUtil.getHoledEntry( request );
+				}
+
+				// We will be executed when the representation is written
+				return new GeneratedTextStreamingRepresentation( resource, documentName, includeExtraSources, executionContext, this, conversationService );
+			}
+
+			if( ( writer != null ) && allowEncoding )
+			{
+				// Streaming mode: the writer was given to us by
+				// GeneratedTextStreamingRepresentation
+				teeWriter = new TeeWriter( writer, attributes.getStreamingCaptureSizeLimit() );
+				writerBuffer = teeWriter.getBuffer();
+				ownsBuffer = true;
+				isOutermost = true;
 				StackedWriter stackedWriter = getStackedWriter();
-				stackedWriter.push( bufferedWriter );
+				stackedWriter.push( teeWriter );
+				executionContext.setWriter( stackedWriter );
+				writer = stackedWriter;
+				conversationService.isStreaming = true;
+
+				// We've already tried fetching from the cache, and we will
+				// not be encoding
+				mayFetch = false;
+				encoding = null;
+			}
+			else if( writer == null )
+			{
+				writerBuffer = new ChunkedWriter();
+				ownsBuffer = true;
+				isOutermost = true;
+				StackedWriter stackedWriter = getStackedWriter();
+				stackedWriter.push( writerBuffer );
 				executionContext.setWriter( stackedWriter );
 				writer = stackedWriter;
 			}
@@ -396,20 +1152,31 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 			}
 
 			// Try fetching from cache
-			if( CachingUtil.mayFetch( request, executable, null ) )
+			if( mayFetch )
 			{
 				Representation representation = cachingUtil.fetchRepresentation( documentDescriptor, null, ScriptletsParser.NAME, request, encoding, writer, conversationService );
 				if( representation != null )
 					return representation;
+
+				// A shell with holes will be filled instead of executing
+				holedCacheEntry = cachingUtil.getHoledEntry( request );
+				if( ( holedCacheEntry != null ) && isOutermost )
+					restoreCharacteristics( holedCacheEntry );
 			}
 		}
 
-		// Reset caching attributes
-		CachingUtil.setDuration( executable, null, 0 );
-		CachingUtil.setOnlyGet( executable, null, false );
-		CachingUtil.setKeyTemplate( executable, null, attributes.getDefaultCachingKeyTemplate() );
-		CachingUtil.getTags( executable, null, true ).clear();
+		// Reset caching attributes (but not if we're keeping them from the
+		// execution that created the shell)
+		if( holedCacheEntry == null )
+		{
+			CachingUtil.setDuration( executable, null, 0 );
+			CachingUtil.setOnlyGet( executable, null, false );
+			CachingUtil.setKeyTemplate( executable, null, attributes.getDefaultCachingKeyTemplate() );
+			CachingUtil.getTags( executable, null, true ).clear();
+		}
 
+		int firstAsyncInclude = asyncIncludes.size();
+		int firstHole = holes.size();
 		try
 		{
 			executionContext.getServices().put( attributes.getDocumentServiceName(), this );
@@ -417,8 +1184,21 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 			executionContext.getServices().put( attributes.getApplicationServiceName(), applicationService );
 			executionContext.getServices().put( attributes.getConversationServiceName(), conversationService );
 
-			// Execute!
-			executable.execute( executionContext, this, attributes.getExecutionController() );
+			if( holedCacheEntry != null )
+				// Only the holes need to be executed
+				fillHoles( holedCacheEntry, writer );
+			else if( isOutermost && ( teeWriter == null ) && executable.getAttributes().containsKey( DEFERS_ATTRIBUTE ) )
+				// The executable has asked to defer before, so instead of
+				// executing it here only for it to ask again, we will defer
+				// right away
+				conversationService.defer = true;
+			else
+				// Execute!
+				executable.execute( executionContext, this, attributes.getExecutionController() );
+
+			// Splice in the output of our asynchronous includes (their cache
+			// tags have already been propagated to us)
+			resolveAsyncIncludes( firstAsyncInclude );
 
 			// Propagate cache tags up the stack
 			Set<String> cacheTags = CachingUtil.getTags( executable, null, false );
@@ -429,11 +1209,7 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 			if( conversationService.defer )
 			{
 				conversationService.defer = false;
-
-				// Note that this will cause the executable to execute
-				// again!
-				GeneratedTextResourceDocumentService documentService = new GeneratedTextResourceDocumentService( this );
-				return new GeneratedTextDeferredRepresentation( documentService.resource, executable, documentService.executionContext, documentService, documentService.conversationService );
+				return createDeferredRepresentation( executable );
 			}
 
 			if( conversationService.isDeferred )
@@ -445,26 +1221,51 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 			{
 				writer.flush();
 
+				// Streamed output that exceeded the capture limit cannot be
+				// cached
+				if( ( teeWriter != null ) && teeWriter.isOverflowed() )
+					return new EmptyRepresentation();
+
 				long expirationTimestamp = CachingUtil.getExpirationTimestamp( executable, null );
+				boolean store = ( expirationTimestamp > 0 ) && resource.getResponse().getStatus().isSuccess() && !isUncacheable && ( holedCacheEntry == null );
 
-				// Get the buffer from when we executed the executable
-				CacheEntry cacheEntry = new CacheEntry( writerBuffer.substring( startPosition ), conversationService.getMediaType(), conversationService.getLanguage(), conversationService.getCharacterSet(), null,
-					conversationService.getResponseHeaders(), 0L, null, expirationTimestamp, executable.getDocumentTimestamp() );
+				// With holes, we cache only the shell
+				if( store && ( holes.size() > firstHole ) )
+				{
+					CacheEntry shellCacheEntry = createShellCacheEntry( startPosition, firstHole, expirationTimestamp, executable );
+					cachingUtil.store( shellCacheEntry, shellCacheEntry, documentDescriptor, null, ScriptletsParser.NAME, cacheTags, conversationService );
+					store = false;
+				}
 
 				// Disable encoding for small representations
-				if( cacheEntry.getSize() < attributes.getEncodeSizeThreshold() )
+				if( ( writerBuffer.length() - startPosition ) < attributes.getEncodeSizeThreshold() )
 					encoding = null;
 
+				// If we're not caching or encoding, we can hand the buffer
+				// over to the representation without copying it
+				if( ownsBuffer && !store && ( encoding == null ) && ( teeWriter == null ) )
+				{
+					Representation representation = new ChunkedRepresentation( writerBuffer, conversationService.getMediaType(), conversationService.getLanguage(), conversationService.getCharacterSet() );
+					representation.setModificationDate( new Date() );
+					ownsBuffer = false;
+					return representation;
+				}
+
+				// Get the buffer from when we executed the executable
+				CacheEntry cacheEntry = new CacheEntry( writerBuffer.substring( startPosition ), conversationService.getMediaType(), conversationService.getLanguage(), conversationService.getCharacterSet(), null,
+					conversationService.getResponseHeaders(), 0L, null, expirationTimestamp, executable.getDocumentTimestamp() );
+
 				// Encoded version?
 				CacheEntry encodedCacheEntry = encoding != null ? new CacheEntry( cacheEntry, encoding ) : cacheEntry;
 
 				// Cache successful requests
-				if( ( expirationTimestamp > 0 ) && resource.getResponse().getStatus().isSuccess() )
+				if( store )
 					cachingUtil.store( encodedCacheEntry, cacheEntry, documentDescriptor, null, ScriptletsParser.NAME, cacheTags, conversationService );
 
 				// Make sure we're including the entire buffer for the
-				// representation
-				if( startPosition > 0 )
+				// representation (the streamed representation is discarded
+				// anyway)
+				if( ( startPosition > 0 ) && ( teeWriter == null ) )
 					encodedCacheEntry = new CacheEntry( encodedCacheEntry, writerBuffer.toString() );
 
 				return encodedCacheEntry.represent();
@@ -481,18 +1282,47 @@ public class GeneratedTextResourceDocumentService extends ResourceDocumentServic
 				// ready to defer.
 
 				conversationService.defer = false;
-
-				// Note that this will cause the executable to run again!
-				GeneratedTextResourceDocumentService documentService = new GeneratedTextResourceDocumentService( this );
-				return new GeneratedTextDeferredRepresentation( documentService.resource, executable, documentService.executionContext, documentService, documentService.conversationService );
+				return createDeferredRepresentation( executable );
 			}
 			else
 				throw x;
 		}
 		finally
 		{
+			cancelAsyncIncludes( firstAsyncInclude );
 			writer.flush();
 			executionContext.getErrorWriterOrDefault().flush();
+
+			// Return the buffer's chunks to the pool
+			if( ownsBuffer )
+				writerBuffer.recycle();
+
+			if( isOutermost )
+			{
+				holes.clear();
+				isUncacheable = false;
+			}
 		}
 	}
+
+	/**
+	 * Creates a representation that will execute the executable again, in
+	 * deferred mode.
+	 * <p>
+	 * The executable is marked as one that defers, so that later
+	 * conversations will be deferred without executing it in the request
+	 * thread first. It is thus executed only once per conversation, though
+	 * always in deferred mode, even if it asks to defer only for some
+	 * conversations.
+	 * 
+	 * @param executable
+	 *        The executable
+	 * @return The deferred representation
+	 */
+	private Representation createDeferredRepresentation( Executable executable )
+	{
+		executable.getAttributes().put( DEFERS_ATTRIBUTE, Boolean.TRUE );
+		GeneratedTextResourceDocumentService documentService = new GeneratedTextResourceDocumentService( this );
+		return new GeneratedTextDeferredRepresentation( documentService.resource, executable, documentService.executionContext, documentService, documentService.conversationService );
+	}
 }
\ No newline at end of file
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.test.internal;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.junit.Test;
+
+import com.threecrickets.prudence.util.ChunkedWriter;
+
+/**
+ * Compares the allocation and time of rendering pages into a
+ * {@link StringWriter} and copying it, as was done before, to rendering them
+ * into a pooled {@link ChunkedWriter} and handing it over without copying.
+ * <p>
+ * Allocation is measured per thread where the JVM supports it.
+ * 
+ * @author Tal Liron
+ */
+public class ChunkedWriterBenchmark
+{
+	//
+	// JUnit
+	//
+
+	@Test
+	public void sameOutput() throws IOException
+	{
+		for( int pageSize : PAGE_SIZES )
+		{
+			StringWriter expected = new StringWriter();
+			render( expected, pageSize );
+
+			ChunkedWriter writer = new ChunkedWriter();
+			render( writer, pageSize );
+			StringWriter actual = new StringWriter();
+			writer.writeTo( actual );
+			writer.recycle();
+
+			assertEquals( expected.toString(), actual.toString() );
+		}
+	}
+
+	@Test
+	public void allocation() throws IOException
+	{
+		for( int pageSize : PAGE_SIZES )
+		{
+			// Warm up
+			runStringWriter( pageSize, WARMUP_ITERATIONS );
+			runChunkedWriter( pageSize, WARMUP_ITERATIONS );
+
+			long[] stringWriter = runStringWriter( pageSize, ITERATIONS );
+			long[] chunkedWriter = runChunkedWriter( pageSize, ITERATIONS );
+
+			System.out.println( "Page of " + pageSize + " characters:" );
+			report( "StringWriter", stringWriter );
+			report( "ChunkedWriter", chunkedWriter );
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final int[] PAGE_SIZES = new int[]
+	{
+		1000, 10000, 100000
+	};
+
+	private static final int WARMUP_ITERATIONS = 2000;
+
+	private static final int ITERATIONS = 10000;
+
+	private static final String FRAGMENT = "<li class=\"item\"><a href=\"/catalog/item/\">Item</a></li>\n";
+
+	private static void render( Writer writer, int pageSize ) throws IOException
+	{
+		int length = 0;
+		while( length < pageSize )
+		{
+			int count = Math.min( FRAGMENT.length(), pageSize - length );
+			writer.write( FRAGMENT, 0, count );
+			length += count;
+		}
+	}
+
+	private static long[] runStringWriter( int pageSize, int iterations ) throws IOException
+	{
+		Writer sink = new NullWriter();
+		long allocated = getAllocatedBytes();
+		long time = System.nanoTime();
+		for( int i = 0; i < iterations; i++ )
+		{
+			StringWriter writer = new StringWriter();
+			render( writer, pageSize );
+			sink.write( writer.toString() );
+		}
+		time = System.nanoTime() - time;
+		if( allocated != -1L )
+			allocated = ( getAllocatedBytes() - allocated ) / iterations;
+		return new long[]
+		{
+			time / iterations, allocated
+		};
+	}
+
+	private static long[] runChunkedWriter( int pageSize, int iterations ) throws IOException
+	{
+		Writer sink = new NullWriter();
+		long allocated = getAllocatedBytes();
+		long time = System.nanoTime();
+		for( int i = 0; i < iterations; i++ )
+		{
+			ChunkedWriter writer = new ChunkedWriter();
+			render( writer, pageSize );
+			writer.writeTo( sink );
+			writer.recycle();
+		}
+		time = System.nanoTime() - time;
+		if( allocated != -1L )
+			allocated = ( getAllocatedBytes() - allocated ) / iterations;
+		return new long[]
+		{
+			time / iterations, allocated
+		};
+	}
+
+	private static void report( String name, long[] result )
+	{
+		if( result[1] == -1L )
+			System.out.println( "  " + name + ": " + result[0] + " ns" );
+		else
+			System.out.println( "  " + name + ": " + result[0] + " ns, " + result[1] + " bytes allocated" );
+	}
+
+	private static long getAllocatedBytes()
+	{
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		if( threadMXBean instanceof com.sun.management.ThreadMXBean )
+		{
+			com.sun.management.ThreadMXBean sunThreadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+			if( sunThreadMXBean.isThreadAllocatedMemorySupported() && sunThreadMXBean.isThreadAllocatedMemoryEnabled() )
+				return sunThreadMXBean.getThreadAllocatedBytes( Thread.currentThread().getId() );
+		}
+		return -1L;
+	}
+
+	private static class NullWriter extends Writer
+	{
+		@Override
+		public void write( char[] cbuf, int off, int len )
+		{
+		}
+
+		@Override
+		public void write( String str )
+		{
+		}
+
+		@Override
+		public void flush()
+		{
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.test.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+import com.threecrickets.prudence.internal.CSSMin;
+import com.threecrickets.prudence.internal.CssMinifier;
+
+/**
+ * Compares the time of minifying stylesheets of several sizes with
+ * {@link CSSMin} and with {@link CssMinifier}.
+ * 
+ * @author Tal Liron
+ * @see CssMinifierTest
+ */
+public class CssMinifierBenchmark
+{
+	//
+	// JUnit
+	//
+
+	@Test
+	public void minify() throws IOException
+	{
+		// CSSMin reports problems with our sample rules to the console
+		PrintStream out = System.out;
+		PrintStream err = System.err;
+
+		for( int size : SIZES )
+		{
+			String css = CssMinifierTest.stylesheet( size );
+			int iterations = Math.max( 1, ITERATIONS_SIZE / size );
+
+			long cssMinTime;
+			long cssMinifierTime;
+			System.setOut( new PrintStream( new NullOutputStream() ) );
+			System.setErr( new PrintStream( new NullOutputStream() ) );
+			try
+			{
+				// Warm up
+				for( int i = 0; i < iterations; i++ )
+				{
+					CssMinifierTest.cssMin( css );
+					CssMinifierTest.cssMinifier( css );
+				}
+
+				cssMinTime = System.nanoTime();
+				for( int i = 0; i < iterations; i++ )
+					CssMinifierTest.cssMin( css );
+				cssMinTime = ( System.nanoTime() - cssMinTime ) / iterations;
+
+				cssMinifierTime = System.nanoTime();
+				for( int i = 0; i < iterations; i++ )
+					CssMinifierTest.cssMinifier( css );
+				cssMinifierTime = ( System.nanoTime() - cssMinifierTime ) / iterations;
+			}
+			finally
+			{
+				System.setOut( out );
+				System.setErr( err );
+			}
+
+			System.out.println( "Stylesheet of " + css.length() + " characters:" );
+			System.out.println( "  CSSMin: " + ( cssMinTime / 1000 ) + " us" );
+			System.out.println( "  CssMinifier: " + ( cssMinifierTime / 1000 ) + " us" );
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final int[] SIZES = new int[]
+	{
+		10000, 100000, 800000
+	};
+
+	/**
+	 * The number of characters to minify for each size.
+	 */
+	private static final int ITERATIONS_SIZE = 8000000;
+
+	private static class NullOutputStream extends OutputStream
+	{
+		@Override
+		public void write( int b )
+		{
+		}
+
+		@Override
+		public void write( byte[] b, int off, int len )
+		{
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.test.internal;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.threecrickets.prudence.internal.CSSMin;
+import com.threecrickets.prudence.internal.CssMinifier;
+
+/**
+ * Makes sure that {@link CssMinifier} produces the same output as
+ * {@link CSSMin} for well-formed CSS.
+ * 
+ * @author Tal Liron
+ */
+public class CssMinifierTest
+{
+	//
+	// Static operations
+	//
+
+	public static String cssMin( String css )
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PrintStream printStream = new PrintStream( out );
+		CSSMin.formatFile( new StringReader( css ), printStream );
+		printStream.flush();
+		return out.toString();
+	}
+
+	public static String cssMinifier( String css ) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CssMinifier.minify( new StringReader( css ), out );
+		return out.toString();
+	}
+
+	/**
+	 * A representative stylesheet, built from the corpus and from generated
+	 * rules.
+	 * 
+	 * @param size
+	 *        The minimum size in characters
+	 * @return The stylesheet
+	 */
+	public static String stylesheet( int size )
+	{
+		StringBuilder css = new StringBuilder();
+		Random random = new Random( 0 );
+		while( css.length() < size )
+		{
+			for( String sample : CORPUS )
+				css.append( sample ).append( '\n' );
+			css.append( generate( random ) );
+		}
+		return css.toString();
+	}
+
+	//
+	// JUnit
+	//
+
+	@Test
+	public void corpus() throws IOException
+	{
+		for( String sample : CORPUS )
+			assertEquals( sample, cssMin( sample ), cssMinifier( sample ) );
+	}
+
+	@Test
+	public void generated() throws IOException
+	{
+		Random random = new Random( 0 );
+		for( int i = 0; i < GENERATED; i++ )
+		{
+			String css = generate( random );
+			assertEquals( css, cssMin( css ), cssMinifier( css ) );
+		}
+	}
+
+	@Test
+	public void stylesheet() throws IOException
+	{
+		String css = stylesheet( 100000 );
+		assertEquals( cssMin( css ), cssMinifier( css ) );
+	}
+
+	@Test(expected = IOException.class)
+	public void unterminatedComment() throws IOException
+	{
+		cssMinifier( "a { color: red; } /* unterminated" );
+	}
+
+	@Test(expected = IOException.class)
+	public void unbalancedBraces() throws IOException
+	{
+		cssMinifier( "a { color: red; } } b { color: blue; }" );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final int GENERATED = 5000;
+
+	private static final String[] CORPUS = new String[]
+	{
+		// Whitespace and comments
+		"", "  \n\n  ", "/* Only a comment */", "a{color:red}", "a {\n\tcolor : red ;\n}\n\n\nb { color: blue }",
+		"/* Header */\nbody {\n\tmargin: 0; /* inline */\n\tpadding: 0;\n}\n/* Footer\n   spanning lines */\n",
+		"h1 /* between */ { font-size: 2em }",
+
+		// Selectors
+		"h1, h2 ,h3 , h4 { margin: 0 }", "#main > ul li + li ~ span { display: block }", "a:hover, a:focus { text-decoration: underline }",
+		"p::before { content: \"\\201C\" }", "input[type=\"text\"], input[type='password'] { border: 1px solid #CCCCCC }",
+		"ul li:first-child, ul li:nth-child(2n+1) { color: #333 }", "* { box-sizing: border-box }", ".a.b .c { float: left }",
+
+		// Declaration ordering and values
+		"div { z-index: 10; width: 100px; color: #FFFFFF; background: #000000; border: 0px; }", "a { color: #AABBCC; background-color: #aabbcd }",
+		"a { color: rgb(255, 0, 0); border-color: rgb(0,0,0) }", "a { color: white; background: black; border-color: red }",
+		"strong { font-weight: bold } span { font-weight: normal }", "p { margin: 0px 0em 0% 0in; padding: 0 0 0 0 }", "p { margin: 0.50em 00.5px; line-height: 1.0 }",
+		"p { font: italic bold 12px/30px Georgia, serif }", "p { font-family: 'Helvetica Neue', Helvetica, Arial, sans-serif }",
+		"a { color: red !important; margin: 0 ! important }", "div { background: url( \"images/bg.png\" ) no-repeat 0 0 }", "div { background: url(images/bg.png) }",
+		"div { -webkit-border-radius: 4px; -moz-border-radius: 4px; border-radius: 4px }", "div { filter: progid:DXImageTransform.Microsoft.gradient(startColorstr='#80000000', endColorstr='#80000000') }",
+		"div { color: red;; background: blue; }", "div { }", "div { color: red }\ndiv { color: blue }",
+
+		// At-rules
+		"@charset \"UTF-8\";\na { color: red }", "@import url(\"reset.css\");\n@import 'print.css' print;\nbody { margin: 0 }",
+		"@media screen and (max-width: 600px) {\n\t.menu { display: none }\n\t.content { width: 100% }\n}",
+		"@media print { a { color: #000000 } a:after { content: \" (\" attr(href) \")\" } }",
+		"@font-face {\n\tfont-family: 'MyFont';\n\tsrc: url('myfont.woff') format('woff'), url('myfont.ttf') format('truetype');\n\tfont-weight: normal;\n}",
+		"@-webkit-keyframes spin { from { -webkit-transform: rotate(0deg) } to { -webkit-transform: rotate(360deg) } }",
+		"@page :first { margin: 1in }",
+
+		// A typical page stylesheet
+		"html, body {\n\theight: 100%;\n}\n\nbody {\n\tfont-family: Verdana, sans-serif;\n\tfont-size: 12px;\n\tcolor: #333333;\n\tbackground-color: #FFFFFF;\n}\n\n"
+			+ "#header {\n\tbackground: #336699 url(\"header.png\") repeat-x 0px 0px;\n\theight: 80px;\n}\n\n#header h1 a, #header h1 a:visited {\n\tcolor: white;\n\tfont-weight: bold;\n}\n\n"
+			+ ".note {\n\tborder: 1px solid #DDDDDD;\n\tpadding: 10px 0px 10px 0px;\n\tmargin-bottom: 0.5em;\n}\n"
+	};
+
+	private static final String[] SELECTORS = new String[]
+	{
+		"a", "div.box", "#main > ul li", "a:hover", "p::after", "input[type=\"text\"]", "h1, h2 ,h3", "ul li:first-child", "*", ".a .b+.c"
+	};
+
+	private static final String[] PROPERTIES = new String[]
+	{
+		"color", "background", "margin", "padding", "font-weight", "font", "border", "width", "background-color", "-webkit-border-radius", "z-index", "content"
+	};
+
+	private static final String[] VALUES = new String[]
+	{
+		"#FFFFFF", "#aabbcc", "#abcdef", "#AbC", "rgb(255, 0, 0)", "rgb(0,128,255)", "red", "white", "black", "navy", "bold", "normal", "0px", "0em", "0 0 0 0", "0.5em", "00.25%",
+		"10px 0px", "1px solid #000000", "url(\"img/a b.png\")", "url(img.png)", "none", "'Helvetica Neue', Arial", "100%", "\"\\201C\"", "1", "auto"
+	};
+
+	private static String generate( Random random )
+	{
+		StringBuilder css = new StringBuilder();
+		int rules = 1 + random.nextInt( 4 );
+		for( int r = 0; r < rules; r++ )
+		{
+			boolean media = random.nextInt( 8 ) == 0;
+			if( media )
+				css.append( "@media screen {\n" );
+			if( random.nextInt( 6 ) == 0 )
+				css.append( "/* comment */\n" );
+			css.append( SELECTORS[random.nextInt( SELECTORS.length )] ).append( random.nextBoolean() ? " {" : "{\n" );
+			int declarations = random.nextInt( 6 );
+			for( int d = 0; d < declarations; d++ )
+			{
+				css.append( random.nextBoolean() ? "\t" : " " ).append( PROPERTIES[random.nextInt( PROPERTIES.length )] ).append( random.nextBoolean() ? ": " : ":" );
+				css.append( VALUES[random.nextInt( VALUES.length )] );
+				if( random.nextInt( 10 ) == 0 )
+					css.append( " !important" );
+				// CSSMin expects a semicolon, and otherwise cuts the last
+				// character of the value (and aborts if nothing is left)
+				css.append( ';' ).append( random.nextBoolean() ? "\n" : " " );
+			}
+			css.append( "}\n" );
+			if( media )
+				css.append( "}\n" );
+		}
+		return css.toString();
+	}
+}
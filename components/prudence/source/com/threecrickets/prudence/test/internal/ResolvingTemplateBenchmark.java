@@ -0,0 +1,98 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.test.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.restlet.routing.Template;
+import org.restlet.util.Resolver;
+
+import com.threecrickets.prudence.util.ResolvingTemplate;
+
+/**
+ * Compares the time of formatting typical cache key and routing patterns
+ * with Restlet's {@link Template} and with {@link ResolvingTemplate}.
+ * 
+ * @author Tal Liron
+ * @see ResolvingTemplateTest
+ */
+public class ResolvingTemplateBenchmark
+{
+	//
+	// JUnit
+	//
+
+	@Test
+	public void format()
+	{
+		Resolver<?> resolver = Resolver.createResolver( VALUES );
+
+		for( String pattern : PATTERNS )
+		{
+			Template template = new Template( pattern );
+			ResolvingTemplate resolvingTemplate = new ResolvingTemplate( pattern );
+
+			// Warm up
+			run( template, resolver, WARMUP_ITERATIONS );
+			run( resolvingTemplate, resolver, WARMUP_ITERATIONS );
+
+			long templateTime = run( template, resolver, ITERATIONS );
+			long resolvingTemplateTime = run( resolvingTemplate, resolver, ITERATIONS );
+
+			System.out.println( pattern + ":" );
+			System.out.println( "  Template: " + templateTime + " ns" );
+			System.out.println( "  ResolvingTemplate: " + resolvingTemplateTime + " ns" );
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final String[] PATTERNS = new String[]
+	{
+		"{ri}|{dn}|{nmt}|{nl}|{ne}", "/{application}/resources/{id}/", "/static/style/site.css"
+	};
+
+	private static final int WARMUP_ITERATIONS = 100000;
+
+	private static final int ITERATIONS = 1000000;
+
+	private static final Map<String, Object> VALUES = new HashMap<String, Object>();
+
+	static
+	{
+		VALUES.put( "ri", "http://localhost:8080/myapp/resources/123/" );
+		VALUES.put( "dn", "/resources/item/" );
+		VALUES.put( "nmt", "text/html" );
+		VALUES.put( "nl", "en" );
+		VALUES.put( "ne", "gzip" );
+		VALUES.put( "application", "myapp" );
+		VALUES.put( "id", "123" );
+	}
+
+	private static long run( Template template, Resolver<?> resolver, int iterations )
+	{
+		int length = 0;
+		long time = System.nanoTime();
+		for( int i = 0; i < iterations; i++ )
+			length += template.format( resolver ).length();
+		time = System.nanoTime() - time;
+
+		// Make sure the work is not optimized away
+		if( length == 0 )
+			System.out.print( "" );
+
+		return time / iterations;
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.test.internal;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.restlet.routing.Template;
+import org.restlet.routing.Variable;
+import org.restlet.util.Resolver;
+
+import com.threecrickets.prudence.util.ResolvingTemplate;
+
+/**
+ * Makes sure that {@link ResolvingTemplate} formats exactly like Restlet's
+ * {@link Template}, for compiled and uncompiled patterns alike.
+ * 
+ * @author Tal Liron
+ */
+public class ResolvingTemplateTest
+{
+	//
+	// JUnit
+	//
+
+	@Test
+	public void plain()
+	{
+		for( String pattern : PATTERNS )
+			assertParity( pattern, false, false );
+	}
+
+	@Test
+	public void variableDescriptors()
+	{
+		for( String pattern : PATTERNS )
+			assertParity( pattern, true, false );
+	}
+
+	@Test
+	public void encodingVariables()
+	{
+		for( String pattern : PATTERNS )
+		{
+			assertParity( pattern, false, true );
+			assertParity( pattern, true, true );
+		}
+	}
+
+	@Test
+	public void changedPattern()
+	{
+		Template template = new Template( PATTERNS[0] );
+		ResolvingTemplate resolvingTemplate = new ResolvingTemplate( PATTERNS[0] );
+		Resolver<?> resolver = Resolver.createResolver( VALUES );
+		assertEquals( template.format( resolver ), resolvingTemplate.format( resolver ) );
+
+		// The compiled pattern must not be reused
+		for( String pattern : PATTERNS )
+		{
+			template.setPattern( pattern );
+			resolvingTemplate.setPattern( pattern );
+			assertEquals( pattern, template.format( resolver ), resolvingTemplate.format( resolver ) );
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final String[] PATTERNS = new String[]
+	{
+		"", "/static/path/", "{a}", "/{a}/{b}.html", "{a}{b}", "prefix-{a}-suffix", "/{missing}/{a}", "/{encoded}/", "/{number}/{empty}", "{a}/{a}/{a}",
+		// Patterns Restlet warns about, which are not compiled
+		"/{}/{a}", "/{a", "/a}/{b}", "/{a b}/", "{a/b}"
+	};
+
+	private static final Map<String, Object> VALUES = new HashMap<String, Object>();
+
+	static
+	{
+		VALUES.put( "a", "alpha" );
+		VALUES.put( "b", "beta" );
+		VALUES.put( "encoded", "a b/c?d&e=\u00e9" );
+		VALUES.put( "number", 42 );
+		VALUES.put( "empty", "" );
+	}
+
+	private static void assertParity( String pattern, boolean withVariables, boolean encodingVariables )
+	{
+		Template template = new Template( pattern, Template.MODE_STARTS_WITH, Variable.TYPE_ALL, "", true, false, encodingVariables );
+		ResolvingTemplate resolvingTemplate = new ResolvingTemplate( pattern, Template.MODE_STARTS_WITH, Variable.TYPE_ALL, "", true, false, encodingVariables );
+
+		if( withVariables )
+		{
+			addVariables( template );
+			addVariables( resolvingTemplate );
+		}
+
+		String message = pattern + ( withVariables ? " with variables" : "" ) + ( encodingVariables ? " encoding variables" : "" );
+
+		Resolver<?> resolver = Resolver.createResolver( VALUES );
+		assertEquals( message, template.format( resolver ), resolvingTemplate.format( resolver ) );
+
+		// Again, now that the pattern is compiled
+		assertEquals( message, template.format( resolver ), resolvingTemplate.format( resolver ) );
+
+		assertEquals( message, template.format( VALUES ), resolvingTemplate.format( VALUES ) );
+	}
+
+	private static void addVariables( Template template )
+	{
+		Variable encoded = new Variable( Variable.TYPE_ALL );
+		encoded.setEncodingOnFormat( true );
+		template.getVariables().put( "encoded", encoded );
+
+		template.getVariables().put( "missing", new Variable( Variable.TYPE_ALL, "fallback", false, false ) );
+
+		Variable encodedMissing = new Variable( Variable.TYPE_ALL, "x y", false, false );
+		encodedMissing.setEncodingOnFormat( true );
+		template.getVariables().put( "b", encodedMissing );
+
+		template.setDefaultVariable( new Variable( Variable.TYPE_ALL, "default", false, false ) );
+	}
+}
@@ -0,0 +1,540 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.util;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.restlet.data.Encoding;
+import org.restlet.engine.application.EncodeRepresentation;
+import org.restlet.representation.Representation;
+
+/**
+ * Compresses representations with {@link Encoding#GZIP}, reusing
+ * {@link Deflater} instances and lowering the compression level while the
+ * machine is busy.
+ * <p>
+ * The machine is considered busy when either the system load average or the
+ * number of responses being compressed at once, per available processor,
+ * exceeds {@link #getBusyLoad()}. The level then drops linearly from
+ * {@link #getLevel()}, reaching {@link #getMinimumLevel()} at twice the busy
+ * load.
+ * <p>
+ * Counters for the bytes saved and the CPU time spent compressing can be used
+ * to judge whether compression is worth it.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @author Tal Liron
+ * @see CustomEncoder
+ */
+public class AdaptiveCompressor
+{
+	//
+	// Constants
+	//
+
+	/**
+	 * The default compression level (the zlib default).
+	 */
+	public static final int DEFAULT_LEVEL = 6;
+
+	/**
+	 * The default busy load per processor.
+	 */
+	public static final double DEFAULT_BUSY_LOAD = 1.0;
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The compression level used when the machine is not busy.
+	 * 
+	 * @return The level, from {@link Deflater#BEST_SPEED} to
+	 *         {@link Deflater#BEST_COMPRESSION}
+	 */
+	public int getLevel()
+	{
+		return level;
+	}
+
+	/**
+	 * @param level
+	 *        The level
+	 * @see #getLevel()
+	 */
+	public void setLevel( int level )
+	{
+		this.level = level;
+	}
+
+	/**
+	 * The lowest compression level used when the machine is busy.
+	 * 
+	 * @return The minimum level
+	 */
+	public int getMinimumLevel()
+	{
+		return minimumLevel;
+	}
+
+	/**
+	 * @param minimumLevel
+	 *        The minimum level
+	 * @see #getMinimumLevel()
+	 */
+	public void setMinimumLevel( int minimumLevel )
+	{
+		this.minimumLevel = minimumLevel;
+	}
+
+	/**
+	 * The load per processor above which the compression level is lowered.
+	 * 
+	 * @return The busy load
+	 */
+	public double getBusyLoad()
+	{
+		return busyLoad;
+	}
+
+	/**
+	 * @param busyLoad
+	 *        The busy load
+	 * @see #getBusyLoad()
+	 */
+	public void setBusyLoad( double busyLoad )
+	{
+		this.busyLoad = busyLoad;
+	}
+
+	/**
+	 * Whether the compression level is lowered when the machine is busy.
+	 * 
+	 * @return True if adaptive
+	 */
+	public boolean isAdaptive()
+	{
+		return adaptive;
+	}
+
+	/**
+	 * @param adaptive
+	 *        True if adaptive
+	 * @see #isAdaptive()
+	 */
+	public void setAdaptive( boolean adaptive )
+	{
+		this.adaptive = adaptive;
+	}
+
+	/**
+	 * The compression level that would be used for a response starting now.
+	 * 
+	 * @return The level
+	 */
+	public int getCurrentLevel()
+	{
+		int level = this.level;
+		if( !adaptive )
+			return level;
+
+		double busyLoad = this.busyLoad;
+		double load = Math.max( getSystemLoad(), (double) active.get() / PROCESSORS );
+		if( load <= busyLoad )
+			return level;
+
+		int minimumLevel = Math.min( this.minimumLevel, level );
+		double excess = Math.min( ( load - busyLoad ) / busyLoad, 1.0 );
+		return level - (int) Math.round( ( level - minimumLevel ) * excess );
+	}
+
+	/**
+	 * The number of responses compressed.
+	 * 
+	 * @return The count
+	 */
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	/**
+	 * The total size of responses before compression.
+	 * 
+	 * @return The number of bytes
+	 */
+	public long getUncompressedBytes()
+	{
+		return uncompressedBytes.get();
+	}
+
+	/**
+	 * The total size of responses after compression.
+	 * 
+	 * @return The number of bytes
+	 */
+	public long getCompressedBytes()
+	{
+		return compressedBytes.get();
+	}
+
+	/**
+	 * The number of bytes saved by compression.
+	 * 
+	 * @return The number of bytes
+	 */
+	public long getBytesSaved()
+	{
+		return uncompressedBytes.get() - compressedBytes.get();
+	}
+
+	/**
+	 * The CPU time spent compressing and writing compressed data, or the
+	 * elapsed time if the JVM does not support measuring CPU time.
+	 * 
+	 * @return The time in nanoseconds
+	 */
+	public long getCpuTime()
+	{
+		return cpuTime.get();
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Wraps a representation so that it is compressed when written.
+	 * 
+	 * @param representation
+	 *        The representation
+	 * @return The compressed representation
+	 */
+	public Representation encode( Representation representation )
+	{
+		return new CompressedRepresentation( representation );
+	}
+
+	/**
+	 * Resets the counters.
+	 */
+	public void resetCounters()
+	{
+		count.set( 0 );
+		uncompressedBytes.set( 0 );
+		compressedBytes.set( 0 );
+		cpuTime.set( 0 );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The number of available processors.
+	 */
+	private static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The minimum time between samples of the system load average.
+	 */
+	private static final long LOAD_SAMPLE_INTERVAL = 1000L;
+
+	/**
+	 * The size of the buffer in front of the compressor.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * The header of a GZIP stream without a filename or timestamp.
+	 */
+	private static final byte[] GZIP_HEADER =
+	{
+		0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+	};
+
+	/**
+	 * Used for the system load average.
+	 */
+	private static final OperatingSystemMXBean OPERATING_SYSTEM = ManagementFactory.getOperatingSystemMXBean();
+
+	/**
+	 * Used for CPU time.
+	 */
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	/**
+	 * The number of responses being compressed by all instances.
+	 */
+	private static final AtomicInteger active = new AtomicInteger();
+
+	/**
+	 * The last sample of the system load average per processor.
+	 */
+	private static volatile double systemLoad;
+
+	/**
+	 * When the system load average was last sampled.
+	 */
+	private static volatile long systemLoadTimestamp;
+
+	/**
+	 * The compression level.
+	 */
+	private volatile int level = DEFAULT_LEVEL;
+
+	/**
+	 * The minimum compression level.
+	 */
+	private volatile int minimumLevel = Deflater.BEST_SPEED;
+
+	/**
+	 * The busy load per processor.
+	 */
+	private volatile double busyLoad = DEFAULT_BUSY_LOAD;
+
+	/**
+	 * Whether the level is lowered when the machine is busy.
+	 */
+	private volatile boolean adaptive = true;
+
+	/**
+	 * Idle deflaters.
+	 */
+	private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+	/**
+	 * The number of idle deflaters.
+	 */
+	private final AtomicInteger idle = new AtomicInteger();
+
+	/**
+	 * The number of responses compressed.
+	 */
+	private final AtomicLong count = new AtomicLong();
+
+	/**
+	 * The total size of responses before compression.
+	 */
+	private final AtomicLong uncompressedBytes = new AtomicLong();
+
+	/**
+	 * The total size of responses after compression.
+	 */
+	private final AtomicLong compressedBytes = new AtomicLong();
+
+	/**
+	 * The CPU time spent compressing.
+	 */
+	private final AtomicLong cpuTime = new AtomicLong();
+
+	/**
+	 * The system load average per processor, sampled at most once per
+	 * {@link #LOAD_SAMPLE_INTERVAL}.
+	 * 
+	 * @return The load, or 0 if not available
+	 */
+	private static double getSystemLoad()
+	{
+		long now = System.currentTimeMillis();
+		if( now - systemLoadTimestamp > LOAD_SAMPLE_INTERVAL )
+		{
+			systemLoadTimestamp = now;
+			double load = OPERATING_SYSTEM.getSystemLoadAverage();
+			systemLoad = load > 0 ? load / PROCESSORS : 0;
+		}
+		return systemLoad;
+	}
+
+	/**
+	 * The CPU time of the current thread.
+	 * 
+	 * @return The time in nanoseconds
+	 */
+	private static long getThreadTime()
+	{
+		if( THREADS.isCurrentThreadCpuTimeSupported() )
+		{
+			long time = THREADS.getCurrentThreadCpuTime();
+			if( time != -1 )
+				return time;
+		}
+		return System.nanoTime();
+	}
+
+	/**
+	 * Gets an idle deflater or creates a new one.
+	 * 
+	 * @param level
+	 *        The compression level
+	 * @return The deflater
+	 */
+	private Deflater acquire( int level )
+	{
+		Deflater deflater = deflaters.poll();
+		if( deflater == null )
+			return new Deflater( level, true );
+		idle.decrementAndGet();
+		deflater.setLevel( level );
+		return deflater;
+	}
+
+	/**
+	 * Returns a deflater to the idle pool, keeping at most one per processor.
+	 * 
+	 * @param deflater
+	 *        The deflater
+	 */
+	private void release( Deflater deflater )
+	{
+		if( idle.incrementAndGet() <= PROCESSORS )
+		{
+			deflater.reset();
+			deflaters.offer( deflater );
+		}
+		else
+		{
+			idle.decrementAndGet();
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Compresses a representation.
+	 * 
+	 * @param representation
+	 *        The representation
+	 * @param outputStream
+	 *        The output stream
+	 * @throws IOException
+	 *         In case of a reading or writing error
+	 */
+	private void write( Representation representation, OutputStream outputStream ) throws IOException
+	{
+		active.incrementAndGet();
+		Deflater deflater = acquire( getCurrentLevel() );
+		GzipOutputStream gzip = new GzipOutputStream( outputStream, deflater );
+		try
+		{
+			BufferedOutputStream buffered = new BufferedOutputStream( gzip, BUFFER_SIZE );
+			representation.write( buffered );
+			buffered.flush();
+			gzip.finish();
+
+			count.incrementAndGet();
+			uncompressedBytes.addAndGet( deflater.getBytesRead() );
+			compressedBytes.addAndGet( deflater.getBytesWritten() + GZIP_HEADER.length + GzipOutputStream.TRAILER_LENGTH );
+		}
+		finally
+		{
+			cpuTime.addAndGet( gzip.time );
+			release( deflater );
+			active.decrementAndGet();
+		}
+	}
+
+	/**
+	 * A representation compressed by this compressor.
+	 */
+	private class CompressedRepresentation extends EncodeRepresentation
+	{
+		private CompressedRepresentation( Representation representation )
+		{
+			super( Encoding.GZIP, representation );
+		}
+
+		@Override
+		public void write( OutputStream outputStream ) throws IOException
+		{
+			if( canEncode() )
+				AdaptiveCompressor.this.write( getWrappedRepresentation(), outputStream );
+			else
+				super.write( outputStream );
+		}
+	}
+
+	/**
+	 * A GZIP output stream using a given deflater, which it does not end.
+	 * Measures the CPU time spent in it.
+	 */
+	private static class GzipOutputStream extends DeflaterOutputStream
+	{
+		private static final int TRAILER_LENGTH = 8;
+
+		private GzipOutputStream( OutputStream out, Deflater deflater ) throws IOException
+		{
+			super( out, deflater, BUFFER_SIZE );
+			out.write( GZIP_HEADER );
+		}
+
+		@Override
+		public void write( byte[] b, int off, int len ) throws IOException
+		{
+			long start = getThreadTime();
+			try
+			{
+				super.write( b, off, len );
+				crc.update( b, off, len );
+			}
+			finally
+			{
+				time += getThreadTime() - start;
+			}
+		}
+
+		@Override
+		public void finish() throws IOException
+		{
+			if( finished )
+				return;
+			finished = true;
+
+			long start = getThreadTime();
+			try
+			{
+				super.finish();
+				writeInt( (int) crc.getValue() );
+				writeInt( (int) def.getBytesRead() );
+			}
+			finally
+			{
+				time += getThreadTime() - start;
+			}
+		}
+
+		private void writeInt( int i ) throws IOException
+		{
+			// Little endian
+			out.write( i & 0xff );
+			out.write( ( i >> 8 ) & 0xff );
+			out.write( ( i >> 16 ) & 0xff );
+			out.write( ( i >> 24 ) & 0xff );
+		}
+
+		private final CRC32 crc = new CRC32();
+
+		private boolean finished;
+
+		private long time;
+	}
+}
@@ -0,0 +1,429 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of fingerprinted copies of generated assets, such as those
+ * written by {@link UnifyMinifyFilter}, {@link LessFilter} and
+ * {@link ZussFilter}.
+ * <p>
+ * A fingerprinted copy has a digest of its content inserted into its
+ * filename, for example "all.min.js" becomes "all.0123456789ab.min.js". Since
+ * its content can never change, it can be cached by clients forever (see
+ * {@link CacheControlFilter#getFingerprintedMaxAge()}). Use
+ * {@link #get(String)} to emit the URL of the current version.
+ * <p>
+ * Assets are registered after they are first generated, so until then
+ * {@link #get(String)} returns the original path, which is always valid.
+ * Because clients might still have pages referring to previous fingerprinted
+ * copies, the most recent ones are kept (see {@link #getRetainedCopies()}),
+ * and older ones are deleted.
+ * <p>
+ * Only filenames of copies created or kept by the manifest are considered
+ * fingerprinted by {@link #isFingerprintedCopy(String)}, so that other names
+ * that happen to look fingerprinted are not cached forever.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @author Tal Liron
+ */
+public class AssetManifest
+{
+	//
+	// Constants
+	//
+
+	/**
+	 * The number of hexadecimal digits in fingerprints.
+	 */
+	public static final int FINGERPRINT_LENGTH = 12;
+
+	//
+	// Static operations
+	//
+
+	/**
+	 * Inserts a fingerprint into a filename, before the extension and before
+	 * the ".min" pre-extension if there is one.
+	 * 
+	 * @param name
+	 *        The filename
+	 * @param fingerprint
+	 *        The fingerprint
+	 * @return The fingerprinted filename
+	 */
+	public static String addFingerprint( String name, String fingerprint )
+	{
+		int dot = getFingerprintIndex( name );
+		if( dot == -1 )
+			return name + '.' + fingerprint;
+		return name.substring( 0, dot ) + '.' + fingerprint + name.substring( dot );
+	}
+
+	/**
+	 * Removes the fingerprint from a filename.
+	 * 
+	 * @param name
+	 *        The filename
+	 * @return The filename without the fingerprint, or null if it is not
+	 *         fingerprinted
+	 */
+	public static String removeFingerprint( String name )
+	{
+		int dot = name.indexOf( '.' );
+		while( dot != -1 )
+		{
+			int end = dot + 1 + FINGERPRINT_LENGTH;
+			if( ( end <= name.length() ) && ( ( end == name.length() ) || ( name.charAt( end ) == '.' ) ) && isHex( name, dot + 1, end ) )
+				return name.substring( 0, dot ) + name.substring( end );
+			dot = name.indexOf( '.', dot + 1 );
+		}
+		return null;
+	}
+
+	/**
+	 * Whether a filename is fingerprinted.
+	 * 
+	 * @param name
+	 *        The filename or null
+	 * @return True if fingerprinted
+	 */
+	public static boolean isFingerprinted( String name )
+	{
+		return ( name != null ) && ( removeFingerprint( name ) != null );
+	}
+
+	/**
+	 * Creates a fingerprint from an MD5 digest of the bytes.
+	 * 
+	 * @param bytes
+	 *        The bytes
+	 * @return The fingerprint
+	 */
+	public static String createFingerprint( byte[] bytes )
+	{
+		byte[] digest;
+		try
+		{
+			digest = MessageDigest.getInstance( "MD5" ).digest( bytes );
+		}
+		catch( NoSuchAlgorithmException x )
+		{
+			// MD5 is required of all JVMs
+			throw new RuntimeException( x );
+		}
+
+		char[] chars = new char[FINGERPRINT_LENGTH];
+		for( int i = 0; i < FINGERPRINT_LENGTH / 2; i++ )
+		{
+			chars[i * 2] = HEX[( digest[i] >> 4 ) & 0xF];
+			chars[i * 2 + 1] = HEX[digest[i] & 0xF];
+		}
+		return new String( chars );
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The number of fingerprinted copies kept per asset, including the
+	 * current one. Defaults to 3.
+	 * 
+	 * @return The number of retained copies
+	 */
+	public int getRetainedCopies()
+	{
+		return retainedCopies;
+	}
+
+	/**
+	 * @param retainedCopies
+	 *        The number of retained copies
+	 * @see #getRetainedCopies()
+	 */
+	public void setRetainedCopies( int retainedCopies )
+	{
+		this.retainedCopies = Math.max( retainedCopies, 1 );
+	}
+
+	/**
+	 * Whether a filename is that of a fingerprinted copy created or kept by
+	 * this manifest.
+	 * 
+	 * @param name
+	 *        The filename or null
+	 * @return True if a fingerprinted copy
+	 */
+	public boolean isFingerprintedCopy( String name )
+	{
+		return ( name != null ) && fingerprintedNames.contains( name );
+	}
+
+	/**
+	 * The path of the current fingerprinted copy of an asset.
+	 * 
+	 * @param path
+	 *        The path of the asset (for example: "/style/all.min.css")
+	 * @return The fingerprinted path (for example:
+	 *         "/style/all.0123456789ab.min.css"), or the path itself if the
+	 *         asset has not been registered
+	 */
+	public String get( String path )
+	{
+		Entry entry = entries.get( path );
+		return entry != null ? entry.fingerprintedPath : path;
+	}
+
+	/**
+	 * A snapshot of all registered assets.
+	 * 
+	 * @return A map of paths to fingerprinted paths
+	 */
+	public Map<String, String> getPaths()
+	{
+		HashMap<String, String> paths = new HashMap<String, String>();
+		for( Map.Entry<String, Entry> entry : entries.entrySet() )
+			paths.put( entry.getKey(), entry.getValue().fingerprintedPath );
+		return paths;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Registers an asset, creating a fingerprinted copy of the file next to it
+	 * if necessary. Does nothing if the file has not changed since it was last
+	 * registered.
+	 * 
+	 * @param path
+	 *        The path of the asset
+	 * @param file
+	 *        The asset file
+	 * @return The fingerprinted path
+	 * @throws IOException
+	 *         In case of a filesystem error
+	 */
+	public String register( String path, File file ) throws IOException
+	{
+		long lastModified = file.lastModified();
+		long size = file.length();
+		Entry entry = entries.get( path );
+		if( ( entry != null ) && ( entry.lastModified == lastModified ) && ( entry.size == size ) )
+			return entry.fingerprintedPath;
+
+		byte[] content = Files.readAllBytes( file.toPath() );
+		String fingerprint = createFingerprint( content );
+
+		File fingerprintedFile = new File( file.getParentFile(), addFingerprint( file.getName(), fingerprint ) );
+		if( !fingerprintedFile.exists() )
+		{
+			// Write to a temporary file first, so that clients never see a
+			// partial copy
+			Path temporaryFile = Files.createTempFile( file.getParentFile().toPath(), "." + fingerprintedFile.getName() + ".", ".tmp" );
+			try
+			{
+				Files.write( temporaryFile, content );
+				if( !temporaryFile.toFile().setLastModified( lastModified ) )
+					throw new IOException( "Could not update timestamp on file: " + temporaryFile );
+				try
+				{
+					Files.move( temporaryFile, fingerprintedFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+				}
+				catch( AtomicMoveNotSupportedException x )
+				{
+					Files.move( temporaryFile, fingerprintedFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+				}
+			}
+			finally
+			{
+				Files.deleteIfExists( temporaryFile );
+			}
+		}
+
+		fingerprintedNames.add( fingerprintedFile.getName() );
+		prune( file, fingerprintedFile );
+
+		int slash = path.lastIndexOf( '/' );
+		String fingerprintedPath = path.substring( 0, slash + 1 ) + addFingerprint( path.substring( slash + 1 ), fingerprint );
+		entries.put( path, new Entry( lastModified, size, fingerprintedPath ) );
+		return fingerprintedPath;
+	}
+
+	/**
+	 * Unregisters an asset. Its fingerprinted copies are not deleted, and are
+	 * still considered fingerprinted.
+	 * 
+	 * @param path
+	 *        The path of the asset
+	 */
+	public void unregister( String path )
+	{
+		entries.remove( path );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * Hexadecimal digits.
+	 */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * The registered assets.
+	 */
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * The filenames of fingerprinted copies.
+	 */
+	private final Set<String> fingerprintedNames = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+
+	/**
+	 * The number of fingerprinted copies kept per asset.
+	 */
+	private volatile int retainedCopies = 3;
+
+	/**
+	 * Deletes the oldest fingerprinted copies of an asset, keeping the most
+	 * recent ones. The current copy is always kept.
+	 * 
+	 * @param file
+	 *        The asset file
+	 * @param fingerprintedFile
+	 *        The current fingerprinted copy
+	 */
+	private void prune( File file, File fingerprintedFile )
+	{
+		String name = file.getName();
+		File[] siblings = file.getParentFile().listFiles();
+		if( siblings == null )
+			return;
+
+		List<File> copies = new ArrayList<File>();
+		for( File sibling : siblings )
+			if( !sibling.equals( fingerprintedFile ) && name.equals( removeFingerprint( sibling.getName() ) ) )
+				copies.add( sibling );
+
+		// Most recent first
+		Collections.sort( copies, new Comparator<File>()
+		{
+			public int compare( File file1, File file2 )
+			{
+				long lastModified1 = file1.lastModified();
+				long lastModified2 = file2.lastModified();
+				return lastModified1 > lastModified2 ? -1 : ( lastModified1 == lastModified2 ? 0 : 1 );
+			}
+		} );
+
+		int retained = retainedCopies - 1;
+		for( int i = 0, size = copies.size(); i < size; i++ )
+		{
+			File copy = copies.get( i );
+			if( i < retained )
+				fingerprintedNames.add( copy.getName() );
+			else
+			{
+				fingerprintedNames.remove( copy.getName() );
+				copy.delete();
+			}
+		}
+	}
+
+	/**
+	 * Where to insert a fingerprint into a filename.
+	 * 
+	 * @param name
+	 *        The filename
+	 * @return The index of the dot before the extension, or -1
+	 */
+	private static int getFingerprintIndex( String name )
+	{
+		int dot = name.lastIndexOf( '.' );
+		if( dot > 0 )
+		{
+			int previous = name.lastIndexOf( '.', dot - 1 );
+			if( ( previous > 0 ) && name.substring( previous, dot ).equals( ".min" ) )
+				return previous;
+		}
+		return dot;
+	}
+
+	/**
+	 * Whether a part of a string is made of lowercase hexadecimal digits.
+	 * 
+	 * @param string
+	 *        The string
+	 * @param start
+	 *        The start index
+	 * @param end
+	 *        The end index
+	 * @return True if hexadecimal
+	 */
+	private static boolean isHex( String string, int start, int end )
+	{
+		for( int i = start; i < end; i++ )
+		{
+			char c = string.charAt( i );
+			if( ( ( c < '0' ) || ( c > '9' ) ) && ( ( c < 'a' ) || ( c > 'f' ) ) )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A registered asset.
+	 */
+	private static class Entry
+	{
+		private Entry( long lastModified, long size, String fingerprintedPath )
+		{
+			this.lastModified = lastModified;
+			this.size = size;
+			this.fingerprintedPath = fingerprintedPath;
+		}
+
+		/**
+		 * The asset file's modification timestamp.
+		 */
+		private final long lastModified;
+
+		/**
+		 * The asset file's size.
+		 */
+		private final long size;
+
+		/**
+		 * The fingerprinted path.
+		 */
+		private final String fingerprintedPath;
+	}
+}
@@ -26,6 +26,10 @@ import org.restlet.routing.Filter;
 
 /**
  * A {@link Filter} that adds cache control directives to responses.
+ * <p>
+ * If an {@link AssetManifest} is set, successful responses for its
+ * fingerprinted copies are marked as immutable, with
+ * {@link #getFingerprintedMaxAge()}, regardless of their media type.
  * 
  * @author Tal Liron
  */
@@ -40,6 +44,12 @@ public class CacheControlFilter extends Filter
 	 */
 	public static int FAR_FUTURE = 10 * 365 * 24 * 60 * 60;
 
+	/**
+	 * The max age for immutable responses (1 year, the maximum recommended by
+	 * HTTP)
+	 */
+	public static int IMMUTABLE = 365 * 24 * 60 * 60;
+
 	//
 	// Construction
 	//
@@ -134,6 +144,47 @@ public class CacheControlFilter extends Filter
 		this.defaultMaxAge = defaultMaxAge;
 	}
 
+	/**
+	 * @return The max age for fingerprinted assets, in seconds, or a
+	 *         non-positive number to treat them like other responses
+	 * @see #setFingerprintedMaxAge(int)
+	 */
+	public int getFingerprintedMaxAge()
+	{
+		return fingerprintedMaxAge;
+	}
+
+	/**
+	 * @param fingerprintedMaxAge
+	 *        The max age for fingerprinted assets, in seconds, or a
+	 *        non-positive number to treat them like other responses
+	 * @see #getFingerprintedMaxAge()
+	 */
+	public void setFingerprintedMaxAge( int fingerprintedMaxAge )
+	{
+		this.fingerprintedMaxAge = fingerprintedMaxAge;
+	}
+
+	/**
+	 * The asset manifest whose fingerprinted copies are immutable.
+	 * 
+	 * @return The asset manifest or null
+	 */
+	public AssetManifest getAssetManifest()
+	{
+		return assetManifest;
+	}
+
+	/**
+	 * @param assetManifest
+	 *        The asset manifest or null
+	 * @see #getAssetManifest()
+	 */
+	public void setAssetManifest( AssetManifest assetManifest )
+	{
+		this.assetManifest = assetManifest;
+	}
+
 	// //////////////////////////////////////////////////////////////////////////
 	// Protected
 
@@ -146,6 +197,20 @@ public class CacheControlFilter extends Filter
 	{
 		if( response.isEntityAvailable() )
 		{
+			int fingerprintedMaxAge = this.fingerprintedMaxAge;
+			AssetManifest assetManifest = this.assetManifest;
+			if( ( fingerprintedMaxAge > 0 ) && ( assetManifest != null ) && response.getStatus().isSuccess() && assetManifest.isFingerprintedCopy( request.getResourceRef().getLastSegment( true, false ) ) )
+			{
+				// Fingerprinted content never changes
+				List<CacheDirective> cacheDirectives = response.getCacheDirectives();
+				cacheDirectives.clear();
+				cacheDirectives.add( CacheDirective.publicInfo() );
+				cacheDirectives.add( CacheDirective.maxAge( fingerprintedMaxAge ) );
+				cacheDirectives.add( new CacheDirective( IMMUTABLE_DIRECTIVE ) );
+				response.getEntity().setExpirationDate( new Date( System.currentTimeMillis() + 1000L * fingerprintedMaxAge ) );
+				return;
+			}
+
 			MediaType mediaType = response.getEntity().getMediaType();
 			Number maxAgeNumber = null;
 			for( Map.Entry<MediaType, Number> entry : maxAgeForMediaType.entrySet() )
@@ -203,6 +268,21 @@ public class CacheControlFilter extends Filter
 	 */
 	private int defaultMaxAge = -1;
 
+	/**
+	 * Max age for fingerprinted assets.
+	 */
+	private volatile int fingerprintedMaxAge = IMMUTABLE;
+
+	/**
+	 * The asset manifest.
+	 */
+	private volatile AssetManifest assetManifest;
+
+	/**
+	 * The "immutable" cache directive (RFC 8246).
+	 */
+	private static final String IMMUTABLE_DIRECTIVE = "immutable";
+
 	/**
 	 * Add description.
 	 */
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.util;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.restlet.data.CharacterSet;
+import org.restlet.data.Language;
+import org.restlet.data.MediaType;
+import org.restlet.representation.WriterRepresentation;
+
+/**
+ * A representation that writes the content of a {@link ChunkedWriter} without
+ * copying it into a string first. The writer is recycled when the
+ * representation is released.
+ * 
+ * @author Tal Liron
+ */
+public class ChunkedRepresentation extends WriterRepresentation
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param chunkedWriter
+	 *        The chunked writer
+	 * @param mediaType
+	 *        The media type
+	 * @param language
+	 *        The language or null
+	 * @param characterSet
+	 *        The character set
+	 */
+	public ChunkedRepresentation( ChunkedWriter chunkedWriter, MediaType mediaType, Language language, CharacterSet characterSet )
+	{
+		super( mediaType );
+		this.chunkedWriter = chunkedWriter;
+		if( language != null )
+			getLanguages().add( language );
+		setCharacterSet( characterSet );
+	}
+
+	//
+	// WriterRepresentation
+	//
+
+	@Override
+	public void write( Writer writer ) throws IOException
+	{
+		chunkedWriter.writeTo( writer );
+	}
+
+	@Override
+	public void release()
+	{
+		chunkedWriter.recycle();
+		super.release();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The chunked writer.
+	 */
+	private final ChunkedWriter chunkedWriter;
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import com.threecrickets.prudence.service.GeneratedTextResourceDocumentService;
+
+/**
+ * An unsynchronized alternative to {@link StringWriter} that stores its
+ * content in a list of fixed-size character chunks, so that content is never
+ * copied when growing. Chunks are taken from and returned to a small
+ * per-thread pool via {@link #recycle()}.
+ * <p>
+ * The pool keeps at most {@link #MAX_POOLED_CHUNKS} chunks per thread, which
+ * is 32 KB of retained memory per thread that has used a writer (16K
+ * characters). Chunks beyond that are left to the garbage collector, so
+ * output larger than the pool still allocates.
+ * <p>
+ * Instances are not thread safe.
+ * 
+ * @author Tal Liron
+ * @see ChunkedRepresentation
+ * @see GeneratedTextResourceDocumentService
+ */
+public class ChunkedWriter extends Writer
+{
+	//
+	// Constants
+	//
+
+	/**
+	 * The size in characters of each chunk.
+	 */
+	public static final int CHUNK_SIZE = 4096;
+
+	/**
+	 * The maximum number of chunks pooled per thread. Each pooled chunk
+	 * retains 8 KB of memory.
+	 */
+	public static final int MAX_POOLED_CHUNKS = 4;
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 */
+	public ChunkedWriter()
+	{
+		super();
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The number of characters written.
+	 * 
+	 * @return The length
+	 */
+	public int length()
+	{
+		return length;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * The content from a position until the end.
+	 * 
+	 * @param start
+	 *        The start position
+	 * @return The content
+	 */
+	public String substring( int start )
+	{
+		if( ( start < 0 ) || ( start > length ) )
+			throw new StringIndexOutOfBoundsException( start );
+
+		char[] chars = new char[length - start];
+		int position = 0;
+		int chunkIndex = start / CHUNK_SIZE;
+		int offset = start % CHUNK_SIZE;
+		while( position < chars.length )
+		{
+			int count = Math.min( CHUNK_SIZE - offset, chars.length - position );
+			System.arraycopy( chunks.get( chunkIndex++ ), offset, chars, position, count );
+			position += count;
+			offset = 0;
+		}
+
+		return new String( chars );
+	}
+
+	/**
+	 * Writes the entire content to another writer, chunk by chunk, without
+	 * copying.
+	 * 
+	 * @param writer
+	 *        The writer
+	 * @throws IOException
+	 *         In case of a writing error
+	 */
+	public void writeTo( Writer writer ) throws IOException
+	{
+		int remaining = length;
+		for( char[] chunk : chunks )
+		{
+			int count = Math.min( CHUNK_SIZE, remaining );
+			writer.write( chunk, 0, count );
+			remaining -= count;
+		}
+	}
+
+	/**
+	 * Discards the content after a position, returning unused chunks to the
+	 * pool of the current thread. Writing continues from the position.
+	 * 
+	 * @param newLength
+	 *        The new length
+	 */
+	public void truncate( int newLength )
+	{
+		if( ( newLength < 0 ) || ( newLength > length ) )
+			throw new StringIndexOutOfBoundsException( newLength );
+
+		int chunkCount = ( newLength + CHUNK_SIZE - 1 ) / CHUNK_SIZE;
+		ArrayDeque<char[]> pool = POOL.get();
+		while( chunks.size() > chunkCount )
+		{
+			char[] chunk = chunks.remove( chunks.size() - 1 );
+			if( pool.size() < MAX_POOLED_CHUNKS )
+				pool.push( chunk );
+		}
+
+		if( chunkCount == 0 )
+		{
+			current = null;
+			position = 0;
+		}
+		else
+		{
+			current = chunks.get( chunkCount - 1 );
+			position = newLength - ( chunkCount - 1 ) * CHUNK_SIZE;
+		}
+		length = newLength;
+	}
+
+	/**
+	 * Empties the writer, returning its chunks to the pool of the current
+	 * thread. The writer can continue to be used afterwards.
+	 */
+	public void recycle()
+	{
+		ArrayDeque<char[]> pool = POOL.get();
+		for( char[] chunk : chunks )
+			if( pool.size() < MAX_POOLED_CHUNKS )
+				pool.push( chunk );
+		chunks.clear();
+		current = null;
+		position = 0;
+		length = 0;
+	}
+
+	//
+	// Writer
+	//
+
+	@Override
+	public void write( int c )
+	{
+		if( ( current == null ) || ( position == CHUNK_SIZE ) )
+			nextChunk();
+		current[position++] = (char) c;
+		length++;
+	}
+
+	@Override
+	public void write( char[] cbuf, int off, int len )
+	{
+		while( len > 0 )
+		{
+			if( ( current == null ) || ( position == CHUNK_SIZE ) )
+				nextChunk();
+			int count = Math.min( CHUNK_SIZE - position, len );
+			System.arraycopy( cbuf, off, current, position, count );
+			position += count;
+			length += count;
+			off += count;
+			len -= count;
+		}
+	}
+
+	@Override
+	public void write( String str, int off, int len )
+	{
+		while( len > 0 )
+		{
+			if( ( current == null ) || ( position == CHUNK_SIZE ) )
+				nextChunk();
+			int count = Math.min( CHUNK_SIZE - position, len );
+			str.getChars( off, off + count, current, position );
+			position += count;
+			length += count;
+			off += count;
+			len -= count;
+		}
+	}
+
+	@Override
+	public void flush()
+	{
+	}
+
+	@Override
+	public void close()
+	{
+	}
+
+	//
+	// Object
+	//
+
+	@Override
+	public String toString()
+	{
+		return substring( 0 );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * Per-thread pool of chunks.
+	 */
+	private static final ThreadLocal<ArrayDeque<char[]>> POOL = new ThreadLocal<ArrayDeque<char[]>>()
+	{
+		@Override
+		protected ArrayDeque<char[]> initialValue()
+		{
+			return new ArrayDeque<char[]>();
+		}
+	};
+
+	/**
+	 * The chunks.
+	 */
+	private final ArrayList<char[]> chunks = new ArrayList<char[]>();
+
+	/**
+	 * The current chunk.
+	 */
+	private char[] current;
+
+	/**
+	 * The position in the current chunk.
+	 */
+	private int position;
+
+	/**
+	 * The total length.
+	 */
+	private int length;
+
+	/**
+	 * Moves to a new chunk, preferably from the pool.
+	 */
+	private void nextChunk()
+	{
+		current = POOL.get().poll();
+		if( current == null )
+			current = new char[CHUNK_SIZE];
+		chunks.add( current );
+		position = 0;
+	}
+}
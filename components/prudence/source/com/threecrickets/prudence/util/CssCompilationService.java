@@ -0,0 +1,614 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.threecrickets.prudence.internal.CssMinifier;
+
+/**
+ * Compiles stylesheet sources (such as LESS or ZUSS) into CSS files, keeping
+ * track of all the files each stylesheet depends on via imports. Used by
+ * {@link LessFilter} and {@link ZussFilter}.
+ * <p>
+ * A CSS file is considered stale if any of its dependencies has changed or
+ * been removed. Stale CSS files are compiled again in the background
+ * if an executor is set, while the previous version keeps being served, so
+ * that requests only wait for the compiler if there is no CSS file at all.
+ * Compiled CSS is kept in memory as well as on disk, so that a deleted CSS file
+ * can be restored without compiling.
+ * <p>
+ * CSS files that already exist when first validated, for example after a
+ * restart, are not compiled again if they are newer than their source file.
+ * Until they are compiled again, only changes to the source file itself are
+ * tracked, since the files it imports are not known. Failed compilations are
+ * not retried until a dependency changes.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @author Tal Liron
+ */
+public class CssCompilationService
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param compiler
+	 *        The compiler
+	 * @param logger
+	 *        The logger
+	 */
+	public CssCompilationService( Compiler compiler, Logger logger )
+	{
+		this.compiler = compiler;
+		this.logger = logger;
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The executor used for compiling in the background.
+	 * 
+	 * @return The executor or null
+	 * @see #setExecutor(ExecutorService)
+	 */
+	public ExecutorService getExecutor()
+	{
+		return executor;
+	}
+
+	/**
+	 * The executor used for compiling in the background. If null, stale CSS
+	 * files are compiled in the thread that notices them.
+	 * 
+	 * @param executor
+	 *        The executor or null
+	 * @see #getExecutor()
+	 */
+	public void setExecutor( ExecutorService executor )
+	{
+		this.executor = executor;
+	}
+
+	/**
+	 * The asset manifest in which CSS files are registered.
+	 * 
+	 * @return The asset manifest or null
+	 * @see #setAssetManifest(AssetManifest)
+	 */
+	public AssetManifest getAssetManifest()
+	{
+		return assetManifest;
+	}
+
+	/**
+	 * @param assetManifest
+	 *        The asset manifest or null
+	 * @see #getAssetManifest()
+	 */
+	public void setAssetManifest( AssetManifest assetManifest )
+	{
+		this.assetManifest = assetManifest;
+	}
+
+	/**
+	 * The compiled CSS for a CSS file, if it was compiled by this service.
+	 * 
+	 * @param cssFile
+	 *        The CSS file
+	 * @return The CSS bytes or null
+	 */
+	public byte[] getCss( File cssFile )
+	{
+		Output output = outputs.get( cssFile.getAbsolutePath() );
+		return output != null ? output.css : null;
+	}
+
+	/**
+	 * The files a CSS file was compiled from, including the source file and
+	 * all files it imports.
+	 * 
+	 * @param cssFile
+	 *        The CSS file
+	 * @return The dependencies (empty if the CSS file was not compiled by this
+	 *         service)
+	 */
+	public Set<File> getDependencies( File cssFile )
+	{
+		Output output = outputs.get( cssFile.getAbsolutePath() );
+		return output != null ? Collections.unmodifiableSet( output.dependencies.keySet() ) : Collections.<File> emptySet();
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Makes sure a CSS file is up to date. If it doesn't exist it is compiled
+	 * (or restored from memory) right away. Otherwise, if it is stale, it is
+	 * compiled in the background.
+	 * 
+	 * @param path
+	 *        The path under which to register the CSS file in the asset
+	 *        manifest
+	 * @param sourceFile
+	 *        The source file
+	 * @param cssFile
+	 *        The CSS file
+	 * @param minify
+	 *        Whether to minify the CSS
+	 * @throws IOException
+	 *         In case of a reading, writing or compilation error
+	 */
+	public void validate( String path, File sourceFile, File cssFile, boolean minify ) throws IOException
+	{
+		String key = cssFile.getAbsolutePath();
+		Output output = outputs.get( key );
+		if( !cssFile.exists() )
+		{
+			if( ( output != null ) && ( output.css != null ) && !output.isStale() )
+				restore( output );
+			else
+				compile( path, sourceFile, cssFile, minify );
+		}
+		else
+		{
+			if( output == null )
+				output = seed( key, path, sourceFile, cssFile, minify );
+
+			if( ( output == null ) || output.isStale() || !output.sourceFile.equals( sourceFile ) )
+				compileInBackground( path, sourceFile, cssFile, minify );
+			else
+				register( output );
+		}
+	}
+
+	/**
+	 * Makes sure a CSS file is up to date, without registering it in the asset
+	 * manifest. Like {@link #validate(String, File, File, boolean)}, it is
+	 * compiled right away only if it doesn't exist.
+	 * 
+	 * @param sourceFile
+	 *        The source file
+	 * @param cssFile
+	 *        The CSS file
+	 * @param minify
+	 *        Whether to minify the CSS
+	 * @throws IOException
+	 *         In case of a reading, writing or compilation error
+	 */
+	public void translate( File sourceFile, File cssFile, boolean minify ) throws IOException
+	{
+		validate( null, sourceFile, cssFile, minify );
+	}
+
+	/**
+	 * Compiles all CSS files that depend on a file in the background. Call
+	 * this when a file has been changed, for example from a
+	 * {@link FileWatcher.Listener}.
+	 * 
+	 * @param file
+	 *        The changed file
+	 */
+	public void fileChanged( File file )
+	{
+		file = file.getAbsoluteFile();
+		for( Output output : outputs.values() )
+			if( output.dependencies.containsKey( file ) )
+				compileInBackground( output.path, output.sourceFile, output.cssFile, output.minify );
+	}
+
+	/**
+	 * Forgets all compiled CSS. CSS files on disk are not deleted.
+	 */
+	public void clear()
+	{
+		outputs.clear();
+	}
+
+	//
+	// Types
+	//
+
+	/**
+	 * Compiles stylesheet sources into CSS.
+	 */
+	public interface Compiler
+	{
+		/**
+		 * Compiles a stylesheet source.
+		 * 
+		 * @param sourceFile
+		 *        The source file
+		 * @param dependencies
+		 *        The compiler should add all files it imports to this set
+		 * @return The CSS
+		 * @throws IOException
+		 *         In case of a reading or compilation error
+		 */
+		public String compile( File sourceFile, Set<File> dependencies ) throws IOException;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The compiler.
+	 */
+	private final Compiler compiler;
+
+	/**
+	 * The logger.
+	 */
+	private final Logger logger;
+
+	/**
+	 * See {@link #getExecutor()}
+	 */
+	private volatile ExecutorService executor;
+
+	/**
+	 * See {@link #getAssetManifest()}
+	 */
+	private volatile AssetManifest assetManifest;
+
+	/**
+	 * The compiled outputs, by absolute CSS file path.
+	 */
+	private final ConcurrentHashMap<String, Output> outputs = new ConcurrentHashMap<String, Output>();
+
+	/**
+	 * CSS files for which background compilation is pending.
+	 */
+	private final Set<String> pending = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+
+	/**
+	 * Compiles a CSS file in the background, unless its compilation is already
+	 * pending.
+	 * 
+	 * @param path
+	 *        The path in the asset manifest or null
+	 * @param sourceFile
+	 *        The source file
+	 * @param cssFile
+	 *        The CSS file
+	 * @param minify
+	 *        Whether to minify the CSS
+	 */
+	private void compileInBackground( final String path, final File sourceFile, final File cssFile, final boolean minify )
+	{
+		final String key = cssFile.getAbsolutePath();
+		if( !pending.add( key ) )
+			return;
+
+		Runnable task = new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					compile( path, sourceFile, cssFile, minify );
+				}
+				catch( IOException x )
+				{
+					logger.log( Level.SEVERE, "Could not compile \"" + sourceFile + "\" into file \"" + cssFile + "\"", x );
+
+					// Don't try again until something changes
+					Output output = outputs.get( key );
+					if( output != null )
+						outputs.put( key, output.refresh() );
+					else
+					{
+						Map<File, Long> dependencies = new HashMap<File, Long>();
+						dependencies.put( sourceFile.getAbsoluteFile(), sourceFile.lastModified() );
+						outputs.put( key, new Output( path, sourceFile, cssFile, minify, dependencies, null ) );
+					}
+				}
+				finally
+				{
+					pending.remove( key );
+				}
+			}
+		};
+
+		ExecutorService executor = this.executor;
+		if( executor != null )
+		{
+			try
+			{
+				executor.execute( task );
+				return;
+			}
+			catch( RejectedExecutionException x )
+			{
+			}
+		}
+
+		task.run();
+	}
+
+	/**
+	 * Compiles a CSS file, writes it to disk and keeps it in memory.
+	 * 
+	 * @param path
+	 *        The path in the asset manifest or null
+	 * @param sourceFile
+	 *        The source file
+	 * @param cssFile
+	 *        The CSS file
+	 * @param minify
+	 *        Whether to minify the CSS
+	 * @throws IOException
+	 *         In case of a reading, writing or compilation error
+	 */
+	private void compile( String path, File sourceFile, File cssFile, boolean minify ) throws IOException
+	{
+		cssFile = IoUtil.getUniqueFile( cssFile );
+		ReentrantLock lock = IoUtil.getFileLock( cssFile );
+		lock.lock();
+		try
+		{
+			// Another thread might have compiled it while we were waiting
+			String key = cssFile.getAbsolutePath();
+			Output output = outputs.get( key );
+			if( ( output != null ) && ( output.css != null ) && !output.isStale() && output.sourceFile.equals( sourceFile ) && ( output.minify == minify ) && cssFile.exists() )
+			{
+				register( output );
+				return;
+			}
+
+			if( minify )
+				logger.info( "Compiling and minifying \"" + sourceFile + "\" into file \"" + cssFile + "\"" );
+			else
+				logger.info( "Compiling \"" + sourceFile + "\" into file \"" + cssFile + "\"" );
+
+			// Note the source's timestamp before reading it, so that changes
+			// made while compiling will be noticed
+			Map<File, Long> dependencies = new HashMap<File, Long>();
+			dependencies.put( sourceFile.getAbsoluteFile(), sourceFile.lastModified() );
+
+			Set<File> imported = new LinkedHashSet<File>();
+			String css = compiler.compile( sourceFile, imported );
+			for( File file : imported )
+			{
+				file = file.getAbsoluteFile();
+				if( !dependencies.containsKey( file ) )
+					dependencies.put( file, file.lastModified() );
+			}
+
+			byte[] bytes;
+			if( minify )
+			{
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				CssMinifier.minify( new StringReader( css ), out );
+				bytes = out.toByteArray();
+			}
+			else
+				bytes = css.getBytes();
+
+			output = new Output( path != null ? path : ( output != null ? output.path : null ), sourceFile, cssFile, minify, dependencies, bytes );
+			write( output );
+			outputs.put( key, output );
+			register( output );
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remembers an existing CSS file that was not compiled by this service, if
+	 * it is newer than its source file.
+	 * 
+	 * @param key
+	 *        The output key
+	 * @param path
+	 *        The path in the asset manifest or null
+	 * @param sourceFile
+	 *        The source file
+	 * @param cssFile
+	 *        The CSS file
+	 * @param minify
+	 *        Whether the CSS is minified
+	 * @return The output, or null if the CSS file is older than its source
+	 * @throws IOException
+	 *         In case of a reading error
+	 */
+	private Output seed( String key, String path, File sourceFile, File cssFile, boolean minify ) throws IOException
+	{
+		// The timestamp of a CSS file is that of its newest dependency (see
+		// write)
+		long lastModified = sourceFile.lastModified();
+		if( cssFile.lastModified() < lastModified )
+			return null;
+
+		Map<File, Long> dependencies = new HashMap<File, Long>();
+		dependencies.put( sourceFile.getAbsoluteFile(), lastModified );
+		Output output = new Output( path, sourceFile, cssFile, minify, dependencies, Files.readAllBytes( cssFile.toPath() ) );
+		Output existing = outputs.putIfAbsent( key, output );
+		return existing != null ? existing : output;
+	}
+
+	/**
+	 * Writes a CSS file from memory.
+	 * 
+	 * @param output
+	 *        The output
+	 * @throws IOException
+	 *         In case of a writing error
+	 */
+	private void restore( Output output ) throws IOException
+	{
+		ReentrantLock lock = IoUtil.getFileLock( output.cssFile );
+		lock.lock();
+		try
+		{
+			if( !output.cssFile.exists() )
+				write( output );
+			register( output );
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes a CSS file via a temporary file, so that the previous version can
+	 * be served until it is replaced. The timestamp of the CSS file is that of
+	 * its newest dependency.
+	 * 
+	 * @param output
+	 *        The output
+	 * @throws IOException
+	 *         In case of a writing error
+	 */
+	private static void write( Output output ) throws IOException
+	{
+		File cssFile = output.cssFile;
+		cssFile.getParentFile().mkdirs();
+		File temporaryFile = new File( cssFile.getParentFile(), cssFile.getName() + TEMPORARY_EXTENSION );
+		Files.write( temporaryFile.toPath(), output.css );
+
+		long lastModified = 0;
+		for( long dependencyLastModified : output.dependencies.values() )
+			if( dependencyLastModified > lastModified )
+				lastModified = dependencyLastModified;
+		if( ( lastModified > 0 ) && !temporaryFile.setLastModified( lastModified ) )
+			throw new IOException( "Could not update timestamp on file: " + temporaryFile );
+
+		try
+		{
+			Files.move( temporaryFile.toPath(), cssFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		catch( AtomicMoveNotSupportedException x )
+		{
+			Files.move( temporaryFile.toPath(), cssFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+	}
+
+	/**
+	 * Registers a CSS file in the asset manifest, if there is one.
+	 * 
+	 * @param output
+	 *        The output
+	 * @throws IOException
+	 *         In case of a filesystem error
+	 */
+	private void register( Output output ) throws IOException
+	{
+		AssetManifest assetManifest = this.assetManifest;
+		if( ( assetManifest != null ) && ( output.path != null ) )
+			assetManifest.register( output.path, output.cssFile );
+	}
+
+	/**
+	 * Appended to the CSS filename while it is being written.
+	 */
+	private static final String TEMPORARY_EXTENSION = ".tmp";
+
+	/**
+	 * A compiled CSS file.
+	 */
+	private static class Output
+	{
+		private Output( String path, File sourceFile, File cssFile, boolean minify, Map<File, Long> dependencies, byte[] css )
+		{
+			this.path = path;
+			this.sourceFile = sourceFile;
+			this.cssFile = cssFile;
+			this.minify = minify;
+			this.dependencies = dependencies;
+			this.css = css;
+		}
+
+		/**
+		 * Whether any of the dependencies has changed.
+		 * 
+		 * @return True if stale
+		 */
+		private boolean isStale()
+		{
+			for( Map.Entry<File, Long> entry : dependencies.entrySet() )
+				if( entry.getKey().lastModified() != entry.getValue() )
+					return true;
+			return false;
+		}
+
+		/**
+		 * A copy with the current timestamps of the dependencies.
+		 * 
+		 * @return The refreshed output
+		 */
+		private Output refresh()
+		{
+			Map<File, Long> dependencies = new HashMap<File, Long>();
+			for( File file : this.dependencies.keySet() )
+				dependencies.put( file, file.lastModified() );
+			return new Output( path, sourceFile, cssFile, minify, dependencies, css );
+		}
+
+		/**
+		 * The path in the asset manifest or null.
+		 */
+		private final String path;
+
+		/**
+		 * The source file.
+		 */
+		private final File sourceFile;
+
+		/**
+		 * The CSS file.
+		 */
+		private final File cssFile;
+
+		/**
+		 * Whether the CSS is minified.
+		 */
+		private final boolean minify;
+
+		/**
+		 * The timestamps of all dependencies (0 if they did not exist).
+		 */
+		private final Map<File, Long> dependencies;
+
+		/**
+		 * The CSS, or null if compilation failed.
+		 */
+		private final byte[] css;
+	}
+}
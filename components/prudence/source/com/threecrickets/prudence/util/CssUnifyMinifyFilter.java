@@ -21,7 +21,7 @@ import org.restlet.Context;
 import org.restlet.Restlet;
 import org.restlet.routing.Filter;
 
-import com.threecrickets.prudence.internal.CSSMin;
+import com.threecrickets.prudence.internal.CssMinifier;
 
 /**
  * A {@link Filter} that automatically unifies and/or compresses CSS source
@@ -29,8 +29,9 @@ import com.threecrickets.prudence.internal.CSSMin;
  * the CSS via one request rather than many. Compressing them makes their
  * retrieval faster.
  * <p>
- * Compression is done via
- * <a href="http://barryvan.github.com/CSSMin/">CSSMin</a>.
+ * Compression is done via {@link CssMinifier}, which produces the same output
+ * as <a href="http://barryvan.github.com/CSSMin/">CSSMin</a> in a single
+ * streaming pass.
  * <p>
  * This filter can track changes to the source files, updating the result file
  * on-the-fly. This makes it easy to develop and debug a live site.
@@ -87,16 +88,7 @@ public class CssUnifyMinifyFilter extends UnifyMinifyFilter
 	@Override
 	protected void minify( InputStream in, OutputStream out ) throws IOException
 	{
-		try
-		{
-			CSSMin.formatFile( new InputStreamReader( in ), out );
-		}
-		catch( Exception x )
-		{
-			IOException iox = new IOException();
-			iox.initCause( x );
-			throw iox;
-		}
+		CssMinifier.minify( new InputStreamReader( in ), out );
 	}
 
 	// //////////////////////////////////////////////////////////////////////////
@@ -16,8 +16,11 @@ import java.util.List;
 
 import org.restlet.Application;
 import org.restlet.Context;
+import org.restlet.data.ClientInfo;
 import org.restlet.data.Encoding;
+import org.restlet.data.Tag;
 import org.restlet.engine.application.Encoder;
+import org.restlet.representation.Representation;
 import org.restlet.service.EncoderService;
 
 /**
@@ -26,6 +29,14 @@ import org.restlet.service.EncoderService;
  * By default it uses its own {@link CustomEncoderService}, instead of that of
  * the application, allowing specific customizations, for example custom
  * settings for {@link EncoderService#getDefaultIgnoredMediaTypes()}.
+ * <p>
+ * Responses are compressed with {@link Encoding#GZIP} by an
+ * {@link AdaptiveCompressor}, which reuses deflaters and lowers the
+ * compression level while the machine is busy. Responses smaller than
+ * {@link EncoderService#getMinimumSize()} are not compressed.
+ * <p>
+ * Encoded responses get a weak version of the original ETag (see
+ * {@link #createEncodedTag(Tag)}).
  * 
  * @author Tal Liron
  * @see IoUtil#SUPPORTED_COMPRESSION_ENCODINGS
@@ -47,6 +58,27 @@ public class CustomEncoder extends Encoder
 		SUPPORTED_ENCODINGS.add( Encoding.IDENTITY );
 	}
 
+	//
+	// Static operations
+	//
+
+	/**
+	 * Creates the ETag for an encoded representation. The encoded bytes differ
+	 * from those of the original, so a strong tag must not be shared between
+	 * them, or else "If-Range" could combine byte ranges of different
+	 * encodings. The weak version still allows for conditional requests.
+	 * 
+	 * @param tag
+	 *        The tag of the original representation or null
+	 * @return The weak tag or null
+	 */
+	public static Tag createEncodedTag( Tag tag )
+	{
+		if( ( tag == null ) || tag.isWeak() )
+			return tag;
+		return new Tag( tag.getName(), true );
+	}
+
 	//
 	// Construction
 	//
@@ -95,6 +127,20 @@ public class CustomEncoder extends Encoder
 		describe();
 	}
 
+	//
+	// Attributes
+	//
+
+	/**
+	 * The compressor used for {@link Encoding#GZIP}.
+	 * 
+	 * @return The compressor
+	 */
+	public AdaptiveCompressor getCompressor()
+	{
+		return compressor;
+	}
+
 	//
 	// Encoder
 	//
@@ -105,6 +151,21 @@ public class CustomEncoder extends Encoder
 		return SUPPORTED_ENCODINGS;
 	}
 
+	@Override
+	public Representation encode( ClientInfo client, Representation representation )
+	{
+		Representation encoded;
+		if( Encoding.GZIP.equals( client.getPreferredEncoding( getSupportedEncodings() ) ) )
+			encoded = compressor.encode( representation );
+		else
+			encoded = super.encode( client, representation );
+
+		if( encoded != representation )
+			encoded.setTag( createEncodedTag( encoded.getTag() ) );
+
+		return encoded;
+	}
+
 	//
 	// Object
 	//
@@ -118,6 +179,11 @@ public class CustomEncoder extends Encoder
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
+	/**
+	 * The compressor.
+	 */
+	private final AdaptiveCompressor compressor = new AdaptiveCompressor();
+
 	/**
 	 * Add description.
 	 */
@@ -11,21 +11,37 @@
 
 package com.threecrickets.prudence.util;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.restlet.data.MediaType;
+import org.restlet.representation.Representation;
 import org.restlet.service.EncoderService;
 
 /**
  * Provides a workaround for
  * <a href="https://github.com/restlet/restlet-framework-java/issues/791">
  * Restlet issue 791</a>.
+ * <p>
+ * Also ignores {@link #COMPRESSED_MEDIA_TYPES} by default, and never encodes
+ * representations of byte ranges.
  * 
  * @author Tal Liron
  */
 public class CustomEncoderService extends EncoderService
 {
+	//
+	// Constants
+	//
+
+	/**
+	 * Media types that are usually already compressed, in addition to those
+	 * in {@link EncoderService#getDefaultIgnoredMediaTypes()}.
+	 */
+	public static final List<MediaType> COMPRESSED_MEDIA_TYPES = Arrays.asList( MediaType.APPLICATION_PDF, MediaType.valueOf( "application/x-7z-compressed" ), MediaType.valueOf( "application/x-bzip2" ),
+		MediaType.valueOf( "application/x-xz" ), MediaType.valueOf( "application/x-rar-compressed" ), MediaType.valueOf( "application/font-woff" ), MediaType.valueOf( "font/woff2" ) );
+
 	//
 	// Construction
 	//
@@ -35,6 +51,7 @@ public class CustomEncoderService extends EncoderService
 		super();
 		acceptedMediaTypes = new CopyOnWriteArrayList<MediaType>( super.getAcceptedMediaTypes() );
 		ignoredMediaTypes = new CopyOnWriteArrayList<MediaType>( super.getIgnoredMediaTypes() );
+		ignoredMediaTypes.addAll( COMPRESSED_MEDIA_TYPES );
 	}
 
 	//
@@ -53,6 +70,16 @@ public class CustomEncoderService extends EncoderService
 		return ignoredMediaTypes;
 	}
 
+	@Override
+	public boolean canEncode( Representation representation )
+	{
+		// Encoding a range would produce a range of the encoded representation
+		if( ( representation != null ) && ( representation.getRange() != null ) )
+			return false;
+
+		return super.canEncode( representation );
+	}
+
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
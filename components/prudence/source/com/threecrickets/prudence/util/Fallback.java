@@ -12,16 +12,20 @@
 package com.threecrickets.prudence.util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.restlet.Context;
 import org.restlet.Request;
 import org.restlet.Response;
 import org.restlet.Restlet;
+import org.restlet.data.Method;
 import org.restlet.data.Status;
+import org.restlet.resource.Directory;
 
 /**
  * A restlet that delegates {@link Restlet#handle(Request, Response)} to a
@@ -39,6 +43,15 @@ import org.restlet.data.Status;
  * succeed for the same reference, you would want to disable the cache or keep
  * it low.
  * <p>
+ * The cache can also remember references that no target handled, so that
+ * repeated requests for missing resources do not try all targets again (see
+ * {@link #setCacheUnhandled(boolean)}). For these, only the failed response
+ * status is restored, per request method.
+ * <p>
+ * The cache is bounded in size: expired entries are swept out periodically,
+ * and if that is not enough then the least recently used entries are
+ * evicted.
+ * <p>
  * By default, {@link #wasHandled(Request, Response)} checks that the response
  * status is not {@link Status#CLIENT_ERROR_NOT_FOUND} or
  * {@link Status#CLIENT_ERROR_METHOD_NOT_ALLOWED}.
@@ -47,6 +60,15 @@ import org.restlet.data.Status;
  */
 public class Fallback extends Restlet
 {
+	//
+	// Constants
+	//
+
+	/**
+	 * The default maximum number of cached references.
+	 */
+	public static final int DEFAULT_CACHE_MAX_SIZE = 10000;
+
 	//
 	// Construction
 	//
@@ -181,6 +203,74 @@ public class Fallback extends Restlet
 		this.cacheDuration = cacheDuration;
 	}
 
+	/**
+	 * The maximum number of cached references. Defaults to
+	 * {@link #DEFAULT_CACHE_MAX_SIZE}.
+	 * 
+	 * @return The cache maximum size
+	 */
+	public int getCacheMaxSize()
+	{
+		return cacheMaxSize;
+	}
+
+	/**
+	 * The maximum number of cached references. (Modifiable by concurrent
+	 * threads.)
+	 * 
+	 * @param cacheMaxSize
+	 *        The cache maximum size
+	 */
+	public void setCacheMaxSize( int cacheMaxSize )
+	{
+		this.cacheMaxSize = cacheMaxSize;
+	}
+
+	/**
+	 * Whether references that no target handled are cached. Defaults to false.
+	 * <p>
+	 * Only the status is cached, not the entity, so this should only be
+	 * enabled if the targets are static, such as {@link Directory} instances:
+	 * a dynamic target's error response would otherwise be replaced by a bare
+	 * status until the cache duration passes.
+	 * 
+	 * @return True if caching unhandled references
+	 */
+	public boolean isCacheUnhandled()
+	{
+		return cacheUnhandled;
+	}
+
+	/**
+	 * Whether references that no target handled are cached. (Modifiable by
+	 * concurrent threads.)
+	 * 
+	 * @param cacheUnhandled
+	 *        True to cache unhandled references
+	 */
+	public void setCacheUnhandled( boolean cacheUnhandled )
+	{
+		this.cacheUnhandled = cacheUnhandled;
+	}
+
+	/**
+	 * The number of cached references, including expired ones.
+	 * 
+	 * @return The cache size
+	 */
+	public int getCacheSize()
+	{
+		return cache.size();
+	}
+
+	/**
+	 * Forgets all cached references.
+	 */
+	public void clearCache()
+	{
+		cache.clear();
+	}
+
 	//
 	// Restlet
 	//
@@ -194,17 +284,30 @@ public class Fallback extends Restlet
 			return;
 
 		String reference = request.getResourceRef().getRemainingPart();
+		int cacheDuration = this.cacheDuration;
+		long now = System.currentTimeMillis();
 		Node node = cache.get( reference );
 		if( node != null )
 		{
-			if( System.currentTimeMillis() - node.timestamp > cacheDuration )
+			if( now - node.timestamp > cacheDuration )
 			{
 				// Invalidate
-				cache.remove( reference );
+				cache.remove( reference, node );
+			}
+			else if( node.target == null )
+			{
+				// Known not to be handled by any target
+				if( node.method.equals( request.getMethod() ) )
+				{
+					node.lastAccess = now;
+					response.setStatus( node.status );
+					return;
+				}
 			}
 			else
 			{
 				// Use cached restlet
+				node.lastAccess = now;
 				if( node.target.isStarted() )
 				{
 					node.target.handle( request, response );
@@ -212,17 +315,19 @@ public class Fallback extends Restlet
 						return;
 					else
 						// Invalidate
-						cache.remove( reference );
+						cache.remove( reference, node );
 				}
 			}
 		}
 
 		// Try all targets in order
+		boolean attempted = false;
 		for( Restlet target : targets )
 		{
 			response.setStatus( Status.SUCCESS_OK );
 			if( target.isStarted() )
 			{
+				attempted = true;
 				target.handle( request, response );
 				if( wasHandled( request, response ) )
 				{
@@ -231,13 +336,17 @@ public class Fallback extends Restlet
 					{
 						// Cache this target
 						// (erasing any previously cached one)
-						cache.put( reference, new Node( target ) );
+						cache( reference, new Node( target, null, null, now ), now );
 					}
 					// Stop here
 					return;
 				}
 			}
 		}
+
+		// Nobody handled it
+		if( attempted && ( cacheDuration > 0 ) && cacheUnhandled )
+			cache( reference, new Node( null, request.getMethod(), response.getStatus(), now ), now );
 	}
 
 	@Override
@@ -315,24 +424,135 @@ public class Fallback extends Restlet
 	 */
 	private volatile int cacheDuration;
 
+	/**
+	 * The maximum number of cached references.
+	 */
+	private volatile int cacheMaxSize = DEFAULT_CACHE_MAX_SIZE;
+
+	/**
+	 * Whether to cache unhandled references.
+	 */
+	private volatile boolean cacheUnhandled;
+
 	/**
 	 * The cache (references mapped to nodes).
 	 */
 	private final ConcurrentHashMap<String, Node> cache = new ConcurrentHashMap<String, Node>();
 
+	/**
+	 * When the cache was last swept of expired nodes.
+	 */
+	private volatile long lastSweep = System.currentTimeMillis();
+
+	/**
+	 * Whether the cache is being pruned.
+	 */
+	private final AtomicBoolean pruning = new AtomicBoolean();
+
 	/**
 	 * A cached node.
 	 */
 	private static class Node
 	{
-		private Node( Restlet target )
+		private Node( Restlet target, Method method, Status status, long timestamp )
 		{
 			this.target = target;
+			this.method = method;
+			this.status = status;
+			this.timestamp = timestamp;
+			lastAccess = timestamp;
 		}
 
+		/**
+		 * The target that handled the reference, or null if none did.
+		 */
 		private final Restlet target;
 
-		private final long timestamp = System.currentTimeMillis();
+		/**
+		 * The request method for which no target handled the reference.
+		 */
+		private final Method method;
+
+		/**
+		 * The response status when no target handled the reference.
+		 */
+		private final Status status;
+
+		private final long timestamp;
+
+		private volatile long lastAccess;
+	}
+
+	/**
+	 * Caches a node, pruning the cache if it is full or if it is time to sweep
+	 * out expired nodes.
+	 * 
+	 * @param reference
+	 *        The reference
+	 * @param node
+	 *        The node
+	 * @param now
+	 *        The current time
+	 */
+	private void cache( String reference, Node node, long now )
+	{
+		int cacheMaxSize = this.cacheMaxSize;
+		if( ( cache.size() >= cacheMaxSize ) || ( now - lastSweep > cacheDuration ) )
+			prune( cacheMaxSize, now );
+
+		cache.put( reference, node );
+	}
+
+	/**
+	 * Removes expired nodes, and if the cache is still full then also evicts
+	 * the least recently used nodes, down to three quarters of the maximum
+	 * size, so that eviction does not have to happen again for every new
+	 * reference. Only one thread prunes at a time: other threads do not wait
+	 * for it.
+	 * 
+	 * @param cacheMaxSize
+	 *        The maximum number of cached references
+	 * @param now
+	 *        The current time
+	 */
+	private void prune( int cacheMaxSize, long now )
+	{
+		if( !pruning.compareAndSet( false, true ) )
+			return;
+
+		try
+		{
+			int cacheDuration = this.cacheDuration;
+			for( Iterator<Node> i = cache.values().iterator(); i.hasNext(); )
+				if( now - i.next().timestamp > cacheDuration )
+					i.remove();
+			lastSweep = now;
+
+			int excess = cache.size() - ( cacheMaxSize * 3 / 4 );
+			if( ( cache.size() >= cacheMaxSize ) && ( excess > 0 ) )
+			{
+				long[] lastAccesses = new long[cache.size()];
+				int count = 0;
+				for( Node node : cache.values() )
+				{
+					if( count == lastAccesses.length )
+						break;
+					lastAccesses[count++] = node.lastAccess;
+				}
+				if( count > 0 )
+				{
+					Arrays.sort( lastAccesses, 0, count );
+					long threshold = lastAccesses[Math.min( excess, count ) - 1];
+					for( Iterator<Node> i = cache.values().iterator(); i.hasNext(); )
+						if( i.next().lastAccess <= threshold )
+							i.remove();
+				}
+			}
+		}
+		finally
+		{
+			pruning.set( false );
+		}
 	}
 
 	/**
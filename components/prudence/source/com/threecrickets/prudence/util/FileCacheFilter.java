@@ -0,0 +1,541 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.restlet.Context;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.Restlet;
+import org.restlet.data.CharacterSet;
+import org.restlet.data.Encoding;
+import org.restlet.data.Language;
+import org.restlet.data.MediaType;
+import org.restlet.data.Method;
+import org.restlet.data.Reference;
+import org.restlet.data.Status;
+import org.restlet.data.Tag;
+import org.restlet.representation.ByteArrayRepresentation;
+import org.restlet.representation.EmptyRepresentation;
+import org.restlet.representation.FileRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Directory;
+import org.restlet.routing.Filter;
+
+/**
+ * A {@link Filter} that keeps the contents and metadata of small files served
+ * by a {@link Directory} in memory, so that repeated requests do not have to
+ * touch the file system.
+ * <p>
+ * Files are cached when the directory first serves them, but only if the
+ * request named the file exactly, so that content negotiation is left to the
+ * directory. Cached files are answered directly, including conditional
+ * requests, which are answered with {@link Status#REDIRECTION_NOT_MODIFIED} or
+ * {@link Status#CLIENT_ERROR_PRECONDITION_FAILED} as appropriate. Cached
+ * files get an ETag based on their modification date and size, which is also
+ * added to the response that cached them.
+ * <p>
+ * The file's modification date and size are checked again no more often than
+ * {@link #getMinimumTimeBetweenValidityChecks()}. With a {@link FileWatcher}
+ * (see {@link #watch(FileWatcher, File)}) changes are noticed immediately.
+ * <p>
+ * Only files up to {@link #getMaximumFileSize()} are cached, up to a total of
+ * {@link #getMaximumSize()} bytes, after which the least recently used files
+ * are evicted.
+ * 
+ * @author Tal Liron
+ */
+public class FileCacheFilter extends Filter
+{
+	//
+	// Constants
+	//
+
+	/**
+	 * The default maximum total size of cached files.
+	 */
+	public static final long DEFAULT_MAXIMUM_SIZE = 16L * 1024L * 1024L;
+
+	/**
+	 * The default maximum size of cached files.
+	 */
+	public static final long DEFAULT_MAXIMUM_FILE_SIZE = 256L * 1024L;
+
+	//
+	// Types
+	//
+
+	/**
+	 * A representation of a cached file. It is not released, because the
+	 * bytes are shared.
+	 */
+	public static class CachedFileRepresentation extends ByteArrayRepresentation
+	{
+		/**
+		 * Constructor.
+		 * 
+		 * @param bytes
+		 *        The bytes
+		 * @param mediaType
+		 *        The media type
+		 * @param file
+		 *        The file
+		 */
+		public CachedFileRepresentation( byte[] bytes, MediaType mediaType, File file )
+		{
+			super( bytes, mediaType );
+			this.file = file;
+		}
+
+		/**
+		 * The file.
+		 * 
+		 * @return The file
+		 */
+		public File getFile()
+		{
+			return file;
+		}
+
+		private final File file;
+	}
+
+	//
+	// Static operations
+	//
+
+	/**
+	 * Creates a strong ETag for a version of a file.
+	 * 
+	 * @param lastModified
+	 *        The file's modification timestamp
+	 * @param size
+	 *        The file's size
+	 * @return The tag
+	 */
+	public static Tag createTag( long lastModified, long size )
+	{
+		return new Tag( Long.toHexString( lastModified ) + "-" + Long.toHexString( size ), false );
+	}
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param context
+	 *        The context
+	 * @param next
+	 *        The next restlet (usually a {@link Directory})
+	 * @param minimumTimeBetweenValidityChecks
+	 *        See {@link #getMinimumTimeBetweenValidityChecks()}
+	 */
+	public FileCacheFilter( Context context, Restlet next, long minimumTimeBetweenValidityChecks )
+	{
+		super( context, next );
+		this.minimumTimeBetweenValidityChecks = minimumTimeBetweenValidityChecks;
+		describe();
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * A value of -1 disables all validity checking.
+	 * 
+	 * @return The minimum time between validity checks in milliseconds
+	 * @see #setMinimumTimeBetweenValidityChecks(long)
+	 */
+	public long getMinimumTimeBetweenValidityChecks()
+	{
+		return minimumTimeBetweenValidityChecks;
+	}
+
+	/**
+	 * @param minimumTimeBetweenValidityChecks
+	 *        The minimum time between validity checks in milliseconds
+	 * @see #getMinimumTimeBetweenValidityChecks()
+	 */
+	public void setMinimumTimeBetweenValidityChecks( long minimumTimeBetweenValidityChecks )
+	{
+		this.minimumTimeBetweenValidityChecks = minimumTimeBetweenValidityChecks;
+	}
+
+	/**
+	 * The maximum total size of cached files in bytes.
+	 * 
+	 * @return The maximum size
+	 */
+	public long getMaximumSize()
+	{
+		return maximumSize;
+	}
+
+	/**
+	 * @param maximumSize
+	 *        The maximum size
+	 * @see #getMaximumSize()
+	 */
+	public void setMaximumSize( long maximumSize )
+	{
+		this.maximumSize = maximumSize;
+	}
+
+	/**
+	 * The maximum size in bytes of cached files.
+	 * 
+	 * @return The maximum file size
+	 */
+	public long getMaximumFileSize()
+	{
+		return maximumFileSize;
+	}
+
+	/**
+	 * @param maximumFileSize
+	 *        The maximum file size
+	 * @see #getMaximumFileSize()
+	 */
+	public void setMaximumFileSize( long maximumFileSize )
+	{
+		this.maximumFileSize = maximumFileSize;
+	}
+
+	/**
+	 * The current total size of cached files in bytes.
+	 * 
+	 * @return The size
+	 */
+	public long getSize()
+	{
+		return size.get();
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Forgets all cached files.
+	 */
+	public void clear()
+	{
+		for( Iterator<CachedFile> i = cache.values().iterator(); i.hasNext(); )
+		{
+			CachedFile cachedFile = i.next();
+			i.remove();
+			size.addAndGet( -cachedFile.bytes.length );
+		}
+	}
+
+	/**
+	 * Forgets cached files when they change.
+	 * 
+	 * @param fileWatcher
+	 *        The file watcher
+	 * @param directory
+	 *        The directory from which the files are served
+	 * @throws IOException
+	 *         In case the directory could not be watched
+	 */
+	public void watch( FileWatcher fileWatcher, File directory ) throws IOException
+	{
+		fileWatcher.watch( directory, new FileWatcher.Listener()
+		{
+			public void fileChanged( File file )
+			{
+				for( Iterator<CachedFile> i = cache.values().iterator(); i.hasNext(); )
+				{
+					CachedFile cachedFile = i.next();
+					if( cachedFile.file.getAbsoluteFile().equals( file.getAbsoluteFile() ) || file.isDirectory() )
+					{
+						i.remove();
+						size.addAndGet( -cachedFile.bytes.length );
+					}
+				}
+			}
+		} );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Protected
+
+	//
+	// Filter
+	//
+
+	@Override
+	protected int beforeHandle( Request request, Response response )
+	{
+		Method method = request.getMethod();
+		if( !Method.GET.equals( method ) && !Method.HEAD.equals( method ) )
+			return CONTINUE;
+
+		String key = request.getResourceRef().getRemainingPart( false, false );
+		if( key == null )
+			return CONTINUE;
+
+		CachedFile cachedFile = cache.get( key );
+		if( cachedFile == null )
+			return CONTINUE;
+
+		long now = System.currentTimeMillis();
+		long minimumTimeBetweenValidityChecks = this.minimumTimeBetweenValidityChecks;
+		if( ( minimumTimeBetweenValidityChecks != -1 ) && ( now - cachedFile.lastValidityCheck > minimumTimeBetweenValidityChecks ) )
+		{
+			if( ( cachedFile.file.lastModified() != cachedFile.lastModified ) || ( cachedFile.file.length() != cachedFile.bytes.length ) )
+			{
+				// Invalidate
+				if( cache.remove( key, cachedFile ) )
+					size.addAndGet( -cachedFile.bytes.length );
+				return CONTINUE;
+			}
+			cachedFile.lastValidityCheck = now;
+		}
+		cachedFile.lastAccess = now;
+
+		Representation representation = cachedFile.toRepresentation();
+		Status status = request.getConditions().getStatus( method, representation );
+		if( status != null )
+		{
+			response.setStatus( status );
+			if( Status.REDIRECTION_NOT_MODIFIED.equals( status ) )
+			{
+				// Keep the validators
+				Representation empty = new EmptyRepresentation();
+				empty.setTag( representation.getTag() );
+				empty.setModificationDate( representation.getModificationDate() );
+				response.setEntity( empty );
+			}
+			return SKIP;
+		}
+
+		response.setStatus( Status.SUCCESS_OK );
+		response.setEntity( representation );
+		return SKIP;
+	}
+
+	@Override
+	protected void afterHandle( Request request, Response response )
+	{
+		if( !Status.SUCCESS_OK.equals( response.getStatus() ) || !Method.GET.equals( request.getMethod() ) )
+			return;
+
+		Representation entity = response.getEntity();
+		if( !( entity instanceof FileRepresentation ) )
+			return;
+
+		File file = ( (FileRepresentation) entity ).getFile();
+		long fileSize = entity.getSize();
+		if( ( fileSize < 0 ) || ( fileSize > maximumFileSize ) || !file.isFile() )
+			return;
+
+		// Only exact matches, so that we don't cache negotiated files
+		String key = request.getResourceRef().getRemainingPart( false, false );
+		if( ( key == null ) || !Reference.decode( key.substring( key.lastIndexOf( '/' ) + 1 ) ).equals( file.getName() ) )
+			return;
+
+		long lastModified = file.lastModified();
+		byte[] bytes;
+		try
+		{
+			bytes = Files.readAllBytes( file.toPath() );
+		}
+		catch( IOException x )
+		{
+			return;
+		}
+
+		if( ( bytes.length != fileSize ) || ( file.lastModified() != lastModified ) )
+			// The file is changing
+			return;
+
+		Tag tag = entity.getTag();
+		if( tag == null )
+			tag = createTag( lastModified, bytes.length );
+
+		CachedFile cachedFile = new CachedFile( file, bytes, lastModified, tag, entity );
+		long maximumSize = this.maximumSize;
+		if( size.get() + bytes.length > maximumSize )
+			prune( maximumSize - bytes.length );
+		CachedFile existing = cache.put( key, cachedFile );
+		size.addAndGet( bytes.length - ( existing != null ? existing.bytes.length : 0 ) );
+
+		// Use the bytes we have just read
+		entity.release();
+		response.setEntity( cachedFile.toRepresentation() );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The minimum time between validity checks in milliseconds.
+	 */
+	private volatile long minimumTimeBetweenValidityChecks;
+
+	/**
+	 * The maximum total size of cached files.
+	 */
+	private volatile long maximumSize = DEFAULT_MAXIMUM_SIZE;
+
+	/**
+	 * The maximum size of cached files.
+	 */
+	private volatile long maximumFileSize = DEFAULT_MAXIMUM_FILE_SIZE;
+
+	/**
+	 * The cached files (remaining parts of references mapped to files).
+	 */
+	private final ConcurrentHashMap<String, CachedFile> cache = new ConcurrentHashMap<String, CachedFile>();
+
+	/**
+	 * The total size of cached files.
+	 */
+	private final AtomicLong size = new AtomicLong();
+
+	/**
+	 * Evicts the least recently used files until the total size is within the
+	 * limit.
+	 * 
+	 * @param limit
+	 *        The size limit
+	 */
+	private void prune( long limit )
+	{
+		ArrayList<Candidate> candidates = new ArrayList<Candidate>( cache.size() );
+		for( Map.Entry<String, CachedFile> entry : cache.entrySet() )
+			candidates.add( new Candidate( entry.getKey(), entry.getValue() ) );
+		Collections.sort( candidates );
+
+		for( Candidate candidate : candidates )
+		{
+			if( size.get() <= limit )
+				break;
+			if( cache.remove( candidate.key, candidate.cachedFile ) )
+				size.addAndGet( -candidate.cachedFile.bytes.length );
+		}
+	}
+
+	/**
+	 * A candidate for eviction, ordered by least recent access.
+	 */
+	private static class Candidate implements Comparable<Candidate>
+	{
+		private Candidate( String key, CachedFile cachedFile )
+		{
+			this.key = key;
+			this.cachedFile = cachedFile;
+			lastAccess = cachedFile.lastAccess;
+		}
+
+		public int compareTo( Candidate candidate )
+		{
+			return lastAccess < candidate.lastAccess ? -1 : ( lastAccess == candidate.lastAccess ? 0 : 1 );
+		}
+
+		private final String key;
+
+		private final CachedFile cachedFile;
+
+		private final long lastAccess;
+	}
+
+	/**
+	 * A cached file.
+	 */
+	private static class CachedFile
+	{
+		private CachedFile( File file, byte[] bytes, long lastModified, Tag tag, Representation representation )
+		{
+			this.file = file;
+			this.bytes = bytes;
+			this.lastModified = lastModified;
+			this.tag = tag;
+			mediaType = representation.getMediaType();
+			characterSet = representation.getCharacterSet();
+			languages = representation.getLanguages().toArray( new Language[0] );
+			encodings = representation.getEncodings().toArray( new Encoding[0] );
+			expirationDate = representation.getExpirationDate();
+			lastValidityCheck = System.currentTimeMillis();
+			lastAccess = lastValidityCheck;
+		}
+
+		private final File file;
+
+		private final byte[] bytes;
+
+		private final long lastModified;
+
+		private final Tag tag;
+
+		private final MediaType mediaType;
+
+		private final CharacterSet characterSet;
+
+		private final Language[] languages;
+
+		private final Encoding[] encodings;
+
+		private final Date expirationDate;
+
+		private volatile long lastValidityCheck;
+
+		private volatile long lastAccess;
+
+		/**
+		 * Creates a representation sharing our bytes.
+		 * 
+		 * @return The representation
+		 */
+		private Representation toRepresentation()
+		{
+			CachedFileRepresentation representation = new CachedFileRepresentation( bytes, mediaType, file );
+			representation.setCharacterSet( characterSet );
+			List<Language> representationLanguages = representation.getLanguages();
+			for( Language language : languages )
+				representationLanguages.add( language );
+			List<Encoding> representationEncodings = representation.getEncodings();
+			for( Encoding encoding : encodings )
+				representationEncodings.add( encoding );
+			representation.setModificationDate( new Date( lastModified ) );
+			representation.setExpirationDate( expirationDate );
+			representation.setTag( tag );
+			return representation;
+		}
+	}
+
+	/**
+	 * Add description.
+	 */
+	private void describe()
+	{
+		setOwner( "Prudence" );
+		setAuthor( "Three Crickets" );
+		setName( getClass().getSimpleName() );
+		setDescription( "A filter that keeps small files in memory" );
+	}
+}
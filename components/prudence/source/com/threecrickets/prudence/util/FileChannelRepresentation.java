@@ -0,0 +1,223 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.restlet.data.MediaType;
+import org.restlet.data.Range;
+import org.restlet.representation.FileRepresentation;
+
+/**
+ * A {@link FileRepresentation} that is written with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which lets
+ * the operating system copy the file directly to the connection where the
+ * connector allows it, instead of copying it through heap buffers.
+ * <p>
+ * If a {@link Range} is set, it must be absolute (see
+ * {@link #setRange(long, long)}), and only that range is written or streamed.
+ * Note that {@link #getChannel()} is not limited to the range.
+ * 
+ * @author Tal Liron
+ */
+public class FileChannelRepresentation extends FileRepresentation
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param file
+	 *        The file
+	 * @param mediaType
+	 *        The media type
+	 */
+	public FileChannelRepresentation( File file, MediaType mediaType )
+	{
+		super( file, mediaType );
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * Sets an absolute range.
+	 * 
+	 * @param start
+	 *        The index of the first byte
+	 * @param length
+	 *        The number of bytes
+	 */
+	public void setRange( long start, long length )
+	{
+		setRange( new Range( start, length ) );
+	}
+
+	//
+	// Representation
+	//
+
+	@Override
+	public InputStream getStream() throws IOException
+	{
+		Range range = getRange();
+		if( range == null )
+			return super.getStream();
+
+		InputStream stream = new FileInputStream( getFile() );
+		try
+		{
+			long skip = range.getIndex();
+			while( skip > 0 )
+			{
+				long skipped = stream.skip( skip );
+				if( skipped <= 0 )
+					throw new EOFException();
+				skip -= skipped;
+			}
+		}
+		catch( IOException x )
+		{
+			stream.close();
+			throw x;
+		}
+
+		return new BoundedInputStream( stream, range.getSize() );
+	}
+
+	@Override
+	public void write( OutputStream outputStream ) throws IOException
+	{
+		write( Channels.newChannel( outputStream ) );
+	}
+
+	@Override
+	public void write( WritableByteChannel writableChannel ) throws IOException
+	{
+		Range range = getRange();
+		FileInputStream stream = new FileInputStream( getFile() );
+		try
+		{
+			FileChannel channel = stream.getChannel();
+			long position = range != null ? range.getIndex() : 0;
+			long end = range != null ? position + range.getSize() : channel.size();
+			ByteBuffer buffer = null;
+			while( position < end )
+			{
+				long transferred = channel.transferTo( position, end - position, writableChannel );
+				if( transferred <= 0 )
+				{
+					if( position >= channel.size() )
+						// The file was truncated
+						throw new EOFException();
+
+					// The channel would not take a transfer, so we will copy
+					// a chunk ourselves rather than spin
+					if( buffer == null )
+						buffer = ByteBuffer.allocate( (int) Math.min( BUFFER_SIZE, end - position ) );
+					buffer.clear();
+					if( buffer.remaining() > end - position )
+						buffer.limit( (int) ( end - position ) );
+					transferred = channel.read( buffer, position );
+					if( transferred <= 0 )
+						throw new EOFException();
+					buffer.flip();
+					while( buffer.hasRemaining() )
+						if( writableChannel.write( buffer ) == 0 )
+							throw new IOException( "Channel is not accepting writes" );
+				}
+				position += transferred;
+			}
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The size of the buffer used when the channel would not take a transfer.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * An input stream limited to a number of bytes.
+	 */
+	private static class BoundedInputStream extends FilterInputStream
+	{
+		private BoundedInputStream( InputStream in, long remaining )
+		{
+			super( in );
+			this.remaining = remaining;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if( remaining <= 0 )
+				return -1;
+			int b = super.read();
+			if( b != -1 )
+				remaining--;
+			return b;
+		}
+
+		@Override
+		public int read( byte[] b, int off, int len ) throws IOException
+		{
+			if( remaining <= 0 )
+				return -1;
+			int read = super.read( b, off, (int) Math.min( len, remaining ) );
+			if( read > 0 )
+				remaining -= read;
+			return read;
+		}
+
+		@Override
+		public long skip( long n ) throws IOException
+		{
+			long skipped = super.skip( Math.min( n, remaining ) );
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return (int) Math.min( super.available(), remaining );
+		}
+
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+
+		private long remaining;
+	}
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.util;
+
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+
+import org.restlet.Context;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.Restlet;
+import org.restlet.data.Conditions;
+import org.restlet.data.Method;
+import org.restlet.data.Range;
+import org.restlet.data.Status;
+import org.restlet.data.Tag;
+import org.restlet.representation.FileRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Directory;
+import org.restlet.routing.Filter;
+import org.restlet.service.RangeService;
+
+/**
+ * A {@link Filter} that replaces files served by a {@link Directory} with
+ * {@link FileChannelRepresentation} instances, so that they are written
+ * without copying through heap buffers where the connector allows it.
+ * <p>
+ * Requests for a single byte range are answered here with
+ * {@link Status#SUCCESS_PARTIAL_CONTENT}, writing only that range of the file,
+ * honoring "If-Range". Other range requests are left to the application's
+ * {@link RangeService}.
+ * <p>
+ * Files without an ETag get one via
+ * {@link FileCacheFilter#createTag(long, long)}, so that "If-Range" works and
+ * tags match those of a {@link FileCacheFilter}.
+ * 
+ * @author Tal Liron
+ */
+public class FileRangeFilter extends Filter
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param context
+	 *        The context
+	 * @param next
+	 *        The next restlet (usually a {@link Directory})
+	 */
+	public FileRangeFilter( Context context, Restlet next )
+	{
+		super( context, next );
+		describe();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Protected
+
+	//
+	// Filter
+	//
+
+	@Override
+	protected void afterHandle( Request request, Response response )
+	{
+		if( !Status.SUCCESS_OK.equals( response.getStatus() ) )
+			return;
+
+		Method method = request.getMethod();
+		if( !Method.GET.equals( method ) && !Method.HEAD.equals( method ) )
+			return;
+
+		Representation entity = response.getEntity();
+		if( !( entity instanceof FileRepresentation ) || ( entity instanceof FileChannelRepresentation ) || ( entity.getRange() != null ) )
+			return;
+
+		File file = ( (FileRepresentation) entity ).getFile();
+		long fileSize = entity.getSize();
+		if( fileSize < 0 )
+			return;
+
+		FileChannelRepresentation representation = new FileChannelRepresentation( file, entity.getMediaType() );
+		representation.setCharacterSet( entity.getCharacterSet() );
+		representation.getLanguages().addAll( entity.getLanguages() );
+		representation.getEncodings().addAll( entity.getEncodings() );
+		representation.setModificationDate( entity.getModificationDate() );
+		representation.setExpirationDate( entity.getExpirationDate() );
+		representation.setDisposition( entity.getDisposition() );
+		representation.setLocationRef( entity.getLocationRef() );
+		Tag tag = entity.getTag();
+		if( tag == null )
+			tag = FileCacheFilter.createTag( file.lastModified(), fileSize );
+		representation.setTag( tag );
+		entity.release();
+		response.setEntity( representation );
+		response.getServerInfo().setAcceptingRanges( true );
+
+		List<Range> ranges = request.getRanges();
+		if( ( ranges.size() != 1 ) || !isRangeConditionMet( request.getConditions(), representation ) )
+			return;
+
+		Range range = ranges.get( 0 );
+		long start, length;
+		if( range.getIndex() == Range.INDEX_LAST )
+		{
+			// Suffix range
+			length = Math.min( range.getSize(), fileSize );
+			start = fileSize - length;
+		}
+		else
+		{
+			start = range.getIndex();
+			length = range.getSize() == Range.SIZE_MAX ? fileSize - start : Math.min( range.getSize(), fileSize - start );
+		}
+
+		// Unsatisfiable ranges are left to the range service
+		if( ( start < 0 ) || ( start >= fileSize ) || ( length <= 0 ) )
+			return;
+
+		representation.setRange( start, length );
+		response.setStatus( Status.SUCCESS_PARTIAL_CONTENT );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * Checks the "If-Range" condition.
+	 * 
+	 * @param conditions
+	 *        The request conditions
+	 * @param representation
+	 *        The representation
+	 * @return True if the range should be sent
+	 */
+	private static boolean isRangeConditionMet( Conditions conditions, Representation representation )
+	{
+		Tag rangeTag = conditions.getRangeTag();
+		if( rangeTag != null )
+			return !rangeTag.isWeak() && rangeTag.equals( representation.getTag() );
+
+		Date rangeDate = conditions.getRangeDate();
+		if( rangeDate != null )
+		{
+			// HTTP dates have a resolution of seconds
+			Date modificationDate = representation.getModificationDate();
+			return ( modificationDate != null ) && ( modificationDate.getTime() / 1000L == rangeDate.getTime() / 1000L );
+		}
+
+		return true;
+	}
+
+	/**
+	 * Add description.
+	 */
+	private void describe()
+	{
+		setOwner( "Prudence" );
+		setAuthor( "Three Crickets" );
+		setName( getClass().getSimpleName() );
+		setDescription( "A filter that serves files and byte ranges of files without copying them through the heap" );
+	}
+}
@@ -0,0 +1,329 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.util;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.restlet.Component;
+import org.restlet.service.Service;
+
+/**
+ * Notifies listeners of changes to files in directory trees, using the
+ * operating system's file change notifications via {@link WatchService}
+ * rather than polling timestamps. Subdirectories created after a directory is
+ * watched are watched, too.
+ * <p>
+ * Notifications are delivered on a single daemon thread, which is started
+ * when the first directory is watched. Listeners should return quickly.
+ * <p>
+ * A single instance is meant to be shared by the component: see
+ * {@link InstanceUtil#getFileWatcher()}. Add it to the {@link Component}'s
+ * services, too, so that it is closed when the component stops.
+ * 
+ * @author Tal Liron
+ */
+public class FileWatcher extends Service implements Runnable
+{
+	//
+	// Types
+	//
+
+	/**
+	 * Listens to file changes.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called when a file or directory was created, modified or deleted. If
+		 * the operating system dropped events, the file is the watched
+		 * directory itself.
+		 * 
+		 * @param file
+		 *        The file
+		 */
+		public void fileChanged( File file );
+	}
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @throws IOException
+	 *         In case the watch service could not be created
+	 */
+	public FileWatcher() throws IOException
+	{
+		watchService = FileSystems.getDefault().newWatchService();
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Watches a directory and all its subdirectories. Does nothing if the
+	 * directory does not exist.
+	 * 
+	 * @param directory
+	 *        The directory
+	 * @param listener
+	 *        The listener
+	 * @throws IOException
+	 *         In case the directory could not be watched
+	 */
+	public void watch( File directory, Listener listener ) throws IOException
+	{
+		if( !directory.isDirectory() )
+			return;
+
+		registerAll( directory.toPath(), listener );
+
+		if( started.compareAndSet( false, true ) )
+		{
+			Thread thread = new Thread( this, "Prudence file watcher" );
+			thread.setDaemon( true );
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops watching all directories, and stops the notification thread.
+	 */
+	public void close()
+	{
+		try
+		{
+			watchService.close();
+		}
+		catch( IOException x )
+		{
+		}
+		watched.clear();
+	}
+
+	//
+	// Service
+	//
+
+	/**
+	 * Closes the watcher.
+	 * 
+	 * @see #close()
+	 */
+	@Override
+	public synchronized void stop() throws Exception
+	{
+		close();
+		super.stop();
+	}
+
+	//
+	// Runnable
+	//
+
+	public void run()
+	{
+		while( true )
+		{
+			WatchKey key;
+			try
+			{
+				key = watchService.take();
+			}
+			catch( InterruptedException x )
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch( ClosedWatchServiceException x )
+			{
+				return;
+			}
+
+			Watched watchedDirectory = watched.get( key );
+			if( watchedDirectory != null )
+			{
+				for( WatchEvent<?> event : key.pollEvents() )
+				{
+					if( event.kind() == OVERFLOW )
+					{
+						fireFileChanged( watchedDirectory.listeners, watchedDirectory.directory );
+						continue;
+					}
+
+					Path path = watchedDirectory.directory.resolve( (Path) event.context() );
+
+					// Watch new subdirectories
+					if( ( event.kind() == ENTRY_CREATE ) && Files.isDirectory( path ) )
+					{
+						for( Listener listener : watchedDirectory.listeners )
+						{
+							try
+							{
+								registerAll( path, listener );
+							}
+							catch( IOException x )
+							{
+								LOGGER.log( Level.WARNING, "Could not watch directory: " + path, x );
+							}
+						}
+					}
+
+					fireFileChanged( watchedDirectory.listeners, path );
+				}
+			}
+
+			if( !key.reset() )
+				watched.remove( key );
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	private static final Logger LOGGER = Logger.getLogger( FileWatcher.class.getCanonicalName() );
+
+	/**
+	 * The watch service.
+	 */
+	private final WatchService watchService;
+
+	/**
+	 * The watched directories.
+	 */
+	private final ConcurrentMap<WatchKey, Watched> watched = new ConcurrentHashMap<WatchKey, Watched>();
+
+	/**
+	 * Whether the notification thread was started.
+	 */
+	private final AtomicBoolean started = new AtomicBoolean();
+
+	/**
+	 * Watches a directory tree.
+	 * 
+	 * @param start
+	 *        The root of the tree
+	 * @param listener
+	 *        The listener
+	 * @throws IOException
+	 *         In case a directory could not be watched
+	 */
+	private void registerAll( Path start, final Listener listener ) throws IOException
+	{
+		Files.walkFileTree( start, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory( Path directory, BasicFileAttributes attributes ) throws IOException
+			{
+				register( directory, listener );
+				return FileVisitResult.CONTINUE;
+			}
+		} );
+	}
+
+	/**
+	 * Watches a single directory. A directory registered more than once keeps
+	 * all its listeners.
+	 * 
+	 * @param directory
+	 *        The directory
+	 * @param listener
+	 *        The listener
+	 * @throws IOException
+	 *         In case the directory could not be watched
+	 */
+	private void register( Path directory, Listener listener ) throws IOException
+	{
+		WatchKey key = directory.register( watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY );
+		Watched watchedDirectory = watched.get( key );
+		if( watchedDirectory == null )
+		{
+			watchedDirectory = new Watched( directory );
+			Watched existing = watched.putIfAbsent( key, watchedDirectory );
+			if( existing != null )
+				watchedDirectory = existing;
+		}
+		watchedDirectory.listeners.add( listener );
+	}
+
+	/**
+	 * Notifies listeners, making sure that a failing listener does not stop
+	 * the notification thread.
+	 * 
+	 * @param listeners
+	 *        The listeners
+	 * @param path
+	 *        The changed path
+	 */
+	private static void fireFileChanged( Set<Listener> listeners, Path path )
+	{
+		File file = path.toFile();
+		for( Listener listener : listeners )
+		{
+			try
+			{
+				listener.fileChanged( file );
+			}
+			catch( Throwable x )
+			{
+				LOGGER.log( Level.WARNING, "File change listener failed: " + listener, x );
+			}
+		}
+	}
+
+	/**
+	 * A watched directory.
+	 */
+	private static class Watched
+	{
+		private Watched( Path directory )
+		{
+			this.directory = directory;
+		}
+
+		/**
+		 * The directory.
+		 */
+		private final Path directory;
+
+		/**
+		 * The listeners.
+		 */
+		private final Set<Listener> listeners = new CopyOnWriteArraySet<Listener>();
+	}
+}
@@ -0,0 +1,245 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Map;
+
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.ParameterParser;
+import org.apache.commons.fileupload.util.Streams;
+import org.restlet.data.MediaType;
+import org.restlet.data.Parameter;
+
+/**
+ * A part of a form that is read while the request entity is being received,
+ * without storing it in memory or in a file.
+ * <p>
+ * The content can be read only once, and only before moving on to the next
+ * part.
+ * 
+ * @author Tal Liron
+ * @see FormPartIterator
+ */
+public class FormPart
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor for a multipart item.
+	 * 
+	 * @param item
+	 *        The item
+	 */
+	public FormPart( FileItemStream item )
+	{
+		this.item = item;
+		name = item.getFieldName();
+		value = null;
+		filename = item.getName();
+		mediaTypeName = item.getContentType();
+		isFile = !item.isFormField();
+	}
+
+	/**
+	 * Constructor for a URL encoded form parameter.
+	 * 
+	 * @param parameter
+	 *        The parameter
+	 */
+	public FormPart( Parameter parameter )
+	{
+		item = null;
+		name = parameter.getName();
+		value = parameter.getValue();
+		filename = null;
+		mediaTypeName = null;
+		isFile = false;
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The field name.
+	 * 
+	 * @return The field name
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * The filename sent by the client for uploaded files.
+	 * 
+	 * @return The filename or null
+	 */
+	public String getFilename()
+	{
+		return filename;
+	}
+
+	/**
+	 * Whether this is an uploaded file rather than a plain field.
+	 * 
+	 * @return True if a file
+	 */
+	public boolean isFile()
+	{
+		return isFile;
+	}
+
+	/**
+	 * The media type name.
+	 * 
+	 * @return The media type name or null
+	 * @see #getMediaType()
+	 */
+	public String getMediaTypeName()
+	{
+		return mediaTypeName;
+	}
+
+	/**
+	 * The media type.
+	 * 
+	 * @return The media type or null
+	 * @see #getMediaTypeName()
+	 */
+	public MediaType getMediaType()
+	{
+		return mediaTypeName != null ? MediaType.valueOf( mediaTypeName ) : null;
+	}
+
+	/**
+	 * The content as a stream.
+	 * 
+	 * @return The stream
+	 * @throws IOException
+	 *         In case of a reading error, or if the content has already been
+	 *         read
+	 */
+	public InputStream getStream() throws IOException
+	{
+		if( item != null )
+			return item.openStream();
+		return new ByteArrayInputStream( value != null ? value.getBytes( "UTF-8" ) : new byte[0] );
+	}
+
+	/**
+	 * The content as a channel.
+	 * 
+	 * @return The channel
+	 * @throws IOException
+	 *         In case of a reading error, or if the content has already been
+	 *         read
+	 */
+	public ReadableByteChannel getChannel() throws IOException
+	{
+		return Channels.newChannel( getStream() );
+	}
+
+	/**
+	 * The content as text, decoded with the character set of the part, or
+	 * ISO-8859-1 if it has none (as with {@link FormWithFiles}).
+	 * 
+	 * @return The text
+	 * @throws IOException
+	 *         In case of a reading error, or if the content has already been
+	 *         read
+	 */
+	public String getString() throws IOException
+	{
+		if( item == null )
+			return value;
+
+		String characterSet = null;
+		if( mediaTypeName != null )
+		{
+			ParameterParser parser = new ParameterParser();
+			parser.setLowerCaseNames( true );
+			Map<String, String> parameters = parser.parse( mediaTypeName, ';' );
+			characterSet = parameters.get( "charset" );
+		}
+
+		return Streams.asString( item.openStream(), characterSet != null ? characterSet : "ISO-8859-1" );
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Copies the content to an output stream.
+	 * 
+	 * @param out
+	 *        The output stream (will not be closed)
+	 * @return The number of bytes copied
+	 * @throws IOException
+	 *         In case of a reading or writing error, or if the content has
+	 *         already been read
+	 */
+	public long copyTo( OutputStream out ) throws IOException
+	{
+		InputStream in = getStream();
+		try
+		{
+			return Streams.copy( in, out, false );
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The multipart item, or null for a URL encoded parameter.
+	 */
+	private final FileItemStream item;
+
+	/**
+	 * The field name.
+	 */
+	private final String name;
+
+	/**
+	 * The value of a URL encoded parameter.
+	 */
+	private final String value;
+
+	/**
+	 * The filename.
+	 */
+	private final String filename;
+
+	/**
+	 * The media type name.
+	 */
+	private final String mediaTypeName;
+
+	/**
+	 * Whether this is an uploaded file.
+	 */
+	private final boolean isFile;
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.util;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileUploadException;
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Parameter;
+import org.restlet.ext.fileupload.RestletFileUpload;
+import org.restlet.representation.Representation;
+import org.restlet.resource.ResourceException;
+
+/**
+ * Iterates the parts of a form as the request entity is being read. Unlike
+ * {@link FormWithFiles}, uploaded files are never written to temporary files
+ * or kept in memory: each {@link FormPart} exposes its content as a stream,
+ * so that it can be piped straight to its destination.
+ * <p>
+ * Moving to the next part skips whatever is left of the current part's
+ * content, which then can no longer be read.
+ * <p>
+ * {@link MediaType#MULTIPART_FORM_DATA} entities are streamed. Other entities
+ * are parsed as URL encoded forms.
+ * 
+ * @author Tal Liron
+ */
+public class FormPartIterator implements Iterator<FormPart>
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param webForm
+	 *        The web form or null
+	 * @throws ResourceException
+	 *         In case of an upload handling error
+	 */
+	public FormPartIterator( Representation webForm ) throws ResourceException
+	{
+		if( ( webForm != null ) && ( webForm.getMediaType() != null ) && webForm.getMediaType().includes( MediaType.MULTIPART_FORM_DATA ) )
+		{
+			try
+			{
+				items = new RestletFileUpload().getItemIterator( webForm );
+			}
+			catch( FileUploadException x )
+			{
+				throw new ResourceException( x );
+			}
+			catch( IOException x )
+			{
+				throw new ResourceException( x );
+			}
+			parameters = null;
+		}
+		else
+		{
+			items = null;
+			parameters = webForm != null ? new Form( webForm ).iterator() : Collections.<Parameter> emptyIterator();
+		}
+	}
+
+	//
+	// Iterator
+	//
+
+	/**
+	 * @throws ResourceException
+	 *         In case of an upload handling error
+	 */
+	public boolean hasNext() throws ResourceException
+	{
+		if( items == null )
+			return parameters.hasNext();
+
+		try
+		{
+			return items.hasNext();
+		}
+		catch( FileUploadException x )
+		{
+			throw new ResourceException( x );
+		}
+		catch( IOException x )
+		{
+			throw new ResourceException( x );
+		}
+	}
+
+	/**
+	 * @throws ResourceException
+	 *         In case of an upload handling error
+	 */
+	public FormPart next() throws ResourceException
+	{
+		if( !hasNext() )
+			throw new NoSuchElementException();
+
+		if( items == null )
+			return new FormPart( parameters.next() );
+
+		try
+		{
+			return new FormPart( items.next() );
+		}
+		catch( FileUploadException x )
+		{
+			throw new ResourceException( x );
+		}
+		catch( IOException x )
+		{
+			throw new ResourceException( x );
+		}
+	}
+
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The multipart items, or null for a URL encoded form.
+	 */
+	private final FileItemIterator items;
+
+	/**
+	 * The URL encoded parameters, or null for a multipart form.
+	 */
+	private final Iterator<Parameter> parameters;
+}
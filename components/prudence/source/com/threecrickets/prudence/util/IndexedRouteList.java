@@ -0,0 +1,322 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.Restlet;
+import org.restlet.routing.Route;
+import org.restlet.routing.Router;
+import org.restlet.routing.TemplateRoute;
+import org.restlet.util.RouteList;
+
+/**
+ * A {@link RouteList} that uses a {@link TemplateIndex} to score only routes
+ * whose templates could match the request, instead of all routes, for the
+ * {@link Router#MODE_FIRST_MATCH}, {@link Router#MODE_LAST_MATCH} and
+ * {@link Router#MODE_BEST_MATCH} routing modes. Other modes are unaffected.
+ * <p>
+ * Routes that are not plain {@link TemplateRoute} or {@link CapturingRoute}
+ * instances might score differently, so they are always scored. The index is
+ * rebuilt lazily after the list changes. Call {@link #invalidate()} if you
+ * change the pattern of an attached route's template.
+ * 
+ * @author Tal Liron
+ */
+public class IndexedRouteList extends RouteList
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 */
+	public IndexedRouteList()
+	{
+		super();
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Makes sure the index will be rebuilt.
+	 */
+	public void invalidate()
+	{
+		version.incrementAndGet();
+	}
+
+	//
+	// RouteList
+	//
+
+	@Override
+	public Route getBest( Request request, Response response, float requiredScore )
+	{
+		Route result = null;
+		float bestScore = 0f;
+		float score;
+		for( Route current : getCandidates( request ) )
+		{
+			score = current.score( request, response );
+			if( ( score > bestScore ) && ( score >= requiredScore ) )
+			{
+				bestScore = score;
+				result = current;
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public Route getFirst( Request request, Response response, float requiredScore )
+	{
+		// Routes that don't match could still satisfy a non-positive score
+		if( requiredScore <= 0f )
+			return super.getFirst( request, response, requiredScore );
+
+		for( Route current : getCandidates( request ) )
+			if( current.score( request, response ) >= requiredScore )
+				return current;
+
+		return null;
+	}
+
+	@Override
+	public Route getLast( Request request, Response response, float requiredScore )
+	{
+		// Routes that don't match could still satisfy a non-positive score
+		if( requiredScore <= 0f )
+			return super.getLast( request, response, requiredScore );
+
+		List<Route> candidates = getCandidates( request );
+		for( int i = candidates.size() - 1; i >= 0; i-- )
+		{
+			Route current = candidates.get( i );
+			if( current.score( request, response ) >= requiredScore )
+				return current;
+		}
+
+		return null;
+	}
+
+	@Override
+	public synchronized void removeAll( Restlet target )
+	{
+		super.removeAll( target );
+		invalidate();
+	}
+
+	//
+	// List
+	//
+
+	@Override
+	public boolean add( Route element )
+	{
+		try
+		{
+			return super.add( element );
+		}
+		finally
+		{
+			invalidate();
+		}
+	}
+
+	@Override
+	public void add( int index, Route element )
+	{
+		try
+		{
+			super.add( index, element );
+		}
+		finally
+		{
+			invalidate();
+		}
+	}
+
+	@Override
+	public boolean addAll( Collection<? extends Route> elements )
+	{
+		try
+		{
+			return super.addAll( elements );
+		}
+		finally
+		{
+			invalidate();
+		}
+	}
+
+	@Override
+	public boolean addAll( int index, Collection<? extends Route> elements )
+	{
+		try
+		{
+			return super.addAll( index, elements );
+		}
+		finally
+		{
+			invalidate();
+		}
+	}
+
+	@Override
+	public void clear()
+	{
+		try
+		{
+			super.clear();
+		}
+		finally
+		{
+			invalidate();
+		}
+	}
+
+	@Override
+	public Route remove( int index )
+	{
+		try
+		{
+			return super.remove( index );
+		}
+		finally
+		{
+			invalidate();
+		}
+	}
+
+	@Override
+	public boolean remove( Object element )
+	{
+		try
+		{
+			return super.remove( element );
+		}
+		finally
+		{
+			invalidate();
+		}
+	}
+
+	@Override
+	public boolean removeAll( Collection<?> elements )
+	{
+		try
+		{
+			return super.removeAll( elements );
+		}
+		finally
+		{
+			invalidate();
+		}
+	}
+
+	@Override
+	public boolean retainAll( Collection<?> elements )
+	{
+		try
+		{
+			return super.retainAll( elements );
+		}
+		finally
+		{
+			invalidate();
+		}
+	}
+
+	@Override
+	public Route set( int index, Route element )
+	{
+		try
+		{
+			return super.set( index, element );
+		}
+		finally
+		{
+			invalidate();
+		}
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * Incremented whenever the list changes.
+	 */
+	private final AtomicInteger version = new AtomicInteger();
+
+	/**
+	 * The current index.
+	 */
+	private volatile VersionedIndex index;
+
+	/**
+	 * The routes that could match a request, in order.
+	 * 
+	 * @param request
+	 *        The request
+	 * @return The candidate routes
+	 */
+	private List<Route> getCandidates( Request request )
+	{
+		int currentVersion = version.get();
+		VersionedIndex index = this.index;
+		if( ( index == null ) || ( index.version != currentVersion ) )
+		{
+			TemplateIndex<Route> templateIndex = new TemplateIndex<Route>();
+			for( Route route : new ArrayList<Route>( this ) )
+			{
+				String pattern = null;
+				if( ( route.getClass() == TemplateRoute.class ) || ( route.getClass() == CapturingRoute.class ) )
+				{
+					TemplateRoute templateRoute = (TemplateRoute) route;
+					if( templateRoute.getTemplate() != null )
+						pattern = templateRoute.getTemplate().getPattern();
+				}
+				templateIndex.add( pattern, route );
+			}
+			index = new VersionedIndex( currentVersion, templateIndex );
+			this.index = index;
+		}
+
+		return index.templateIndex.getCandidates( request.getResourceRef().getRemainingPart( false, false ) );
+	}
+
+	/**
+	 * An index for a version of the list.
+	 */
+	private static class VersionedIndex
+	{
+		private VersionedIndex( int version, TemplateIndex<Route> templateIndex )
+		{
+			this.version = version;
+			this.templateIndex = templateIndex;
+		}
+
+		private final int version;
+
+		private final TemplateIndex<Route> templateIndex;
+	}
+}
@@ -49,6 +49,16 @@ public abstract class InstanceUtil
 	 */
 	public static final String EXECUTOR_ATTRIBUTE = "com.threecrickets.prudence.executor";
 
+	/**
+	 * Virtual threads attribute for a {@link Component}.
+	 */
+	public static final String VIRTUAL_THREADS_ATTRIBUTE = "com.threecrickets.prudence.virtualThreads";
+
+	/**
+	 * File watcher attribute for a {@link Component}.
+	 */
+	public static final String FILE_WATCHER_ATTRIBUTE = "com.threecrickets.prudence.fileWatcher";
+
 	/**
 	 * Scheduler attribute for a {@link Component}.
 	 */
@@ -89,6 +99,21 @@ public abstract class InstanceUtil
 		GlobalScope.getInstance().getAttributes().put( COMPONENT_ATTRIBUTE, component );
 	}
 
+	/**
+	 * The shared file watcher for the current Prudence instance, if one was
+	 * configured.
+	 * 
+	 * @return The file watcher or null
+	 * @see #FILE_WATCHER_ATTRIBUTE
+	 */
+	public static FileWatcher getFileWatcher()
+	{
+		Component component = getComponent();
+		if( component == null )
+			return null;
+		return (FileWatcher) component.getContext().getAttributes().get( FILE_WATCHER_ATTRIBUTE );
+	}
+
 	/**
 	 * Gets an application associated with the current Prudence instance.
 	 * <p>
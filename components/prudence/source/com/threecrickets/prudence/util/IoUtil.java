@@ -34,11 +34,16 @@ import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 import org.restlet.data.Encoding;
@@ -182,6 +187,29 @@ public abstract class IoUtil
 		return uniqueFile;
 	}
 
+	/**
+	 * A lock unique to this VM for a file's absolute path. Unlike synchronizing
+	 * on {@link #getUniqueFile(File)}, waiting for this lock does not pin a
+	 * virtual thread to its carrier thread.
+	 * 
+	 * @param file
+	 *        The file instance
+	 * @return The lock
+	 */
+	public static ReentrantLock getFileLock( File file )
+	{
+		String key = file.getAbsolutePath();
+		ReentrantLock lock = fileLocks.get( key );
+		if( lock == null )
+		{
+			lock = new ReentrantLock();
+			ReentrantLock existing = fileLocks.putIfAbsent( key, lock );
+			if( existing != null )
+				lock = existing;
+		}
+		return lock;
+	}
+
 	/**
 	 * Compresses an input stream into a byte array, without the initial two
 	 * 
@@ -196,17 +224,48 @@ public abstract class IoUtil
 	 *         In case of a reading or compression error
 	 */
 	public static byte[] compress( InputStream in, Encoding encoding, String documentName ) throws IOException
+	{
+		return compress( in, encoding, documentName, encoding.equals( Encoding.DEFLATE ) ? Deflater.BEST_COMPRESSION : Deflater.DEFAULT_COMPRESSION );
+	}
+
+	/**
+	 * Compresses an input stream into a byte array at a specific compression
+	 * level.
+	 * 
+	 * @param in
+	 *        The input stream
+	 * @param encoding
+	 *        The encoding
+	 * @param documentName
+	 *        The document name (only used with {@link Encoding#ZIP})
+	 * @param level
+	 *        The compression level, for example
+	 *        {@link Deflater#BEST_COMPRESSION}
+	 * @return The byte array
+	 * @throws IOException
+	 *         In case of a reading or compression error
+	 */
+	public static byte[] compress( InputStream in, Encoding encoding, String documentName, final int level ) throws IOException
 	{
 		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 
 		DeflaterOutputStream encoder = null;
 		if( encoding.equals( Encoding.GZIP ) )
-			encoder = new GZIPOutputStream( buffer );
+			encoder = new GZIPOutputStream( buffer )
+			{
+				{
+					def.setLevel( level );
+				}
+			};
 		else if( encoding.equals( Encoding.ZIP ) )
-			encoder = new ZipOutputStream( buffer );
+		{
+			ZipOutputStream zipEncoder = new ZipOutputStream( buffer );
+			zipEncoder.setLevel( level );
+			encoder = zipEncoder;
+		}
 		else if( encoding.equals( Encoding.DEFLATE ) )
 			// Note: Internet Explorer absolutely requires "no wrap" mode!
-			encoder = new DeflaterOutputStream( buffer, new Deflater( Deflater.BEST_COMPRESSION, true ) );
+			encoder = new DeflaterOutputStream( buffer, new Deflater( level, true ) );
 
 		if( encoder == null )
 			throw new IOException( "Unsupported encoding: " + encoding );
@@ -244,6 +303,43 @@ public abstract class IoUtil
 		return compress( new ByteArrayInputStream( text.toString().getBytes() ), encoding, documentName );
 	}
 
+	/**
+	 * Decompresses a byte array compressed by
+	 * {@link #compress(InputStream, Encoding, String)}.
+	 * 
+	 * @param bytes
+	 *        The compressed bytes
+	 * @param encoding
+	 *        The encoding
+	 * @return The decompressed bytes
+	 * @throws IOException
+	 *         In case of a decompression error
+	 */
+	public static byte[] decompress( byte[] bytes, Encoding encoding ) throws IOException
+	{
+		InputStream decoder;
+		if( encoding.equals( Encoding.GZIP ) )
+			decoder = new GZIPInputStream( new ByteArrayInputStream( bytes ) );
+		else if( encoding.equals( Encoding.ZIP ) )
+		{
+			ZipInputStream zipDecoder = new ZipInputStream( new ByteArrayInputStream( bytes ) );
+			if( zipDecoder.getNextEntry() == null )
+			{
+				zipDecoder.close();
+				throw new IOException( "Empty zip" );
+			}
+			decoder = zipDecoder;
+		}
+		else if( encoding.equals( Encoding.DEFLATE ) )
+			decoder = new InflaterInputStream( new ByteArrayInputStream( bytes ), new Inflater( true ) );
+		else
+			throw new IOException( "Unsupported encoding: " + encoding );
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream( bytes.length * 4 );
+		copyStream( decoder, buffer );
+		return buffer.toByteArray();
+	}
+
 	/**
 	 * Recursively packs a directory into a zip file.
 	 * 
@@ -488,6 +584,11 @@ public abstract class IoUtil
 	 */
 	private static final ConcurrentMap<String, File> uniqueFiles = new ConcurrentHashMap<String, File>();
 
+	/**
+	 * Locks per absolute file path.
+	 */
+	private static final ConcurrentMap<String, ReentrantLock> fileLocks = new ConcurrentHashMap<String, ReentrantLock>();
+
 	/**
 	 * Zip a directory.
 	 * 
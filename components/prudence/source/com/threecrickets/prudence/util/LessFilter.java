@@ -11,13 +11,8 @@
 
 package com.threecrickets.prudence.util;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.StringReader;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
@@ -34,9 +29,9 @@ import org.restlet.routing.Filter;
 
 import com.github.sommeri.less4j.Less4jException;
 import com.github.sommeri.less4j.LessCompiler;
-import com.github.sommeri.less4j.LessCompiler.CompilationResult;
+import com.github.sommeri.less4j.LessSource;
 import com.github.sommeri.less4j.core.TimeoutedLessCompiler;
-import com.threecrickets.prudence.internal.CSSMin;
+import com.threecrickets.prudence.internal.CssMinifier;
 
 /**
  * A {@link Filter} that automatically parses
@@ -46,7 +41,14 @@ import com.threecrickets.prudence.internal.CSSMin;
  * {@link CssUnifyMinifyFilter}.
  * <p>
  * This filter can track changes to the source files, updating the result file
- * on-the-fly. This makes it easy to develop and debug a live site.
+ * on-the-fly. This makes it easy to develop and debug a live site. Changes to
+ * imported files are tracked, too. Once a result file exists, it is updated in
+ * the background by a {@link CssCompilationService} (see
+ * {@link #getCompilationService()}).
+ * <p>
+ * If an {@link AssetManifest} is set, rendered CSS files are also registered
+ * in it, so that fingerprinted copies can be referred to. Requests for
+ * fingerprinted copies are passed through as is.
  * <p>
  * Note that this instances of this class can only guarantee atomic access to
  * the rendered CSS file within the current VM.
@@ -96,6 +98,13 @@ public class LessFilter extends Filter
 		this.targetDirectory = targetDirectory;
 		this.minimumTimeBetweenValidityChecks = minimumTimeBetweenValidityChecks;
 		this.lessCompiler = lessCompiler;
+		compilationService = new CssCompilationService( new CssCompilationService.Compiler()
+		{
+			public String compile( File sourceFile, Set<File> dependencies ) throws IOException
+			{
+				return LessFilter.this.compile( sourceFile, dependencies );
+			}
+		}, getLogger() );
 		describe();
 	}
 
@@ -136,13 +145,46 @@ public class LessFilter extends Filter
 		this.minimumTimeBetweenValidityChecks = minimumTimeBetweenValidityChecks;
 	}
 
+	/**
+	 * The asset manifest in which rendered CSS files are registered.
+	 * 
+	 * @return The asset manifest or null
+	 * @see #setAssetManifest(AssetManifest)
+	 */
+	public AssetManifest getAssetManifest()
+	{
+		return compilationService.getAssetManifest();
+	}
+
+	/**
+	 * @param assetManifest
+	 *        The asset manifest or null
+	 * @see #getAssetManifest()
+	 */
+	public void setAssetManifest( AssetManifest assetManifest )
+	{
+		compilationService.setAssetManifest( assetManifest );
+	}
+
+	/**
+	 * The compilation service, which keeps track of the files imported by each
+	 * LESS file. Set its executor to compile in the background.
+	 * 
+	 * @return The compilation service
+	 */
+	public CssCompilationService getCompilationService()
+	{
+		return compilationService;
+	}
+
 	//
 	// Operations
 	//
 
 	/**
-	 * Translate LESS to CSS, only if the LESS source is newer. Can optionally
-	 * minify the CSS, too.
+	 * Translate LESS to CSS, only if the LESS source or any of the files it
+	 * imports changed. Can optionally minify the CSS, too. If the CSS file
+	 * already exists, it is translated in the background.
 	 * 
 	 * @param lessFile
 	 *        The LESS source file
@@ -152,65 +194,42 @@ public class LessFilter extends Filter
 	 *        Whether to minify the CSS
 	 * @throws IOException
 	 *         In case of a reading, writing or translation error
-	 * @see CSSMin
+	 * @see CssMinifier
 	 */
 	public void translate( File lessFile, File cssFile, boolean minify ) throws IOException
 	{
-		cssFile = IoUtil.getUniqueFile( cssFile );
-		synchronized( cssFile )
-		{
-			long lastModified = lessFile.lastModified();
-			if( lastModified == cssFile.lastModified() )
-				return;
-
-			if( cssFile.exists() )
-				if( !cssFile.delete() )
-					throw new IOException( "Could not delete file: " + cssFile );
-			cssFile.getParentFile().mkdirs();
+		compilationService.translate( lessFile, cssFile, minify );
+	}
 
-			try
+	/**
+	 * Watches the source directories, so that LESS files are translated again
+	 * as soon as they or any of the files they import change, rather than when
+	 * their validity check is due. With this, the minimum time between validity
+	 * checks can be set very high.
+	 * 
+	 * @param fileWatcher
+	 *        The file watcher
+	 * @throws IOException
+	 *         In case a directory could not be watched
+	 */
+	public void watch( FileWatcher fileWatcher ) throws IOException
+	{
+		FileWatcher.Listener listener = new FileWatcher.Listener()
+		{
+			public void fileChanged( File file )
 			{
-				if( minify )
-					getLogger().info( "Translating and minifying LESS: \"" + lessFile + "\" into file \"" + cssFile + "\"" );
-				else
-					getLogger().info( "Translating LESS: \"" + lessFile + "\" into file \"" + cssFile + "\"" );
-
-				CompilationResult result = lessCompiler.compile( lessFile );
-				String css = result.getCss();
-
-				if( minify )
-				{
-					BufferedOutputStream output = new BufferedOutputStream( new FileOutputStream( cssFile ) );
-					try
-					{
-						CSSMin.formatFile( new StringReader( css ), output );
-					}
-					finally
-					{
-						output.close();
-					}
-				}
-				else
+				// Our own output does not require translation
+				String name = file.getName();
+				if( !name.endsWith( CSS_EXTENSION ) && !name.endsWith( TEMPORARY_EXTENSION ) )
 				{
-					BufferedWriter writer = new BufferedWriter( new FileWriter( cssFile ) );
-					try
-					{
-						writer.write( css );
-					}
-					finally
-					{
-						writer.close();
-					}
+					lastValidityChecks.clear();
+					compilationService.fileChanged( file );
 				}
 			}
-			catch( Less4jException x )
-			{
-				throw new IOException( "Could not compile LESS file: " + lessFile );
-			}
+		};
 
-			if( !cssFile.setLastModified( lastModified ) )
-				throw new IOException( "Could not update timestamp on file: " + cssFile );
-		}
+		for( File sourceDirectory : sourceDirectories )
+			fileWatcher.watch( sourceDirectory, listener );
 	}
 
 	//
@@ -222,6 +241,12 @@ public class LessFilter extends Filter
 	{
 		Reference reference = request.getResourceRef();
 		String path = reference.getRemainingPart( true, false );
+
+		// Fingerprinted copies never change
+		AssetManifest assetManifest = compilationService.getAssetManifest();
+		if( ( assetManifest != null ) && assetManifest.isFingerprintedCopy( reference.getLastSegment( true, false ) ) )
+			return Filter.CONTINUE;
+
 		try
 		{
 			// String name = reference.getLastSegment( true, false );
@@ -244,20 +269,23 @@ public class LessFilter extends Filter
 				{
 					if( lastValidityCheckAtomic.compareAndSet( lastValidityCheck, now ) )
 					{
+						boolean found = false;
 						for( File sourceDirectory : sourceDirectories )
 						{
 							File lessFile = new File( sourceDirectory, lessPath );
 							if( lessFile.exists() )
 							{
 								File cssFile = new File( targetDirectory, path );
-								translate( lessFile, cssFile, minify );
+								compilationService.validate( path, lessFile, cssFile, minify );
+								found = true;
 								break;
 							}
 						}
 
 						// LESS file was not found, so don't keep the entry for
 						// it
-						this.lastValidityChecks.remove( path );
+						if( !found )
+							this.lastValidityChecks.remove( path );
 					}
 				}
 			}
@@ -292,6 +320,8 @@ public class LessFilter extends Filter
 
 	private static final int CSS_EXTENSION_LENGTH = CSS_EXTENSION.length();
 
+	private static final String TEMPORARY_EXTENSION = ".tmp";
+
 	private static final String LESS_EXTENSION = ".less";
 
 	/**
@@ -319,6 +349,11 @@ public class LessFilter extends Filter
 	 */
 	private final ConcurrentHashMap<String, AtomicLong> lastValidityChecks = new ConcurrentHashMap<String, AtomicLong>();
 
+	/**
+	 * See {@link #getCompilationService()}
+	 */
+	private final CssCompilationService compilationService;
+
 	/**
 	 * Add description.
 	 */
@@ -330,6 +365,55 @@ public class LessFilter extends Filter
 		setDescription( "A filter that automatically translates LESS source files to CSS" );
 	}
 
+	/**
+	 * Compiles a LESS file, keeping track of the files it imports.
+	 * 
+	 * @param lessFile
+	 *        The LESS file
+	 * @param dependencies
+	 *        The imported files
+	 * @return The CSS
+	 * @throws IOException
+	 *         In case of a reading or compilation error
+	 */
+	private String compile( File lessFile, Set<File> dependencies ) throws IOException
+	{
+		LessSource.FileSource source = new LessSource.FileSource( lessFile );
+		try
+		{
+			return lessCompiler.compile( source ).getCss();
+		}
+		catch( Less4jException x )
+		{
+			throw new IOException( "Could not compile LESS file: " + lessFile, x );
+		}
+		finally
+		{
+			addImportedFiles( source, dependencies );
+		}
+	}
+
+	/**
+	 * Adds the files imported by a LESS source, recursively.
+	 * 
+	 * @param source
+	 *        The LESS source
+	 * @param files
+	 *        The files
+	 */
+	private static void addImportedFiles( LessSource.AbstractHierarchicalSource source, Set<File> files )
+	{
+		for( LessSource imported : source.getImportedSources() )
+		{
+			if( imported instanceof LessSource.FileSource )
+			{
+				LessSource.FileSource fileSource = (LessSource.FileSource) imported;
+				if( files.add( fileSource.getInputFile() ) )
+					addImportedFiles( fileSource, files );
+			}
+		}
+	}
+
 	private AtomicLong getLastValidityCheck( String key )
 	{
 		AtomicLong lastValidityCheck = this.lastValidityChecks.get( key );
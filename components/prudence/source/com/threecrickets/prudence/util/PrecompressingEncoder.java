@@ -0,0 +1,498 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.zip.Deflater;
+
+import org.restlet.Application;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.data.ClientInfo;
+import org.restlet.data.Dimension;
+import org.restlet.data.Encoding;
+import org.restlet.representation.ByteArrayRepresentation;
+import org.restlet.representation.FileRepresentation;
+import org.restlet.representation.Representation;
+
+/**
+ * A {@link CustomEncoder} that keeps compressed variants of files in memory,
+ * so that static files do not have to be compressed again for every request.
+ * <p>
+ * Variants are compressed at the best compression level, in the background
+ * if an executor is set, the first time a file is requested in an encoding or
+ * after the file has changed. Until the variant is ready, responses are
+ * compressed on the fly as usual. Variants are identified by the file's
+ * modification date and size, so changed files are never served stale.
+ * <p>
+ * Only files up to {@link #getMaximumFileSize()} are kept, up to a total of
+ * {@link #getMaximumSize()} bytes, beyond which the least recently used
+ * variants are evicted. Files that do not compress to a smaller size are also
+ * remembered, and are then sent as is rather than compressed again for every
+ * request.
+ * <p>
+ * Files cached by a {@link FileCacheFilter} are supported, too.
+ * <p>
+ * Responses that could be encoded get a "Vary: Accept-Encoding" header,
+ * whether or not they were encoded for this client.
+ * 
+ * @author Tal Liron
+ */
+public class PrecompressingEncoder extends CustomEncoder
+{
+	//
+	// Constants
+	//
+
+	/**
+	 * The default maximum total size of compressed variants.
+	 */
+	public static final long DEFAULT_MAXIMUM_SIZE = 32L * 1024L * 1024L;
+
+	/**
+	 * The default maximum size of files for which variants are kept.
+	 */
+	public static final long DEFAULT_MAXIMUM_FILE_SIZE = 1024L * 1024L;
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor that encodes responses.
+	 * 
+	 * @param application
+	 *        The application
+	 */
+	public PrecompressingEncoder( Application application )
+	{
+		super( application );
+		describe();
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The executor used for compressing variants in the background.
+	 * 
+	 * @return The executor or null
+	 */
+	public ExecutorService getExecutor()
+	{
+		return executor;
+	}
+
+	/**
+	 * The executor used for compressing variants in the background. If null,
+	 * variants are compressed in the thread of the first request that needs
+	 * them.
+	 * 
+	 * @param executor
+	 *        The executor or null
+	 */
+	public void setExecutor( ExecutorService executor )
+	{
+		this.executor = executor;
+	}
+
+	/**
+	 * The maximum total size of compressed variants in bytes.
+	 * 
+	 * @return The maximum size
+	 */
+	public long getMaximumSize()
+	{
+		return maximumSize;
+	}
+
+	/**
+	 * @param maximumSize
+	 *        The maximum size
+	 * @see #getMaximumSize()
+	 */
+	public void setMaximumSize( long maximumSize )
+	{
+		this.maximumSize = maximumSize;
+	}
+
+	/**
+	 * The maximum size in bytes of files for which variants are kept.
+	 * 
+	 * @return The maximum file size
+	 */
+	public long getMaximumFileSize()
+	{
+		return maximumFileSize;
+	}
+
+	/**
+	 * @param maximumFileSize
+	 *        The maximum file size
+	 * @see #getMaximumFileSize()
+	 */
+	public void setMaximumFileSize( long maximumFileSize )
+	{
+		this.maximumFileSize = maximumFileSize;
+	}
+
+	/**
+	 * The current total size of compressed variants in bytes.
+	 * 
+	 * @return The size
+	 */
+	public long getSize()
+	{
+		return size.get();
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Forgets all compressed variants.
+	 */
+	public void clear()
+	{
+		variants.clear();
+		size.set( 0 );
+	}
+
+	//
+	// Encoder
+	//
+
+	@Override
+	public Representation encode( ClientInfo client, Representation representation )
+	{
+		File file = null;
+		if( representation instanceof FileRepresentation )
+			file = ( (FileRepresentation) representation ).getFile();
+		else if( representation instanceof FileCacheFilter.CachedFileRepresentation )
+			file = ( (FileCacheFilter.CachedFileRepresentation) representation ).getFile();
+
+		// Byte ranges refer to the unencoded file
+		if( ( file != null ) && ( representation.getRange() == null ) )
+		{
+			Encoding encoding = client.getPreferredEncoding( getSupportedEncodings() );
+			if( ( encoding != null ) && !Encoding.IDENTITY.equals( encoding ) )
+			{
+				Variant known = getVariant( file, encoding, representation );
+				if( known != null )
+				{
+					// Not worth compressing
+					if( known.compressed == null )
+						return representation;
+
+					ByteArrayRepresentation variant = new ByteArrayRepresentation( known.compressed, representation.getMediaType() );
+					variant.setCharacterSet( representation.getCharacterSet() );
+					variant.getLanguages().addAll( representation.getLanguages() );
+					variant.getEncodings().addAll( representation.getEncodings() );
+					variant.getEncodings().add( encoding );
+					variant.setModificationDate( representation.getModificationDate() );
+					variant.setExpirationDate( representation.getExpirationDate() );
+					variant.setTag( createEncodedTag( representation.getTag() ) );
+					variant.setDisposition( representation.getDisposition() );
+					variant.setLocationRef( representation.getLocationRef() );
+					representation.release();
+					return variant;
+				}
+			}
+		}
+
+		return super.encode( client, representation );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Protected
+
+	//
+	// Filter
+	//
+
+	@Override
+	protected void afterHandle( Request request, Response response )
+	{
+		Representation entity = response.getEntity();
+		if( isEncodingResponse() && ( entity != null ) && getEncoderService().canEncode( entity ) )
+			response.getDimensions().add( Dimension.ENCODING );
+
+		super.afterHandle( request, response );
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The executor.
+	 */
+	private volatile ExecutorService executor;
+
+	/**
+	 * The maximum total size of compressed variants.
+	 */
+	private volatile long maximumSize = DEFAULT_MAXIMUM_SIZE;
+
+	/**
+	 * The maximum size of files for which variants are kept.
+	 */
+	private volatile long maximumFileSize = DEFAULT_MAXIMUM_FILE_SIZE;
+
+	/**
+	 * The variants.
+	 */
+	private final ConcurrentHashMap<String, Variant> variants = new ConcurrentHashMap<String, Variant>();
+
+	/**
+	 * The total size of compressed variants.
+	 */
+	private final AtomicLong size = new AtomicLong();
+
+	/**
+	 * Whether variants are being evicted.
+	 */
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	/**
+	 * The known variant of a file, making sure it will be compressed if it
+	 * isn't yet.
+	 * 
+	 * @param file
+	 *        The file
+	 * @param encoding
+	 *        The encoding
+	 * @param representation
+	 *        The file representation
+	 * @return The variant (with null compressed bytes if not worth
+	 *         compressing), or null if not available
+	 */
+	private Variant getVariant( final File file, final Encoding encoding, Representation representation )
+	{
+		final long fileSize = representation.getSize();
+		if( ( fileSize <= 0 ) || ( fileSize > maximumFileSize ) )
+			return null;
+
+		Date modificationDate = representation.getModificationDate();
+		final long lastModified = modificationDate != null ? modificationDate.getTime() : file.lastModified();
+
+		final String key = file.getPath() + '|' + encoding.getName();
+		Variant variant = variants.get( key );
+		if( ( variant != null ) && ( variant.lastModified == lastModified ) && ( variant.fileSize == fileSize ) )
+		{
+			if( variant.isPending )
+				return null;
+			variant.lastAccess = System.currentTimeMillis();
+			return variant;
+		}
+
+		// Mark as pending, so that only one thread compresses
+		Variant pending = new Variant( lastModified, fileSize, null, true );
+		if( variant == null )
+		{
+			if( variants.putIfAbsent( key, pending ) != null )
+				return null;
+		}
+		else if( !variants.replace( key, variant, pending ) )
+			return null;
+		else if( variant.compressed != null )
+			size.addAndGet( -variant.compressed.length );
+
+		Runnable task = new Runnable()
+		{
+			public void run()
+			{
+				compress( key, file, encoding, lastModified, fileSize );
+			}
+		};
+
+		ExecutorService executor = this.executor;
+		if( executor != null )
+		{
+			try
+			{
+				executor.execute( task );
+				return null;
+			}
+			catch( RejectedExecutionException x )
+			{
+				variants.remove( key, pending );
+				return null;
+			}
+		}
+
+		task.run();
+		variant = variants.get( key );
+		return ( variant != null ) && !variant.isPending ? variant : null;
+	}
+
+	/**
+	 * Compresses a file and stores the variant.
+	 * 
+	 * @param key
+	 *        The variant key
+	 * @param file
+	 *        The file
+	 * @param encoding
+	 *        The encoding
+	 * @param lastModified
+	 *        The file's modification timestamp
+	 * @param fileSize
+	 *        The file's size
+	 */
+	private void compress( String key, File file, Encoding encoding, long lastModified, long fileSize )
+	{
+		byte[] compressed;
+		try
+		{
+			compressed = IoUtil.compress( new FileInputStream( file ), encoding, file.getName(), Deflater.BEST_COMPRESSION );
+		}
+		catch( IOException x )
+		{
+			getLogger().log( Level.FINE, "Could not compress file: " + file, x );
+			variants.remove( key );
+			return;
+		}
+
+		if( compressed.length >= fileSize )
+		{
+			// Remember that it's not worth it
+			variants.put( key, new Variant( lastModified, fileSize, null, false ) );
+			return;
+		}
+
+		if( compressed.length > maximumSize )
+		{
+			// Will never fit
+			variants.remove( key );
+			return;
+		}
+
+		Variant variant = new Variant( lastModified, fileSize, compressed, false );
+		Variant previous = variants.put( key, variant );
+		if( ( previous != null ) && ( previous.compressed != null ) )
+			size.addAndGet( -previous.compressed.length );
+		if( size.addAndGet( compressed.length ) > maximumSize )
+			evict( variant );
+	}
+
+	/**
+	 * Evicts the least recently used compressed variants until the total size
+	 * is within the maximum. Only one thread evicts at a time.
+	 * 
+	 * @param keep
+	 *        A variant not to evict
+	 */
+	private void evict( Variant keep )
+	{
+		if( !evicting.compareAndSet( false, true ) )
+			return;
+
+		try
+		{
+			List<Map.Entry<String, Variant>> entries = new ArrayList<Map.Entry<String, Variant>>();
+			for( Map.Entry<String, Variant> entry : variants.entrySet() )
+				if( ( entry.getValue().compressed != null ) && ( entry.getValue() != keep ) )
+					entries.add( entry );
+
+			Collections.sort( entries, new Comparator<Map.Entry<String, Variant>>()
+			{
+				public int compare( Map.Entry<String, Variant> entry1, Map.Entry<String, Variant> entry2 )
+				{
+					long lastAccess1 = entry1.getValue().lastAccess;
+					long lastAccess2 = entry2.getValue().lastAccess;
+					return lastAccess1 < lastAccess2 ? -1 : ( lastAccess1 == lastAccess2 ? 0 : 1 );
+				}
+			} );
+
+			for( Map.Entry<String, Variant> entry : entries )
+			{
+				if( size.get() <= maximumSize )
+					break;
+
+				Variant variant = entry.getValue();
+				if( variants.remove( entry.getKey(), variant ) )
+					size.addAndGet( -variant.compressed.length );
+			}
+		}
+		finally
+		{
+			evicting.set( false );
+		}
+	}
+
+	/**
+	 * A compressed variant of a file.
+	 */
+	private static class Variant
+	{
+		private Variant( long lastModified, long fileSize, byte[] compressed, boolean isPending )
+		{
+			this.lastModified = lastModified;
+			this.fileSize = fileSize;
+			this.compressed = compressed;
+			this.isPending = isPending;
+			lastAccess = System.currentTimeMillis();
+		}
+
+		/**
+		 * The file's modification timestamp.
+		 */
+		private final long lastModified;
+
+		/**
+		 * The file's size.
+		 */
+		private final long fileSize;
+
+		/**
+		 * The compressed bytes, or null if pending or not worth compressing.
+		 */
+		private final byte[] compressed;
+
+		/**
+		 * Whether the file is being compressed.
+		 */
+		private final boolean isPending;
+
+		/**
+		 * The last access timestamp.
+		 */
+		private volatile long lastAccess;
+	}
+
+	/**
+	 * Add description.
+	 */
+	private void describe()
+	{
+		setOwner( "Prudence" );
+		setAuthor( "Three Crickets" );
+		setName( getClass().getSimpleName() );
+		setDescription( "An encoder that keeps compressed variants of files in memory" );
+	}
+}
@@ -129,16 +129,15 @@ public class ResolvingRedirector extends Redirector
 		// This is essentially the original Restlet code modified to use
 		// ResolvingTemplate.
 
-		// Create the template
-		Template rt = new ResolvingTemplate( this.targetTemplate );
-		rt.setLogger( getLogger() );
+		// The template is created only once per target template
+		TargetTemplate target = getTarget();
 
 		// Return the formatted target URI
-		if( new Reference( this.targetTemplate ).isRelative() )
+		if( target.isRelative )
 			// Be sure to keep the resource's base reference.
-			return new Reference( request.getResourceRef(), rt.format( request, response ) );
+			return new Reference( request.getResourceRef(), target.template.format( request, response ) );
 
-		return new Reference( rt.format( request, response ) );
+		return new Reference( target.template.format( request, response ) );
 	}
 
 	@Override
@@ -192,6 +191,49 @@ public class ResolvingRedirector extends Redirector
 	// //////////////////////////////////////////////////////////////////////////
 	// Private
 
+	/**
+	 * The template for the current target template.
+	 */
+	private volatile TargetTemplate target;
+
+	/**
+	 * The template for the current target template, created if the target
+	 * template has changed.
+	 * 
+	 * @return The target template
+	 */
+	private TargetTemplate getTarget()
+	{
+		String targetTemplate = this.targetTemplate;
+		TargetTemplate target = this.target;
+		if( ( target == null ) || ( target.pattern != targetTemplate ) )
+		{
+			Template template = new ResolvingTemplate( targetTemplate );
+			template.setLogger( getLogger() );
+			this.target = target = new TargetTemplate( targetTemplate, template, new Reference( targetTemplate ).isRelative() );
+		}
+		return target;
+	}
+
+	/**
+	 * A target template.
+	 */
+	private static class TargetTemplate
+	{
+		private TargetTemplate( String pattern, Template template, boolean isRelative )
+		{
+			this.pattern = pattern;
+			this.template = template;
+			this.isRelative = isRelative;
+		}
+
+		private final String pattern;
+
+		private final Template template;
+
+		private final boolean isRelative;
+	}
+
 	/**
 	 * Add description.
 	 */
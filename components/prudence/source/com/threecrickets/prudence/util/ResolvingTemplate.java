@@ -11,20 +11,30 @@
 
 package com.threecrickets.prudence.util;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.Map;
 
 import org.restlet.Application;
 import org.restlet.Request;
 import org.restlet.Response;
+import org.restlet.data.Reference;
 import org.restlet.routing.Template;
+import org.restlet.routing.Variable;
 import org.restlet.util.Resolver;
 
 /**
  * A {@link Template} that allows control over which {@link Resolver} instances
  * it will use.
  * <p>
+ * Formatting is optimized: the pattern is parsed only once into literal and
+ * variable segments, and resolver constructors are bound to method handles.
+ * Patterns that Restlet would warn about, as well as templates that encode
+ * variables, are formatted by Restlet as usual.
+ * <p>
  * See
  * <a href="https://github.com/restlet/restlet-framework-java/issues/798">this
  * issue</a>.
@@ -296,26 +306,29 @@ public class ResolvingTemplate extends Template
 
 		if( mapResolverConstructor != null )
 		{
+			BoundConstructor mapResolver = this.mapResolver;
+			if( ( mapResolver == null ) || ( mapResolver.constructor != mapResolverConstructor ) )
+				this.mapResolver = mapResolver = new BoundConstructor( mapResolverConstructor, Map.class );
+
+			Resolver<?> resolver;
 			try
 			{
-				return format( mapResolverConstructor.newInstance( values ) );
-			}
-			catch( IllegalArgumentException x )
-			{
-				throw new RuntimeException( x );
+				resolver = (Resolver<?>) mapResolver.handle.invokeExact( values );
 			}
-			catch( InstantiationException x )
+			catch( RuntimeException x )
 			{
-				throw new RuntimeException( x );
+				throw x;
 			}
-			catch( IllegalAccessException x )
+			catch( Error x )
 			{
-				throw new RuntimeException( x );
+				throw x;
 			}
-			catch( InvocationTargetException x )
+			catch( Throwable x )
 			{
 				throw new RuntimeException( x );
 			}
+
+			return format( resolver );
 		}
 
 		return super.format( values );
@@ -331,29 +344,72 @@ public class ResolvingTemplate extends Template
 
 		if( callResolverConstructor != null )
 		{
+			BoundConstructor callResolver = this.callResolver;
+			if( ( callResolver == null ) || ( callResolver.constructor != callResolverConstructor ) )
+				this.callResolver = callResolver = new BoundConstructor( callResolverConstructor, Request.class, Response.class );
+
+			Resolver<?> resolver;
 			try
 			{
-				return format( callResolverConstructor.newInstance( request, response ) );
+				resolver = (Resolver<?>) callResolver.handle.invokeExact( request, response );
 			}
-			catch( IllegalArgumentException x )
+			catch( RuntimeException x )
 			{
-				throw new RuntimeException( x );
+				throw x;
 			}
-			catch( InstantiationException x )
+			catch( Error x )
 			{
-				throw new RuntimeException( x );
+				throw x;
 			}
-			catch( IllegalAccessException x )
+			catch( Throwable x )
 			{
 				throw new RuntimeException( x );
 			}
-			catch( InvocationTargetException x )
+
+			return format( resolver );
+		}
+
+		return super.format( request, response );
+	}
+
+	@Override
+	public String format( Resolver<?> resolver )
+	{
+		CompiledPattern compiledPattern = getCompiledPattern();
+		if( ( compiledPattern.segments == null ) || isEncodingVariables() )
+			return super.format( resolver );
+
+		// This is equivalent to the original Restlet code for templates that
+		// do not encode variables, without scanning the pattern again.
+
+		StringBuilder r = new StringBuilder( compiledPattern.capacity );
+		for( Segment segment : compiledPattern.segments )
+		{
+			if( segment.variableName == null )
 			{
-				throw new RuntimeException( x );
+				r.append( segment.literal );
+				continue;
+			}
+
+			Object value = resolver.resolve( segment.variableName );
+			Variable variable = getVariables().get( segment.variableName );
+			if( value == null )
+			{
+				// Use the default value instead
+				if( variable == null )
+					variable = getDefaultVariable();
+				if( variable != null )
+					value = variable.getDefaultValue();
 			}
+
+			String string = value == null ? null : value.toString();
+			if( ( variable != null ) && variable.isEncodingOnFormat() )
+				r.append( Reference.encode( string ) );
+			else
+				r.append( string );
 		}
 
-		return super.format( request, response );
+		return r.toString();
 	}
 
 	// //////////////////////////////////////////////////////////////////////////
@@ -368,4 +424,164 @@ public class ResolvingTemplate extends Template
 	 * Used to create the call resolver.
 	 */
 	private volatile Constructor<Resolver<?>> callResolverConstructor;
+
+	/**
+	 * The last used map resolver constructor.
+	 */
+	private volatile BoundConstructor mapResolver;
+
+	/**
+	 * The last used call resolver constructor.
+	 */
+	private volatile BoundConstructor callResolver;
+
+	/**
+	 * The compiled pattern.
+	 */
+	private volatile CompiledPattern compiledPattern;
+
+	/**
+	 * The pattern, compiled if it has changed.
+	 * 
+	 * @return The compiled pattern
+	 */
+	private CompiledPattern getCompiledPattern()
+	{
+		String pattern = getPattern();
+		CompiledPattern compiledPattern = this.compiledPattern;
+		if( ( compiledPattern == null ) || ( compiledPattern.pattern != pattern ) )
+			this.compiledPattern = compiledPattern = new CompiledPattern( pattern );
+		return compiledPattern;
+	}
+
+	/**
+	 * A pattern parsed into literal and variable segments.
+	 */
+	private static class CompiledPattern
+	{
+		/**
+		 * Parses the pattern. If it has empty variables or invalid characters
+		 * in variables, the segments are left null.
+		 * 
+		 * @param pattern
+		 *        The pattern
+		 */
+		private CompiledPattern( String pattern )
+		{
+			this.pattern = pattern;
+
+			ArrayList<Segment> segments = new ArrayList<Segment>();
+			StringBuilder buffer = new StringBuilder();
+			boolean inVariable = false;
+			boolean valid = pattern != null;
+			int length = valid ? pattern.length() : 0;
+			int literalLength = 0;
+			int variableCount = 0;
+			for( int i = 0; valid && ( i < length ); i++ )
+			{
+				char c = pattern.charAt( i );
+				if( inVariable )
+				{
+					if( c == '}' )
+					{
+						if( buffer.length() == 0 )
+							valid = false;
+						else
+						{
+							segments.add( new Segment( null, buffer.toString() ) );
+							variableCount++;
+							buffer.setLength( 0 );
+							inVariable = false;
+						}
+					}
+					else if( Reference.isUnreserved( c ) )
+						buffer.append( c );
+					else
+						valid = false;
+				}
+				else
+				{
+					if( c == '{' )
+					{
+						if( buffer.length() > 0 )
+						{
+							segments.add( new Segment( buffer.toString(), null ) );
+							literalLength += buffer.length();
+							buffer.setLength( 0 );
+						}
+						inVariable = true;
+					}
+					else if( c == '}' )
+						valid = false;
+					else
+						buffer.append( c );
+				}
+			}
+
+			if( valid && !inVariable && ( buffer.length() > 0 ) )
+			{
+				segments.add( new Segment( buffer.toString(), null ) );
+				literalLength += buffer.length();
+			}
+
+			if( valid && !inVariable )
+			{
+				this.segments = segments.toArray( new Segment[segments.size()] );
+				capacity = literalLength + variableCount * 16;
+			}
+			else
+			{
+				this.segments = null;
+				capacity = 0;
+			}
+		}
+
+		private final String pattern;
+
+		private final Segment[] segments;
+
+		/**
+		 * Estimated capacity for formatting.
+		 */
+		private final int capacity;
+	}
+
+	/**
+	 * A literal or a variable.
+	 */
+	private static class Segment
+	{
+		private Segment( String literal, String variableName )
+		{
+			this.literal = literal;
+			this.variableName = variableName;
+		}
+
+		private final String literal;
+
+		private final String variableName;
+	}
+
+	/**
+	 * A resolver constructor bound to a method handle.
+	 */
+	private static class BoundConstructor
+	{
+		private BoundConstructor( Constructor<Resolver<?>> constructor, Class<?>... parameterTypes )
+		{
+			this.constructor = constructor;
+			try
+			{
+				handle = MethodHandles.publicLookup().unreflectConstructor( constructor ).asType( MethodType.methodType( Resolver.class, parameterTypes ) );
+			}
+			catch( IllegalAccessException x )
+			{
+				throw new RuntimeException( x );
+			}
+		}
+
+		private final Constructor<Resolver<?>> constructor;
+
+		private final MethodHandle handle;
+	}
 }
@@ -13,7 +13,8 @@ package com.threecrickets.prudence.util;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
 
 import com.threecrickets.prudence.service.GeneratedTextResourceDocumentService;
 
@@ -78,7 +79,11 @@ public class StackedWriter extends Writer
 	public void push( Writer writer )
 	{
 		if( current != null )
-			stack.add( 0, current );
+		{
+			if( size == stack.length )
+				stack = Arrays.copyOf( stack, size * 2 );
+			stack[size++] = current;
+		}
 		current = writer;
 	}
 
@@ -89,8 +94,12 @@ public class StackedWriter extends Writer
 	 */
 	public Writer pop()
 	{
+		if( size == 0 )
+			throw new NoSuchElementException();
+
 		Writer last = current;
-		current = stack.remove( 0 );
+		current = stack[--size];
+		stack[size] = null;
 		return last;
 	}
 
@@ -122,7 +131,12 @@ public class StackedWriter extends Writer
 	/**
 	 * The writer stack.
 	 */
-	private final LinkedList<Writer> stack = new LinkedList<Writer>();
+	private Writer[] stack = new Writer[4];
+
+	/**
+	 * The writer stack size.
+	 */
+	private int size;
 
 	/**
 	 * The current writer.
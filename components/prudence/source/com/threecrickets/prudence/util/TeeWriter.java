@@ -0,0 +1,148 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.util;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import com.threecrickets.prudence.service.GeneratedTextResourceDocumentService;
+
+/**
+ * A {@link Writer} that passes everything through to another writer while
+ * also capturing it into a buffer, up to a size limit. Once the limit is
+ * exceeded the capture is abandoned, but writing continues.
+ * <p>
+ * Instances are not thread safe.
+ * 
+ * @author Tal Liron
+ * @see GeneratedTextResourceDocumentService
+ */
+public class TeeWriter extends Writer
+{
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param writer
+	 *        The writer to pass through to
+	 * @param limit
+	 *        The maximum number of characters to capture
+	 */
+	public TeeWriter( Writer writer, int limit )
+	{
+		super();
+		this.writer = writer;
+		this.limit = limit;
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The capture buffer. Its content is incomplete if
+	 * {@link #isOverflowed()}.
+	 * 
+	 * @return The capture buffer
+	 */
+	public ChunkedWriter getBuffer()
+	{
+		return buffer;
+	}
+
+	/**
+	 * Whether the size limit was exceeded, in which case the capture is
+	 * incomplete.
+	 * 
+	 * @return True if overflowed
+	 */
+	public boolean isOverflowed()
+	{
+		return overflowed;
+	}
+
+	//
+	// Writer
+	//
+
+	@Override
+	public void write( char[] cbuf, int off, int len ) throws IOException
+	{
+		writer.write( cbuf, off, len );
+
+		if( !overflowed )
+		{
+			if( buffer.length() + len > limit )
+			{
+				overflowed = true;
+				buffer.recycle();
+			}
+			else
+				buffer.write( cbuf, off, len );
+		}
+	}
+
+	@Override
+	public void write( String str, int off, int len ) throws IOException
+	{
+		writer.write( str, off, len );
+
+		if( !overflowed )
+		{
+			if( buffer.length() + len > limit )
+			{
+				overflowed = true;
+				buffer.recycle();
+			}
+			else
+				buffer.write( str, off, len );
+		}
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		writer.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		writer.close();
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The writer to pass through to.
+	 */
+	private final Writer writer;
+
+	/**
+	 * The maximum number of characters to capture.
+	 */
+	private final int limit;
+
+	/**
+	 * The capture buffer.
+	 */
+	private final ChunkedWriter buffer = new ChunkedWriter();
+
+	/**
+	 * Whether the limit was exceeded.
+	 */
+	private boolean overflowed;
+}
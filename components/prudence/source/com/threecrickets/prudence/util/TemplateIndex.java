@@ -0,0 +1,238 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.restlet.routing.Template;
+
+/**
+ * An index of values by the literal prefix of their {@link Template}
+ * patterns, which quickly narrows down which templates could possibly match a
+ * reference, so that only those have to be matched with their regular
+ * expressions.
+ * <p>
+ * The literal prefix is the part of the pattern before the first variable (or
+ * query). Because a template can only match references that begin with its
+ * literal prefix, in either {@link Template#MODE_EQUALS} or
+ * {@link Template#MODE_STARTS_WITH} matching modes, the candidates are a
+ * superset of the matches, and the result of matching is unchanged.
+ * <p>
+ * The index is a trie of complete "/"-terminated literal segments. Adding is
+ * not thread safe: build the index first, and then share it.
+ * 
+ * @author Tal Liron
+ * @param <T>
+ *        The value type
+ */
+public class TemplateIndex<T>
+{
+	//
+	// Static operations
+	//
+
+	/**
+	 * The part of a template pattern before its first variable or query.
+	 * 
+	 * @param pattern
+	 *        The template pattern
+	 * @return The literal prefix
+	 */
+	public static String getLiteralPrefix( String pattern )
+	{
+		int length = pattern.length();
+		for( int i = 0; i < length; i++ )
+		{
+			char c = pattern.charAt( i );
+			if( ( c == '{' ) || ( c == '?' ) )
+				return pattern.substring( 0, i );
+		}
+		return pattern;
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The number of values.
+	 * 
+	 * @return The size
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	//
+	// Operations
+	//
+
+	/**
+	 * Adds a value.
+	 * 
+	 * @param pattern
+	 *        The template pattern, or null if the value should be a candidate
+	 *        for all references
+	 * @param value
+	 *        The value
+	 */
+	public void add( String pattern, T value )
+	{
+		String prefix = pattern != null ? getLiteralPrefix( pattern ) : "";
+
+		Node<T> node = root;
+		int start = 0;
+		for( int slash = prefix.indexOf( '/' ); slash != -1; slash = prefix.indexOf( '/', start ) )
+		{
+			String segment = prefix.substring( start, slash );
+			Node<T> child = node.children.get( segment );
+			if( child == null )
+			{
+				child = new Node<T>();
+				node.children.put( segment, child );
+			}
+			node = child;
+			start = slash + 1;
+		}
+
+		node.entries.add( new Entry<T>( size++, prefix, value ) );
+	}
+
+	/**
+	 * The values whose templates could match a reference, in the order in
+	 * which they were added.
+	 * 
+	 * @param reference
+	 *        The reference, or null to get all values
+	 * @return The candidate values
+	 */
+	public List<T> getCandidates( String reference )
+	{
+		ArrayList<Entry<T>> found = new ArrayList<Entry<T>>();
+		if( reference == null )
+			collectAll( root, found );
+		else
+		{
+			Node<T> node = root;
+			collect( node, reference, found );
+			int start = 0;
+			for( int slash = reference.indexOf( '/' ); slash != -1; slash = reference.indexOf( '/', start ) )
+			{
+				if( node.children.isEmpty() )
+					break;
+				node = node.children.get( reference.substring( start, slash ) );
+				if( node == null )
+					break;
+				collect( node, reference, found );
+				start = slash + 1;
+			}
+		}
+
+		if( found.size() > 1 )
+			Collections.sort( found, ORDER );
+
+		ArrayList<T> candidates = new ArrayList<T>( found.size() );
+		for( Entry<T> entry : found )
+			candidates.add( entry.value );
+		return candidates;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * Sorts entries in the order in which they were added.
+	 */
+	private static final Comparator<Entry<?>> ORDER = new Comparator<Entry<?>>()
+	{
+		public int compare( Entry<?> entry1, Entry<?> entry2 )
+		{
+			return entry1.ordinal < entry2.ordinal ? -1 : ( entry1.ordinal == entry2.ordinal ? 0 : 1 );
+		}
+	};
+
+	/**
+	 * The root of the trie.
+	 */
+	private final Node<T> root = new Node<T>();
+
+	/**
+	 * The number of values.
+	 */
+	private int size;
+
+	/**
+	 * Adds the entries of a node that begin with their literal prefix.
+	 * 
+	 * @param node
+	 *        The node
+	 * @param reference
+	 *        The reference
+	 * @param found
+	 *        The found entries
+	 */
+	private static <T> void collect( Node<T> node, String reference, List<Entry<T>> found )
+	{
+		for( Entry<T> entry : node.entries )
+			if( reference.startsWith( entry.prefix ) )
+				found.add( entry );
+	}
+
+	/**
+	 * Adds all entries of a node and its descendants.
+	 * 
+	 * @param node
+	 *        The node
+	 * @param found
+	 *        The found entries
+	 */
+	private static <T> void collectAll( Node<T> node, List<Entry<T>> found )
+	{
+		found.addAll( node.entries );
+		for( Node<T> child : node.children.values() )
+			collectAll( child, found );
+	}
+
+	/**
+	 * A node in the trie, representing a literal segment.
+	 */
+	private static class Node<T>
+	{
+		private final HashMap<String, Node<T>> children = new HashMap<String, Node<T>>();
+
+		private final ArrayList<Entry<T>> entries = new ArrayList<Entry<T>>( 1 );
+	}
+
+	/**
+	 * An indexed value.
+	 */
+	private static class Entry<T>
+	{
+		private Entry( int ordinal, String prefix, T value )
+		{
+			this.ordinal = ordinal;
+			this.prefix = prefix;
+			this.value = value;
+		}
+
+		private final int ordinal;
+
+		private final String prefix;
+
+		private final T value;
+	}
+}
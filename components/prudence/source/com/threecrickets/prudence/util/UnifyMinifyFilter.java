@@ -11,20 +11,28 @@
 
 package com.threecrickets.prudence.util;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.SequenceInputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Set;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 
 import org.restlet.Context;
 import org.restlet.Request;
@@ -46,6 +54,18 @@ import org.restlet.routing.Filter;
  * Note that the files from the source directories are gathered recursively, so
  * that files in all subdirectories will also be included.
  * <p>
+ * Unification is incremental: the (minified) content of each source file is
+ * kept in memory, identified by the file's modification date and size, so
+ * that only changed files are read and minified again, in parallel on a
+ * {@link ForkJoinPool}. Once a result file exists, it is updated in the
+ * background and replaced atomically, so that the previous version keeps
+ * being served in the meantime.
+ * <p>
+ * If an {@link AssetManifest} is set, result files are also registered in it
+ * with the paths at which they were requested, relative to the route (for
+ * example: "/scripts/all.min.js"), so that fingerprinted copies can be referred
+ * to.
+ * <p>
  * Note that this instances of this class can only guarantee atomic access to
  * the unified/minified version within the current VM.
  * 
@@ -148,13 +168,57 @@ public abstract class UnifyMinifyFilter extends Filter
 		this.minimumTimeBetweenValidityChecks = minimumTimeBetweenValidityChecks;
 	}
 
+	/**
+	 * The pool used for minifying source files in parallel and for unifying in
+	 * the background. Defaults to a pool shared by all instances.
+	 * 
+	 * @return The fork-join pool
+	 * @see #setForkJoinPool(ForkJoinPool)
+	 */
+	public ForkJoinPool getForkJoinPool()
+	{
+		return forkJoinPool;
+	}
+
+	/**
+	 * @param forkJoinPool
+	 *        The fork-join pool
+	 * @see #getForkJoinPool()
+	 */
+	public void setForkJoinPool( ForkJoinPool forkJoinPool )
+	{
+		this.forkJoinPool = forkJoinPool;
+	}
+
+	/**
+	 * The asset manifest in which result files are registered.
+	 * 
+	 * @return The asset manifest or null
+	 * @see #setAssetManifest(AssetManifest)
+	 */
+	public AssetManifest getAssetManifest()
+	{
+		return assetManifest;
+	}
+
+	/**
+	 * @param assetManifest
+	 *        The asset manifest or null
+	 * @see #getAssetManifest()
+	 */
+	public void setAssetManifest( AssetManifest assetManifest )
+	{
+		this.assetManifest = assetManifest;
+	}
+
 	//
 	// Operations
 	//
 
 	/**
-	 * Unifies all source files in the directory in they are newer than the
-	 * target, optionally minifying them as
+	 * Unifies all source files in the directory if they are newer than the
+	 * target, optionally minifying them. Only source files that changed since
+	 * the last unification are read and minified again.
 	 * 
 	 * @param targetDirectory
 	 *        The directory into which unified-minified results should be
@@ -170,15 +234,12 @@ public abstract class UnifyMinifyFilter extends Filter
 		if( sourceFiles.isEmpty() )
 			return;
 
-		File unifiedSourceFile = IoUtil.getUniqueFile( new File( targetDirectory, minify ? unifiedMinifiedFilename : unifiedFilename ) );
+		File unifiedSourceFile = getUnifiedSourceFile( targetDirectory, minify );
 
-		synchronized( unifiedSourceFile )
+		ReentrantLock lock = IoUtil.getFileLock( unifiedSourceFile );
+		lock.lock();
+		try
 		{
-			if( minify )
-				getLogger().info( "Unifying and minifying directories into file \"" + unifiedSourceFile + "\"" );
-			else
-				getLogger().info( "Unifying directories into file \"" + unifiedSourceFile + "\"" );
-
 			long newLastModified = 0;
 
 			for( File sourceFile : sourceFiles )
@@ -189,60 +250,168 @@ public abstract class UnifyMinifyFilter extends Filter
 			}
 
 			if( unifiedSourceFile.lastModified() == newLastModified )
+			{
+				register( unifiedSourceFile );
 				return;
+			}
 
-			if( unifiedSourceFile.exists() )
-				if( !unifiedSourceFile.delete() )
-					throw new IOException( "Could not delete file: " + unifiedSourceFile );
-			unifiedSourceFile.getParentFile().mkdirs();
+			if( minify )
+				getLogger().info( "Unifying and minifying directories into file \"" + unifiedSourceFile + "\"" );
+			else
+				getLogger().info( "Unifying directories into file \"" + unifiedSourceFile + "\"" );
+
+			ConcurrentHashMap<String, Piece> pieces = minify ? minifiedPieces : unifiedPieces;
 
-			Vector<InputStream> ins = new Vector<InputStream>();
+			// Read and minify only changed files, in parallel
+			final ArrayList<PieceTask> tasks = new ArrayList<PieceTask>();
 			for( File sourceFile : sourceFiles )
 			{
-				try
+				Piece piece = pieces.get( sourceFile.getPath() );
+				if( ( piece == null ) || !piece.isValid( sourceFile ) )
+					tasks.add( new PieceTask( sourceFile, minify ) );
+			}
+
+			if( !tasks.isEmpty() )
+			{
+				forkJoinPool.invoke( new RecursiveAction()
 				{
-					ins.add( new FileInputStream( sourceFile ) );
-					ins.add( new ByteArrayInputStream( NEWLINE_BYTES ) );
-				}
-				catch( IOException x )
+					@Override
+					protected void compute()
+					{
+						invokeAll( tasks );
+					}
+
+					private static final long serialVersionUID = 1L;
+				} );
+
+				for( PieceTask task : tasks )
 				{
-					for( InputStream in : ins )
-						in.close();
-					throw x;
+					if( task.error != null )
+						throw task.error;
+					pieces.put( task.sourceFile.getPath(), task.piece );
 				}
 			}
 
-			InputStream in = new SequenceInputStream( ins.elements() );
+			// Write to a temporary file, so the previous version can be
+			// served until it is replaced
+			unifiedSourceFile.getParentFile().mkdirs();
+			File temporaryFile = new File( unifiedSourceFile.getParentFile(), unifiedSourceFile.getName() + TEMPORARY_EXTENSION );
+			Set<String> paths = new HashSet<String>();
+			OutputStream out = new FileOutputStream( temporaryFile );
 			try
 			{
-				OutputStream out = new FileOutputStream( unifiedSourceFile );
-				try
-				{
-					if( minify )
-						minify( in, out );
-					else
-						IoUtil.copyStream( in, out );
-				}
-				finally
+				for( File sourceFile : sourceFiles )
 				{
-					out.close();
+					String path = sourceFile.getPath();
+					out.write( pieces.get( path ).content );
+					out.write( NEWLINE_BYTES );
+					paths.add( path );
 				}
 			}
 			finally
 			{
-				in.close();
+				out.close();
 			}
 
-			if( !unifiedSourceFile.setLastModified( newLastModified ) )
-				throw new IOException( "Could not update timestamp on file: " + unifiedSourceFile );
+			// Forget removed files
+			pieces.keySet().retainAll( paths );
+
+			if( !temporaryFile.setLastModified( newLastModified ) )
+				throw new IOException( "Could not update timestamp on file: " + temporaryFile );
+
+			try
+			{
+				Files.move( temporaryFile.toPath(), unifiedSourceFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			}
+			catch( AtomicMoveNotSupportedException x )
+			{
+				Files.move( temporaryFile.toPath(), unifiedSourceFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+			}
 
 			if( minify )
 				getLogger().info( "Unified and minified directories into file \"" + unifiedSourceFile + "\"" );
 			else
 				getLogger().info( "Unified directories into file \"" + unifiedSourceFile + "\"" );
+
+			register( unifiedSourceFile );
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Like {@link #unify(File, boolean)}, but in the background. Does nothing
+	 * if unification into the same file is already pending.
+	 * 
+	 * @param targetDirectory
+	 *        The directory into which unified-minified results should be
+	 *        written
+	 * @param minify
+	 *        Whether to minify the result
+	 */
+	public void unifyInBackground( final File targetDirectory, final boolean minify )
+	{
+		final File unifiedSourceFile = getUnifiedSourceFile( targetDirectory, minify );
+		if( !pending.add( unifiedSourceFile ) )
+			return;
+
+		try
+		{
+			forkJoinPool.execute( new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						unify( targetDirectory, minify );
+					}
+					catch( IOException x )
+					{
+						getLogger().log( Level.SEVERE, "Could not unify directories into file \"" + unifiedSourceFile + "\"", x );
+					}
+					finally
+					{
+						pending.remove( unifiedSourceFile );
+					}
+				}
+			} );
+		}
+		catch( RejectedExecutionException x )
+		{
+			pending.remove( unifiedSourceFile );
+			getLogger().log( Level.WARNING, "Could not schedule unification into file \"" + unifiedSourceFile + "\"", x );
 		}
 	}
 
+	/**
+	 * Watches the source directories, so that adding, removing or changing a
+	 * source file causes unification on the next request rather than when the
+	 * validity check is due. With this, the minimum time between validity
+	 * checks can be set very high.
+	 * 
+	 * @param fileWatcher
+	 *        The file watcher
+	 * @throws IOException
+	 *         In case a directory could not be watched
+	 */
+	public void watch( FileWatcher fileWatcher ) throws IOException
+	{
+		FileWatcher.Listener listener = new FileWatcher.Listener()
+		{
+			public void fileChanged( File file )
+			{
+				// Our own output does not require unification
+				if( !isResult( file.getName() ) )
+					lastValidityCheck.set( 0 );
+			}
+		};
+
+		for( File sourceDirectory : sourceDirectories )
+			fileWatcher.watch( sourceDirectory, listener );
+	}
+
 	//
 	// Filter
 	//
@@ -266,12 +435,20 @@ public abstract class UnifyMinifyFilter extends Filter
 
 			if( validate )
 			{
+				resultPaths.put( name, reference.getRemainingPart( true, false ) );
+
 				long now = System.currentTimeMillis();
 				long lastValidityCheck = this.lastValidityCheck.get();
 				if( lastValidityCheck == 0 || ( now - lastValidityCheck > minimumTimeBetweenValidityChecks ) )
 				{
 					if( this.lastValidityCheck.compareAndSet( lastValidityCheck, now ) )
-						unify( targetDirectory, minify );
+					{
+						// Keep serving the previous version while unifying
+						if( getUnifiedSourceFile( targetDirectory, minify ).exists() )
+							unifyInBackground( targetDirectory, minify );
+						else
+							unify( targetDirectory, minify );
+					}
 				}
 			}
 		}
@@ -314,6 +491,16 @@ public abstract class UnifyMinifyFilter extends Filter
 
 	private static final byte[] NEWLINE_BYTES = "\n".getBytes();
 
+	/**
+	 * Appended to the result filename while it is being written.
+	 */
+	private static final String TEMPORARY_EXTENSION = ".tmp";
+
+	/**
+	 * The default fork-join pool, shared by all instances.
+	 */
+	private static final ForkJoinPool DEFAULT_FORK_JOIN_POOL = new ForkJoinPool();
+
 	/**
 	 * The source extension.
 	 */
@@ -354,6 +541,78 @@ public abstract class UnifyMinifyFilter extends Filter
 	 */
 	private final AtomicLong lastValidityCheck = new AtomicLong();
 
+	/**
+	 * See {@link #getForkJoinPool()}
+	 */
+	private volatile ForkJoinPool forkJoinPool = DEFAULT_FORK_JOIN_POOL;
+
+	/**
+	 * See {@link #getAssetManifest()}
+	 */
+	private volatile AssetManifest assetManifest;
+
+	/**
+	 * The content of source files, by path.
+	 */
+	private final ConcurrentHashMap<String, Piece> unifiedPieces = new ConcurrentHashMap<String, Piece>();
+
+	/**
+	 * The minified content of source files, by path.
+	 */
+	private final ConcurrentHashMap<String, Piece> minifiedPieces = new ConcurrentHashMap<String, Piece>();
+
+	/**
+	 * The paths, relative to the route, at which result files were requested,
+	 * by filename.
+	 */
+	private final ConcurrentHashMap<String, String> resultPaths = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Result files for which background unification is pending.
+	 */
+	private final Set<File> pending = Collections.newSetFromMap( new ConcurrentHashMap<File, Boolean>() );
+
+	private File getUnifiedSourceFile( File targetDirectory, boolean minify )
+	{
+		return IoUtil.getUniqueFile( new File( targetDirectory, minify ? unifiedMinifiedFilename : unifiedFilename ) );
+	}
+
+	/**
+	 * Whether a file is one of our results, a fingerprinted copy of one, or a
+	 * temporary file.
+	 * 
+	 * @param name
+	 *        The filename
+	 * @return True if ours
+	 */
+	private boolean isResult( String name )
+	{
+		if( name.endsWith( TEMPORARY_EXTENSION ) )
+			return true;
+		AssetManifest assetManifest = this.assetManifest;
+		if( ( assetManifest != null ) && assetManifest.isFingerprintedCopy( name ) )
+			return true;
+		return name.equals( unifiedFilename ) || name.equals( unifiedMinifiedFilename );
+	}
+
+	/**
+	 * Registers a result file in the asset manifest, if there is one. Does
+	 * nothing if the result has not been requested yet, because we do not know
+	 * its path.
+	 * 
+	 * @param unifiedSourceFile
+	 *        The result file
+	 * @throws IOException
+	 *         In case of a filesystem error
+	 */
+	private void register( File unifiedSourceFile ) throws IOException
+	{
+		AssetManifest assetManifest = this.assetManifest;
+		String path = resultPaths.get( unifiedSourceFile.getName() );
+		if( ( assetManifest != null ) && ( path != null ) )
+			assetManifest.register( path, unifiedSourceFile );
+	}
+
 	private ArrayList<File> getFiles()
 	{
 		ArrayList<File> sourceFiles = new ArrayList<File>();
@@ -375,10 +634,107 @@ public abstract class UnifyMinifyFilter extends Filter
 				else
 				{
 					String name = sourceFile.getName();
-					if( name.endsWith( sourceExtension ) && !name.equals( unifiedMinifiedFilename ) && !name.equals( unifiedFilename ) )
+					if( name.endsWith( sourceExtension ) && !isResult( name ) )
 						sourceFiles.add( sourceFile );
 				}
 			}
 		}
 	}
+
+	/**
+	 * The (minified) content of a source file.
+	 */
+	private static class Piece
+	{
+		private Piece( long lastModified, long size, byte[] content )
+		{
+			this.lastModified = lastModified;
+			this.size = size;
+			this.content = content;
+		}
+
+		/**
+		 * Whether the piece is still valid for the file.
+		 * 
+		 * @param sourceFile
+		 *        The source file
+		 * @return True if valid
+		 */
+		private boolean isValid( File sourceFile )
+		{
+			return ( sourceFile.lastModified() == lastModified ) && ( sourceFile.length() == size );
+		}
+
+		/**
+		 * The file's modification timestamp.
+		 */
+		private final long lastModified;
+
+		/**
+		 * The file's size.
+		 */
+		private final long size;
+
+		/**
+		 * The (minified) content.
+		 */
+		private final byte[] content;
+	}
+
+	/**
+	 * Reads and optionally minifies a source file.
+	 */
+	private class PieceTask extends RecursiveAction
+	{
+		private PieceTask( File sourceFile, boolean minify )
+		{
+			this.sourceFile = sourceFile;
+			this.minify = minify;
+		}
+
+		@Override
+		protected void compute()
+		{
+			try
+			{
+				// Read the timestamp and size first, so that a file changed
+				// while we read it will be read again next time
+				long lastModified = sourceFile.lastModified();
+				long size = sourceFile.length();
+				byte[] content;
+				if( minify )
+				{
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					InputStream in = new FileInputStream( sourceFile );
+					try
+					{
+						minify( in, out );
+					}
+					finally
+					{
+						in.close();
+					}
+					content = out.toByteArray();
+				}
+				else
+					content = Files.readAllBytes( sourceFile.toPath() );
+
+				piece = new Piece( lastModified, size, content );
+			}
+			catch( IOException x )
+			{
+				error = x;
+			}
+		}
+
+		private final File sourceFile;
+
+		private final boolean minify;
+
+		private Piece piece;
+
+		private IOException error;
+
+		private static final long serialVersionUID = 1L;
+	}
 }
@@ -0,0 +1,184 @@
+/**
+ * Copyright 2009-2017 Three Crickets LLC.
+ * <p>
+ * The contents of this file are subject to the terms of the LGPL version 3.0:
+ * http://www.gnu.org/copyleft/lesser.html
+ * <p>
+ * Alternatively, you can obtain a royalty free commercial license with less
+ * limitations, transferable or non-transferable, directly from Three Crickets
+ * at http://threecrickets.com/
+ */
+
+package com.threecrickets.prudence.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ScheduledThreadPoolExecutor} that runs tasks submitted for
+ * immediate execution each on its own virtual thread, so that tasks blocking
+ * on I/O do not hold on to platform threads. Delayed and repeating tasks are
+ * still run by the executor's small pool of platform threads.
+ * <p>
+ * Virtual threads require JVM version 21 or above. They are accessed via
+ * reflection, so that this class can be loaded on any JVM: use
+ * {@link #isAvailable()} to check before construction.
+ * <p>
+ * Note that virtual threads are not tracked by {@link #shutdown()} or
+ * {@link #awaitTermination(long, java.util.concurrent.TimeUnit)}, though no new
+ * tasks will be accepted after shutdown.
+ * 
+ * @author Tal Liron
+ */
+public class VirtualThreadExecutor extends ScheduledThreadPoolExecutor
+{
+	//
+	// Static attributes
+	//
+
+	/**
+	 * Whether virtual threads are supported by this JVM.
+	 * 
+	 * @return True if available
+	 */
+	public static boolean isAvailable()
+	{
+		return newThreadFactory( "" ) != null;
+	}
+
+	/**
+	 * Creates a factory for virtual threads.
+	 * 
+	 * @param name
+	 *        The prefix for thread names
+	 * @return The thread factory, or null if virtual threads are not supported
+	 *         by this JVM
+	 */
+	public static ThreadFactory newThreadFactory( String name )
+	{
+		try
+		{
+			Class<?> builderClass = Class.forName( "java.lang.Thread$Builder" );
+			Object builder = Thread.class.getMethod( "ofVirtual" ).invoke( null );
+			builder = builderClass.getMethod( "name", String.class, long.class ).invoke( builder, name, 1L );
+			return (ThreadFactory) builderClass.getMethod( "factory" ).invoke( builder );
+		}
+		catch( Exception x )
+		{
+			return null;
+		}
+	}
+
+	//
+	// Construction
+	//
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param schedulerThreads
+	 *        The number of platform threads for delayed and repeating tasks
+	 * @throws UnsupportedOperationException
+	 *         If virtual threads are not supported by this JVM
+	 */
+	public VirtualThreadExecutor( int schedulerThreads )
+	{
+		super( schedulerThreads );
+		threadFactory = newThreadFactory( "Prudence virtual " );
+		if( threadFactory == null )
+			throw new UnsupportedOperationException( "Virtual threads are not supported by this JVM" );
+	}
+
+	//
+	// Attributes
+	//
+
+	/**
+	 * The number of virtual threads currently running tasks.
+	 * 
+	 * @return The virtual thread count
+	 */
+	public int getVirtualThreadCount()
+	{
+		return virtualThreadCount.get();
+	}
+
+	//
+	// Executor
+	//
+
+	@Override
+	public void execute( final Runnable command )
+	{
+		if( command == null )
+			throw new NullPointerException();
+
+		if( isShutdown() )
+		{
+			getRejectedExecutionHandler().rejectedExecution( command, this );
+			return;
+		}
+
+		Thread thread = threadFactory.newThread( new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					command.run();
+				}
+				finally
+				{
+					virtualThreadCount.decrementAndGet();
+				}
+			}
+		} );
+		virtualThreadCount.incrementAndGet();
+		thread.start();
+	}
+
+	//
+	// ExecutorService
+	//
+
+	@Override
+	public Future<?> submit( Runnable task )
+	{
+		RunnableFuture<Object> future = newTaskFor( task, null );
+		execute( future );
+		return future;
+	}
+
+	@Override
+	public <T> Future<T> submit( Runnable task, T result )
+	{
+		RunnableFuture<T> future = newTaskFor( task, result );
+		execute( future );
+		return future;
+	}
+
+	@Override
+	public <T> Future<T> submit( Callable<T> task )
+	{
+		RunnableFuture<T> future = newTaskFor( task );
+		execute( future );
+		return future;
+	}
+
+	// //////////////////////////////////////////////////////////////////////////
+	// Private
+
+	/**
+	 * The virtual thread factory.
+	 */
+	private final ThreadFactory threadFactory;
+
+	/**
+	 * The number of running virtual threads.
+	 */
+	private final AtomicInteger virtualThreadCount = new AtomicInteger();
+}
@@ -11,17 +11,12 @@
 
 package com.threecrickets.prudence.util;
 
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Reader;
-import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -41,7 +36,7 @@ import org.zkoss.zuss.Zuss;
 import org.zkoss.zuss.impl.out.BuiltinResolver;
 import org.zkoss.zuss.metainfo.ZussDefinition;
 
-import com.threecrickets.prudence.internal.CSSMin;
+import com.threecrickets.prudence.internal.CssMinifier;
 
 /**
  * A {@link Filter} that automatically parses
@@ -50,7 +45,14 @@ import com.threecrickets.prudence.internal.CSSMin;
  * {@link CssUnifyMinifyFilter}.
  * <p>
  * This filter can track changes to the source files, updating the result file
- * on-the-fly. This makes it easy to develop and debug a live site.
+ * on-the-fly. This makes it easy to develop and debug a live site. Changes to
+ * included files are tracked, too. Once a result file exists, it is updated in
+ * the background by a {@link CssCompilationService} (see
+ * {@link #getCompilationService()}).
+ * <p>
+ * If an {@link AssetManifest} is set, rendered CSS files are also registered
+ * in it, so that fingerprinted copies can be referred to. Requests for
+ * fingerprinted copies are passed through as is.
  * <p>
  * Note that this instances of this class can only guarantee atomic access to
  * the rendered CSS file within the current VM.
@@ -100,6 +102,13 @@ public class ZussFilter extends Filter implements Locator
 		this.targetDirectory = targetDirectory;
 		this.minimumTimeBetweenValidityChecks = minimumTimeBetweenValidityChecks;
 		this.resolver = resolver;
+		compilationService = new CssCompilationService( new CssCompilationService.Compiler()
+		{
+			public String compile( File sourceFile, Set<File> dependencies ) throws IOException
+			{
+				return ZussFilter.this.compile( sourceFile, dependencies );
+			}
+		}, getLogger() );
 		describe();
 	}
 
@@ -140,13 +149,46 @@ public class ZussFilter extends Filter implements Locator
 		this.minimumTimeBetweenValidityChecks = minimumTimeBetweenValidityChecks;
 	}
 
+	/**
+	 * The asset manifest in which rendered CSS files are registered.
+	 * 
+	 * @return The asset manifest or null
+	 * @see #setAssetManifest(AssetManifest)
+	 */
+	public AssetManifest getAssetManifest()
+	{
+		return compilationService.getAssetManifest();
+	}
+
+	/**
+	 * @param assetManifest
+	 *        The asset manifest or null
+	 * @see #getAssetManifest()
+	 */
+	public void setAssetManifest( AssetManifest assetManifest )
+	{
+		compilationService.setAssetManifest( assetManifest );
+	}
+
+	/**
+	 * The compilation service, which keeps track of the files included by each
+	 * ZUSS file. Set its executor to compile in the background.
+	 * 
+	 * @return The compilation service
+	 */
+	public CssCompilationService getCompilationService()
+	{
+		return compilationService;
+	}
+
 	//
 	// Operations
 	//
 
 	/**
-	 * Translate ZUSS to CSS, only if the ZUSS source is newer. Can optionally
-	 * minify the CSS, too.
+	 * Translate ZUSS to CSS, only if the ZUSS source or any of the files it
+	 * includes changed. Can optionally minify the CSS, too. If the CSS file
+	 * already exists, it is translated in the background.
 	 * 
 	 * @param zussFile
 	 *        The ZUSS source file
@@ -156,66 +198,41 @@ public class ZussFilter extends Filter implements Locator
 	 *        Whether to minify the CSS
 	 * @throws IOException
 	 *         In case of a reading, writing or translation error
-	 * @see CSSMin
+	 * @see CssMinifier
 	 */
 	public void translate( File zussFile, File cssFile, boolean minify ) throws IOException
 	{
-		cssFile = IoUtil.getUniqueFile( cssFile );
-		synchronized( cssFile )
-		{
-			long lastModified = zussFile.lastModified();
-			if( lastModified == cssFile.lastModified() )
-				return;
-
-			if( cssFile.exists() )
-				if( !cssFile.delete() )
-					throw new IOException( "Could not delete file: " + cssFile );
-			cssFile.getParentFile().mkdirs();
+		compilationService.translate( zussFile, cssFile, minify );
+	}
 
-			BufferedReader reader = new BufferedReader( new FileReader( zussFile ) );
-			try
+	/**
+	 * Watches the source directories, so that ZUSS files are translated again
+	 * as soon as they or any of the files they include change, rather than when
+	 * their validity check is due.
+	 * 
+	 * @param fileWatcher
+	 *        The file watcher
+	 * @throws IOException
+	 *         In case a directory could not be watched
+	 */
+	public void watch( FileWatcher fileWatcher ) throws IOException
+	{
+		FileWatcher.Listener listener = new FileWatcher.Listener()
+		{
+			public void fileChanged( File file )
 			{
-				if( minify )
-					getLogger().info( "Translating and minifying ZUSS: \"" + zussFile + "\" into file \"" + cssFile + "\"" );
-				else
-					getLogger().info( "Translating ZUSS: \"" + zussFile + "\" into file \"" + cssFile + "\"" );
-
-				ZussDefinition zussDefinition = Zuss.parse( reader, this, zussFile.getName() );
-				if( minify )
-				{
-					StringWriter writer = new StringWriter();
-					Zuss.translate( zussDefinition, writer, resolver );
-					BufferedOutputStream output = new BufferedOutputStream( new FileOutputStream( cssFile ) );
-					try
-					{
-						CSSMin.formatFile( new StringReader( writer.toString() ), output );
-					}
-					finally
-					{
-						output.close();
-					}
-				}
-				else
+				// Our own output does not require translation
+				String name = file.getName();
+				if( !name.endsWith( CSS_EXTENSION ) && !name.endsWith( TEMPORARY_EXTENSION ) )
 				{
-					BufferedWriter writer = new BufferedWriter( new FileWriter( cssFile ) );
-					try
-					{
-						Zuss.translate( zussDefinition, writer, resolver );
-					}
-					finally
-					{
-						writer.close();
-					}
+					lastValidityChecks.clear();
+					compilationService.fileChanged( file );
 				}
 			}
-			finally
-			{
-				reader.close();
-			}
+		};
 
-			if( !cssFile.setLastModified( lastModified ) )
-				throw new IOException( "Could not update timestamp on file: " + cssFile );
-		}
+		for( File sourceDirectory : sourceDirectories )
+			fileWatcher.watch( sourceDirectory, listener );
 	}
 
 	//
@@ -227,6 +244,12 @@ public class ZussFilter extends Filter implements Locator
 	{
 		Reference reference = request.getResourceRef();
 		String path = reference.getRemainingPart( true, false );
+
+		// Fingerprinted copies never change
+		AssetManifest assetManifest = compilationService.getAssetManifest();
+		if( ( assetManifest != null ) && assetManifest.isFingerprintedCopy( reference.getLastSegment( true, false ) ) )
+			return Filter.CONTINUE;
+
 		try
 		{
 			// String name = reference.getLastSegment( true, false );
@@ -249,20 +272,23 @@ public class ZussFilter extends Filter implements Locator
 				{
 					if( lastValidityCheckAtomic.compareAndSet( lastValidityCheck, now ) )
 					{
+						boolean found = false;
 						for( File sourceDirectory : sourceDirectories )
 						{
 							File zussFile = new File( sourceDirectory, zussPath );
 							if( zussFile.exists() )
 							{
 								File cssFile = new File( targetDirectory, path );
-								translate( zussFile, cssFile, minify );
+								compilationService.validate( path, zussFile, cssFile, minify );
+								found = true;
 								break;
 							}
 						}
 
 						// ZUSS file was not found, so don't keep the entry for
 						// it
-						this.lastValidityChecks.remove( path );
+						if( !found )
+							this.lastValidityChecks.remove( path );
 					}
 				}
 			}
@@ -309,6 +335,8 @@ public class ZussFilter extends Filter implements Locator
 
 	private static final int CSS_EXTENSION_LENGTH = CSS_EXTENSION.length();
 
+	private static final String TEMPORARY_EXTENSION = ".tmp";
+
 	private static final String ZUSS_EXTENSION = ".zuss";
 
 	/**
@@ -336,6 +364,11 @@ public class ZussFilter extends Filter implements Locator
 	 */
 	private final ConcurrentHashMap<String, AtomicLong> lastValidityChecks = new ConcurrentHashMap<String, AtomicLong>();
 
+	/**
+	 * See {@link #getCompilationService()}
+	 */
+	private final CssCompilationService compilationService;
+
 	/**
 	 * Add description.
 	 */
@@ -379,6 +412,45 @@ public class ZussFilter extends Filter implements Locator
 		return null;
 	}
 
+	/**
+	 * Compiles a ZUSS file, keeping track of the files it includes.
+	 * 
+	 * @param zussFile
+	 *        The ZUSS file
+	 * @param dependencies
+	 *        The included files
+	 * @return The CSS
+	 * @throws IOException
+	 *         In case of a reading or compilation error
+	 */
+	private String compile( File zussFile, final Set<File> dependencies ) throws IOException
+	{
+		Locator locator = new Locator()
+		{
+			public Reader getResource( String name ) throws IOException
+			{
+				File file = findFile( name );
+				if( file == null )
+					throw new FileNotFoundException( name );
+				dependencies.add( file );
+				return new BufferedReader( new FileReader( file ) );
+			}
+		};
+
+		BufferedReader reader = new BufferedReader( new FileReader( zussFile ) );
+		try
+		{
+			ZussDefinition zussDefinition = Zuss.parse( reader, locator, zussFile.getName() );
+			StringWriter writer = new StringWriter();
+			Zuss.translate( zussDefinition, writer, resolver );
+			return writer.toString();
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
 	private AtomicLong getLastValidityCheck( String key )
 	{
 		AtomicLong lastValidityCheck = this.lastValidityChecks.get( key );
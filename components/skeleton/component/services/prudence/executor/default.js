@@ -1,3 +1,13 @@
 
-var executor = java.util.concurrent.Executors.newScheduledThreadPool(java.lang.Runtime.runtime.availableProcessors() * 2 + 1)
+// Set to true to run tasks on virtual threads (requires JVM 21 or above)
+var virtualThreads = false
+
+var executor
+if (virtualThreads && com.threecrickets.prudence.util.VirtualThreadExecutor.isAvailable()) {
+	executor = new com.threecrickets.prudence.util.VirtualThreadExecutor(java.lang.Runtime.runtime.availableProcessors() + 1)
+}
+else {
+	executor = java.util.concurrent.Executors.newScheduledThreadPool(java.lang.Runtime.runtime.availableProcessors() * 2 + 1)
+}
 component.context.attributes.put('com.threecrickets.prudence.executor', executor)
+component.context.attributes.put('com.threecrickets.prudence.virtualThreads', virtualThreads)
@@ -0,0 +1,18 @@
+// Set to true to detect changes to source files via operating system
+// notifications instead of polling. The file cache, LESS, ZUSS and
+// unify-minify filters and document resolution will then notice changes
+// immediately, and code documents (libraries, manual resources and scriptlet
+// resources) will be checked again on their next use.
+//
+// Note that changes to files outside the watched directories, such as files
+// added via document.addFileDependency, are still noticed only by polling,
+// according to your applications' minimumTimeBetweenValidityChecks.
+var enabled = false
+
+if (enabled) {
+	var fileWatcher = new com.threecrickets.prudence.util.FileWatcher()
+	component.context.attributes.put('com.threecrickets.prudence.fileWatcher', fileWatcher)
+
+	// Close the watcher when the component stops
+	component.services.add(fileWatcher)
+}